@@ -1,10 +1,14 @@
 package com.verivital.hyst.geometry;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
 import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
 
@@ -273,7 +277,7 @@ public class Interval
 
 		try
 		{
-			rv = intervalEvaluateRec(e, ranges);
+			rv = new IntervalEvaluator(ranges).evaluate(e);
 		}
 		catch (AutomatonExportException ex)
 		{
@@ -284,148 +288,178 @@ public class Interval
 		return rv;
 	}
 
-	private static Interval intervalEvaluateRec(Expression e, Map<String, Interval> ranges)
+	/**
+	 * Interval evaluation, bottom-up with an explicit stack (long expressions would overflow the
+	 * call stack)
+	 */
+	private static class IntervalEvaluator extends PostOrder<Interval>
 	{
-		Interval rv = null;
+		private final Map<String, Interval> ranges;
 
-		if (e instanceof Variable)
+		public IntervalEvaluator(Map<String, Interval> ranges)
 		{
-			String varName = ((Variable) e).name;
-
-			Interval i = ranges.get(varName);
-
-			if (i == null)
-				throw new AutomatonExportException(
-						"Range of variable " + varName + " is needed, but wasn't provided.");
-
-			rv = new Interval(i);
+			this.ranges = ranges;
 		}
-		else if (e instanceof Constant)
-		{
-			double d = ((Constant) e).getVal();
 
-			rv = new Interval(d);
-		}
-		else if (e instanceof Operation)
+		@Override
+		protected List<Expression> getChildren(Expression e)
 		{
-			Operation o = e.asOperation();
+			List<Expression> rv = Collections.emptyList();
+			Operation o = e instanceof Operation ? (Operation) e : null;
 
-			Interval left = null;
-			Interval right = null;
+			if (o != null && o.children.size() == 2)
+				rv = o.children;
+			else if (o != null && (o.op == Operator.NEGATIVE || o.op == Operator.LN
+					|| o.op == Operator.SQRT || o.op == Operator.EXP))
+				rv = o.children.subList(0, 1);
 
-			if (o.children.size() == 2)
-			{
-				left = intervalEvaluateRec(o.getLeft(), ranges);
-				right = intervalEvaluateRec(o.getRight(), ranges);
-			}
-
-			switch (o.op)
-			{
-			case ADD:
-				rv = new Interval(left.min + right.min, left.max + right.max);
-				break;
-			case SUBTRACT:
-				rv = new Interval(left.min - right.max, left.max - right.min);
-				break;
-			case NEGATIVE:
-			{
-				rv = intervalEvaluateRec(o.children.get(0), ranges);
+			return rv;
+		}
 
-				double oldMin = rv.min;
+		@Override
+		protected Interval combine(Expression e, List<Interval> childValues)
+		{
+			Interval rv = null;
 
-				rv.min = -rv.max;
-				rv.max = -oldMin;
-				break;
-			}
-			case MULTIPLY:
+			if (e instanceof Variable)
 			{
-				double a = left.min * right.min;
-				double b = left.min * right.max;
-				double c = left.max * right.min;
-				double d = left.max * right.max;
-
-				double min = Math.min(Math.min(a, b), Math.min(c, d));
-				double max = Math.max(Math.max(a, b), Math.max(c, d));
+				String varName = ((Variable) e).name;
 
-				rv = new Interval(min, max);
+				Interval i = ranges.get(varName);
 
-				break;
-			}
-			case DIVIDE:
-			{
-				if (right.min <= 0 && right.max >= 0)
+				if (i == null)
 					throw new AutomatonExportException(
-							"Interval division contains zero in denominator.");
+							"Range of variable " + varName + " is needed, but wasn't provided.");
 
-				double a = left.min * 1.0 / right.min;
-				double b = left.min * 1.0 / right.max;
-				double c = left.max * 1.0 / right.min;
-				double d = left.max * 1.0 / right.max;
-
-				double min = Math.min(Math.min(a, b), Math.min(c, d));
-				double max = Math.max(Math.max(a, b), Math.max(c, d));
-
-				rv = new Interval(min, max);
-				break;
+				rv = new Interval(i);
 			}
-			case LN:
+			else if (e instanceof Constant)
 			{
-				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
-
-				if (i.min <= 0)
-					throw new AutomatonExportException(
-							"Interval evaluate of ln with min <= 0: " + i.min);
+				double d = ((Constant) e).getVal();
 
-				rv = new Interval(Math.log(i.min), Math.log(i.max));
-				break;
+				rv = new Interval(d);
 			}
-			case SQRT:
+			else if (e instanceof Operation)
 			{
-				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
-
-				if (i.min < 0)
+				Operation o = e.asOperation();
+
+				Interval left = null;
+				Interval right = null;
+
+				if (o.children.size() == 2)
+				{
+					left = childValues.get(0);
+					right = childValues.get(1);
+				}
+
+				switch (o.op)
+				{
+				case ADD:
+					rv = new Interval(left.min + right.min, left.max + right.max);
+					break;
+				case SUBTRACT:
+					rv = new Interval(left.min - right.max, left.max - right.min);
+					break;
+				case NEGATIVE:
+				{
+					rv = childValues.get(0);
+
+					double oldMin = rv.min;
+
+					rv.min = -rv.max;
+					rv.max = -oldMin;
+					break;
+				}
+				case MULTIPLY:
+				{
+					double a = left.min * right.min;
+					double b = left.min * right.max;
+					double c = left.max * right.min;
+					double d = left.max * right.max;
+
+					double min = Math.min(Math.min(a, b), Math.min(c, d));
+					double max = Math.max(Math.max(a, b), Math.max(c, d));
+
+					rv = new Interval(min, max);
+
+					break;
+				}
+				case DIVIDE:
+				{
+					if (right.min <= 0 && right.max >= 0)
+						throw new AutomatonExportException(
+								"Interval division contains zero in denominator.");
+
+					double a = left.min * 1.0 / right.min;
+					double b = left.min * 1.0 / right.max;
+					double c = left.max * 1.0 / right.min;
+					double d = left.max * 1.0 / right.max;
+
+					double min = Math.min(Math.min(a, b), Math.min(c, d));
+					double max = Math.max(Math.max(a, b), Math.max(c, d));
+
+					rv = new Interval(min, max);
+					break;
+				}
+				case LN:
+				{
+					Interval i = childValues.get(0);
+
+					if (i.min <= 0)
+						throw new AutomatonExportException(
+								"Interval evaluate of ln with min <= 0: " + i.min);
+
+					rv = new Interval(Math.log(i.min), Math.log(i.max));
+					break;
+				}
+				case SQRT:
+				{
+					Interval i = childValues.get(0);
+
+					if (i.min < 0)
+						throw new AutomatonExportException(
+								"Interval evaluate of sqrt with min < 0: " + i.min);
+
+					rv = new Interval(Math.sqrt(i.max), Math.sqrt(i.min));
+					break;
+				}
+				case POW:
+					rv = intervalPow(left, right);
+					break;
+				case EXP:
+					Interval i = childValues.get(0);
+					rv = intervalPow(new Interval(Math.E), i);
+					break;
+				case SIN:
+				case COS:
+				case TAN:
+					// these could be done using Algorithm 2 on page 29 of Xin
+					// Chen's dissertation
+					// tan would need division tan(x) = sin(x) / cos(x)
 					throw new AutomatonExportException(
-							"Interval evaluate of sqrt with min < 0: " + i.min);
-
-				rv = new Interval(Math.sqrt(i.max), Math.sqrt(i.min));
-				break;
+							"Operator is not yet supported (submit a feature request if you need it): "
+									+ o.op.name());
+
+				case AND:
+				case EQUAL:
+				case GREATER:
+				case GREATEREQUAL:
+				case LESS:
+				case LESSEQUAL:
+				case LOC:
+				case LOGICAL_NOT:
+				case NOTEQUAL:
+				case OR:
+				default:
+					throw new AutomatonExportException("Operator is not supported: " + o.op.name());
+
+				}
 			}
-			case POW:
-				rv = intervalPow(left, right);
-				break;
-			case EXP:
-				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
-				rv = intervalPow(new Interval(Math.E), i);
-				break;
-			case SIN:
-			case COS:
-			case TAN:
-				// these could be done using Algorithm 2 on page 29 of Xin
-				// Chen's dissertation
-				// tan would need division tan(x) = sin(x) / cos(x)
-				throw new AutomatonExportException(
-						"Operator is not yet supported (submit a feature request if you need it): "
-								+ o.op.name());
-
-			case AND:
-			case EQUAL:
-			case GREATER:
-			case GREATEREQUAL:
-			case LESS:
-			case LESSEQUAL:
-			case LOC:
-			case LOGICAL_NOT:
-			case NOTEQUAL:
-			case OR:
-			default:
-				throw new AutomatonExportException("Operator is not supported: " + o.op.name());
+			else
+				throw new AutomatonExportException("Unsupported Expression Type: " + e);
 
-			}
+			return rv;
 		}
-		else
-			throw new AutomatonExportException("Unsupported Expression Type: " + e);
-
-		return rv;
 	}
 
 	/**
@@ -4,14 +4,19 @@
 package com.verivital.hyst.grammar.formula;
 
 /**
- * A Real number in an expression.
+ * A Real number in an expression. Constants are immutable, so copying an expression shares its
+ * Constant objects rather than allocating new ones.
+ *
+ * The former setVal() method was removed, since changing a shared Constant would change every
+ * copy of the expression. To change a value, replace the Constant in its parent operation with a
+ * new Constant.
  */
 public class Constant extends Expression
 {
 	public static final Constant TRUE = new Constant(1);
 	public static final Constant FALSE = new Constant(0);
 
-	private double val;
+	private final double val;
 
 	public Constant(double value)
 	{
@@ -23,30 +28,13 @@ public class Constant extends Expression
 		return val;
 	}
 
-	public void setVal(double v)
-	{
-		if (this == TRUE)
-			throw new RuntimeException("setValue called on Constant.TRUE");
-
-		if (this == FALSE)
-			throw new RuntimeException("setValue called on Constant.FALSE");
-
-		val = v;
-	}
-
+	/**
+	 * Constants are immutable, so this returns the same object
+	 */
 	@Override
 	public Expression copy()
 	{
-		Expression rv = null;
-
-		if (this == TRUE)
-			rv = TRUE;
-		else if (this == FALSE)
-			rv = FALSE;
-		else
-			rv = new Constant(val);
-
-		return rv;
+		return this;
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package com.verivital.hyst.grammar.formula;
 
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -118,82 +119,141 @@ public class DefaultExpressionPrinter extends ExpressionPrinter
 	 * Usually inline printing
 	 */
 	@Override
-	protected String printOperation(Operation o)
+	protected void appendOperation(Operation o, StringBuilder out)
 	{
-		String rv;
 		List<Expression> children = o.children;
 		Operator op = o.op;
 
 		if (children.size() == 0)
-			rv = printOperator(o.op);
+			out.append(printOperator(o.op));
 		else if (children.size() == 1)
 		{
 			Expression child = children.get(0);
 
-			if (op.equals(Operator.NEGATIVE) || op.equals(Operator.LOGICAL_NOT))
-			{
-				if (child instanceof Operation && child.asOperation().children.size() > 1)
-					rv = printOperator(o.op) + "(" + print(child) + ")";
-				else
-					rv = printOperator(o.op) + "" + print(child);
-			}
+			out.append(printOperator(o.op));
+
+			if ((op.equals(Operator.NEGATIVE) || op.equals(Operator.LOGICAL_NOT))
+					&& !(child instanceof Operation && child.asOperation().children.size() > 1))
+				print(child, out);
 			else
-				rv = printOperator(o.op) + "(" + print(child) + ")";
+				appendParenthesized(child, out);
 		}
 		else if (children.size() == 2)
 		{
-			Expression leftExp = children.get(0);
-			Operation left = leftExp.asOperation();
-
-			Expression rightExp = children.get(1);
-			Operation right = rightExp.asOperation();
-
-			boolean needParenLeft = false;
-			boolean needParenRight = false;
-
-			// use parentheses if they are needed
-			int myP = Operator.getPriority(op);
+			// left-nested chains like a1 + a2 + ... + an are printed with a loop rather than
+			// recursion, which would overflow the stack for long chains
+			ArrayList<Operation> chain = new ArrayList<Operation>();
+			Operation bottom = o;
 
-			if (left != null && left.children.size() > 1)
+			while (true)
 			{
-				int leftP = Operator.getPriority(left.op);
+				Operation left = bottom.children.get(0).asOperation();
 
-				if (leftP < myP)
-					needParenLeft = true;
-			}
-
-			if (right != null && right.children.size() > 1)
-			{
-				int rightP = Operator.getPriority(right.op);
+				if (left == null || left.children.size() != 2 || needsParenLeft(bottom)
+						|| !usesDefaultPrinting(left))
+					break;
 
-				if (myP > rightP || (myP == rightP && !Operator.isCommutative(op))) // commutative
-					needParenRight = true;
+				chain.add(bottom);
+				bottom = left;
 			}
 
-			rv = "";
+			Expression leftExp = bottom.children.get(0);
 
-			if (needParenLeft)
-				rv += "(" + print(leftExp) + ")"; // maybe not strictly
-													// necessary as the
-													// expression.toString is
-													// overriden to call this
-													// print, but was having
-													// problems with this
+			if (needsParenLeft(bottom))
+				appendParenthesized(leftExp, out);
 			else
-				rv += print(leftExp);
+				print(leftExp, out);
 
-			rv += " " + printOperator(o.op) + " ";
+			appendBinaryRight(bottom, out);
 
-			if (needParenRight)
-				rv += "(" + print(rightExp) + ")";
-			else
-				rv += print(rightExp);
+			for (int i = chain.size() - 1; i >= 0; --i)
+				appendBinaryRight(chain.get(i), out);
 		}
 		else
+			appendPrefixOperation(o, out);
+	}
+
+	/**
+	 * Print the operator and the right child of a binary operation
+	 */
+	private void appendBinaryRight(Operation o, StringBuilder out)
+	{
+		Expression rightExp = o.children.get(1);
+
+		out.append(' ');
+		out.append(printOperator(o.op));
+		out.append(' ');
+
+		if (needsParenRight(o))
+			appendParenthesized(rightExp, out);
+		else
+			print(rightExp, out);
+	}
+
+	/**
+	 * Is an operation printed by this class's appendOperation()? Left-nested chains of such
+	 * operations are printed in a loop, without calling print() for the inner operations.
+	 * Subclasses which override appendOperation() to print some operations differently must
+	 * return false for those operations.
+	 * 
+	 * @param o
+	 *            the operation
+	 * @return true if the operation is printed by DefaultExpressionPrinter.appendOperation()
+	 */
+	protected boolean usesDefaultPrinting(Operation o)
+	{
+		return true;
+	}
+
+	/**
+	 * Print an expression surrounded by parentheses
+	 */
+	protected void appendParenthesized(Expression e, StringBuilder out)
+	{
+		out.append('(');
+		print(e, out);
+		out.append(')');
+	}
+
+	/**
+	 * Check if the left child of a binary operation needs parentheses when printed inline
+	 * 
+	 * @param o
+	 *            an operation with two children
+	 * @return true if parentheses are needed
+	 */
+	protected boolean needsParenLeft(Operation o)
+	{
+		Operation left = o.children.get(0).asOperation();
+		boolean rv = false;
+
+		if (left != null && left.children.size() > 1)
+			rv = Operator.getPriority(left.op) < Operator.getPriority(o.op);
+
+		return rv;
+	}
+
+	/**
+	 * Check if the right child of a binary operation needs parentheses when printed inline
+	 * 
+	 * @param o
+	 *            an operation with two children
+	 * @return true if parentheses are needed
+	 */
+	protected boolean needsParenRight(Operation o)
+	{
+		Operation right = o.children.get(1).asOperation();
+		boolean rv = false;
+
+		if (right != null && right.children.size() > 1)
 		{
-			rv = super.printOperation(o);
+			int myP = Operator.getPriority(o.op);
+			int rightP = Operator.getPriority(right.op);
+
+			// commutative operators don't need parentheses at equal priority
+			rv = myP > rightP || (myP == rightP && !Operator.isCommutative(o.op));
 		}
 
 		return rv;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,778 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hand-written recursive-descent parser for the Hyst expression grammar (HystExpression.g4). It
+ * constructs Expressions directly while parsing, rather than having ANTLR build a parse tree which
+ * is then walked by ExpVisitor. The rules and the constructed trees are the same as with the ANTLR
+ * parser; the semantic parts (functions, negation, comparison chains, balanced conjunctions) are
+ * shared with ExpVisitor.
+ *
+ * This parser only accepts input which the grammar accepts. For anything else it throws an
+ * exception: a DirectExpressionParser.Failure for unexpected characters and syntax errors, or the
+ * exception from constructing the expression (like an unknown function). FormulaParser then parses
+ * the text again with ANTLR, which reports the error the same way as before.
+ */
+class DirectExpressionParser
+{
+	// token types
+	private static final int EOF = 0;
+	private static final int TICK = 1;
+	private static final int TRUE = 2;
+	private static final int FALSE = 3;
+	private static final int NUM = 4;
+	private static final int VAR = 5;
+	private static final int LPAR = 6;
+	private static final int RPAR = 7;
+	private static final int LBRAC = 8;
+	private static final int RBRAC = 9;
+	private static final int COMMA = 10;
+	private static final int SEMICOLON = 11;
+	private static final int COLON = 12;
+	private static final int PLUS = 13;
+	private static final int MINUS = 14;
+	private static final int TIMES = 15;
+	private static final int DIV = 16;
+	private static final int POW = 17;
+	private static final int DOT = 18;
+	private static final int AND = 19;
+	private static final int OR = 20;
+	private static final int NOT = 21;
+	private static final int LESS = 22;
+	private static final int GREATER = 23;
+	private static final int LESSEQUAL = 24;
+	private static final int GREATEREQUAL = 25;
+	private static final int NOTEQUAL = 26;
+	private static final int EQUAL = 27;
+	private static final int EQUAL_RESET = 28;
+
+	/**
+	 * Thrown when the input can't be parsed directly. The message is only for debugging, errors
+	 * are reported by the ANTLR parser.
+	 */
+	static class Failure extends RuntimeException
+	{
+		public Failure(String message)
+		{
+			super(message, null, false, false);
+		}
+	}
+
+	private final String text;
+
+	// the tokens, in parallel arrays
+	private int numTokens = 0;
+	private int[] types = new int[16];
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+
+	// index of the current token
+	private int pos = 0;
+
+	// for parentheses in a boolean context: the matching RPAR of each LPAR, and the number of
+	// boolean tokens before each token (computed when first needed)
+	private int[] matchingParen = null;
+	private int[] boolTokensBefore = null;
+
+	private DirectExpressionParser(String text)
+	{
+		this.text = text;
+	}
+
+	/**
+	 * Parse an expression
+	 *
+	 * @param text
+	 *            the text to parse
+	 * @param part
+	 *            the type of expression, as in FormulaParser.getParseTree()
+	 * @return the expression, or null for blank expressions
+	 * @throws Failure
+	 *             if the text (or part) is not supported
+	 */
+	static Expression parse(String text, String part)
+	{
+		DirectExpressionParser p = new DirectExpressionParser(text);
+		p.tokenize();
+
+		return p.parsePart(part);
+	}
+
+	private Expression parsePart(String part)
+	{
+		Expression rv = null;
+
+		if (part.equals("invariant") || part.equals("guard") || part.equals("initial/forbidden"))
+		{
+			if (type() != EOF)
+				rv = parseOr();
+		}
+		else if (part.equals("reset"))
+		{
+			if (type() != EOF)
+				rv = parseReset();
+		}
+		else if (part.equals("flow"))
+		{
+			if (type() == FALSE)
+			{
+				// the grammar ignores anything after 'false'; let ANTLR deal with that
+				advance();
+				rv = Constant.FALSE;
+			}
+			else if (type() != EOF)
+				rv = parseFlow();
+		}
+		else if (part.equals("number (addsub)"))
+			rv = parseAddSub();
+		else
+			throw new Failure("unknown expression type: " + part);
+
+		expect(EOF);
+
+		return rv;
+	}
+
+	// resetSubExpression (AND resetSubExpression)*
+	private Expression parseReset()
+	{
+		Expression rv = parseResetSubExpression();
+
+		while (type() == AND)
+		{
+			advance();
+			rv = new Operation(Operator.AND, rv, parseResetSubExpression());
+		}
+
+		return rv;
+	}
+
+	// VAR EQUAL_RESET addSub | addSub op addSub (op addSub)*
+	private Expression parseResetSubExpression()
+	{
+		Expression rv;
+
+		if (type() == VAR && type(pos + 1) == EQUAL_RESET)
+		{
+			Variable v = new Variable(tokenText(pos));
+			pos += 2;
+
+			rv = new Operation(Operator.EQUAL, v, parseAddSub());
+		}
+		else
+			rv = parseComparisons();
+
+		return rv;
+	}
+
+	// VAR TICK? EQUAL addSub (AND VAR TICK? EQUAL addSub)*
+	private Expression parseFlow()
+	{
+		List<Expression> terms = new ArrayList<Expression>();
+
+		while (true)
+		{
+			expect(VAR);
+			Variable v = new Variable(tokenText(pos - 1));
+
+			if (type() == TICK)
+				advance();
+
+			expect(EQUAL);
+			terms.add(new Operation(Operator.EQUAL, v, parseAddSub()));
+
+			if (type() != AND)
+				break;
+
+			advance();
+		}
+
+		return ExpVisitor.balanced(Operator.AND, terms);
+	}
+
+	// and OR or (right-associative)
+	private Expression parseOr()
+	{
+		List<Expression> children = new ArrayList<Expression>();
+		children.add(parseAnd());
+
+		while (type() == OR)
+		{
+			advance();
+			children.add(parseAnd());
+		}
+
+		Expression rv = children.get(children.size() - 1);
+
+		for (int i = children.size() - 2; i >= 0; --i)
+			rv = new Operation(Operator.OR, children.get(i), rv);
+
+		return rv;
+	}
+
+	// (not AND)* not
+	private Expression parseAnd()
+	{
+		List<Expression> children = new ArrayList<Expression>();
+		children.add(parseNot());
+
+		while (type() == AND)
+		{
+			advance();
+			children.add(parseNot());
+		}
+
+		return ExpVisitor.balanced(Operator.AND, children);
+	}
+
+	// NOT LPAR or RPAR | LPAR or RPAR | compare
+	private Expression parseNot()
+	{
+		Expression rv;
+
+		if (type() == NOT)
+		{
+			advance();
+			expect(LPAR);
+			rv = new Operation(Operator.NEGATIVE, parseOr());
+			expect(RPAR);
+		}
+		else if (type() == LPAR && isBooleanParentheses(pos))
+		{
+			advance();
+			rv = parseOr();
+			expect(RPAR);
+		}
+		else if (type() == TRUE)
+		{
+			advance();
+			rv = Constant.TRUE;
+		}
+		else if (type() == FALSE)
+		{
+			advance();
+			rv = Constant.FALSE;
+		}
+		else
+			rv = parseComparisons();
+
+		return rv;
+	}
+
+	/**
+	 * Do the parentheses starting at the given LPAR contain a boolean expression (rather than an
+	 * arithmetic one)? Arithmetic expressions can't contain comparisons, boolean constants or
+	 * boolean operators, and boolean expressions must contain a comparison or a constant.
+	 */
+	private boolean isBooleanParentheses(int lpar)
+	{
+		if (matchingParen == null)
+		{
+			matchingParen = new int[numTokens];
+			boolTokensBefore = new int[numTokens + 1];
+			int[] stack = new int[numTokens];
+			int stackSize = 0;
+
+			for (int i = 0; i < numTokens; ++i)
+			{
+				int t = types[i];
+				boolean isBool = t == TRUE || t == FALSE || t == AND || t == OR || t == NOT
+						|| isComparison(t);
+
+				boolTokensBefore[i + 1] = boolTokensBefore[i] + (isBool ? 1 : 0);
+				matchingParen[i] = -1;
+
+				if (t == LPAR)
+					stack[stackSize++] = i;
+				else if (t == RPAR && stackSize > 0)
+					matchingParen[stack[--stackSize]] = i;
+			}
+		}
+
+		int rpar = matchingParen[lpar];
+
+		if (rpar == -1)
+			throw new Failure("unbalanced parentheses");
+
+		return boolTokensBefore[rpar] - boolTokensBefore[lpar] > 0;
+	}
+
+	// addSub (op addSub)+
+	private Expression parseComparisons()
+	{
+		List<Expression> operands = new ArrayList<Expression>();
+		List<Operator> ops = new ArrayList<Operator>();
+
+		operands.add(parseAddSub());
+
+		if (!isComparison(type()))
+			throw new Failure("expected comparison at " + describe(pos));
+
+		while (isComparison(type()))
+		{
+			ops.add(comparisonOperator(type()));
+			advance();
+			operands.add(parseAddSub());
+		}
+
+		return ExpVisitor.comparisons(operands, ops);
+	}
+
+	private static boolean isComparison(int type)
+	{
+		return type >= LESS && type <= EQUAL;
+	}
+
+	private static Operator comparisonOperator(int type)
+	{
+		switch (type)
+		{
+		case LESS:
+			return Operator.LESS;
+		case GREATER:
+			return Operator.GREATER;
+		case LESSEQUAL:
+			return Operator.LESSEQUAL;
+		case GREATEREQUAL:
+			return Operator.GREATEREQUAL;
+		case NOTEQUAL:
+			return Operator.NOTEQUAL;
+		default:
+			return Operator.EQUAL;
+		}
+	}
+
+	// addSub (PLUS | MINUS) timesDiv (left-associative)
+	private Expression parseAddSub()
+	{
+		Expression rv = parseTimesDiv();
+
+		while (type() == PLUS || type() == MINUS)
+		{
+			Operator op = type() == PLUS ? Operator.ADD : Operator.SUBTRACT;
+			advance();
+
+			rv = new Operation(op, rv, parseTimesDiv());
+		}
+
+		return rv;
+	}
+
+	// timesDiv (TIMES | DIV) pow (left-associative)
+	private Expression parseTimesDiv()
+	{
+		Expression rv = parsePow();
+
+		while (type() == TIMES || type() == DIV)
+		{
+			Operator op = type() == TIMES ? Operator.MULTIPLY : Operator.DIVIDE;
+			advance();
+
+			rv = new Operation(op, rv, parsePow());
+		}
+
+		return rv;
+	}
+
+	// pow POW negativeUnary (left-associative)
+	private Expression parsePow()
+	{
+		Expression rv = parseNegativeUnary();
+
+		while (type() == POW)
+		{
+			advance();
+
+			rv = new Operation(Operator.POW, rv, parseNegativeUnary());
+		}
+
+		return rv;
+	}
+
+	// MINUS* unary, where each MINUS is applied to the result of the inner ones
+	private Expression parseNegativeUnary()
+	{
+		int minuses = 0;
+
+		while (type() == MINUS)
+		{
+			advance();
+			++minuses;
+		}
+
+		Expression rv = parseUnary();
+
+		for (int i = 0; i < minuses; ++i)
+			rv = ExpVisitor.negative(rv);
+
+		return rv;
+	}
+
+	// matrixExpression | functionExpression | NUM | dottedVar | LPAR addSub RPAR
+	private Expression parseUnary()
+	{
+		Expression rv;
+		int t = type();
+
+		if (t == LBRAC)
+			rv = parseMatrix();
+		else if (t == VAR && type(pos + 1) == LPAR)
+			rv = parseFunction();
+		else if (t == NUM)
+		{
+			rv = new Constant(Double.parseDouble(tokenText(pos)));
+			advance();
+		}
+		else if (t == VAR)
+			rv = parseDottedVar();
+		else if (t == LPAR)
+		{
+			advance();
+			rv = parseAddSub();
+			expect(RPAR);
+		}
+		else
+			throw new Failure("unexpected " + describe(pos));
+
+		return rv;
+	}
+
+	// VAR (DOT VAR)* TICK?
+	private Expression parseDottedVar()
+	{
+		String name = tokenText(pos);
+		advance();
+
+		if (type() == DOT)
+		{
+			StringBuilder sb = new StringBuilder(name);
+
+			while (type() == DOT)
+			{
+				advance();
+				expect(VAR);
+				sb.append('.').append(tokenText(pos - 1));
+			}
+
+			name = sb.toString();
+		}
+
+		// the tick is not part of the name
+		if (type() == TICK)
+			advance();
+
+		return new Variable(name);
+	}
+
+	// VAR LPAR (addSub (COMMA addSub)*)? RPAR
+	private Expression parseFunction()
+	{
+		String name = tokenText(pos);
+		pos += 2;
+
+		final List<Expression> args = new ArrayList<Expression>();
+
+		if (type() != RPAR)
+		{
+			args.add(parseAddSub());
+
+			while (type() == COMMA)
+			{
+				advance();
+				args.add(parseAddSub());
+			}
+		}
+
+		expect(RPAR);
+
+		return ExpVisitor.function(name, new ExpVisitor.FunctionArguments()
+		{
+			@Override
+			public int size()
+			{
+				return args.size();
+			}
+
+			@Override
+			public Expression get(int index)
+			{
+				return args.get(index);
+			}
+		});
+	}
+
+	// LBRAC matrixRow (SEMICOLON matrixRow)* RBRAC | LBRAC addSub COLON addSub COLON addSub RBRAC
+	private Expression parseMatrix()
+	{
+		Expression rv;
+		advance();
+
+		Expression first = parseAddSub();
+
+		if (type() == COLON)
+		{
+			advance();
+			Expression step = parseAddSub();
+			expect(COLON);
+			Expression last = parseAddSub();
+
+			rv = MatrixExpression.fromRange(first, step, last);
+		}
+		else
+		{
+			List<Expression[]> rows = new ArrayList<Expression[]>();
+			List<Expression> row = new ArrayList<Expression>();
+			row.add(first);
+
+			while (true)
+			{
+				while (type() == COMMA)
+				{
+					advance();
+					row.add(parseAddSub());
+				}
+
+				rows.add(row.toArray(new Expression[row.size()]));
+
+				if (type() != SEMICOLON)
+					break;
+
+				advance();
+				row.clear();
+				row.add(parseAddSub());
+			}
+
+			rv = new MatrixExpression(rows.toArray(new Expression[rows.size()][]));
+		}
+
+		expect(RBRAC);
+
+		return rv;
+	}
+
+	private int type()
+	{
+		return types[pos];
+	}
+
+	private int type(int index)
+	{
+		return index < numTokens ? types[index] : EOF;
+	}
+
+	private void advance()
+	{
+		if (pos < numTokens - 1)
+			++pos;
+	}
+
+	private void expect(int type)
+	{
+		if (types[pos] != type)
+			throw new Failure("unexpected " + describe(pos));
+
+		advance();
+	}
+
+	private String tokenText(int index)
+	{
+		return text.substring(starts[index], ends[index]);
+	}
+
+	private String describe(int index)
+	{
+		return types[index] == EOF ? "end of input"
+				: "'" + tokenText(index) + "' at position " + starts[index];
+	}
+
+	/**
+	 * Split the text into tokens, matching the lexer rules of the grammar (longest match, with
+	 * keywords taking precedence over variable names)
+	 */
+	private void tokenize()
+	{
+		int len = text.length();
+		int i = 0;
+
+		while (i < len)
+		{
+			char c = text.charAt(i);
+			int start = i;
+			int type;
+
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+			{
+				++i;
+				continue;
+			}
+			else if (isDigit(c) || (c == '.' && i + 1 < len && isDigit(text.charAt(i + 1))))
+			{
+				i = scanNumber(i);
+				type = NUM;
+			}
+			else if (isLetter(c))
+			{
+				while (i < len && (isLetter(text.charAt(i)) || isDigit(text.charAt(i))))
+					++i;
+
+				if (text.startsWith("true", start) && i - start == 4)
+					type = TRUE;
+				else if (text.startsWith("false", start) && i - start == 5)
+					type = FALSE;
+				else
+					type = VAR;
+			}
+			else
+			{
+				char next = i + 1 < len ? text.charAt(i + 1) : 0;
+				++i;
+
+				switch (c)
+				{
+				case '\'':
+					type = TICK;
+					break;
+				case '(':
+					type = LPAR;
+					break;
+				case ')':
+					type = RPAR;
+					break;
+				case '[':
+					type = LBRAC;
+					break;
+				case ']':
+					type = RBRAC;
+					break;
+				case ',':
+					type = COMMA;
+					break;
+				case ';':
+					type = SEMICOLON;
+					break;
+				case '+':
+					type = PLUS;
+					break;
+				case '-':
+					type = MINUS;
+					break;
+				case '*':
+					type = TIMES;
+					break;
+				case '/':
+					type = DIV;
+					break;
+				case '^':
+					type = POW;
+					break;
+				case '.':
+					type = DOT;
+					break;
+				case '&':
+					type = AND;
+					i += next == '&' ? 1 : 0;
+					break;
+				case '|':
+					type = OR;
+					i += next == '|' ? 1 : 0;
+					break;
+				case '!':
+					type = next == '=' ? NOTEQUAL : NOT;
+					i += next == '=' ? 1 : 0;
+					break;
+				case '<':
+					type = next == '=' ? LESSEQUAL : LESS;
+					i += next == '=' ? 1 : 0;
+					break;
+				case '>':
+					type = next == '=' ? GREATEREQUAL : GREATER;
+					i += next == '=' ? 1 : 0;
+					break;
+				case '=':
+					type = EQUAL;
+					i += next == '=' ? 1 : 0;
+					break;
+				case ':':
+					type = next == '=' ? EQUAL_RESET : COLON;
+					i += next == '=' ? 1 : 0;
+					break;
+				default:
+					throw new Failure("unexpected character '" + c + "' at position " + start);
+				}
+			}
+
+			addToken(type, start, i);
+		}
+
+		addToken(EOF, len, len);
+	}
+
+	/**
+	 * Scan a number: (([0-9]+ ('.' [0-9]+)?) | ('.' [0-9]+)) (('E' | 'e') [+|-]? [0-9]+)?
+	 *
+	 * @return the index after the number
+	 */
+	private int scanNumber(int i)
+	{
+		int len = text.length();
+
+		while (i < len && isDigit(text.charAt(i)))
+			++i;
+
+		if (i + 1 < len && text.charAt(i) == '.' && isDigit(text.charAt(i + 1)))
+		{
+			i += 2;
+
+			while (i < len && isDigit(text.charAt(i)))
+				++i;
+		}
+
+		if (i < len && (text.charAt(i) == 'e' || text.charAt(i) == 'E'))
+		{
+			int j = i + 1;
+
+			// the grammar's character set [+|-] also contains '|'
+			if (j < len && "+|-".indexOf(text.charAt(j)) != -1)
+				++j;
+
+			if (j < len && isDigit(text.charAt(j)))
+			{
+				i = j;
+
+				while (i < len && isDigit(text.charAt(i)))
+					++i;
+			}
+		}
+
+		return i;
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+	}
+
+	private void addToken(int type, int start, int end)
+	{
+		if (numTokens == types.length)
+		{
+			int newSize = 2 * numTokens;
+			types = Arrays.copyOf(types, newSize);
+			starts = Arrays.copyOf(starts, newSize);
+			ends = Arrays.copyOf(ends, newSize);
+		}
+
+		types[numTokens] = type;
+		starts[numTokens] = start;
+		ends[numTokens] = end;
+		++numTokens;
+	}
+}
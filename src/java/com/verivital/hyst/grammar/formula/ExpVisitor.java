@@ -9,7 +9,6 @@ import com.verivital.hyst.grammar.antlr.HystExpressionBaseVisitor;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser.AddSubContext;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser.AndContext;
-import com.verivital.hyst.grammar.antlr.HystExpressionParser.FunctionContext;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser.NegativeUnaryContext;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser.NotContext;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser.OpContext;
@@ -95,23 +94,6 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 		return visit(child);
 	}
 
-	private Expression balancedFlow(List<Expression> children)
-	{
-		Expression rv;
-
-		if (children.size() == 1)
-			rv = children.get(0);
-		else
-		{
-			int middleIndex = children.size() / 2;
-
-			rv = new Operation(Operator.AND, balancedFlow(children.subList(0, middleIndex)),
-					balancedFlow(children.subList(middleIndex, children.size())));
-		}
-
-		return rv;
-	}
-
 	@Override
 	public Expression visitFlow(@NotNull HystExpressionParser.FlowContext ctx)
 	{
@@ -127,7 +109,7 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 			terms.add(term);
 		}
 
-		Expression flow = balancedFlow(terms);
+		Expression flow = balanced(Operator.AND, terms);
 
 		return flow;
 	}
@@ -161,18 +143,21 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 		return new Operation(Operator.OR, visit(left), visit(right));
 	}
 
-	private Expression balancedAnd(List<NotContext> children)
+	/**
+	 * Construct a balanced tree of an associative operation, like AND
+	 */
+	static Expression balanced(Operator op, List<Expression> children)
 	{
 		Expression rv;
 
 		if (children.size() == 1)
-			rv = visit(children.get(0));
+			rv = children.get(0);
 		else
 		{
 			int middleIndex = children.size() / 2;
 
-			rv = new Operation(Operator.AND, balancedAnd(children.subList(0, middleIndex)),
-					balancedAnd(children.subList(middleIndex, children.size())));
+			rv = new Operation(op, balanced(op, children.subList(0, middleIndex)),
+					balanced(op, children.subList(middleIndex, children.size())));
 		}
 
 		return rv;
@@ -183,10 +168,13 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 	{
 		// (not AND)* not # AndExpression
 
-		List<NotContext> children = ctx.not();
+		List<Expression> children = new ArrayList<Expression>();
+
+		for (NotContext child : ctx.not())
+			children.add(visit(child));
 
 		// construct a balanced tree of expressions
-		Expression root = balancedAnd(children);
+		Expression root = balanced(Operator.AND, children);
 
 		return root;
 	}
@@ -246,24 +234,34 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 	@Override
 	public Expression visitBoolOp(@NotNull HystExpressionParser.BoolOpContext ctx)
 	{
-		Expression rv = null;
 		List<Expression> childExp = new ArrayList<Expression>();
+		List<Operator> ops = new ArrayList<Operator>();
 
 		for (AddSubContext child : ctx.addSub())
 			childExp.add(visit(child));
 
-		List<OpContext> ops = ctx.op();
+		for (OpContext opCtx : ctx.op())
+			ops.add(visit(opCtx).asOperation().op);
+
+		return comparisons(childExp, ops);
+	}
+
+	/**
+	 * Construct a chain of comparisons, joined by AND
+	 */
+	static Expression comparisons(List<Expression> childExp, List<Operator> ops)
+	{
+		Expression rv = null;
 
 		// for every op, generate one expression
 		// a < b == c < d generates a < b & b == c & c < d
 		for (int leftIndex = 0; leftIndex < childExp.size() - 1; ++leftIndex)
 		{
 			int rightIndex = leftIndex + 1;
-			OpContext opCtx = ops.get(leftIndex);
 			Expression left = childExp.get(leftIndex);
 			Expression right = childExp.get(rightIndex);
 
-			Operation o = (Operation) visit(opCtx);
+			Operation o = new Operation(ops.get(leftIndex));
 
 			o.children.add(left);
 			o.children.add(right.copy()); // always copy right
@@ -341,7 +339,15 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 	{
 		NegativeUnaryContext child = ctx.negativeUnary();
 
-		Expression rv = new Operation(Operator.NEGATIVE, visit(child));
+		return negative(visit(child));
+	}
+
+	/**
+	 * Negate an expression, eliminating double negatives and folding negative constants
+	 */
+	static Expression negative(Expression child)
+	{
+		Expression rv = new Operation(Operator.NEGATIVE, child);
 
 		// eliminate double negatives
 		while (true)
@@ -366,16 +372,26 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 			if (rv.asOperation().children.get(0) instanceof Constant)
 			{
 				Constant c = (Constant) rv.asOperation().children.get(0);
-				c.setVal(c.getVal() * -1);
 
-				rv = c;
+				rv = new Constant(c.getVal() * -1);
 			}
 		}
 
 		return rv;
 	}
 
-	private class NameOperator
+	/**
+	 * The arguments of a function. They are only created when they are needed, so the errors in a
+	 * function call are found in the same order by both parsers.
+	 */
+	interface FunctionArguments
+	{
+		int size();
+
+		Expression get(int index);
+	}
+
+	private static class NameOperator
 	{
 		public NameOperator(String name, Operator op)
 		{
@@ -388,10 +404,36 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 	}
 
 	@Override
-	public Expression visitFunction(@NotNull HystExpressionParser.FunctionContext ctx)
+	public Expression visitFunction(@NotNull final HystExpressionParser.FunctionContext ctx)
 	{
-		String name = ctx.VAR().getText().toLowerCase();
-		List<AddSubContext> args = ctx.addSub();
+		return function(ctx.VAR().getText(), new FunctionArguments()
+		{
+			@Override
+			public int size()
+			{
+				return ctx.addSub().size();
+			}
+
+			@Override
+			public Expression get(int index)
+			{
+				return visit(ctx.addSub(index));
+			}
+		});
+	}
+
+	/**
+	 * Construct a function call expression
+	 * 
+	 * @param text
+	 *            the function name, as written
+	 * @param args
+	 *            the arguments
+	 * @return the constructed expression
+	 */
+	static Expression function(String text, FunctionArguments args)
+	{
+		String name = text.toLowerCase();
 		Expression rv = null;
 
 		NameOperator[] singleParamFuncs = { new NameOperator("tan", Operator.TAN),
@@ -407,7 +449,7 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 					throw new AutomatonExportException(
 							"Function '" + no.name + "' expects single argument.");
 
-				rv = new Operation(no.op, visit(args.get(0)));
+				rv = new Operation(no.op, args.get(0));
 			}
 		}
 
@@ -417,50 +459,43 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 			if (args.size() == 0)
 				rv = new Operation(Operator.LOC);
 			else if (args.size() == 1)
-				rv = new Operation(Operator.LOC, visit(args.get(0)));
+				rv = new Operation(Operator.LOC, args.get(0));
 			else
 				throw new AutomatonExportException("Function 'loc' expects 0 or 1 arguments.");
 		}
 
 		// special case: lookup table
 		if (name.equals("lut"))
-			rv = processLut(ctx);
+			rv = processLut(args);
 
 		if (name.equals("reshape"))
-			rv = processReshape(ctx);
+			rv = processReshape(args);
 
 		// unsupported
 		if (rv == null)
-			throw new AutomatonExportException("Unknown function '" + ctx.VAR().getText() + "'");
+			throw new AutomatonExportException("Unknown function '" + text + "'");
 
 		return rv;
 	}
 
-	private Expression processReshape(FunctionContext ctx)
+	private static Expression processReshape(FunctionArguments args)
 	{
-		List<AddSubContext> args = ctx.addSub();
-
 		if (args.size() < 2)
 			throw new AutomatonExportException(
 					"Function 'reshape' expects at least 2 arguments: array, [width]+");
 
-		MatrixExpression data = (MatrixExpression) (visit(args.get(0)));
+		MatrixExpression data = (MatrixExpression) args.get(0);
 
 		if (data.getNumDims() != 1)
 			throw new AutomatonExportException(
 					"Function 'reshape' expects fist argument to be a 1-d matrix. Instead got "
 							+ data.getNumDims() + "-d data: " + data.toDefaultString());
 
-		Expression[] expressions = new Expression[data.getDimWidth(0)];
-
-		for (int i = 0; i < data.getDimWidth(0); ++i)
-			expressions[i] = data.get(i);
-
 		int[] vals = new int[args.size() - 1];
 
 		for (int a = 1; a < args.size(); ++a)
 		{
-			Expression e = visit(args.get(a));
+			Expression e = args.get(a);
 
 			if (!(e instanceof Constant))
 				throw new AutomatonExportException(
@@ -469,26 +504,24 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 			vals[a - 1] = (int) Math.round(Double.parseDouble(e.toDefaultString()));
 		}
 
-		return new MatrixExpression(expressions, vals);
+		return data.reshape(vals);
 	}
 
 	/**
-	 * Create a lookup table expression from a function context. Luts expect three arguments: 1. var
+	 * Create a lookup table expression from function arguments. Luts expect three arguments: 1. var
 	 * list, 2. table, and 3. breakpoints
 	 * 
-	 * @param ctx
-	 *            the function context
+	 * @param args
+	 *            the function arguments
 	 * @return the constructed expression
 	 */
-	private Expression processLut(FunctionContext ctx)
+	private static Expression processLut(FunctionArguments args)
 	{
-		List<AddSubContext> args = ctx.addSub();
-
 		if (args.size() < 3)
 			throw new AutomatonExportException(
 					"Function 'lut' expects at least 3 arguments: varlist, table, [breakpoints]+");
 
-		MatrixExpression vars = (MatrixExpression) (visit(args.get(0)));
+		MatrixExpression vars = (MatrixExpression) args.get(0);
 
 		if (vars.getNumDims() != 1)
 			throw new AutomatonExportException(
@@ -499,12 +532,12 @@ public class ExpVisitor extends HystExpressionBaseVisitor<Expression>
 		for (int v = 0; v < vars.getDimWidth(0); ++v)
 			varList[v] = vars.get(v);
 
-		MatrixExpression data = (MatrixExpression) visit(args.get(1));
+		MatrixExpression data = (MatrixExpression) args.get(1);
 		MatrixExpression[] breakPoints = new MatrixExpression[args.size() - 2];
 
 		for (int a = 2; a < args.size(); ++a)
 		{
-			MatrixExpression bp = (MatrixExpression) visit(args.get(a));
+			MatrixExpression bp = (MatrixExpression) args.get(a);
 			breakPoints[a - 2] = bp;
 		}
 
@@ -39,6 +39,10 @@ public abstract class Expression
 		setParent(null);
 	}
 
+	/**
+	 * Get the operation containing this one, as set by Operation.getLeft() and getRight(). Variables
+	 * and Constants are shared between expressions, so they never have a parent.
+	 */
 	public Operation getParent()
 	{
 		return mParent;
@@ -2,29 +2,53 @@ package com.verivital.hyst.grammar.formula;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 
+/**
+ * Base class for converting Expressions to strings. Printing is done in a single traversal, where
+ * each node appends its text to a shared StringBuilder (see print(Expression, StringBuilder)). This
+ * avoids building and copying an intermediate string for every subexpression, which is quadratic in
+ * the depth of the expression.
+ *
+ * Subclasses customize leaves (variables, constants) by overriding the String-returning printX
+ * methods, and customize operations by overriding appendOperation().
+ */
 public abstract class ExpressionPrinter
 {
 	public String print(Expression e)
 	{
-		String rv = null;
+		StringBuilder sb = new StringBuilder();
+
+		print(e, sb);
+
+		return sb.toString();
+	}
 
+	/**
+	 * Print an expression, appending the result to the passed-in StringBuilder
+	 *
+	 * @param e
+	 *            the expression to print
+	 * @param out
+	 *            where to append the output
+	 */
+	public void print(Expression e, StringBuilder out)
+	{
 		if (e == null)
-			rv = "null";
+			out.append("null");
 		else if (e instanceof Constant)
-			rv = printConstant((Constant) e);
+			appendConstant((Constant) e, out);
 		else if (e instanceof Operation)
-			rv = printOperation((Operation) e);
+			appendOperation((Operation) e, out);
 		else if (e instanceof Variable)
-			rv = printVariable((Variable) e);
+			appendVariable((Variable) e, out);
 		else if (e instanceof MatrixExpression)
-			rv = printMatrix((MatrixExpression) e);
+			appendMatrix((MatrixExpression) e, out);
 		else if (e instanceof LutExpression)
-			rv = printLut((LutExpression) e);
+			appendLut((LutExpression) e, out);
 		else
 		{
 			try
 			{
-				rv = e.toString();
+				out.append(e.toString());
 			}
 			catch (AutomatonExportException ex)
 			{
@@ -32,8 +56,26 @@ public abstract class ExpressionPrinter
 						+ e.getClass().getName());
 			}
 		}
+	}
 
-		return rv;
+	protected void appendLut(LutExpression l, StringBuilder out)
+	{
+		l.appendTo(out, this);
+	}
+
+	protected void appendMatrix(MatrixExpression m, StringBuilder out)
+	{
+		m.appendTo(out, this);
+	}
+
+	protected void appendVariable(Variable v, StringBuilder out)
+	{
+		out.append(printVariable(v));
+	}
+
+	protected void appendConstant(Constant c, StringBuilder out)
+	{
+		out.append(printConstant(c));
 	}
 
 	protected String printLut(LutExpression l)
@@ -85,22 +127,54 @@ public abstract class ExpressionPrinter
 	public abstract String printOperator(Operator op);
 
 	/**
-	 * Prefix printing for everything
-	 * 
+	 * Print an operation to a string. Subclasses should override appendOperation() rather than
+	 * this method.
+	 *
 	 * @param o
-	 * @return
+	 *            the operation
+	 * @return the string representation
 	 */
-	protected String printOperation(Operation o)
+	protected final String printOperation(Operation o)
 	{
 		StringBuilder sb = new StringBuilder();
-		sb.append(printOperator(o.op));
+
+		appendOperation(o, sb);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Prefix printing for everything
+	 *
+	 * @param o
+	 *            the operation
+	 * @param out
+	 *            where to append the output
+	 */
+	protected void appendOperation(Operation o, StringBuilder out)
+	{
+		appendPrefixOperation(o, out);
+	}
+
+	/**
+	 * Print an operation in prefix form, like (+ x y)
+	 *
+	 * @param o
+	 *            the operation
+	 * @param out
+	 *            where to append the output
+	 */
+	public void appendPrefixOperation(Operation o, StringBuilder out)
+	{
+		out.append('(');
+		out.append(printOperator(o.op));
 
 		for (Expression e : o.children)
 		{
-			sb.append(" ");
-			sb.append(print(e));
+			out.append(' ');
+			print(e, out);
 		}
 
-		return "(" + sb.toString() + ")";
+		out.append(')');
 	}
 }
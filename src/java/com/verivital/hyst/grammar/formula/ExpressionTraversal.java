@@ -0,0 +1,218 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterative traversals of expression trees, which use explicit stacks rather than recursion. Long
+ * left-nested expressions, like the sums a1 + a2 + ... + a50000 produced by flattening and order
+ * reduction, are as deep as they are long, and a recursive traversal overflows the call stack.
+ *
+ * PreOrder iterates over the subexpressions, each one before its children. PostOrder computes a
+ * value for each subexpression from the values of its children, for evaluations and rewrites. By
+ * default both descend into the children of Operations; override getChildren() to change this.
+ */
+public class ExpressionTraversal
+{
+	/**
+	 * Get the children of an Operation, or an empty list for other expressions
+	 */
+	public static List<Expression> getOperationChildren(Expression e)
+	{
+		List<Expression> rv = Collections.emptyList();
+
+		if (e instanceof Operation)
+			rv = ((Operation) e).children;
+
+		return rv;
+	}
+
+	/**
+	 * Get the direct subexpressions of an expression: the children of an Operation, the cells of a
+	 * non-numeric MatrixExpression, or the inputs and then the table of a LutExpression. Other
+	 * expressions have none.
+	 */
+	public static List<Expression> getSubexpressions(Expression e)
+	{
+		List<Expression> rv = getOperationChildren(e);
+
+		if (e instanceof MatrixExpression && !((MatrixExpression) e).isNumeric())
+		{
+			MatrixExpression m = (MatrixExpression) e;
+			rv = new ArrayList<Expression>(m.getNumCells());
+
+			for (int i = 0; i < m.getNumCells(); ++i)
+				rv.add(m.getCell(i));
+		}
+		else if (e instanceof LutExpression)
+		{
+			LutExpression lut = (LutExpression) e;
+			rv = new ArrayList<Expression>(Arrays.asList(lut.inputs));
+			rv.add(lut.table);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Pre-order iteration over an expression. The children of an expression are found when the
+	 * iteration moves past it, so skipChildren() can be called to prune the traversal.
+	 */
+	public static class PreOrder implements Iterator<Expression>, Iterable<Expression>
+	{
+		private final ArrayList<Expression> stack = new ArrayList<Expression>();
+		private Expression last = null;
+
+		public PreOrder(Expression root)
+		{
+			if (root != null)
+				stack.add(root);
+		}
+
+		/**
+		 * Get the children to traverse after an expression
+		 */
+		protected List<Expression> getChildren(Expression e)
+		{
+			return getOperationChildren(e);
+		}
+
+		/**
+		 * Don't traverse the children of the expression last returned by next()
+		 */
+		public void skipChildren()
+		{
+			last = null;
+		}
+
+		private void pushChildren()
+		{
+			if (last != null)
+			{
+				List<Expression> children = getChildren(last);
+
+				for (int i = children.size() - 1; i >= 0; --i)
+					stack.add(children.get(i));
+
+				last = null;
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			pushChildren();
+
+			return !stack.isEmpty();
+		}
+
+		@Override
+		public Expression next()
+		{
+			pushChildren();
+
+			if (stack.isEmpty())
+				throw new NoSuchElementException();
+
+			last = stack.remove(stack.size() - 1);
+
+			return last;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<Expression> iterator()
+		{
+			return this;
+		}
+	}
+
+	/**
+	 * Post-order computation over an expression. combine() is called for every subexpression
+	 * after it was called for all of its children. The children are traversed left to right.
+	 *
+	 * @param <T>
+	 *            the type of the computed values
+	 */
+	public abstract static class PostOrder<T>
+	{
+		/**
+		 * Get the children to traverse before an expression
+		 */
+		protected List<Expression> getChildren(Expression e)
+		{
+			return getOperationChildren(e);
+		}
+
+		/**
+		 * Compute the value of an expression
+		 *
+		 * @param e
+		 *            the expression
+		 * @param childValues
+		 *            the values of the children from getChildren(e), in order. This list is only
+		 *            valid during the call.
+		 * @return the value of e
+		 */
+		protected abstract T combine(Expression e, List<T> childValues);
+
+		/**
+		 * Compute the value of an expression
+		 */
+		public T evaluate(Expression root)
+		{
+			// the stack of expressions being traversed, with their children and the index of the
+			// next child to traverse
+			ArrayList<Expression> nodes = new ArrayList<Expression>();
+			ArrayList<List<Expression>> nodeChildren = new ArrayList<List<Expression>>();
+			int[] nextChild = new int[16];
+
+			// values of the traversed children of the expressions on the stack
+			ArrayList<T> values = new ArrayList<T>();
+
+			nodes.add(root);
+			nodeChildren.add(getChildren(root));
+
+			while (!nodes.isEmpty())
+			{
+				int top = nodes.size() - 1;
+				List<Expression> children = nodeChildren.get(top);
+
+				if (nextChild[top] < children.size())
+				{
+					Expression child = children.get(nextChild[top]++);
+
+					if (nodes.size() == nextChild.length)
+						nextChild = Arrays.copyOf(nextChild, 2 * nextChild.length);
+
+					nextChild[nodes.size()] = 0;
+					nodes.add(child);
+					nodeChildren.add(getChildren(child));
+				}
+				else
+				{
+					Expression e = nodes.remove(top);
+					nodeChildren.remove(top);
+
+					List<T> childValues = values.subList(values.size() - children.size(),
+							values.size());
+					T value = combine(e, childValues);
+
+					childValues.clear();
+					values.add(value);
+				}
+			}
+
+			return values.get(0);
+		}
+	}
+}
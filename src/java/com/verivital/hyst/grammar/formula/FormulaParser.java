@@ -1,5 +1,9 @@
 package com.verivital.hyst.grammar.formula;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -9,10 +13,30 @@ import org.antlr.v4.runtime.tree.ParseTree;
 
 import com.verivital.hyst.grammar.antlr.HystExpressionLexer;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
 import com.verivital.hyst.ir.AutomatonExportException;
 
 public class FormulaParser
 {
+	/**
+	 * Parse with the hand-written DirectExpressionParser first, which builds the expression without
+	 * a parse tree. The ANTLR parser is used if it fails (to report the error) or if this is false.
+	 */
+	public static boolean useDirectParser = true;
+
+	/**
+	 * Also parse every expression with ANTLR, and check that the DirectExpressionParser produced
+	 * the same expression (for testing)
+	 */
+	public static boolean validateDirectParser = false;
+
+	/**
+	 * Build balanced trees for chains of additions and multiplications, like a1 + a2 + ... + an,
+	 * instead of left-nested ones, so their depth is logarithmic in their length. This regroups the
+	 * terms, which can change floating-point rounding.
+	 */
+	public static boolean balanceSums = false;
+
 	private static Expression getExpression(String text, String part)
 	{
 		Expression rv = null;
@@ -20,14 +44,43 @@ public class FormulaParser
 
 		try
 		{
-			HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(text));
+			Expression direct = null;
+			boolean parsedDirectly = false;
+
+			if (useDirectParser)
+			{
+				try
+				{
+					direct = DirectExpressionParser.parse(text, part);
+					parsedDirectly = true;
+				}
+				catch (RuntimeException e)
+				{
+					// fall back to ANTLR, which also reports the error
+				}
+			}
+
+			if (parsedDirectly && !validateDirectParser)
+				rv = direct;
+			else
+			{
+				HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(text));
 
-			par = new HystExpressionParser(new CommonTokenStream(lex));
-			par.setErrorHandler(new BailErrorStrategy());
+				par = new HystExpressionParser(new CommonTokenStream(lex));
+				par.setErrorHandler(new BailErrorStrategy());
 
-			ParseTree tree = getParseTree(par, part);
+				ParseTree tree = getParseTree(par, part);
 
-			rv = new ExpVisitor().visit(tree);
+				rv = new ExpVisitor().visit(tree);
+
+				if (parsedDirectly && !sameExpression(direct, rv))
+					throw new RuntimeException("Direct parser result differs from ANTLR for " + part
+							+ " '" + text + "': " + toDefaultString(direct) + " instead of "
+							+ toDefaultString(rv));
+			}
+
+			if (balanceSums)
+				rv = CHAIN_BALANCER.evaluate(rv);
 
 			// dotted variables are only allowed in loc expressions
 			if (!part.equals("initial/forbidden"))
@@ -60,20 +113,135 @@ public class FormulaParser
 		return rv;
 	}
 
-	private static void checkNoDottedVariables(Expression e)
+	private static boolean isChain(Expression e)
 	{
-		if (e != null)
+		Operation o = e instanceof Operation ? (Operation) e : null;
+
+		return o != null && o.children.size() == 2
+				&& (o.op == Operator.ADD || o.op == Operator.MULTIPLY);
+	}
+
+	/**
+	 * Replaces chains of additions or multiplications with balanced trees. The operands of a
+	 * chain are the children of its root.
+	 */
+	private static final PostOrder<Expression> CHAIN_BALANCER = new PostOrder<Expression>()
+	{
+		@Override
+		protected List<Expression> getChildren(Expression e)
+		{
+			List<Expression> rv = ExpressionTraversal.getOperationChildren(e);
+
+			if (isChain(e))
+			{
+				Operator op = ((Operation) e).op;
+				ArrayList<Expression> stack = new ArrayList<Expression>();
+				rv = new ArrayList<Expression>();
+				stack.add(e);
+
+				while (!stack.isEmpty())
+				{
+					Expression top = stack.remove(stack.size() - 1);
+
+					if (isChain(top) && ((Operation) top).op == op)
+					{
+						stack.add(((Operation) top).getRight());
+						stack.add(((Operation) top).getLeft());
+					}
+					else
+						rv.add(top);
+				}
+			}
+
+			return rv;
+		}
+
+		@Override
+		protected Expression combine(Expression e, List<Expression> childValues)
 		{
-			Operation o = e.asOperation();
+			Expression rv = e;
 
-			if (o != null)
+			if (isChain(e))
+				rv = ExpVisitor.balanced(((Operation) e).op, childValues);
+			else if (e instanceof Operation)
 			{
+				Operation o = (Operation) e;
+
 				for (int i = 0; i < o.children.size(); ++i)
-					checkNoDottedVariables(o.children.get(i));
+					o.children.set(i, childValues.get(i));
 			}
-			else if (e instanceof Variable)
+
+			return rv;
+		}
+	};
+
+	private static String toDefaultString(Expression e)
+	{
+		return e == null ? "null" : e.toDefaultString();
+	}
+
+	/**
+	 * Check if two expressions have the same structure (used to validate the direct parser)
+	 */
+	private static boolean sameExpression(Expression a, Expression b)
+	{
+		boolean rv;
+
+		if (a == null || b == null)
+			rv = a == b;
+		else if (a.getClass() != b.getClass())
+			rv = false;
+		else if (a instanceof Constant)
+			rv = (a == Constant.TRUE) == (b == Constant.TRUE)
+					&& (a == Constant.FALSE) == (b == Constant.FALSE)
+					&& Double.compare(((Constant) a).getVal(), ((Constant) b).getVal()) == 0;
+		else if (a instanceof Variable)
+			rv = ((Variable) a).name.equals(((Variable) b).name);
+		else if (a instanceof Operation)
+		{
+			Operation oa = (Operation) a;
+			Operation ob = (Operation) b;
+			rv = oa.op == ob.op && oa.children.size() == ob.children.size();
+
+			for (int i = 0; rv && i < oa.children.size(); ++i)
+				rv = sameExpression(oa.children.get(i), ob.children.get(i));
+		}
+		else if (a instanceof MatrixExpression)
+		{
+			MatrixExpression ma = (MatrixExpression) a;
+			MatrixExpression mb = (MatrixExpression) b;
+			rv = ma.isNumeric() == mb.isNumeric() && ma.getNumDims() == mb.getNumDims()
+					&& ma.getNumCells() == mb.getNumCells();
+
+			for (int d = 0; rv && d < ma.getNumDims(); ++d)
+				rv = ma.getDimWidth(d) == mb.getDimWidth(d);
+
+			for (int i = 0; rv && i < ma.getNumCells(); ++i)
+				rv = sameExpression(ma.getCell(i), mb.getCell(i));
+		}
+		else if (a instanceof LutExpression)
+		{
+			LutExpression la = (LutExpression) a;
+			LutExpression lb = (LutExpression) b;
+			rv = la.inputs.length == lb.inputs.length && sameExpression(la.table, lb.table);
+
+			for (int i = 0; rv && i < la.inputs.length; ++i)
+				rv = sameExpression(la.inputs[i], lb.inputs[i])
+						&& Arrays.equals(la.breakpoints[i], lb.breakpoints[i]);
+		}
+		else
+			rv = a.toDefaultString().equals(b.toDefaultString());
+
+		return rv;
+	}
+
+	private static void checkNoDottedVariables(Expression e)
+	{
+		for (Expression sub : new ExpressionTraversal.PreOrder(e))
+		{
+			if (sub instanceof Variable)
 			{
-				Variable v = (Variable) e;
+				Variable v = (Variable) sub;
 
 				if (v.name.contains("."))
 					throw new AutomatonExportException(
@@ -70,58 +70,26 @@ public class LutExpression extends Expression
 						+ ") must be equal to width of data in table for that dimension ("
 						+ data.getDimWidth(d) + ")");
 
-			// breakpoints should be strictly increasing
-			Expression first = bp.get(0);
-
-			if (!(first instanceof Constant))
+			if (!bp.isNumeric())
 				throw new AutomatonExportException(
-						"Breakpoints must be numeric constants: " + first.toDefaultString());
+						"Breakpoints must be numeric constants: " + bp.toDefaultString());
 
-			double last = ((Constant) first).getVal();
+			double[] row = new double[bp.getNumCells()];
 
-			for (int bi = 0; bi < bp.getDimWidth(0); ++bi)
+			for (int i = 0; i < row.length; ++i)
 			{
-				Expression curExp = bp.get(0);
-
-				if (!(curExp instanceof Constant))
-					throw new AutomatonExportException(
-							"Breakpoints must be numeric constants: " + curExp.toDefaultString());
-
-				double cur = ((Constant) curExp).getVal();
+				row[i] = bp.getCellValue(i);
 
-				if (cur < last)
+				// breakpoints should be increasing
+				if (i > 0 && row[i] < row[i - 1])
 					throw new AutomatonExportException(
-							"Breakpoints must be strictly increasing: " + bp);
-
-				last = cur;
-			}
-
-			double[] row = new double[bp.getDimWidth(0)];
-			for (int i = 0; i < bp.getDimWidth(0); ++i)
-			{
-				Expression e = bp.get(i);
-
-				if (!(e instanceof Constant))
-					throw new AutomatonExportException(
-							"breakpoint in LUT must be a numeric constant: " + e.toDefaultString());
-
-				row[i] = ((Constant) e).getVal();
+							"Breakpoints must be strictly increasing: " + bp.toDefaultString());
 			}
 
 			this.breakpoints[d] = row;
 		}
 	}
 
-	private static MatrixExpression[] convertBreakPoints(LutExpression l)
-	{
-		MatrixExpression[] bps = new MatrixExpression[l.breakpoints.length];
-
-		for (int i = 0; i < l.breakpoints.length; ++i)
-			bps[i] = new MatrixExpression(l.breakpoints[i]);
-
-		return bps;
-	}
-
 	/**
 	 * Copy constuctore
 	 * 
@@ -129,7 +97,16 @@ public class LutExpression extends Expression
 	 */
 	public LutExpression(LutExpression l)
 	{
-		this(l.inputs, l.table, convertBreakPoints(l));
+		inputs = new Expression[l.inputs.length];
+
+		for (int v = 0; v < inputs.length; ++v)
+			inputs[v] = l.inputs[v].copy();
+
+		table = new MatrixExpression(l.table);
+		breakpoints = new double[l.breakpoints.length][];
+
+		for (int d = 0; d < breakpoints.length; ++d)
+			breakpoints[d] = Arrays.copyOf(l.breakpoints[d], l.breakpoints[d].length);
 	}
 
 	@Override
@@ -141,6 +118,22 @@ public class LutExpression extends Expression
 	public String toString(ExpressionPrinter printer)
 	{
 		StringBuilder sb = new StringBuilder();
+
+		appendTo(sb, printer);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Append the string representation of this lookup table
+	 * 
+	 * @param sb
+	 *            where to append the string
+	 * @param printer
+	 *            the printer to use for the inputs and table
+	 */
+	public void appendTo(StringBuilder sb, ExpressionPrinter printer)
+	{
 		sb.append("lut([");
 
 		boolean first = true;
@@ -152,11 +145,11 @@ public class LutExpression extends Expression
 			else
 				sb.append(", ");
 
-			sb.append(printer.print(var));
+			printer.print(var, sb);
 		}
 
 		sb.append("], ");
-		sb.append(table.toString(printer));
+		table.appendTo(sb, printer);
 
 		for (int i = 0; i < breakpoints.length; ++i)
 		{
@@ -167,8 +160,6 @@ public class LutExpression extends Expression
 		}
 
 		sb.append(")");
-
-		return sb.toString();
 	}
 
 	public String toDefaultString()
@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
@@ -20,12 +21,21 @@ import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
  * 
  * They can be used, for example, to specify look up tables. They must be at least one dimensional,
  * and each dimension must be at least width 1
+ * 
+ * Matrices where every cell is a number (the common case for look up tables) are stored in a
+ * double[] rather than as one Constant object per cell. get() then creates a Constant for the
+ * cell. Code which loops over large matrices should use the cell methods (getNumCells(),
+ * getCellValue(), getCell(), setCell()), which don't allocate anything per cell for numeric
+ * matrices, rather than the Iterable interface.
  */
 public class MatrixExpression extends Expression implements Iterable<Entry<int[], Expression>>
 {
 	private int[] sizes; // the size of each dimension, x y z
-	private Expression[] data; // the data for each cell (should be length
-								// size[0] * size[1] * ...)
+	private int[] strides; // the offset between neighboring cells in each dimension
+
+	// the data for each cell (length size[0] * size[1] * ...). Exactly one of these is non-null.
+	private double[] values; // if every cell is a number
+	private Expression[] data; // otherwise
 
 	// internally, the sizes and data arrays are the same order as the call to
 	// reshape() (matlab's order)
@@ -37,7 +47,12 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	 */
 	public MatrixExpression(MatrixExpression other)
 	{
-		this(other.data, other.sizes);
+		setSizes(other.sizes);
+
+		if (other.values != null)
+			values = Arrays.copyOf(other.values, other.values.length);
+		else
+			setData(other.data);
 	}
 
 	/**
@@ -47,12 +62,24 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	 */
 	public MatrixExpression(double... data)
 	{
-		sizes = new int[] { data.length };
+		this(data, new int[] { data.length });
+	}
 
-		this.data = new Expression[data.length];
+	/**
+	 * Create a new numeric MatrixExpression from values given in the same order as matlab's reshape
+	 * command
+	 * 
+	 * @param values
+	 *            the matrix values, in the same order as matlab's reshape() command
+	 * @param sizes
+	 *            the sizes for each dimension
+	 */
+	public MatrixExpression(double[] values, int[] sizes)
+	{
+		checkLength(values.length, sizes);
+		setSizes(sizes);
 
-		for (int i = 0; i < data.length; ++i)
-			this.data[i] = new Constant(data[i]);
+		this.values = Arrays.copyOf(values, values.length);
 	}
 
 	/**
@@ -62,12 +89,7 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	 */
 	public MatrixExpression(Expression... data)
 	{
-		sizes = new int[] { data.length };
-
-		this.data = new Expression[data.length];
-
-		for (int i = 0; i < data.length; ++i)
-			this.data[i] = data[i];
+		this(data, new int[] { data.length });
 	}
 
 	/**
@@ -86,21 +108,16 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 		if (data.length == 1)
 		{
 			// its actually a 1-d matrix
-			sizes = new int[1];
-			sizes[0] = data[0].length;
-
+			setSizes(new int[] { data[0].length });
 			total = sizes[0];
 		}
 		else
 		{
-			sizes = new int[2];
-			sizes[0] = data.length;
-			sizes[1] = data[0].length;
-
+			setSizes(new int[] { data.length, data[0].length });
 			total = sizes[0] * sizes[1];
 		}
 
-		this.data = new Expression[total];
+		Expression[] cells = new Expression[total];
 		int index = 0;
 
 		int numRows = data.length;
@@ -116,9 +133,11 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 									+ " columns in row #" + row + ", but instead got "
 									+ data[row].length);
 
-				this.data[index++] = data[row][col].copy();
+				cells[index++] = data[row][col];
 			}
 		}
+
+		setData(cells);
 	}
 
 	/**
@@ -130,6 +149,13 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	 *            the sizes for each dimension
 	 */
 	public MatrixExpression(Expression[] data, int[] sizes)
+	{
+		checkLength(data.length, sizes);
+		setSizes(sizes);
+		setData(data);
+	}
+
+	private static void checkLength(int length, int[] sizes)
 	{
 		int total = 1;
 
@@ -141,27 +167,113 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 			total *= s;
 		}
 
-		if (data.length != total)
+		if (length != total)
 			throw new AutomatonExportException(
-					"Invalid matrix data. Expected " + total + " entries, got " + data.length);
+					"Invalid matrix data. Expected " + total + " entries, got " + length);
+	}
 
-		this.sizes = new int[sizes.length];
+	private void setSizes(int[] sizes)
+	{
+		this.sizes = Arrays.copyOf(sizes, sizes.length);
+		strides = new int[sizes.length];
+		int stride = 1;
 
-		// copy sizes
-		for (int i = 0; i < sizes.length; ++i)
-			this.sizes[i] = sizes[i];
+		for (int d = 0; d < sizes.length; ++d)
+		{
+			strides[d] = stride;
+			stride *= sizes[d];
+		}
+	}
+
+	/**
+	 * Store copies of the given cells, using a double[] if they're all numbers
+	 */
+	private void setData(Expression[] cells)
+	{
+		double[] nums = new double[cells.length];
+		boolean numeric = true;
+
+		for (int i = 0; i < cells.length && numeric; ++i)
+		{
+			Double d = numericValue(cells[i]);
+
+			if (d == null)
+				numeric = false;
+			else
+				nums[i] = d;
+		}
+
+		if (numeric)
+		{
+			values = nums;
+			data = null;
+		}
+		else
+		{
+			values = null;
+			data = new Expression[cells.length];
+
+			for (int i = 0; i < cells.length; ++i)
+				data[i] = cells[i].copy();
+		}
+	}
 
-		// copy data
-		this.data = new Expression[data.length];
+	/**
+	 * Get the value of a number (a Constant, or a negated Constant), or null if it's not one. The
+	 * boolean constants are not numbers.
+	 */
+	private static Double numericValue(Expression e)
+	{
+		Double rv = null;
+
+		if (e instanceof Constant && e != Constant.TRUE && e != Constant.FALSE)
+			rv = ((Constant) e).getVal();
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+
+			if (o.op == Operator.NEGATIVE && o.children.size() == 1)
+			{
+				Double child = numericValue(o.children.get(0));
+
+				if (child != null)
+					rv = -child;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Convert a numeric matrix to Expression storage (done if a non-numeric cell is set)
+	 */
+	private void inflate()
+	{
+		data = new Expression[values.length];
+
+		for (int i = 0; i < values.length; ++i)
+			data[i] = new Constant(values[i]);
 
-		for (int i = 0; i < data.length; ++i)
-			this.data[i] = data[i].copy();
+		values = null;
 	}
 
 	@Override
 	public Expression copy()
 	{
-		return new MatrixExpression(data, sizes);
+		return new MatrixExpression(this);
+	}
+
+	/**
+	 * Create a matrix with the same cells, but different dimensions (like matlab's reshape())
+	 * 
+	 * @param newSizes
+	 *            the new sizes for each dimension, whose product must be the number of cells
+	 * @return the new matrix
+	 */
+	public MatrixExpression reshape(int... newSizes)
+	{
+		return values != null ? new MatrixExpression(values, newSizes)
+				: new MatrixExpression(data, newSizes);
 	}
 
 	public int getNumDims()
@@ -175,18 +287,36 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	}
 
 	/**
-	 * Get an expression from this matrix
+	 * Is every cell a number (so getCellValue() can be used)?
+	 */
+	public boolean isNumeric()
+	{
+		return values != null;
+	}
+
+	/**
+	 * Get the total number of cells, the product of the dimension widths
+	 */
+	public int getNumCells()
+	{
+		return values != null ? values.length : data.length;
+	}
+
+	/**
+	 * Get the cell number (the offset into the data, in matlab's reshape() order) of an index
 	 * 
 	 * @param indices
 	 *            the index for each dimension, ordered from largest offset to smallest offset
-	 * @return
+	 * @return the cell number
 	 */
-	public Expression get(int... indices)
+	public int getCellNumber(int... indices)
 	{
 		if (sizes.length != indices.length)
 			throw new IndexOutOfBoundsException(
 					"Expected " + sizes.length + " indicies, got " + indices.length);
 
+		int rv = 0;
+
 		for (int d = 0; d < sizes.length; ++d)
 		{
 			if (indices[d] < 0 || indices[d] >= sizes[d])
@@ -194,63 +324,125 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 				throw new IndexOutOfBoundsException("got " + Arrays.toString(indices)
 						+ " with sizes " + Arrays.toString(sizes));
 			}
+
+			rv += strides[d] * indices[d];
 		}
 
-		int finalIndex = 0;
-		int multiplier = 1;
+		return rv;
+	}
 
-		for (int j = 0; j < indices.length; ++j)
+	/**
+	 * Get the expression in a cell. For numeric matrices, this creates a Constant.
+	 * 
+	 * @param cell
+	 *            the cell number, from 0 to getNumCells() - 1
+	 */
+	public Expression getCell(int cell)
+	{
+		return values != null ? new Constant(values[cell]) : data[cell];
+	}
+
+	/**
+	 * Get the value in a cell of a numeric matrix
+	 * 
+	 * @param cell
+	 *            the cell number, from 0 to getNumCells() - 1
+	 */
+	public double getCellValue(int cell)
+	{
+		if (values == null)
 		{
-			int index = indices[j];
+			Double rv = numericValue(data[cell]);
 
-			finalIndex += multiplier * index;
-			multiplier *= sizes[j];
+			if (rv == null)
+				throw new AutomatonExportException(
+						"Matrix entry is not a number: " + data[cell].toDefaultString());
+
+			return rv;
 		}
 
-		return data[finalIndex];
+		return values[cell];
 	}
 
-	public void setExpressionAtIndex(int[] indices, Expression e)
+	/**
+	 * Set the expression in a cell. Numeric matrices stay numeric if the expression is a number.
+	 * 
+	 * @param cell
+	 *            the cell number, from 0 to getNumCells() - 1
+	 * @param e
+	 *            the new expression
+	 */
+	public void setCell(int cell, Expression e)
 	{
-		if (sizes.length != indices.length)
-			throw new IndexOutOfBoundsException(
-					"Expected " + sizes.length + " indicies, got " + indices.length);
-
-		for (int d = 0; d < sizes.length; ++d)
+		if (values != null)
 		{
-			if (indices[d] < 0 || indices[d] >= sizes[d])
+			Double d = numericValue(e);
+
+			if (d != null)
 			{
-				throw new IndexOutOfBoundsException("got " + Arrays.toString(indices)
-						+ " with sizes " + Arrays.toString(sizes));
+				values[cell] = d;
+				return;
 			}
+
+			inflate();
 		}
 
-		int finalIndex = 0;
-		int multiplier = 1;
+		data[cell] = e;
+	}
 
-		for (int j = 0; j < indices.length; ++j)
-		{
-			int index = indices[j];
+	/**
+	 * Get an expression from this matrix
+	 * 
+	 * @param indices
+	 *            the index for each dimension, ordered from largest offset to smallest offset
+	 * @return
+	 */
+	public Expression get(int... indices)
+	{
+		return getCell(getCellNumber(indices));
+	}
 
-			finalIndex += multiplier * index;
-			multiplier *= sizes[j];
-		}
+	/**
+	 * Get a value from a numeric matrix
+	 * 
+	 * @param indices
+	 *            the index for each dimension, ordered from largest offset to smallest offset
+	 */
+	public double getValue(int... indices)
+	{
+		return getCellValue(getCellNumber(indices));
+	}
 
-		data[finalIndex] = e;
+	public void setExpressionAtIndex(int[] indices, Expression e)
+	{
+		setCell(getCellNumber(indices), e);
 	}
 
 	public String toString(ExpressionPrinter printer)
 	{
 		StringBuilder rv = new StringBuilder();
 
+		appendTo(rv, printer);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Append the string representation of this matrix
+	 * 
+	 * @param rv
+	 *            where to append the string
+	 * @param printer
+	 *            the printer to use for each element
+	 */
+	public void appendTo(StringBuilder rv, ExpressionPrinter printer)
+	{
 		if (sizes.length == 1)
 			makeString1d(rv, printer);
 		else if (sizes.length == 2)
 			makeString2d(rv, printer);
 		else
 			makeStringReshape(rv, printer);
-
-		return rv.toString();
 	}
 
 	/**
@@ -263,20 +455,8 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 
 	public void makeStringReshape(StringBuilder rv, ExpressionPrinter printer)
 	{
-		rv.append("reshape([");
-		boolean first = true;
-
-		for (Expression e : data)
-		{
-			if (first)
-				first = false;
-			else
-				rv.append(", ");
-
-			rv.append(printer.print(e));
-		}
-
-		rv.append("]");
+		rv.append("reshape(");
+		makeString1d(rv, printer);
 
 		for (int i = 0; i < sizes.length; ++i)
 			rv.append(", " + sizes[i]);
@@ -297,8 +477,7 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 				if (col != 0)
 					rv.append(", ");
 
-				Expression e = get(row, col);
-				rv.append(printer.print(e));
+				printer.print(getCell(row * strides[0] + col * strides[1]), rv);
 			}
 
 			if (row != numRows - 1)
@@ -317,25 +496,27 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	public void makeString1d(StringBuilder rv, ExpressionPrinter printer)
 	{
 		rv.append("[");
-		boolean first = true;
+		int numCells = getNumCells();
 
-		for (Expression e : data)
+		for (int i = 0; i < numCells; ++i)
 		{
-			if (first)
-				first = false;
-			else
+			if (i != 0)
 				rv.append(", ");
 
-			rv.append(printer.print(e));
+			printer.print(getCell(i), rv);
 		}
 
 		rv.append("]");
 	}
 
+	/**
+	 * Iterate over the cells, with their indices. This allocates an entry and an index array per
+	 * cell, so prefer the cell methods for large matrices.
+	 */
 	@Override
 	public Iterator<Entry<int[], Expression>> iterator()
 	{
-		return new MatrixEntryIterator(this);
+		return new MatrixEntryIterator();
 	}
 
 	/**
@@ -346,28 +527,32 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 	 */
 	private class MatrixEntryIterator implements Iterator<Entry<int[], Expression>>
 	{
-		private MatrixExpression me;
-		private int[] iterator;
-
-		public MatrixEntryIterator(MatrixExpression me)
-		{
-			this.me = me;
-			iterator = new int[me.getNumDims()];
-		}
+		private int cell = 0;
+		private final int[] index = new int[sizes.length];
 
 		@Override
 		public boolean hasNext()
 		{
-			return iterator != null;
+			return cell < getNumCells();
 		}
 
 		@Override
 		public Entry<int[], Expression> next()
 		{
-			Entry<int[], Expression> e = new AbstractMap.SimpleEntry<int[], Expression>(iterator,
-					me.get(iterator));
+			if (!hasNext())
+				throw new NoSuchElementException();
 
-			iterator = incrementIterator();
+			Entry<int[], Expression> e = new AbstractMap.SimpleEntry<int[], Expression>(
+					Arrays.copyOf(index, index.length), getCell(cell++));
+
+			// increment the index, overflowing to the next dimension if necessary
+			for (int d = 0; d < index.length; ++d)
+			{
+				if (++index[d] < sizes[d])
+					break;
+
+				index[d] = 0;
+			}
 
 			return e;
 		}
@@ -377,40 +562,6 @@ public class MatrixExpression extends Expression implements Iterable<Entry<int[]
 		{
 			throw new RuntimeException("iteartor.remove() not supported on Matrix");
 		}
-
-		/**
-		 * Increment the iterator indexList (with overflowing to the next dimension if necessary)
-		 * This returns null upon overflow (when done)
-		 * 
-		 * @return the incremented indexList
-		 */
-		private int[] incrementIterator()
-		{
-			boolean done = false;
-			int[] rv = Arrays.copyOf(iterator, iterator.length);
-
-			++rv[0];
-
-			for (int d = 0; d < me.getNumDims(); ++d)
-			{
-				int size = me.getDimWidth(d);
-
-				if (rv[d] >= size)
-				{
-					rv[d] -= size;
-
-					if (d == me.getNumDims() - 1)
-						done = true;
-					else
-						++rv[d + 1];
-				}
-			}
-
-			if (done)
-				rv = null;
-
-			return rv;
-		}
 	}
 
 	public static Expression fromRange(Expression startExp, Expression stepExp, Expression stopExp)
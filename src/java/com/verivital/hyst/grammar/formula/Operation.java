@@ -6,6 +6,7 @@ package com.verivital.hyst.grammar.formula;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
 import com.verivital.hyst.ir.AutomatonExportException;
 
 /**
@@ -135,95 +136,47 @@ public class Operation extends Expression
 
 	public Operation copy()
 	{
-		ArrayList<Expression> c = new ArrayList<Expression>();
-
-		for (Expression e : children)
-			c.add(e.copy());
-
-		Operation rv = new Operation(op, c);
-
-		return rv;
+		return (Operation) COPIER.evaluate(this);
 	}
 
-	public String toStringInline()
+	/**
+	 * Deep copies bottom-up with an explicit stack, since long expressions are deep
+	 */
+	private static final PostOrder<Expression> COPIER = new PostOrder<Expression>()
 	{
-		String rv;
-
-		if (children.size() == 0)
-			rv = op.toString();
-		else if (children.size() == 1)
+		@Override
+		protected Expression combine(Expression e, List<Expression> copiedChildren)
 		{
-			Expression child = children.get(0);
+			Expression rv;
 
-			if (op.equals(Operator.NEGATIVE) || op.equals(Operator.LOGICAL_NOT))
-			{
-				if (child instanceof Operation)
-					rv = op + "(" + child + ")";
-				else
-					rv = op.toString() + child;
-			}
+			if (e instanceof Operation)
+				rv = new Operation(((Operation) e).op, new ArrayList<Expression>(copiedChildren));
 			else
-				rv = op + "(" + child + ")";
-		}
-		else if (children.size() == 2)
-		{
-			Operation left = children.get(0).asOperation();
-			Operation right = children.get(1).asOperation();
-
-			boolean needParenLeft = false;
-			boolean needParenRight = false;
-
-			// use parentheses if they are needed
-			int myP = Operator.getPriority(op);
-
-			if (left != null && left.children.size() > 1)
-			{
-				int leftP = Operator.getPriority(left.op);
-
-				if (leftP < myP)
-					needParenLeft = true;
-			}
-
-			if (right != null && left.children.size() > 1)
-			{
-				int rightP = Operator.getPriority(left.op);
-
-				if (myP <= rightP
-						&& !(myP == rightP && op == Operator.ADD || op == Operator.MULTIPLY)) // commutative
-					needParenRight = true;
-			}
+				rv = e.copy();
 
-			rv = "";
-
-			if (needParenLeft)
-				rv += "(" + left + ")";
-			else
-				rv += left;
-
-			rv += " " + op + " ";
-
-			if (needParenRight)
-				rv += "(" + right + ")";
-			else
-				rv += right;
-		}
-		else
-		{
-			throw new AutomatonExportException(
-					"No way defined to print expression with " + children.size() + " children.");
+			return rv;
 		}
+	};
 
-		return rv;
+	/**
+	 * Get the infix string representation of this operation, using the default printer
+	 */
+	public String toStringInline()
+	{
+		return DefaultExpressionPrinter.instance.print(this);
 	}
 
+	/**
+	 * Get the prefix string representation of this operation, like (+ x y), using the default
+	 * printer's operator names
+	 */
 	public String toStringPrefix()
 	{
-		String childrenStr = "";
+		StringBuilder sb = new StringBuilder();
 
-		for (Expression e : children)
-			childrenStr += " " + e;
+		DefaultExpressionPrinter.instance.appendPrefixOperation(this, sb);
 
-		return "(" + op + childrenStr + ")";
+		return sb.toString();
 	}
 
 	public Expression getLeft()
@@ -231,7 +184,7 @@ public class Operation extends Expression
 		if (children.size() != 2)
 			throw new AutomatonExportException(
 					"getLeft() is only valid when there are two children: " + this);
-		if (children.get(0) != null)
+		if (children.get(0) instanceof Operation)
 			children.get(0).setParent(this);
 		return children.get(0);
 	}
@@ -241,7 +194,7 @@ public class Operation extends Expression
 		if (children.size() != 2)
 			throw new AutomatonExportException(
 					"getRight() is only valid when there are two children: " + this);
-		if (children.get(1) != null)
+		if (children.get(1) instanceof Operation)
 			children.get(1).setParent(this);
 		return children.get(1);
 	}
@@ -8,21 +8,28 @@ package com.verivital.hyst.grammar.formula;
  * underscore. Both upper- and lowercase characters can be used. Following characters can include
  * digits, too.
  * 
+ * Variables are immutable, so copying an expression shares its Variable objects rather than
+ * allocating new ones. The name field is final (it used to be assignable); to rename a variable,
+ * replace the Variable object in its parent operation.
+ * 
  * @author Christopher Dillo (dilloc@informatik.uni-freiburg.de)
  *
  */
 public class Variable extends Expression
 {
-	public String name;
+	public final String name;
 
 	public Variable(String name)
 	{
 		this.name = name;
 	}
 
+	/**
+	 * Variables are immutable, so this returns the same object
+	 */
 	@Override
 	public Expression copy()
 	{
-		return new Variable(name);
+		return this;
 	}
 }
@@ -20,6 +20,7 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.RangeExtractor;
@@ -185,10 +186,19 @@ public class ConfigurationMaker
 
 			if (e != null)
 			{
-				String modeName = getFirstModeName(c.root);
+				final String modeName = getFirstModeName(c.root);
 
-				Hyst.log("Using initial mode '" + modeName + " ' with initial variable assignment: "
-						+ e.toDefaultString());
+				final Expression initExp = e;
+				Hyst.log(new LogMessage()
+				{
+					@Override
+					public String get()
+					{
+						return "Using initial mode '" + modeName
+								+ " ' with initial variable assignment: "
+								+ initExp.toDefaultString();
+					}
+				});
 				c.init.put(modeName, e);
 				init = e;
 			}
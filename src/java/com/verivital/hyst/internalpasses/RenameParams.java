@@ -328,5 +328,12 @@ public class RenameParams
 
 			return rv;
 		}
+
+		@Override
+		public boolean isStateless()
+		{
+			// the maps are only read
+			return true;
+		}
 	}
 }
@@ -286,7 +286,9 @@ public abstract class Component
 	}
 
 	/**
-	 * Deep-copy the component, and return it
+	 * Deep-copy the component, and return it. This takes time linear in the size of the component:
+	 * modes, transitions and expression operations are copied, and only the immutable leaves
+	 * (Variable and Constant objects) are shared with the original.
 	 */
 	public Component copy()
 	{
@@ -35,6 +35,10 @@ public class Configuration
 		this.root = root;
 	}
 
+	/**
+	 * Deep-copy the configuration. Like Component.copy(), this copies every mode, transition and
+	 * expression operation, and only shares the immutable Variable and Constant leaves.
+	 */
 	public Configuration copy()
 	{
 		Configuration rv = new Configuration(root.copy());
@@ -68,16 +68,8 @@ public class AutomatonTransition
 	{
 		// parent may be different, so search for from.name and to.name in
 		// parent
-		AutomatonMode parentFrom = null, parentTo = null;
-
-		for (AutomatonMode am : parent.modes.values())
-		{
-			if (am.name.equals(from.name))
-				parentFrom = am;
-
-			if (am.name.equals(to.name))
-				parentTo = am;
-		}
+		AutomatonMode parentFrom = findMode(parent, from.name);
+		AutomatonMode parentTo = findMode(parent, to.name);
 
 		if (parentFrom == null)
 			throw new AutomatonExportException("Source mode ('" + from.name
@@ -99,6 +91,28 @@ public class AutomatonTransition
 		return rv;
 	}
 
+	/**
+	 * Find the mode with the given name in an automaton. Modes are normally stored with their name
+	 * as the key, so this is a map lookup, with a search as a fallback.
+	 */
+	private static AutomatonMode findMode(BaseComponent parent, String name)
+	{
+		AutomatonMode rv = parent.modes.get(name);
+
+		if (rv == null || !rv.name.equals(name))
+		{
+			rv = null;
+
+			for (AutomatonMode am : parent.modes.values())
+			{
+				if (am.name.equals(name))
+					rv = am;
+			}
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Check if the guarantees expected of this class are met. This is run prior to any printing
 	 * procedures.
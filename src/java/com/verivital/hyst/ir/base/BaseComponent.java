@@ -7,8 +7,8 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
 import com.verivital.hyst.grammar.formula.FormulaParser;
-import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
@@ -247,25 +247,22 @@ public class BaseComponent extends Component
 	/**
 	 * Checks that Variables in an Expression are defined in the component.
 	 * 
-	 * @param e
+	 * @param exp
 	 *            the expression to check
 	 */
-	private void checkExpression(Expression e)
+	private void checkExpression(Expression exp)
 	{
-		if (e instanceof Variable)
+		// iterative, since long expressions are deep
+		for (Expression e : new PreOrder(exp))
 		{
-			Variable v = (Variable) e;
-
-			if (!variables.contains(v.name) && !constants.containsKey(v.name))
-				throw new AutomatonValidationException(
-						"Variable/constant not in automaton: '" + v.name + "'");
-		}
-		else if (e instanceof Operation)
-		{
-			Operation o = e.asOperation();
+			if (e instanceof Variable)
+			{
+				Variable v = (Variable) e;
 
-			for (Expression child : o.children)
-				checkExpression(child);
+				if (!variables.contains(v.name) && !constants.containsKey(v.name))
+					throw new AutomatonValidationException(
+							"Variable/constant not in automaton: '" + v.name + "'");
+			}
 		}
 	}
 
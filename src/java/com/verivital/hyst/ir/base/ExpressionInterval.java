@@ -114,7 +114,7 @@ public class ExpressionInterval
 			{
 				Constant c = (Constant) e;
 
-				c.setVal(c.getVal() + i.min);
+				e = new Constant(c.getVal() + i.min);
 
 				i = null;
 			}
@@ -228,14 +228,19 @@ public class ExpressionInterval
 
 	public String toString(ExpressionPrinter printer)
 	{
-		String rv = printer.print(e);
+		StringBuilder rv = new StringBuilder();
+		printer.print(e, rv);
 
 		if (i != null)
-			rv += " " + printer.printOperator(Operator.ADD) + " ["
-					+ printer.print(new Constant(i.min)) + ", " + printer.print(new Constant(i.max))
-					+ "]";
+		{
+			rv.append(' ').append(printer.printOperator(Operator.ADD)).append(" [");
+			printer.print(new Constant(i.min), rv);
+			rv.append(", ");
+			printer.print(new Constant(i.max), rv);
+			rv.append(']');
+		}
 
-		return rv;
+		return rv.toString();
 	}
 
 	public String toDefaultString()
@@ -1,15 +1,131 @@
 package com.verivital.hyst.ir.base;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.MatrixExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
 
 public abstract class ExpressionModifier
 {
+	/**
+	 * Base components with at least this many modes and transitions are modified in parallel, if
+	 * the modifier is stateless
+	 */
+	public static int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * The number of modes and transitions modified by each parallel task
+	 */
+	private static final int PARALLEL_CHUNK = 256;
+
+	private static ForkJoinPool pool = null;
+
 	abstract protected Expression modifyExpression(Expression ei);
 
+	/**
+	 * Can modifyExpression() be called at the same time from several threads, on different
+	 * expressions? This is true if the modifier keeps no state between calls, and only reads
+	 * fields which don't change while the model is being modified.
+	 * 
+	 * @return true if the modifier is stateless
+	 */
+	public boolean isStateless()
+	{
+		return false;
+	}
+
+	/**
+	 * Can modifyExpression() change the passed-in expression, rather than only building a new
+	 * one? If so, a parallel traversal is only used when no part of an expression is shared between
+	 * modes or transitions.
+	 * 
+	 * @return true if expressions may be modified in place
+	 */
+	public boolean modifiesInPlace()
+	{
+		return true;
+	}
+
+	/**
+	 * Create a modifier which applies several modifiers in order to each expression. Running the
+	 * composed modifier over a model gives the same result as running each modifier over the
+	 * model in turn, but walks the model (and rebuilds the flow and reset maps) only once.
+	 * 
+	 * @param list
+	 *            the modifiers, in the order they should be applied
+	 * @return the composed modifier
+	 */
+	public static ExpressionModifier compose(List<ExpressionModifier> list)
+	{
+		final ExpressionModifier[] modifiers = list.toArray(new ExpressionModifier[list.size()]);
+
+		if (modifiers.length == 1)
+			return modifiers[0];
+
+		return new ExpressionModifier()
+		{
+			@Override
+			protected Expression modifyExpression(Expression e)
+			{
+				for (ExpressionModifier em : modifiers)
+					e = em.modifyExpression(e);
+
+				return e;
+			}
+
+			@Override
+			public boolean isStateless()
+			{
+				for (ExpressionModifier em : modifiers)
+				{
+					if (!em.isStateless())
+						return false;
+				}
+
+				return true;
+			}
+
+			@Override
+			public boolean modifiesInPlace()
+			{
+				for (ExpressionModifier em : modifiers)
+				{
+					if (em.modifiesInPlace())
+						return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Compose two modifiers, see compose(List)
+	 */
+	public static ExpressionModifier compose(ExpressionModifier first, ExpressionModifier second)
+	{
+		ArrayList<ExpressionModifier> list = new ArrayList<ExpressionModifier>(2);
+		list.add(first);
+		list.add(second);
+
+		return compose(list);
+	}
+
 	private static LinkedHashMap<String, ExpressionInterval> modifyMap(
 			LinkedHashMap<String, ExpressionInterval> m, ExpressionModifier em)
 	{
@@ -60,7 +176,8 @@ public abstract class ExpressionModifier
 
 	/**
 	 * Enumerate over all the expressions in this base component and modify them with the passed-in
-	 * object
+	 * object. Large automata are modified in parallel if the modifier is stateless, see
+	 * modifyBaseComponentParallel().
 	 * 
 	 * @param ha
 	 *            the automaton to enumerate over
@@ -68,6 +185,17 @@ public abstract class ExpressionModifier
 	 *            the function that gets called to modify each expression
 	 */
 	public static void modifyBaseComponent(BaseComponent bc, ExpressionModifier em)
+	{
+		int size = bc.modes.size() + bc.transitions.size();
+
+		if (size >= PARALLEL_THRESHOLD && em.isStateless()
+				&& (!em.modifiesInPlace() || !hasSharedExpressions(bc)))
+			modifyBaseComponentParallel(bc, em);
+		else
+			modifyBaseComponentSequential(bc, em);
+	}
+
+	private static void modifyBaseComponentSequential(BaseComponent bc, ExpressionModifier em)
 	{
 		for (Entry<String, AutomatonMode> e : bc.modes.entrySet())
 		{
@@ -85,4 +213,231 @@ public abstract class ExpressionModifier
 			t.reset = modifyMap(t.reset, em);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Modify the expressions in a base component using a fork-join pool. The modes and transitions
+	 * are split into chunks, and each task stores its new expressions in arrays indexed by the
+	 * mode or transition number. Once all tasks are done, the results are written back in the same
+	 * order as the sequential traversal, so the model (and any output printed from it) is identical
+	 * to a sequential run.
+	 * 
+	 * @param bc
+	 *            the automaton to modify
+	 * @param em
+	 *            the modifier, which must be stateless
+	 */
+	public static void modifyBaseComponentParallel(BaseComponent bc, ExpressionModifier em)
+	{
+		if (!em.isStateless())
+			throw new AutomatonExportException(
+					"Parallel traversal requires a stateless expression modifier");
+
+		ParallelResults r = new ParallelResults(bc);
+
+		getPool().invoke(new ModifyTask(r, em, 0, r.modes.length + r.transitions.length));
+
+		for (int i = 0; i < r.modes.length; ++i)
+		{
+			AutomatonMode m = r.modes[i];
+
+			if (m.flowDynamics != null)
+				m.flowDynamics = r.flows.get(i);
+
+			m.invariant = r.invariants[i];
+		}
+
+		for (int i = 0; i < r.transitions.length; ++i)
+		{
+			AutomatonTransition t = r.transitions[i];
+
+			t.guard = r.guards[i];
+			t.reset = r.resets.get(i);
+		}
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+
+		return pool;
+	}
+
+	/**
+	 * The inputs and outputs of a parallel traversal. Each slot is written by exactly one task.
+	 */
+	private static class ParallelResults
+	{
+		final AutomatonMode[] modes;
+		final AutomatonTransition[] transitions;
+		final Expression[] invariants;
+		final Expression[] guards;
+		final ArrayList<LinkedHashMap<String, ExpressionInterval>> flows;
+		final ArrayList<LinkedHashMap<String, ExpressionInterval>> resets;
+
+		ParallelResults(BaseComponent bc)
+		{
+			modes = bc.modes.values().toArray(new AutomatonMode[bc.modes.size()]);
+			transitions = bc.transitions.toArray(new AutomatonTransition[bc.transitions.size()]);
+			invariants = new Expression[modes.length];
+			guards = new Expression[transitions.length];
+			flows = new ArrayList<LinkedHashMap<String, ExpressionInterval>>(modes.length);
+			resets = new ArrayList<LinkedHashMap<String, ExpressionInterval>>(transitions.length);
+
+			for (int i = 0; i < modes.length; ++i)
+				flows.add(null);
+
+			for (int i = 0; i < transitions.length; ++i)
+				resets.add(null);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class ModifyTask extends RecursiveAction
+	{
+		private final ParallelResults r;
+		private final ExpressionModifier em;
+		private final int start;
+		private final int end;
+
+		ModifyTask(ParallelResults r, ExpressionModifier em, int start, int end)
+		{
+			this.r = r;
+			this.em = em;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start <= PARALLEL_CHUNK)
+			{
+				for (int i = start; i < end; ++i)
+				{
+					if (i < r.modes.length)
+					{
+						AutomatonMode m = r.modes[i];
+
+						if (m.flowDynamics != null)
+							r.flows.set(i, modifyMap(m.flowDynamics, em));
+
+						r.invariants[i] = em.modifyExpression(m.invariant);
+					}
+					else
+					{
+						int index = i - r.modes.length;
+						AutomatonTransition t = r.transitions[index];
+
+						r.guards[index] = em.modifyExpression(t.guard);
+						r.resets.set(index, modifyMap(t.reset, em));
+					}
+				}
+			}
+			else
+			{
+				int mid = (start + end) >>> 1;
+
+				invokeAll(new ModifyTask(r, em, start, mid), new ModifyTask(r, em, mid, end));
+			}
+		}
+	}
+
+	/**
+	 * Check if any (mutable) part of an expression is used by more than one mode or transition in
+	 * a base component. Variables and constants are immutable, so sharing them is fine.
+	 */
+	private static boolean hasSharedExpressions(BaseComponent bc)
+	{
+		IdentityHashMap<Expression, Integer> owners = new IdentityHashMap<Expression, Integer>();
+		int owner = 0;
+
+		for (AutomatonMode m : bc.modes.values())
+		{
+			if (m.flowDynamics != null)
+			{
+				for (ExpressionInterval ei : m.flowDynamics.values())
+				{
+					if (ei != null && isShared(ei.getExpression(), owner, owners))
+						return true;
+				}
+			}
+
+			if (isShared(m.invariant, owner++, owners))
+				return true;
+		}
+
+		for (AutomatonTransition t : bc.transitions)
+		{
+			if (isShared(t.guard, owner, owners))
+				return true;
+
+			for (ExpressionInterval ei : t.reset.values())
+			{
+				if (ei != null && isShared(ei.getExpression(), owner, owners))
+					return true;
+			}
+
+			++owner;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Record the owner of every mutable part of an expression, and check if one already had a
+	 * different owner. This uses an explicit stack, since expressions can be deep.
+	 */
+	private static boolean isShared(Expression e, int owner,
+			IdentityHashMap<Expression, Integer> owners)
+	{
+		PreOrder it = new PreOrder(e)
+		{
+			@Override
+			protected List<Expression> getChildren(Expression parent)
+			{
+				return ExpressionTraversal.getSubexpressions(parent);
+			}
+		};
+
+		for (Expression sub : it)
+		{
+			// variables and constants are immutable
+			if (sub instanceof Operation || sub instanceof LutExpression
+					|| sub instanceof MatrixExpression)
+			{
+				Integer prev = owners.put(sub, owner);
+
+				if (prev != null)
+				{
+					if (prev != owner)
+						return true;
+
+					// already checked as part of this owner
+					it.skipChildren();
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Modify the expressions in every base component in the component tree
+	 * 
+	 * @param c
+	 *            the root of the components to modify
+	 * @param em
+	 *            the function that gets called to modify each expression
+	 */
+	public static void modifyComponent(Component c, ExpressionModifier em)
+	{
+		if (c instanceof BaseComponent)
+			modifyBaseComponent((BaseComponent) c, em);
+		else
+		{
+			for (ComponentInstance ci : ((NetworkComponent) c).children.values())
+				modifyComponent(ci.child, em);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.verivital.hyst.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.ConversionCache;
+
+/**
+ * Tests for the on-disk conversion cache (-cache)
+ */
+public class ConversionCacheTest
+{
+	private static final String UNIT_BASEDIR = new File("tests/unit/models/").exists()
+			? "tests/unit/models/" : "src/tests/unit/models/";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Before
+	public void setUp()
+	{
+		Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+		PythonBridge.setBlockPython(true);
+		Hyst.IS_UNIT_TEST = true;
+	}
+
+	private static int countEntries(File dir, String ext)
+	{
+		int rv = 0;
+
+		for (File f : dir.listFiles())
+			if (f.getName().endsWith(ext))
+				++rv;
+
+		return rv;
+	}
+
+	/**
+	 * Keys depend on the file contents and on every stage description
+	 */
+	@Test
+	public void testKeys() throws IOException
+	{
+		File a = tmp.newFile("a.xml");
+		File b = tmp.newFile("b.xml");
+		ArrayList<File> listA = new ArrayList<File>();
+		ArrayList<File> listB = new ArrayList<File>();
+		listA.add(a);
+		listB.add(b);
+
+		Assert.assertEquals("same contents", ConversionCache.inputKey(listA),
+				ConversionCache.inputKey(listB));
+
+		FileOutputStream out = new FileOutputStream(b);
+		out.write('x');
+		out.close();
+
+		String key = ConversionCache.inputKey(listA);
+		Assert.assertNotEquals("different contents", key, ConversionCache.inputKey(listB));
+
+		Assert.assertEquals(ConversionCache.stageKey(key, "pass", "flatten", ""),
+				ConversionCache.stageKey(key, "pass", "flatten", ""));
+		Assert.assertNotEquals(ConversionCache.stageKey(key, "pass", "flatten", ""),
+				ConversionCache.stageKey(key, "pass", "flatten", "-x"));
+		Assert.assertNotEquals(ConversionCache.stageKey(key, "ab", "c"),
+				ConversionCache.stageKey(key, "a", "bc"));
+	}
+
+	/**
+	 * Snapshots can be stored and loaded, and old entries are evicted when over the size limit
+	 */
+	@Test
+	public void testSnapshotsAndEviction() throws IOException
+	{
+		File dir = tmp.newFolder("cache");
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "y", "x", "1" } });
+
+		ConversionCache cache = new ConversionCache(dir, 1L << 20);
+		Assert.assertNull(cache.loadSnapshot("missing"));
+
+		cache.storeSnapshot("first", c);
+		Assert.assertEquals(c.toString(), cache.loadSnapshot("first").toString());
+
+		// corrupt entries are deleted and treated as misses
+		FileOutputStream out = new FileOutputStream(new File(dir, "bad.ir"));
+		out.write("garbage".getBytes());
+		out.close();
+		Assert.assertNull(cache.loadSnapshot("bad"));
+		Assert.assertFalse(new File(dir, "bad.ir").exists());
+
+		// a cache with room for a single entry keeps only the newest one
+		long size = new File(dir, "first.ir").length();
+		cache = new ConversionCache(dir, size);
+		new File(dir, "first.ir").setLastModified(System.currentTimeMillis() - 60000);
+		cache.storeSnapshot("second", c);
+
+		Assert.assertFalse(new File(dir, "first.ir").exists());
+		Assert.assertTrue(new File(dir, "second.ir").exists());
+	}
+
+	/**
+	 * A repeated command-line conversion restores the output (including the SpaceEx cfg side file)
+	 * from the cache, and a conversion with more passes resumes from the cached model
+	 */
+	@Test
+	public void testCommandLine() throws IOException
+	{
+		String path = UNIT_BASEDIR + "controller_heater/controller_heater";
+		File cacheDir = tmp.newFolder("cache");
+		File outDir = tmp.newFolder("out");
+		File outXml = new File(outDir, "model.xml");
+		File outCfg = new File(outDir, "model.cfg");
+
+		String[] args = { "-i", path + ".xml", path + ".cfg", "-o", outXml.getPath(), "-tool",
+				"spaceex", "", "-passes", "flatten", "", "-cache", cacheDir.getPath() };
+
+		Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(), Hyst.runWithArguments(args));
+		Assert.assertEquals("snapshots before and after flatten", 2, countEntries(cacheDir, ".ir"));
+		Assert.assertEquals(1, countEntries(cacheDir, ".out"));
+
+		byte[] xml = Files.readAllBytes(outXml.toPath());
+		byte[] cfg = Files.readAllBytes(outCfg.toPath());
+		Assert.assertTrue(outXml.delete());
+		Assert.assertTrue(outCfg.delete());
+
+		Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(), Hyst.runWithArguments(args));
+		Assert.assertArrayEquals(xml, Files.readAllBytes(outXml.toPath()));
+		Assert.assertArrayEquals(cfg, Files.readAllBytes(outCfg.toPath()));
+
+		// adding a pass reuses the flattened model, and caches one more snapshot
+		String[] moreArgs = { "-i", path + ".xml", path + ".cfg", "-o", outXml.getPath(), "-tool",
+				"spaceex", "", "-passes", "flatten", "", "simplify", "", "-cache",
+				cacheDir.getPath() };
+
+		Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(), Hyst.runWithArguments(moreArgs));
+		Assert.assertEquals(3, countEntries(cacheDir, ".ir"));
+		Assert.assertEquals(2, countEntries(cacheDir, ".out"));
+	}
+}
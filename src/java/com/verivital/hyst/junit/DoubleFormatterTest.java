@@ -0,0 +1,166 @@
+package com.verivital.hyst.junit;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.verivital.hyst.util.DoubleFormatter;
+
+/**
+ * Tests that DoubleFormatter matches the DecimalFormat rules used by printers, also when used from
+ * several threads at once. Running this class as an application benchmarks DoubleFormatter against
+ * DecimalFormat.
+ */
+public class DoubleFormatterTest
+{
+	// values and their expected output, covering both the digit generator and the fallback
+	private static final double[] VALUES = { 0.3, -10.0, 1e-5, 1e7, 0.0, -0.0, 123456789.125,
+			Math.PI, 1e-51, 0.1 + 0.2, 2.5e-3, 100.5, -0.015625, 1e15, 123456789012345.0, 1e22,
+			1.0 / 3, 5e-324, Double.MAX_VALUE / 1e300 };
+
+	private static final String[] EXPECTED = { "0.3", "-10", "0.00001", "10000000", "0", "-0",
+			"123456789.125", "3.141592653589793", "0", "0.30000000000000004", "0.0025", "100.5",
+			"-0.015625", "1000000000000000", "123456789012345", "10000000000000000000000",
+			"0.3333333333333333", "0", "179769313.48623157" };
+
+	@Test
+	public void testSpecialValues()
+	{
+		for (int i = 0; i < VALUES.length; ++i)
+			Assert.assertEquals("formatting " + VALUES[i], EXPECTED[i],
+					DoubleFormatter.format(VALUES[i]));
+	}
+
+	@Test
+	public void testAppend()
+	{
+		StringBuilder sb = new StringBuilder("x = ");
+		DoubleFormatter.append(sb, 2.5);
+
+		Assert.assertEquals("x = 2.5", sb.toString());
+	}
+
+	/**
+	 * Random numbers with short and long decimal forms give the same output as DecimalFormat
+	 */
+	@Test
+	public void testMatchesDecimalFormat()
+	{
+		DecimalFormat df = DoubleFormatter.makeDecimalFormat();
+		Random rand = new Random(0);
+
+		for (int i = 0; i < 200000; ++i)
+		{
+			double d;
+
+			if (i % 2 == 0)
+				d = (rand.nextInt() / (double) (1 + rand.nextInt(1000)))
+						* Math.pow(10, rand.nextInt(30) - 15);
+			else
+				d = Math.round(rand.nextGaussian() * 1e6) / Math.pow(10, rand.nextInt(22));
+
+			Assert.assertEquals("formatting " + d, df.format(d), DoubleFormatter.format(d));
+		}
+	}
+
+	/**
+	 * Formatting from several threads at once gives the expected strings
+	 */
+	@Test
+	public void testThreads() throws Exception
+	{
+		final int REPEATS = 5000;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		try
+		{
+			for (int t = 0; t < 4; ++t)
+			{
+				final int offset = t;
+
+				results.add(pool.submit(new Callable<Integer>()
+				{
+					@Override
+					public Integer call()
+					{
+						int mismatches = 0;
+
+						for (int r = 0; r < REPEATS; ++r)
+						{
+							int i = (r + offset) % VALUES.length;
+
+							if (!EXPECTED[i].equals(DoubleFormatter.format(VALUES[i])))
+								++mismatches;
+						}
+
+						return mismatches;
+					}
+				}));
+			}
+
+			for (Future<Integer> f : results)
+				Assert.assertEquals(0, (int) f.get());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		final int NUM = 1000000;
+		final int ROUNDS = 5;
+		Random rand = new Random(0);
+		double[] vals = new double[NUM];
+
+		// half the numbers are short decimals, like most model constants
+		for (int i = 0; i < NUM; ++i)
+		{
+			if (i % 2 == 0)
+				vals[i] = rand.nextInt(100000) / Math.pow(10, rand.nextInt(6));
+			else
+				vals[i] = rand.nextGaussian() * Math.pow(10, rand.nextInt(10) - 5);
+		}
+
+		DecimalFormat df = DoubleFormatter.makeDecimalFormat();
+		StringBuilder sb = new StringBuilder();
+
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			long start = System.nanoTime();
+			long totalLen = 0;
+
+			for (double d : vals)
+				totalLen += df.format(d).length();
+
+			long dfMs = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+
+			for (double d : vals)
+			{
+				sb.setLength(0);
+				DoubleFormatter.append(sb, d);
+				totalLen -= sb.length();
+			}
+
+			long fastMs = (System.nanoTime() - start) / 1000000;
+
+			if (totalLen != 0)
+				throw new RuntimeException("outputs differ");
+
+			System.out.println("Round " + round + ": DecimalFormat " + dfMs
+					+ " ms, DoubleFormatter " + fastMs + " ms for " + NUM + " numbers");
+		}
+	}
+}
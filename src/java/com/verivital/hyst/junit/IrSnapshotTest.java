@@ -0,0 +1,284 @@
+package com.verivital.hyst.junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.importer.ConfigurationMaker;
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.importer.TemplateImporter;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.printers.FlowstarPrinter;
+import com.verivital.hyst.printers.SpaceExPrinter;
+import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.IrSnapshot;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
+
+/**
+ * Tests for saving and loading binary IR snapshots
+ */
+public class IrSnapshotTest
+{
+	private static final String UNIT_BASEDIR = new File("tests/unit/models/").exists()
+			? "tests/unit/models/" : "src/tests/unit/models/";
+
+	@Before
+	public void setUp()
+	{
+		Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+		PythonBridge.setBlockPython(true);
+	}
+
+	private static Configuration roundTrip(Configuration c) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IrSnapshot.save(c, out);
+
+		return IrSnapshot.load(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static String printSpaceEx(Configuration c)
+	{
+		ToolPrinter printer = new SpaceExPrinter();
+		printer.setOutputString();
+		printer.print(c, "", "model.xml");
+
+		return printer.outputString.toString();
+	}
+
+	/**
+	 * Every unit test model should round-trip exactly, both as imported (with network components
+	 * and templates) and after flattening
+	 */
+	@Test
+	public void testRoundTripModels() throws IOException
+	{
+		NetworkComponent.PRINT_RECURSIVE = true;
+		int count = 0;
+
+		for (File dir : new File(UNIT_BASEDIR).listFiles())
+		{
+			File xml = new File(dir, dir.getName() + ".xml");
+			File cfg = new File(dir, dir.getName() + ".cfg");
+
+			if (!xml.exists() || !cfg.exists())
+				continue;
+
+			Configuration c;
+			Configuration flat;
+
+			try
+			{
+				SpaceExDocument doc = SpaceExImporter.importModels(cfg.getPath(), xml.getPath());
+				Map<String, Component> templates = TemplateImporter.createComponentTemplates(doc);
+				c = ConfigurationMaker.fromSpaceEx(doc, templates);
+
+				flat = ModelParserTest
+						.flatten(SpaceExImporter.importModels(cfg.getPath(), xml.getPath()));
+			}
+			catch (AutomatonExportException e)
+			{
+				continue; // some unit test models are invalid on purpose
+			}
+
+			Configuration loaded = roundTrip(c);
+			Assert.assertEquals("round trip of " + dir.getName(), c.toString(), loaded.toString());
+
+			// templates are their own templates
+			if (c.root.template != null)
+				Assert.assertSame("template of " + dir.getName(), loaded.root.template,
+						loaded.root.template.template);
+
+			Configuration flatLoaded = roundTrip(flat.copy());
+
+			Assert.assertEquals("flat round trip of " + dir.getName(), flat.toString(),
+					flatLoaded.toString());
+
+			String expected;
+
+			try
+			{
+				expected = printSpaceEx(flat);
+			}
+			catch (RuntimeException e)
+			{
+				continue; // printer doesn't support this model
+			}
+
+			Assert.assertEquals("printed round trip of " + dir.getName(), expected,
+					printSpaceEx(flatLoaded));
+			++count;
+		}
+
+		Assert.assertTrue("round-tripped some models", count > 10);
+	}
+
+	/**
+	 * Shared subexpressions stay shared, and settings and urgent modes are kept
+	 */
+	@Test
+	public void testSharingAndSettings() throws IOException
+	{
+		String[][] dynamics = { { "x", "1", "0" }, { "t", "1", "0.5" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		AutomatonMode urgent = ha.createMode("urgent");
+		urgent.urgent = true;
+		urgent.flowDynamics = null;
+		urgent.invariant = FormulaParser.parseInvariant("x <= 2");
+
+		Operation shared = FormulaParser.parseGuard("x >= 1").asOperation();
+		AutomatonMode on = ha.modes.get("on");
+		ha.createTransition(on, urgent).guard = shared;
+		ha.createTransition(urgent, on).guard = shared;
+		ha.transitions.get(1).label = "back";
+
+		c.settings.spaceExConfig.timeHorizon = 0.1 + 0.2;
+		c.settings.spaceExConfig.outputVars.add("t");
+		c.validate();
+
+		Configuration loaded = roundTrip(c);
+		BaseComponent loadedHa = (BaseComponent) loaded.root;
+
+		Assert.assertEquals(c.toString(), loaded.toString());
+		Assert.assertSame(loadedHa.transitions.get(0).guard, loadedHa.transitions.get(1).guard);
+		Assert.assertEquals("back", loadedHa.transitions.get(1).label);
+		Assert.assertTrue(loadedHa.modes.get("urgent").urgent);
+		Assert.assertNull(loadedHa.modes.get("urgent").flowDynamics);
+		Assert.assertEquals(0.1 + 0.2, loaded.settings.spaceExConfig.timeHorizon, 0);
+		Assert.assertEquals("t", loaded.settings.spaceExConfig.outputVars.get(0));
+		Assert.assertEquals(c.settings.plotVariableNames[1], loaded.settings.plotVariableNames[1]);
+	}
+
+	/**
+	 * Flow* output from a loaded snapshot should match the original
+	 */
+	@Test
+	public void testFlowstarFromSnapshot() throws IOException
+	{
+		String path = UNIT_BASEDIR + "controller_heater/controller_heater";
+		SpaceExDocument doc = SpaceExImporter.importModels(path + ".cfg", path + ".xml");
+		Configuration c = ModelParserTest.flatten(doc);
+		Configuration loaded = roundTrip(c.copy());
+		String[] outputs = new String[2];
+
+		for (int i = 0; i < 2; ++i)
+		{
+			ToolPrinter printer = new FlowstarPrinter();
+			printer.setOutputString();
+			printer.print(i == 0 ? c : loaded, "", "model.xml");
+
+			outputs[i] = printer.outputString.toString();
+		}
+
+		Assert.assertEquals(outputs[0], outputs[1]);
+	}
+
+	/**
+	 * Very deep expressions and strings longer than 64KB should round-trip
+	 */
+	@Test
+	public void testDeepExpressionsAndLongStrings() throws IOException
+	{
+		String[][] dynamics = { { "x", "1", "0" }, { "y", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+
+		// x + y + x + y + ..., left-nested
+		final int TERMS = 100000;
+		Expression sum = new Variable("x");
+
+		for (int i = 1; i < TERMS; ++i)
+			sum = new Operation(sum, Operator.ADD, new Variable(i % 2 == 0 ? "x" : "y"));
+
+		on.flowDynamics.put("x", new ExpressionInterval(sum));
+
+		StringBuilder label = new StringBuilder();
+
+		for (int i = 0; i < 70000; ++i)
+			label.append((char) ('a' + i % 26));
+
+		label.append("\u00e9\u4e2d"); // multi-byte characters
+		AutomatonTransition at = ha.createTransition(on, on);
+		at.guard = Constant.TRUE;
+		at.label = label.toString();
+		c.validate();
+
+		Configuration loaded = roundTrip(c);
+		BaseComponent loadedHa = (BaseComponent) loaded.root;
+		Expression loadedSum = loadedHa.modes.get("on").flowDynamics.get("x").asExpression();
+
+		Assert.assertEquals(label.toString(), loadedHa.transitions.get(0).label);
+
+		// walk down the left side of the sum, rather than comparing recursively
+		int depth = 1;
+
+		for (Expression e = loadedSum; e instanceof Operation; e = e.asOperation().getLeft())
+		{
+			Assert.assertEquals(Operator.ADD, e.asOperation().op);
+			Assert.assertEquals(depth % 2 == 0 ? "x" : "y",
+					((Variable) e.asOperation().getRight()).name);
+			++depth;
+		}
+
+		Assert.assertEquals(TERMS, depth);
+	}
+
+	/**
+	 * Files which aren't snapshots, or have a different version, should be rejected
+	 */
+	@Test
+	public void testRejectBadSnapshot() throws IOException
+	{
+		try
+		{
+			IrSnapshot.load(new ByteArrayInputStream("<?xml version".getBytes()));
+			Assert.fail("expected exception on non-snapshot input");
+		}
+		catch (AutomatonExportException e)
+		{
+			Assert.assertTrue(e.getMessage().contains("not a Hyst IR snapshot"));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IrSnapshot.save(AutomatonUtil.makeDebugConfiguration(new String[][] { { "x", "1" } }),
+				out);
+		byte[] bytes = out.toByteArray();
+		++bytes[9]; // low byte of the version number
+
+		try
+		{
+			IrSnapshot.load(new ByteArrayInputStream(bytes));
+			Assert.fail("expected exception on wrong version");
+		}
+		catch (AutomatonExportException e)
+		{
+			Assert.assertTrue(e.getMessage().contains("Unsupported IR snapshot version"));
+		}
+	}
+}
@@ -237,6 +237,37 @@ public class LutMatrixTest
 		}
 	}
 
+	/**
+	 * Matrices of numbers are stored as doubles, and switch to expressions when needed
+	 */
+	@Test
+	public void testNumericMatrix()
+	{
+		double TOL = 1e-9;
+		MatrixExpression m = (MatrixExpression) FormulaParser
+				.parseValue("reshape([1, -2, 3, 4, 5, -6], 3, 2)");
+
+		Assert.assertTrue("parsed matrix of numbers (with negatives) is numeric", m.isNumeric());
+		Assert.assertEquals(6, m.getNumCells());
+		Assert.assertEquals(4, m.getCellNumber(1, 1));
+		Assert.assertEquals(-6, m.getValue(2, 1), TOL);
+		Assert.assertEquals("[1.0, 4.0 ; -2.0, 5.0 ; 3.0, -6.0]", m.toDefaultString());
+
+		MatrixExpression copy = (MatrixExpression) m.copy();
+		copy.setCell(0, new Constant(7));
+		Assert.assertTrue(copy.isNumeric());
+		Assert.assertEquals("copy is independent", 1, m.getValue(0, 0), TOL);
+
+		copy.setExpressionAtIndex(new int[] { 0, 1 }, FormulaParser.parseValue("x + 1"));
+		Assert.assertFalse("non-numeric cell converts the storage", copy.isNumeric());
+		Assert.assertEquals("[7.0, x + 1.0 ; -2.0, 5.0 ; 3.0, -6.0]", copy.toDefaultString());
+		Assert.assertEquals(-2, copy.getCellValue(1), TOL);
+
+		MatrixExpression reshaped = m.reshape(6);
+		Assert.assertTrue(reshaped.isNumeric());
+		Assert.assertEquals("[1.0, -2.0, 3.0, 4.0, 5.0, -6.0]", reshaped.toDefaultString());
+	}
+
 	/**
 	 * Test a 2-d LUT in flow
 	 */
@@ -1,9 +1,16 @@
 package com.verivital.hyst.junit;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -15,7 +22,11 @@ import org.junit.runners.Parameterized.Parameters;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
@@ -25,16 +36,25 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.ExpressionModifier;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.passes.basic.ConeOfInfluencePass;
 import com.verivital.hyst.passes.basic.CopyInstancePass;
+import com.verivital.hyst.passes.basic.EliminateUrgentModesPass;
+import com.verivital.hyst.passes.basic.MergeEquivalentModesPass;
+import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
+import com.verivital.hyst.passes.basic.SplitDisjunctionGuardsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.Hylaa2Printer;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AutomatonUtil;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -147,6 +167,728 @@ public class PassTests
 		new SimplifyExpressionsPass().runTransformationPass(config, null);
 	}
 
+	/**
+	 * Simplifying the component templates before instantiation should give the same network as
+	 * simplifying the instantiated network
+	 */
+	@Test
+	public void testSimplifyTemplatePass()
+	{
+		String path = UNIT_BASEDIR + "pll/";
+		String spaceExFile = path + "pll_orig.xml";
+		String configFile = path + "pll_orig.cfg";
+		NetworkComponent.PRINT_RECURSIVE = true;
+
+		SpaceExDocument doc = SpaceExImporter.importModels(configFile, spaceExFile);
+		Configuration expected = ConfigurationMaker.fromSpaceEx(doc,
+				TemplateImporter.createComponentTemplates(doc));
+		new SimplifyExpressionsPass().runTransformationPass(expected, null);
+
+		doc = SpaceExImporter.importModels(configFile, spaceExFile);
+		Map<String, Component> templates = TemplateImporter.createComponentTemplates(doc);
+		SimplifyExpressionsPass pass = new SimplifyExpressionsPass();
+		Assert.assertTrue(pass.isTemplateSafe());
+
+		pass.runTemplatePass(templates.values(), null);
+		Configuration config = ConfigurationMaker.fromSpaceEx(doc, templates);
+		pass.runAfterTemplatePass(config);
+
+		Assert.assertEquals(expected.toString(), config.toString());
+		Assert.assertFalse(new SubstituteConstantsPass().isTemplateSafe());
+	}
+
+	/**
+	 * Substituting constants and simplifying in one fused traversal should give the same result as
+	 * running the passes one after the other
+	 */
+	@Test
+	public void testFusedRewritePasses()
+	{
+		String path = UNIT_BASEDIR + "pll/";
+		Configuration[] configs = new Configuration[2];
+
+		for (int i = 0; i < 2; ++i)
+		{
+			SpaceExDocument doc = SpaceExImporter.importModels(path + "pll_orig.cfg",
+					path + "pll_orig.xml");
+			configs[i] = ConfigurationMaker.fromSpaceEx(doc,
+					TemplateImporter.createComponentTemplates(doc));
+			FlattenAutomatonPass.flattenAndOptimize(configs[i]);
+		}
+
+		Assert.assertFalse(configs[0].root.constants.isEmpty());
+
+		new SubstituteConstantsPass().runTransformationPass(configs[0], null);
+		new SimplifyExpressionsPass().runTransformationPass(configs[0], null);
+
+		List<TransformationPass> passes = new ArrayList<TransformationPass>();
+		passes.add(new SubstituteConstantsPass());
+		passes.add(new SimplifyExpressionsPass());
+
+		for (TransformationPass tp : passes)
+			Assert.assertTrue(tp.isExpressionRewrite(configs[1]));
+
+		TransformationPass.runFusedRewritePasses(configs[1], passes, Arrays.asList("", ""));
+
+		Assert.assertEquals(configs[0].toString(), configs[1].toString());
+		Assert.assertTrue(configs[1].root.constants.isEmpty());
+
+		// substituting constants checks preconditions, which convert interval constants to
+		// variables, so it's not fused after simplification, and the result is still the same
+		for (int i = 0; i < 2; ++i)
+		{
+			String[][] dynamics = { { "x", "0", "0" }, { "t", "1", "0" } };
+			configs[i] = AutomatonUtil.makeDebugConfiguration(dynamics);
+			BaseComponent ha = (BaseComponent) configs[i].root;
+			ha.constants.put("k", new Interval(2));
+			ha.constants.put("c", new Interval(1, 2));
+
+			AutomatonMode on = ha.modes.get("on");
+			on.flowDynamics.put("x", new ExpressionInterval("k * x + 0 * x"));
+			on.flowDynamics.put("t", new ExpressionInterval("c + 1"));
+			configs[i].validate();
+		}
+
+		passes.clear();
+		passes.add(new SimplifyExpressionsPass());
+		passes.add(new SubstituteConstantsPass());
+		passes.add(new SimplifyExpressionsPass());
+
+		Assert.assertTrue(passes.get(2).canFuseAfterRewrites(configs[1]));
+		Assert.assertFalse(passes.get(1).canFuseAfterRewrites(configs[1]));
+
+		for (TransformationPass tp : passes)
+			tp.runTransformationPass(configs[0], "");
+
+		passes.clear();
+		passes.add(new SimplifyExpressionsPass());
+		passes.add(new SubstituteConstantsPass());
+		passes.add(new SimplifyExpressionsPass());
+
+		TransformationPass.runFusedRewritePasses(configs[1], passes, Arrays.asList("", "", ""));
+
+		Assert.assertEquals(configs[0].toString(), configs[1].toString());
+		Assert.assertTrue(configs[1].root.variables.contains("c"));
+	}
+
+	/**
+	 * Modes with jointly unsatisfiable invariants, and transitions whose guard contradicts the
+	 * source invariant, should be removed
+	 */
+	@Test
+	public void testRemoveUnsatMultivariate()
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "y", "1", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+		on.invariant = FormulaParser.parseInvariant("0 <= x & x <= 5 & 0 <= y & y <= 5");
+
+		AutomatonMode bad = ha.createMode("bad", new ExpressionInterval(1));
+		bad.invariant = FormulaParser.parseInvariant("x + y <= 1 & x >= 2 & y >= 0");
+		ha.createTransition(on, bad).guard = FormulaParser.parseGuard("x >= 1");
+
+		AutomatonMode off = ha.createMode("off", new ExpressionInterval(0));
+		off.invariant = Constant.TRUE;
+		ha.createTransition(on, off).guard = FormulaParser.parseGuard("x * y >= 30");
+		ha.createTransition(on, off).guard = FormulaParser.parseGuard("x * y >= 20");
+		c.validate();
+
+		new RemoveSimpleUnsatInvariantsPass().runTransformationPass(c, null);
+
+		Assert.assertEquals(2, ha.modes.size());
+		Assert.assertFalse(ha.modes.containsKey("bad"));
+		Assert.assertEquals(1, ha.transitions.size());
+		Assert.assertEquals("x * y >= 20.0", ha.transitions.get(0).guard.toDefaultString());
+	}
+
+	/**
+	 * Variables which can't influence the forbidden states should be removed, unless they are
+	 * plot variables and -keep_plot is used
+	 */
+	@Test
+	public void testConeOfInfluence()
+	{
+		String[][] dynamics = { { "x", "y", "0" }, { "y", "-x", "1" }, { "t", "1", "0" },
+				{ "mon", "x + mon", "0" }, { "p", "2 * mon", "0" } };
+
+		for (boolean keepPlot : new boolean[] { false, true })
+		{
+			Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+			BaseComponent ha = (BaseComponent) c.root;
+			AutomatonMode on = ha.modes.get("on");
+			on.invariant = FormulaParser.parseInvariant("t <= 10");
+
+			AutomatonMode off = ha.createMode("off");
+			off.invariant = Constant.TRUE;
+
+			for (String v : ha.variables)
+				off.flowDynamics.put(v, new ExpressionInterval(0));
+
+			AutomatonTransition at = ha.createTransition(on, off);
+			at.guard = FormulaParser.parseGuard("t >= 5");
+			at.reset.put("mon", new ExpressionInterval("p"));
+
+			c.forbidden.put("off", FormulaParser.parseInitialForbidden("x >= 5"));
+			c.settings.plotVariableNames[0] = "t";
+			c.settings.plotVariableNames[1] = "mon";
+			c.validate();
+
+			new ConeOfInfluencePass().runTransformationPass(c, keepPlot ? "-keep_plot" : "");
+
+			if (keepPlot)
+			{
+				// mon depends on p through the reset
+				Assert.assertEquals(Arrays.asList("x", "y", "t", "mon", "p"), ha.variables);
+				Assert.assertEquals("mon", c.settings.plotVariableNames[1]);
+			}
+			else
+			{
+				Assert.assertEquals(Arrays.asList("x", "y", "t"), ha.variables);
+				Assert.assertEquals("x = 0.0 & y = 1.0 & t = 0.0",
+						c.init.get("on").toDefaultString());
+				Assert.assertEquals(3, on.flowDynamics.size());
+				Assert.assertTrue(at.reset.isEmpty());
+				Assert.assertEquals("x", c.settings.plotVariableNames[0]);
+				Assert.assertEquals("y", c.settings.plotVariableNames[1]);
+			}
+		}
+
+		// look-up table inputs are dependencies, and long initial conjunctions are split
+		String[][] lutDynamics = { { "x", "lut([q], [1, 2], [0, 10])", "0" }, { "q", "0", "1" },
+				{ "r", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(lutDynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		Expression init = c.init.get("on");
+
+		for (int i = 0; i < 100000; ++i)
+			init = Expression.and(init, new Operation(Operator.LESSEQUAL, new Variable("r"),
+					new Constant(i)));
+
+		c.init.put("on", init);
+		c.forbidden.put("on", FormulaParser.parseInitialForbidden("x >= 5"));
+		c.validate();
+
+		new ConeOfInfluencePass().runTransformationPass(c, "");
+
+		Assert.assertEquals(Arrays.asList("x", "q"), ha.variables);
+		Assert.assertEquals("x = 0.0 & q = 1.0", c.init.get("on").toDefaultString());
+	}
+
+	/**
+	 * make an automaton where on goes to b1 or b2, which both go to c. The flows and invariants of
+	 * b1 and b2 are the same, and the guards to c are given as parameters.
+	 */
+	private static Configuration makeMergeConfiguration(String guard1, String guard2)
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "t", "1", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+		AutomatonMode[] bs = new AutomatonMode[2];
+		AutomatonMode cm = ha.createMode("c");
+		cm.flowDynamics.put("x", new ExpressionInterval("0"));
+		cm.flowDynamics.put("t", new ExpressionInterval("1"));
+		cm.invariant = Constant.TRUE;
+
+		String[] guards = { guard1, guard2 };
+
+		for (int i = 0; i < 2; ++i)
+		{
+			bs[i] = ha.createMode("b" + (i + 1));
+			bs[i].flowDynamics.put("x", new ExpressionInterval("2"));
+			bs[i].flowDynamics.put("t", new ExpressionInterval("1"));
+			bs[i].invariant = FormulaParser.parseInvariant("x <= 10");
+
+			AutomatonTransition in = ha.createTransition(on, bs[i]);
+			in.guard = FormulaParser.parseGuard("x >= " + (i + 1));
+
+			AutomatonTransition out = ha.createTransition(bs[i], cm);
+			out.guard = FormulaParser.parseGuard(guards[i]);
+		}
+
+		c.init.put("b1", FormulaParser.parseInitialForbidden("x = 4 & t = 0"));
+		c.init.put("b2", FormulaParser.parseInitialForbidden("x = 5 & t = 0"));
+		c.validate();
+
+		return c;
+	}
+
+	/**
+	 * Test merging bisimilar modes
+	 */
+	@Test
+	public void testMergeEquivalentModes()
+	{
+		Configuration c = makeMergeConfiguration("x >= 5", "x >= 5");
+		BaseComponent ha = (BaseComponent) c.root;
+		new MergeEquivalentModesPass().runTransformationPass(c, null);
+
+		Assert.assertEquals(Arrays.asList("on", "c", "b1"),
+				new ArrayList<String>(ha.modes.keySet()));
+		Assert.assertEquals(3, ha.transitions.size());
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			Assert.assertNotEquals("b2", at.from.name);
+			Assert.assertNotEquals("b2", at.to.name);
+		}
+
+		Assert.assertEquals("x >= 1.0", ha.transitions.get(0).guard.toDefaultString());
+		Assert.assertEquals("x >= 2.0", ha.transitions.get(2).guard.toDefaultString());
+		Assert.assertEquals("b1", ha.transitions.get(2).to.name);
+
+		// both b1 and b2 were initial
+		Assert.assertFalse(c.init.containsKey("b2"));
+		Assert.assertEquals("x = 4.0 & t = 0.0 | x = 5.0 & t = 0.0",
+				c.init.get("b1").toDefaultString());
+		c.validate();
+
+		// different guards into c, or different forbidden states, prevent merging
+		c = makeMergeConfiguration("x >= 5", "x >= 6");
+		new MergeEquivalentModesPass().runTransformationPass(c, null);
+		Assert.assertEquals(4, ((BaseComponent) c.root).modes.size());
+
+		c = makeMergeConfiguration("x >= 5", "x >= 5");
+		c.forbidden.put("b1", FormulaParser.parseInitialForbidden("x >= 9"));
+		new MergeEquivalentModesPass().runTransformationPass(c, null);
+		Assert.assertEquals(4, ((BaseComponent) c.root).modes.size());
+	}
+
+	/**
+	 * Disjunctive guards are split into non-overlapping transitions
+	 */
+	@Test
+	public void testSplitDisjunctionGuards()
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "t", "1", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+		String[] guards = { "t >= 5 | x >= 7", "x == 1 | x == 2",
+				"(x < 1 | t < 1) & (x >= 1 | t >= 1) & x >= 1", "x < 1 & x >= 1 | t < 1 & t >= 1",
+				"t <= 3", "x >= 1 | x >= 2" };
+
+		for (String g : guards)
+			ha.createTransition(on, on).guard = FormulaParser.parseGuard(g);
+
+		// a deep guard with few atoms
+		Expression deep = FormulaParser.parseGuard("x >= 1 | x >= 2");
+
+		for (int i = 0; i < 100000; ++i)
+			deep = Expression.and(deep, FormulaParser.parseGuard("t <= 3"));
+
+		ha.createTransition(on, on).guard = deep;
+
+		new SplitDisjunctionGuardsPass().runTransformationPass(c, null);
+
+		ArrayList<String> result = new ArrayList<String>();
+
+		for (AutomatonTransition at : ha.transitions)
+			result.add(at.guard.toDefaultString());
+
+		// guards which simplify to one conjunction stay in place, unsatisfiable ones are removed,
+		// strict comparisons are only used if they're in the input, and x != 1 isn't needed.
+		// Paths like x <= 1 & x >= 2 for x >= 1 | x >= 2 are unsatisfiable, and dropped.
+		Assert.assertEquals(Arrays.asList("x >= 1.0 & t < 1.0", "t <= 3.0", "x >= 1.0",
+				"x >= 1.0 & t <= 3.0", "t >= 5.0", "t <= 5.0 & x >= 7.0", "x = 1.0", "x = 2.0"),
+				result);
+	}
+
+	/**
+	 * Test eliminating a chain of urgent modes by composing transitions
+	 */
+	@Test
+	public void testEliminateUrgentModes()
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "y", "0", "1" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+
+		AutomatonMode u1 = ha.createMode("u1");
+		u1.urgent = true;
+		u1.flowDynamics = null;
+		u1.invariant = FormulaParser.parseInvariant("y <= 10");
+
+		AutomatonMode u2 = ha.createMode("u2");
+		u2.urgent = true;
+		u2.flowDynamics = null;
+		u2.invariant = Constant.TRUE;
+
+		AutomatonMode off = ha.createMode("off");
+		off.invariant = Constant.TRUE;
+		off.flowDynamics.put("x", new ExpressionInterval("0"));
+		off.flowDynamics.put("y", new ExpressionInterval("0"));
+
+		AutomatonTransition t1 = ha.createTransition(on, u1);
+		t1.guard = FormulaParser.parseGuard("x >= 2");
+		t1.reset.put("x", new ExpressionInterval("y"));
+		t1.reset.put("y", new ExpressionInterval("x"));
+
+		AutomatonTransition t2 = ha.createTransition(u1, u2);
+		t2.guard = FormulaParser.parseGuard("x <= 1");
+		t2.reset.put("y", new ExpressionInterval("2 * y"));
+
+		AutomatonTransition t3 = ha.createTransition(u2, off);
+		t3.guard = FormulaParser.parseGuard("y >= 5");
+
+		c.validate();
+		new EliminateUrgentModesPass().runTransformationPass(c, null);
+		c.validate();
+
+		Assert.assertFalse(AutomatonUtil.hasUrgentMode(ha));
+		Assert.assertEquals(Arrays.asList("on", "off"), new ArrayList<String>(ha.modes.keySet()));
+		Assert.assertEquals(1, ha.transitions.size());
+
+		// resets are applied simultaneously, so the swap of x and y is substituted into the rest
+		AutomatonTransition at = ha.transitions.get(0);
+		Assert.assertEquals("off", at.to.name);
+		Assert.assertEquals("x >= 2.0 & x <= 10.0 & y <= 1.0 & 2.0 * x >= 5.0",
+				at.guard.toDefaultString());
+		Assert.assertEquals("y", at.reset.get("x").toDefaultString());
+		Assert.assertEquals("2.0 * x", at.reset.get("y").toDefaultString());
+
+		// substitution also replaces variables in matrix cells, like a lookup table's data
+		c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "y", "0", "1" } });
+		ha = (BaseComponent) c.root;
+		on = ha.modes.get("on");
+		u1 = ha.createMode("u1");
+		u1.urgent = true;
+		u1.flowDynamics = null;
+		u1.invariant = Constant.TRUE;
+
+		t1 = ha.createTransition(on, u1);
+		t1.guard = Constant.TRUE;
+		t1.reset.put("x", new ExpressionInterval("y + 1"));
+
+		t2 = ha.createTransition(u1, on);
+		t2.guard = Constant.TRUE;
+		Expression lut = FormulaParser.parseValue("lut([y], [x, 2], [0, 10])");
+		t2.reset.put("y", new ExpressionInterval(lut));
+
+		c.validate();
+		new EliminateUrgentModesPass().runTransformationPass(c, null);
+		c.validate();
+
+		Assert.assertEquals(1, ha.transitions.size());
+		Assert.assertEquals("lut([y], [y + 1.0, 2.0], [0.0, 10.0])",
+				ha.transitions.get(0).reset.get("y").toDefaultString());
+
+		// substitution works on expressions which are too deep for recursion
+		c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "y", "0", "1" } });
+		ha = (BaseComponent) c.root;
+		on = ha.modes.get("on");
+		u1 = ha.createMode("u1");
+		u1.urgent = true;
+		u1.flowDynamics = null;
+		u1.invariant = Constant.TRUE;
+
+		t1 = ha.createTransition(on, u1);
+		t1.guard = Constant.TRUE;
+		t1.reset.put("x", new ExpressionInterval("y + 1"));
+
+		final int DEPTH = 100000;
+		Expression deep = new Variable("x");
+
+		for (int i = 0; i < DEPTH; ++i)
+			deep = new Operation(Operator.ADD, deep, new Constant(1));
+
+		t2 = ha.createTransition(u1, on);
+		t2.guard = Constant.TRUE;
+		t2.reset.put("y", new ExpressionInterval(deep));
+
+		new EliminateUrgentModesPass().runTransformationPass(c, null);
+
+		int numOps = 0;
+		ArrayList<String> vars = new ArrayList<String>();
+
+		for (Expression e : new PreOrder(ha.transitions.get(0).reset.get("y").getExpression()))
+		{
+			if (e instanceof Operation)
+				++numOps;
+			else if (e instanceof Variable)
+				vars.add(((Variable) e).name);
+		}
+
+		Assert.assertEquals(DEPTH + 1, numOps);
+		Assert.assertEquals(Arrays.asList("y"), vars);
+
+		// a cycle of urgent modes can't be eliminated
+		c = AutomatonUtil.makeDebugConfiguration(new String[][] { { "x", "1", "0" } });
+		ha = (BaseComponent) c.root;
+		on = ha.modes.get("on");
+		u1 = ha.createMode("u1");
+		u1.urgent = true;
+		u1.flowDynamics = null;
+		u1.invariant = Constant.TRUE;
+		u2 = ha.createMode("u2");
+		u2.urgent = true;
+		u2.flowDynamics = null;
+		u2.invariant = Constant.TRUE;
+
+		ha.createTransition(on, u1).guard = FormulaParser.parseGuard("x >= 2");
+		ha.createTransition(u1, u2).guard = FormulaParser.parseGuard("x >= 3");
+		ha.createTransition(u2, u1).guard = FormulaParser.parseGuard("x >= 4");
+		ha.createTransition(u2, on).guard = FormulaParser.parseGuard("x >= 5");
+
+		c.validate();
+		new EliminateUrgentModesPass().runTransformationPass(c, null);
+		c.validate();
+
+		Assert.assertTrue(AutomatonUtil.hasUrgentMode(ha));
+		Assert.assertEquals(2, ha.modes.size());
+	}
+
+	/**
+	 * make a chain of modes where every expression uses the constant k. If shareGuard is set, all
+	 * transitions use the same guard object.
+	 */
+	private static Configuration makeChainConfiguration(int numModes, boolean shareGuard)
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1", "0" }, { "t", "1", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		ha.constants.put("k", new Interval(2));
+
+		Expression sharedGuard = FormulaParser.parseGuard("x >= k * 1 + 0");
+		AutomatonMode prev = ha.modes.get("on");
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			AutomatonMode am = ha.createMode("m" + i);
+			am.flowDynamics.put("x", new ExpressionInterval("k * " + i + " + 0"));
+			am.flowDynamics.put("t", new ExpressionInterval("1"));
+			am.invariant = FormulaParser.parseInvariant("t <= k + " + i);
+
+			AutomatonTransition at = ha.createTransition(prev, am);
+			at.guard = shareGuard ? sharedGuard
+					: FormulaParser.parseGuard("x >= k * " + i + " + 0");
+			at.reset.put("t", new ExpressionInterval("t * 1 + k"));
+
+			prev = am;
+		}
+
+		c.validate();
+
+		return c;
+	}
+
+	/**
+	 * Stateless modifiers on large automata run in parallel and give the same model as a
+	 * sequential traversal. Modifiers which change expressions in place fall back to a sequential
+	 * traversal if expressions are shared.
+	 */
+	@Test
+	public void testParallelExpressionModifier()
+	{
+		int oldThreshold = ExpressionModifier.PARALLEL_THRESHOLD;
+
+		try
+		{
+			for (boolean shareGuard : new boolean[] { false, true })
+			{
+				Configuration[] configs = new Configuration[2];
+
+				for (int i = 0; i < 2; ++i)
+				{
+					ExpressionModifier.PARALLEL_THRESHOLD = i == 0 ? Integer.MAX_VALUE : 0;
+
+					configs[i] = makeChainConfiguration(2000, shareGuard);
+					new SubstituteConstantsPass().runTransformationPass(configs[i], null);
+					new SimplifyExpressionsPass().runTransformationPass(configs[i], null);
+				}
+
+				Assert.assertEquals(configs[0].toString(), configs[1].toString());
+				Assert.assertTrue(configs[1].toString().contains("3998"));
+
+				// check which threads are used, on a new model since substitution copied the guards
+				final Set<Thread> threads = Collections
+						.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+				ExpressionModifier.modifyBaseComponent(
+						(BaseComponent) makeChainConfiguration(2000, shareGuard).root,
+						new ExpressionModifier()
+						{
+							@Override
+							protected Expression modifyExpression(Expression e)
+							{
+								threads.add(Thread.currentThread());
+
+								return SimplifyExpressionsPass.simplifyExpression(e);
+							}
+
+							@Override
+							public boolean isStateless()
+							{
+								return true;
+							}
+						});
+
+				Assert.assertEquals("shared guards run on the calling thread", shareGuard,
+						threads.contains(Thread.currentThread()));
+			}
+
+			// checking for shared expressions works on expressions too deep for recursion
+			ExpressionModifier.PARALLEL_THRESHOLD = 0;
+			BaseComponent ha = (BaseComponent) makeChainConfiguration(10, false).root;
+			Expression deep = new Variable("t");
+
+			for (int i = 0; i < 100000; ++i)
+				deep = new Operation(Operator.ADD, deep, new Constant(1));
+
+			ha.modes.get("m0").invariant = new Operation(Operator.LESSEQUAL, deep, new Constant(5));
+			final Set<Thread> threads = Collections
+					.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+			ExpressionModifier.modifyBaseComponent(ha, new ExpressionModifier()
+			{
+				@Override
+				protected Expression modifyExpression(Expression e)
+				{
+					threads.add(Thread.currentThread());
+
+					return e;
+				}
+
+				@Override
+				public boolean isStateless()
+				{
+					return true;
+				}
+			});
+
+			Assert.assertFalse("unshared deep expressions are modified in parallel",
+					threads.contains(Thread.currentThread()));
+		}
+		finally
+		{
+			ExpressionModifier.PARALLEL_THRESHOLD = oldThreshold;
+		}
+	}
+
+	/**
+	 * make a network with three identical instances of a controller which only uses the shared
+	 * variable t and the shared label 'go'
+	 */
+	private static Configuration makeSymmetricNetworkConfiguration()
+	{
+		NetworkComponent nc = new NetworkComponent();
+		nc.variables.add("t");
+		nc.labels.add("go");
+
+		for (int i = 1; i <= 3; ++i)
+		{
+			BaseComponent ha = new BaseComponent();
+			ha.variables.add("t");
+			ha.labels.add("go");
+
+			AutomatonMode idle = ha.createMode("idle", "t <= 5", "t' == 1");
+			AutomatonMode busy = ha.createMode("busy", "true", "t' == 1");
+			AutomatonMode done = ha.createMode("done", "t <= 10", "t' == 1");
+
+			ha.createTransition(idle, busy).guard = FormulaParser.parseGuard("t >= 1");
+			ha.createTransition(busy, idle).guard = FormulaParser.parseGuard("t >= 2");
+			ha.createTransition(busy, done).label = "go";
+			ha.createTransition(idle, idle).label = "go";
+			ha.createTransition(done, idle).label = "go";
+
+			for (AutomatonTransition at : ha.transitions)
+				if (at.guard == null)
+					at.guard = Constant.TRUE;
+
+			String name = "c" + i;
+			ComponentInstance ci = new ComponentInstance(nc, ha);
+			ci.varMapping.add(new ComponentMapping("t", "t"));
+			ci.labelMapping.add(new ComponentMapping("go", "go"));
+			nc.children.put(name, ci);
+			ha.instanceName = name;
+			ha.parent = nc;
+		}
+
+		Configuration c = new Configuration(nc);
+		c.settings.plotVariableNames[0] = "t";
+		c.settings.plotVariableNames[1] = "t";
+		c.init.put("idle.idle.idle", FormulaParser.parseInitialForbidden("t = 0"));
+		c.forbidden.put("done.idle.done", FormulaParser.parseInitialForbidden("t >= 9"));
+		c.forbidden.put("done.done.idle", FormulaParser.parseInitialForbidden("t >= 9"));
+
+		c.validate();
+
+		return c;
+	}
+
+	/**
+	 * Get the transitions as strings 'from -> to (label)', where the modes of the interchangeable
+	 * instances are sorted
+	 */
+	private static Collection<String> symmetricTransitions(BaseComponent ha)
+	{
+		final List<String> order = Arrays.asList("idle", "busy", "done");
+		TreeSet<String> rv = new TreeSet<String>();
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			String[] names = new String[] { at.from.name, at.to.name };
+
+			for (int i = 0; i < names.length; ++i)
+			{
+				List<String> parts = new ArrayList<String>(Arrays.asList(names[i].split("_")));
+
+				Collections.sort(parts, new Comparator<String>()
+				{
+					@Override
+					public int compare(String a, String b)
+					{
+						return order.indexOf(a) - order.indexOf(b);
+					}
+				});
+
+				names[i] = parts.toString();
+			}
+
+			rv.add(names[0] + " -> " + names[1] + " (" + at.label + ")");
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Symmetry-reduced flattening should have one mode per multiset of modes, and the same
+	 * transitions as the full product up to reordering the instances
+	 */
+	@Test
+	public void testFlattenSymmetry()
+	{
+		Configuration full = makeSymmetricNetworkConfiguration();
+		new FlattenAutomatonPass().runTransformationPass(full, "");
+		BaseComponent fullHa = (BaseComponent) full.root;
+
+		Configuration sym = makeSymmetricNetworkConfiguration();
+		new FlattenAutomatonPass().runTransformationPass(sym, "-symmetry");
+		BaseComponent symHa = (BaseComponent) sym.root;
+
+		Assert.assertEquals(27, fullHa.modes.size());
+		Assert.assertEquals(10, symHa.modes.size()); // multisets of size 3 from 3 modes
+		Assert.assertEquals(symmetricTransitions(fullHa), symmetricTransitions(symHa));
+
+		Assert.assertEquals("t <= 5.0 & t <= 10.0", symHa.modes.get("idle_done_done").invariant
+				.toDefaultString());
+		Assert.assertEquals("[idle_idle_idle]", sym.init.keySet().toString());
+		Assert.assertEquals("[idle_done_done]", sym.forbidden.keySet().toString());
+
+		// instances with their own variables are not interchangeable
+		Configuration local = makeSymmetricNetworkConfiguration();
+		NetworkComponent nc = (NetworkComponent) local.root;
+		nc.children.get("c1").varMapping.get(0).parentParam = "t1";
+		nc.variables.add("t1");
+		new FlattenAutomatonPass().runTransformationPass(local, "-symmetry");
+
+		Assert.assertEquals(3 * 6, ((BaseComponent) local.root).modes.size());
+	}
+
 	/**
 	 * Replicate a component instance
 	 */
@@ -1,11 +1,22 @@
 package com.verivital.hyst.junit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -40,6 +51,7 @@ import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AsyncWriter;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 
@@ -819,6 +831,313 @@ public class PrintersTest
 		Assert.assertTrue("second error condition exists", out.contains(cond2));
 	}
 
+	/**
+	 * Hylaa with -npz should write the matrices as binary side files, loaded from the script
+	 */
+	@Test
+	public void testHylaaPrintNpz() throws IOException
+	{
+		String path = UNIT_BASEDIR + "input_oscillator/input_oscillator";
+
+		SpaceExDocument sd = SpaceExImporter.importModels(path + ".cfg", path + ".xml");
+		Configuration c = ModelParserTest.flatten(sd);
+
+		File outFile = File.createTempFile("hyst_hylaa", ".py");
+		outFile.deleteOnExit();
+		File matrixDir = new File(outFile.getParentFile(),
+				outFile.getName().replace(".py", Hylaa2Printer.MATRIX_DIR_SUFFIX));
+
+		// a side file from an earlier run should be removed
+		Assert.assertTrue(matrixDir.mkdirs());
+		File staleFile = new File(matrixDir, "stale.npz");
+		Assert.assertTrue(staleFile.createNewFile());
+
+		ToolPrinter printer = new Hylaa2Printer();
+		printer.setOutputFile(outFile.getPath());
+		printer.print(c, "-npz", "model.xml");
+
+		String out = new String(Files.readAllBytes(outFile.toPath()), "UTF-8");
+
+		Assert.assertTrue("script loads side files", out.contains("load_npz"));
+		Assert.assertFalse("no dense dynamics list", out.contains("a_matrix = [ \\"));
+		Assert.assertTrue("matrix dir was created", matrixDir.isDirectory());
+
+		Assert.assertFalse("stale side file was deleted", staleFile.exists());
+
+		// every load call uses a different file
+		File[] sideFiles = matrixDir.listFiles();
+		Assert.assertTrue("side files were written", sideFiles.length > 0);
+		int numLoads = out.split("load_matrix\\('|load_vector\\('").length - 1;
+		Assert.assertEquals("one side file per load", numLoads, sideFiles.length);
+
+		for (File f : sideFiles)
+		{
+			f.deleteOnExit();
+			String name = f.getName();
+			byte[] bytes = Files.readAllBytes(f.toPath());
+
+			if (name.endsWith(".npy"))
+				Assert.assertEquals("npy magic", (byte) 0x93, bytes[0]);
+			else
+			{
+				Assert.assertTrue("only npy and npz files", name.endsWith(".npz"));
+				Assert.assertEquals("npz is a zip file", 'P', bytes[0]);
+				Assert.assertTrue("matrix loaded in script",
+						out.contains("load_matrix('" + name.replace(".npz", "") + "')"));
+			}
+		}
+
+		matrixDir.deleteOnExit();
+	}
+
+	/**
+	 * The -npz matrices read back from the side files should have the dynamics' shape and values
+	 */
+	@Test
+	public void testHylaaNpzMatrixValues() throws IOException
+	{
+		String path = UNIT_BASEDIR + "input_oscillator/input_oscillator";
+
+		SpaceExDocument sd = SpaceExImporter.importModels(path + ".cfg", path + ".xml");
+		Configuration c = ModelParserTest.flatten(sd);
+
+		File outFile = File.createTempFile("hyst_hylaa", ".py");
+		outFile.deleteOnExit();
+		File matrixDir = new File(outFile.getParentFile(),
+				outFile.getName().replace(".py", Hylaa2Printer.MATRIX_DIR_SUFFIX));
+
+		ToolPrinter printer = new Hylaa2Printer();
+		printer.setOutputFile(outFile.getPath());
+		printer.print(c, "-npz", "model.xml");
+
+		String out = new String(Files.readAllBytes(outFile.toPath()), "UTF-8");
+
+		for (File f : matrixDir.listFiles())
+			f.deleteOnExit();
+
+		matrixDir.deleteOnExit();
+
+		// x' == y + u1, y' == -x + u2
+		double[][] a = readNpzMatrix(new File(matrixDir, findLoadedName(out, "a_matrix") + ".npz"));
+		double[][] b = readNpzMatrix(new File(matrixDir, findLoadedName(out, "b_matrix") + ".npz"));
+
+		Assert.assertEquals(2, a.length);
+		Assert.assertArrayEquals(new double[] { 0, 1 }, a[0], 1e-12);
+		Assert.assertArrayEquals(new double[] { -1, 0 }, a[1], 1e-12);
+
+		Assert.assertEquals(2, b.length);
+		Assert.assertArrayEquals(new double[] { 1, 0 }, b[0], 1e-12);
+		Assert.assertArrayEquals(new double[] { 0, 1 }, b[1], 1e-12);
+	}
+
+	/**
+	 * Get the side file name loaded into a python variable, from a line like "a_matrix =
+	 * load_matrix('a_0')"
+	 */
+	private static String findLoadedName(String script, String var)
+	{
+		Matcher m = Pattern.compile(var + " = load_matrix\\('([^']*)'\\)").matcher(script);
+
+		Assert.assertTrue("script loads " + var, m.find());
+
+		return m.group(1);
+	}
+
+	/**
+	 * Read a csr matrix .npz file (as written by NumpyWriter) into a dense matrix
+	 */
+	private static double[][] readNpzMatrix(File f) throws IOException
+	{
+		ZipFile zip = new ZipFile(f);
+
+		try
+		{
+			String format = new String(readNpyData(zip, "format.npy").array(), "US-ASCII");
+			Assert.assertEquals("csr", format);
+
+			ByteBuffer shape = readNpyData(zip, "shape.npy");
+			int rows = (int) shape.getLong();
+			int cols = (int) shape.getLong();
+
+			ByteBuffer data = readNpyData(zip, "data.npy");
+			ByteBuffer indices = readNpyData(zip, "indices.npy");
+			ByteBuffer indptr = readNpyData(zip, "indptr.npy");
+
+			double[][] rv = new double[rows][cols];
+			int start = indptr.getInt();
+
+			for (int row = 0; row < rows; ++row)
+			{
+				int end = indptr.getInt();
+
+				for (int i = start; i < end; ++i)
+					rv[row][indices.getInt(4 * i)] = data.getDouble(8 * i);
+
+				start = end;
+			}
+
+			return rv;
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	/**
+	 * Get the data part (after the header) of a .npy entry in a zip file
+	 */
+	private static ByteBuffer readNpyData(ZipFile zip, String name) throws IOException
+	{
+		ZipEntry entry = zip.getEntry(name);
+		Assert.assertNotNull("npz has entry " + name, entry);
+
+		InputStream in = zip.getInputStream(entry);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+
+		for (int n = in.read(buf); n != -1; n = in.read(buf))
+			bytes.write(buf, 0, n);
+
+		in.close();
+
+		byte[] arr = bytes.toByteArray();
+		Assert.assertEquals("npy magic", (byte) 0x93, arr[0]);
+		int headerLen = (arr[8] & 0xff) | ((arr[9] & 0xff) << 8);
+		int offset = 10 + headerLen;
+
+		return ByteBuffer.wrap(Arrays.copyOfRange(arr, offset, arr.length))
+				.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * File output written on a background thread should match the regular file output
+	 */
+	@Test
+	public void testAsyncFileOutput() throws IOException
+	{
+		String path = UNIT_BASEDIR + "input_oscillator/input_oscillator";
+
+		SpaceExDocument sd = SpaceExImporter.importModels(path + ".cfg", path + ".xml");
+		Configuration c = ModelParserTest.flatten(sd);
+		String[] contents = new String[2];
+
+		for (int i = 0; i < 2; ++i)
+		{
+			File outFile = File.createTempFile("hyst_flowstar", ".model");
+			outFile.deleteOnExit();
+
+			ToolPrinter printer = new FlowstarPrinter();
+			printer.setOutputFile(outFile.getPath(), i == 1);
+			printer.print(c.copy(), "", "model.xml");
+
+			contents[i] = new String(Files.readAllBytes(outFile.toPath()));
+		}
+
+		Assert.assertTrue(contents[0].contains("hybrid reachability"));
+		Assert.assertEquals(contents[0], contents[1]);
+
+		// output larger than a single chunk
+		StringWriter sw = new StringWriter();
+		StringBuilder big = new StringBuilder();
+		AsyncWriter w = new AsyncWriter(sw);
+
+		for (int i = 0; i < 50000; ++i)
+		{
+			String line = "line " + i + "\n";
+			big.append(line);
+			w.write(line);
+
+			if (i == 1000)
+			{
+				w.flush();
+				Assert.assertEquals(big.toString(), sw.toString());
+			}
+		}
+
+		w.close();
+		Assert.assertEquals(big.toString(), sw.toString());
+	}
+
+	/**
+	 * If the AsyncWriter background thread stops, writing and flushing should fail rather than
+	 * block forever
+	 */
+	@Test(timeout = 30000)
+	public void testAsyncWriterStopped() throws IOException
+	{
+		// interrupting the background thread makes it stop after the first chunk
+		AsyncWriter w = new AsyncWriter(new StringWriter()
+		{
+			@Override
+			public void write(char[] cbuf, int off, int len)
+			{
+				super.write(cbuf, off, len);
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		char[] line = new char[1000];
+		Arrays.fill(line, 'x');
+
+		try
+		{
+			// more than the queue can hold
+			for (int i = 0; i < 10000; ++i)
+				w.write(line);
+
+			w.flush();
+			Assert.fail("expected IOException after the writer thread stopped");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Flow* output should be the same whether modes and jumps are printed on one thread or many
+	 */
+	@Test
+	public void testFlowstarThreadedOutput()
+	{
+		final int NUM_MODES = 300;
+		String[][] dynamics = { { "x", "1", "0" }, { "t", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode prev = ha.modes.get("on");
+
+		for (int i = 0; i < NUM_MODES; ++i)
+		{
+			AutomatonMode am = ha.createMode("m" + i);
+			am.flowDynamics.put("x", new ExpressionInterval("x * " + (i % 7) + " + t"));
+			am.flowDynamics.put("t", new ExpressionInterval(1));
+			am.invariant = FormulaParser.parseInvariant("t <= " + (i + 1) + ".5 & x >= -" + i);
+
+			AutomatonTransition at = ha.createTransition(prev, am);
+			at.guard = FormulaParser.parseGuard("t >= " + i);
+			at.reset.put("x", new ExpressionInterval("x / " + (i + 2)));
+			prev = am;
+		}
+
+		c.validate();
+
+		String[] outputs = new String[2];
+		String[] params = { "-threads 1", "-threads 4" };
+
+		for (int i = 0; i < 2; ++i)
+		{
+			ToolPrinter printer = new FlowstarPrinter();
+			printer.setOutputString();
+			printer.print(c.copy(), params[i], "model.xml");
+
+			outputs[i] = printer.outputString.toString();
+		}
+
+		Assert.assertTrue(outputs[0].contains("m" + (NUM_MODES - 2) + " -> m" + (NUM_MODES - 1)));
+		Assert.assertEquals(outputs[0], outputs[1]);
+	}
+
 	/**
 	 * Hylaa should be able to print the motor w/input model
 	 */
@@ -873,7 +1192,6 @@ public class PrintersTest
 	public void testFlowstarGerman()
 	{
 		Locale.setDefault(new Locale("de", "DE"));
-		ToolPrinter.initDecimalPrinter();
 
 		String path = UNIT_BASEDIR + "simple_inputs/simple_inputs";
 
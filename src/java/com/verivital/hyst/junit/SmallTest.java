@@ -1,7 +1,11 @@
 package com.verivital.hyst.junit;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
@@ -10,6 +14,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.verivital.hyst.generators.ModelGenerator;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
@@ -18,10 +23,18 @@ import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.ComponentDescriptor;
+import com.verivital.hyst.main.ComponentRegistry;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
+import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass.IntervalTerm;
@@ -31,6 +44,11 @@ import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.ConversionMonitor;
+import com.verivital.hyst.util.DynamicsUtil;
+import com.verivital.hyst.util.FlowAnalysis;
+import com.verivital.hyst.util.IntervalContractor;
+import com.verivital.hyst.util.LinearForm;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
@@ -366,6 +384,58 @@ public class SmallTest
 		}
 	}
 
+	/**
+	 * Interval constraint propagation should bound variables through multivariate and nonlinear
+	 * constraints
+	 */
+	@Test
+	public void testIntervalContractorBounds()
+	{
+		Expression e = FormulaParser.parseInvariant("0 <= x & x <= y & y <= 1 & z * z <= 4");
+		TreeMap<String, Interval> bounds = IntervalContractor.getVariableBounds(e);
+
+		Assert.assertEquals(new Interval(0, 1), bounds.get("x"));
+		Assert.assertEquals(new Interval(0, 1), bounds.get("y"));
+		Assert.assertEquals(new Interval(-2, 2), bounds.get("z"));
+
+		// open sides use Double.MAX_VALUE, like RangeExtractor
+		bounds = IntervalContractor.getVariableBounds(FormulaParser.parseInvariant("2 * x >= 3"));
+		Assert.assertEquals(new Interval(1.5, Double.MAX_VALUE), bounds.get("x"));
+
+		// disjunctions use the hull of the branches
+		e = FormulaParser.parseInvariant("(x <= 1 & x >= 0 | x >= 5 & x <= 6) & y >= 0");
+		bounds = IntervalContractor.getVariableBounds(e);
+		Assert.assertEquals(new Interval(0, 6), bounds.get("x"));
+		Assert.assertEquals(new Interval(0, Double.MAX_VALUE), bounds.get("y"));
+	}
+
+	/**
+	 * Interval constraint propagation should detect unsatisfiable conjunctions which the range
+	 * extractor doesn't support
+	 */
+	@Test
+	public void testIntervalContractorUnsat()
+	{
+		String[] unsat = { "x + y <= 1 & x >= 2 & y >= 0", "x * x <= -1", "x == 5 & x == 6",
+				"x - y >= 1 & y - x >= 1 & x >= 0 & x <= 10", "exp(x) <= 0",
+				"x >= 1 & y >= 1 & x * y <= 0.5", "(x <= 0 | x >= 10) & x >= 1 & x <= 2",
+				"sqrt(x) >= 3 & x <= 8" };
+
+		for (String s : unsat)
+			Assert.assertTrue(s, IntervalContractor.isUnsat(FormulaParser.parseInvariant(s)));
+
+		// satisfiable, or only unsatisfiable because of strict or != comparisons
+		String[] notProven = { "x + y <= 1 & x >= 0 & y >= 0", "x * x <= 1", "x >= 1 & x <= 1",
+				"x != 5 & x >= 5 & x <= 5", "sin(x) >= 0.5 & x >= 0", "x > 1 & x < 1" };
+
+		for (String s : notProven)
+			Assert.assertFalse(s, IntervalContractor.isUnsat(FormulaParser.parseInvariant(s)));
+
+		// several constraints are conjoined
+		Assert.assertTrue(IntervalContractor.isUnsat(FormulaParser.parseGuard("x + y >= 3"),
+				FormulaParser.parseInvariant("x <= 1 & y <= 1")));
+	}
+
 	/**
 	 * Test the range extractor logic with a single variable
 	 */
@@ -771,6 +841,54 @@ public class SmallTest
 			Assert.fail("expression was not detected as linear: " + exp2);
 	}
 
+	/**
+	 * Linear forms collect the coefficients of an affine expression in one pass
+	 */
+	@Test
+	public void testLinearForm()
+	{
+		double TOL = 1e-9;
+		Expression e = FormulaParser.parseValue("2 * (x - 3 * y) + x / 4 - -y + sin(0) + 2^3");
+		LinearForm lf = LinearForm.fromExpression(e);
+
+		Assert.assertEquals(2.25, lf.getCoefficient("x"), TOL);
+		Assert.assertEquals(-5, lf.getCoefficient("y"), TOL);
+		Assert.assertEquals(0, lf.getCoefficient("z"), TOL);
+		Assert.assertEquals(8, lf.constant, TOL);
+		Assert.assertEquals(Arrays.asList(-5.0, 0.0, 2.25),
+				lf.getVector(Arrays.asList("y", "z", "x")));
+
+		// cancelled terms are removed
+		lf = LinearForm.fromExpression(FormulaParser.parseValue("x + y - x"));
+		Assert.assertEquals(Arrays.asList("y"), new ArrayList<String>(lf.coefficients.keySet()));
+
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("x", "y"));
+		Assert.assertEquals(Arrays.asList(1.0, -1.0),
+				DynamicsUtil.extractLinearVector(FormulaParser.parseValue("x - y + 5"), vars));
+		Assert.assertEquals(5.0,
+				DynamicsUtil.extractLinearValue(FormulaParser.parseValue("x - y + 5")), TOL);
+
+		String[] nonlinear = { "x * y", "2 / x", "sin(x)", "x^2", "x < 2" };
+
+		for (String s : nonlinear)
+		{
+			Expression n = s.contains("<") ? FormulaParser.parseGuard(s)
+					: FormulaParser.parseValue(s);
+
+			Assert.assertFalse("detected as linear: " + s, Classification.isLinearExpression(n));
+
+			try
+			{
+				LinearForm.fromExpression(n);
+				Assert.fail("linear form was extracted for " + s);
+			}
+			catch (AutomatonExportException ex)
+			{
+				// expected
+			}
+		}
+	}
+
 	/*
 	 * @Test public void testFlowstarLinearDetection() { String exp = "(1.0 - x * x) * y - x";
 	 * 
@@ -790,6 +908,248 @@ public class SmallTest
 		Assert.assertEquals(Hyst.runWithArguments(args), Hyst.ExitCode.SUCCESS.ordinal());
 	}
 
+	/**
+	 * A conversion reports its stages to the ConversionMonitor, and stops at the next checkpoint
+	 * once cancelled
+	 */
+	@Test
+	public void testConversionMonitor() throws IOException
+	{
+		String path = PassTests.UNIT_BASEDIR + "controller_heater/controller_heater";
+		File out = File.createTempFile("hyst_monitor", ".xml");
+		out.deleteOnExit();
+
+		String[] args = { "-i", path + ".xml", path + ".cfg", "-o", out.getPath(), "-tool",
+				"spaceex", "", "-passes", "flatten", "", "simplify", "" };
+
+		for (final boolean cancel : new boolean[] { false, true })
+		{
+			final ArrayList<String> stages = new ArrayList<String>();
+
+			ConversionMonitor.set(new ConversionMonitor()
+			{
+				@Override
+				public void stageStarted(String description, int stage, int numStages)
+				{
+					stages.add(stage + "/" + numStages);
+
+					// cancel during the first pass
+					if (cancel && stage == 1)
+						cancel();
+				}
+			});
+
+			try
+			{
+				int code = Hyst.runWithArguments(args);
+
+				if (cancel)
+				{
+					Assert.assertEquals(Hyst.ExitCode.CANCELLED.ordinal(), code);
+					Assert.assertEquals(Arrays.asList("0/4", "1/4"), stages);
+				}
+				else
+				{
+					Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(), code);
+					Assert.assertEquals(Arrays.asList("0/4", "1/4", "2/4", "3/4"), stages);
+				}
+			}
+			finally
+			{
+				ConversionMonitor.set(null);
+			}
+		}
+
+		new File(out.getPath().replace(".xml", ".cfg")).delete();
+	}
+
+	/**
+	 * Lazy log messages are only built if they're printed
+	 */
+	@Test
+	public void testLazyLogMessage()
+	{
+		final int[] built = { 0 };
+		LogMessage message = new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				++built[0];
+				return "lazy log message";
+			}
+		};
+
+		boolean verbose = Hyst.verboseMode;
+		boolean debug = Hyst.debugMode;
+
+		try
+		{
+			Hyst.verboseMode = Hyst.debugMode = false;
+			Hyst.log(message);
+			Hyst.logDebug(message);
+			Assert.assertEquals("message built with logging off", 0, built[0]);
+
+			Hyst.verboseMode = true;
+			Hyst.logDebug(message);
+			Assert.assertEquals("debug message built in verbose mode", 0, built[0]);
+			Hyst.log(message);
+			Assert.assertEquals(1, built[0]);
+
+			Hyst.debugMode = true;
+			Hyst.logDebug(message);
+			Assert.assertEquals(2, built[0]);
+		}
+		finally
+		{
+			Hyst.verboseMode = verbose;
+			Hyst.debugMode = debug;
+		}
+
+		Assert.assertEquals("x = 1 in mode null", LogMessage.of("x = ", 1, " in mode ", null).get());
+	}
+
+	/**
+	 * Parse an expression with both parsers. The direct parser's result is compared to the ANTLR
+	 * result, and errors must have the same message.
+	 */
+	private static String parseBothWays(String part, String text)
+	{
+		String[] rv = new String[2];
+		boolean direct = FormulaParser.useDirectParser;
+		boolean validate = FormulaParser.validateDirectParser;
+
+		try
+		{
+			for (int i = 0; i < 2; ++i)
+			{
+				FormulaParser.useDirectParser = i == 0;
+				FormulaParser.validateDirectParser = i == 0;
+
+				try
+				{
+					Expression e;
+
+					if (part.equals("flow"))
+						e = FormulaParser.parseFlow(text);
+					else if (part.equals("reset"))
+						e = FormulaParser.parseReset(text);
+					else if (part.equals("guard"))
+						e = FormulaParser.parseGuard(text);
+					else if (part.equals("initial/forbidden"))
+						e = FormulaParser.parseInitialForbidden(text);
+					else
+						e = FormulaParser.parseValue(text);
+
+					rv[i] = e == null ? "null" : e.toDefaultString();
+				}
+				catch (AutomatonExportException ex)
+				{
+					rv[i] = "error: " + ex.getMessage();
+				}
+			}
+		}
+		finally
+		{
+			FormulaParser.useDirectParser = direct;
+			FormulaParser.validateDirectParser = validate;
+		}
+
+		Assert.assertEquals("parse result of " + part + " '" + text + "'", rv[1], rv[0]);
+
+		return rv[0];
+	}
+
+	/**
+	 * The direct expression parser should produce the same expressions (or errors) as the ANTLR
+	 * parser
+	 */
+	@Test
+	public void testDirectParser()
+	{
+		String[] values = { "2 * x + sin(y)", "1 - 2 - 3", "-2^2", "2^3^-x", "--x", "- - 2",
+				"-(-(x))", "a.b.c'", "1.5e-3 * .5E+2", "loc()", "loc(a.b)", "[1, 2; 3, 4]",
+				"[1:0.5:3]", "reshape([1, 2, 3, 4], 2, 2)", "lut([t], [1, 2, 3], [0, 1, 2])",
+				"COS(x) / ln(y) * exp(z)", "sqrt(tan(1))", "", "1 +", "2x", "x $ 1", "foo(1)",
+				"sin(1, 2)", "1 + 2 )", "truex", "[1, 2; 3]", "x." };
+
+		for (String v : values)
+		{
+			parseBothWays("number (addsub)", v);
+		}
+
+		String[] conditions = { "x >= 1 & y < 2 | z == 3 | true", "a < b <= c != d",
+				"(x + 1) >= 2 & (y >= 1 | !(z = 2))", "((x <= 1)) && ((y) > 2) || false",
+				"x >= 1 & y <= 2 & z = 3 & w > 4 & v < 5", "", "(x)", "x >= ", "(x >= 1",
+				"x >= 1)", "true = 1", "loc(a) = on & x.y = 2", "x' >= 1", "!x" };
+
+		for (String c : conditions)
+		{
+			parseBothWays("guard", c);
+			parseBothWays("initial/forbidden", c);
+		}
+
+		String[] flows = { "x' == 2 * x + y & y' == y", "x = 1 && y' = -x", "false", "",
+				"false & x' = 1", "x' := 1", "x' = 1 &", "x >= 1" };
+
+		for (String f : flows)
+			parseBothWays("flow", f);
+
+		String[] resets = { "x := x + y & y := 0", "x' := 1", "x = 1 & y <= 2 <= z", "",
+				"x := 1 | y := 2", "x := loc()" };
+
+		for (String r : resets)
+			parseBothWays("reset", r);
+
+		Assert.assertEquals("a < b & b <= c & -2.0 ^ x = 1.0", parseBothWays("guard", "a < b <= c & -2^x = 1"));
+	}
+
+	/**
+	 * Every expression in the unit test models should be parsed the same way by the direct parser
+	 * and the ANTLR parser
+	 */
+	@Test
+	public void testDirectParserModels()
+	{
+		boolean validate = FormulaParser.validateDirectParser;
+		FormulaParser.validateDirectParser = true;
+		int count = 0;
+
+		try
+		{
+			File dir = new File(PassTests.UNIT_BASEDIR);
+
+			if (!dir.exists())
+				dir = new File("src/" + PassTests.UNIT_BASEDIR);
+
+			for (File modelDir : dir.listFiles())
+			{
+				File xml = new File(modelDir, modelDir.getName() + ".xml");
+				File cfg = new File(modelDir, modelDir.getName() + ".cfg");
+
+				if (!xml.exists() || !cfg.exists())
+					continue;
+
+				try
+				{
+					ModelParserTest.flatten(
+							SpaceExImporter.importModels(cfg.getPath(), xml.getPath()));
+					++count;
+				}
+				catch (AutomatonExportException e)
+				{
+					// some unit test models are invalid on purpose
+				}
+			}
+		}
+		finally
+		{
+			FormulaParser.validateDirectParser = validate;
+		}
+
+		Assert.assertTrue("models were parsed", count > 10);
+	}
+
 	@Test
 	public void testSubstituteExpression()
 	{
@@ -1007,6 +1367,187 @@ public class SmallTest
 		}
 	}
 
+	/**
+	 * Expression printers append to a caller-supplied StringBuilder
+	 */
+	@Test
+	public void testPrintToStringBuilder()
+	{
+		Expression e = FormulaParser.parseInvariant("x + 2 * (y - z) >= -w & t <= 5");
+		DefaultExpressionPrinter printer = DefaultExpressionPrinter.instance;
+
+		StringBuilder sb = new StringBuilder("inv: ");
+		printer.print(e, sb);
+
+		Assert.assertEquals("inv: " + printer.print(e), sb.toString());
+		Assert.assertEquals("x + 2.0 * (y - z) >= -w & t <= 5.0", printer.print(e));
+
+		Operation o = FormulaParser.parseValue("x + y * 2").asOperation();
+		Assert.assertEquals("x + y * 2.0", o.toStringInline());
+		Assert.assertEquals("(+ x y * 2.0)", o.toStringPrefix());
+
+		// a long chain of additions is printed in a single pass
+		Expression sum = new Variable("x0");
+
+		for (int i = 1; i < 1000; ++i)
+			sum = new Operation(Operator.ADD, sum, new Variable("x" + i));
+
+		String str = printer.print(sum);
+		Assert.assertTrue(str.startsWith("x0 + x1 + x2"));
+		Assert.assertTrue(str.endsWith("x998 + x999"));
+	}
+
+	/**
+	 * Copies share immutable variables and constants, but not operations, and copying an automaton
+	 * keeps transitions linked to the copied modes
+	 */
+	@Test
+	public void testCopySharesLeaves()
+	{
+		Operation o = FormulaParser.parseValue("x + 2 * y").asOperation();
+		Operation copy = o.copy();
+
+		Assert.assertNotSame(o, copy);
+		Assert.assertNotSame(o.getRight(), copy.getRight());
+		Assert.assertSame(o.getLeft(), copy.getLeft());
+		Assert.assertSame(o.getRight().asOperation().getLeft(),
+				copy.getRight().asOperation().getLeft());
+
+		// shared leaves don't point to either copy, but operations know their own parent
+		Assert.assertNull(copy.getLeft().getParent());
+		Assert.assertSame(copy, copy.getRight().getParent());
+
+		// changing the copy doesn't change the original
+		copy.children.set(0, new Variable("z"));
+		Assert.assertEquals("x + 2.0 * y", o.toDefaultString());
+
+		String[][] dynamics = { { "x", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode off = ha.createMode("off", new ExpressionInterval(0));
+		off.invariant = Constant.TRUE;
+		ha.createTransition(ha.modes.get("on"), off).guard = FormulaParser.parseGuard("x >= 1");
+		c.validate();
+
+		BaseComponent haCopy = (BaseComponent) c.copy().root;
+		AutomatonTransition at = haCopy.transitions.get(0);
+
+		Assert.assertSame(haCopy.modes.get("on"), at.from);
+		Assert.assertSame(haCopy.modes.get("off"), at.to);
+	}
+
+	/**
+	 * The flow analysis of a mode is cached until the flows change
+	 */
+	@Test
+	public void testFlowAnalysis()
+	{
+		String[][] dynamics = { { "x", "2 * y - x" }, { "y", "-x + 1" }, { "t", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		AutomatonMode am = ((BaseComponent) c.root).modes.get("on");
+
+		FlowAnalysis fa = FlowAnalysis.of(am);
+		Assert.assertSame(fa, FlowAnalysis.of(am));
+		Assert.assertTrue(fa.isAffine());
+		Assert.assertFalse(fa.isLinear());
+		Assert.assertFalse(fa.isZero());
+		Assert.assertFalse(fa.hasNonlinearOps());
+		Assert.assertEquals(2.0, fa.getLinearForm("x").getCoefficient("y"), 1e-9);
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("x", "y")),
+				fa.getDependencies("x"));
+		Assert.assertEquals(0, fa.getOps("t"));
+
+		// replacing a flow is detected
+		am.flowDynamics.put("y", new ExpressionInterval("sin(x)"));
+		fa = FlowAnalysis.of(am);
+		Assert.assertFalse(fa.isAffine());
+		Assert.assertTrue(fa.hasNonlinearOps());
+		Assert.assertEquals(AutomatonUtil.OPS_NONLINEAR, fa.getOps("y"));
+
+		try
+		{
+			fa.getLinearForm("y");
+			Assert.fail("linear form was extracted for nonlinear flow");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+
+		// in-place changes need explicit invalidation
+		Operation o = am.flowDynamics.get("y").getExpression().asOperation();
+		o.op = Operator.NEGATIVE;
+		Assert.assertSame(fa, FlowAnalysis.of(am));
+		FlowAnalysis.invalidate(am);
+		Assert.assertTrue(FlowAnalysis.of(am).isAffine());
+
+		// passes invalidate the cache
+		fa = FlowAnalysis.of(am);
+		new SimplifyExpressionsPass().runVanillaPass(c, "");
+		Assert.assertNotSame(fa, FlowAnalysis.of(am));
+
+		// so do fused rewrite passes
+		fa = FlowAnalysis.of(am);
+		TransformationPass.runFusedRewritePasses(c,
+				Arrays.<TransformationPass> asList(new SimplifyExpressionsPass()),
+				Arrays.asList(""));
+		Assert.assertNotSame(fa, FlowAnalysis.of(am));
+	}
+
+	/**
+	 * Long left-nested sums are as deep as they are long, which shouldn't overflow the stack when
+	 * parsing, copying, printing, simplifying or evaluating them
+	 */
+	@Test
+	public void testDeepExpressions()
+	{
+		final int NUM_TERMS = 50000;
+		StringBuilder text = new StringBuilder("x0");
+
+		for (int i = 1; i < NUM_TERMS; ++i)
+			text.append(" + x" + i);
+
+		Expression sum = FormulaParser.parseValue(text.toString());
+		Assert.assertEquals(text.toString(), sum.copy().toDefaultString());
+
+		Map<String, Interval> ranges = new HashMap<String, Interval>();
+		Map<String, Expression> derivatives = new HashMap<String, Expression>();
+
+		for (int i = 0; i < NUM_TERMS; ++i)
+		{
+			ranges.put("x" + i, new Interval(0, 1));
+			derivatives.put("x" + i, new Constant(1));
+		}
+
+		Assert.assertEquals(NUM_TERMS, AutomatonUtil.getVariablesInExpression(sum).size());
+		Assert.assertEquals(AutomatonUtil.OPS_LINEAR, AutomatonUtil.classifyExpressionOps(sum));
+		Assert.assertEquals(new Interval(0, NUM_TERMS), Interval.intervalEvaluate(sum, ranges));
+
+		Expression der = AutomatonUtil.derivativeOf(sum, derivatives);
+		Expression simple = SimplifyExpressionsPass.simplifyExpression(der);
+		Assert.assertEquals(NUM_TERMS, ((Constant) simple).getVal(), 1e-9);
+
+		// balanced parsing produces shallow trees
+		FormulaParser.balanceSums = true;
+
+		try
+		{
+			Operation o = FormulaParser.parseValue("a + b + c + d").asOperation();
+			Assert.assertEquals("a + b", o.getLeft().toDefaultString());
+			Assert.assertEquals("c + d", o.getRight().toDefaultString());
+
+			o = FormulaParser.parseValue("x * (a + b + c) - 2 * 3 * 4 * 5").asOperation();
+			Assert.assertEquals(Operator.SUBTRACT, o.op);
+			Assert.assertEquals("b + c",
+					o.getLeft().asOperation().getRight().asOperation().getRight().toDefaultString());
+			Assert.assertEquals("4.0 * 5.0", o.getRight().asOperation().getRight().toDefaultString());
+		}
+		finally
+		{
+			FormulaParser.balanceSums = false;
+		}
+	}
+
 	@Test
 	public void testParseDoubleNegative()
 	{
@@ -1017,6 +1558,46 @@ public class SmallTest
 		Assert.assertNotEquals(e, null);
 	}
 
+	/**
+	 * The registry descriptors must match the components they create
+	 */
+	@Test
+	public void testComponentRegistry()
+	{
+		ComponentRegistry reg = ComponentRegistry.getInstance();
+
+		Assert.assertTrue(reg.getPrinters().size() > 0);
+		Assert.assertTrue(reg.getPasses().size() > 0);
+		Assert.assertTrue(reg.getGenerators().size() > 0);
+
+		for (ComponentDescriptor<ToolPrinter> d : reg.getPrinters())
+		{
+			ToolPrinter tp = d.create();
+			Assert.assertEquals(d.flag, tp.getCommandLineFlag());
+			Assert.assertEquals(d.name, tp.getToolName());
+		}
+
+		for (ComponentDescriptor<TransformationPass> d : reg.getPasses())
+		{
+			TransformationPass tp = d.create();
+			Assert.assertEquals(d.flag, tp.getCommandLineFlag());
+			Assert.assertEquals(d.name, tp.getName());
+
+			// each call creates a fresh instance
+			Assert.assertNotSame(tp, d.create());
+		}
+
+		for (ComponentDescriptor<ModelGenerator> d : reg.getGenerators())
+		{
+			ModelGenerator mg = d.create();
+			Assert.assertEquals(d.flag, mg.getCommandLineFlag());
+			Assert.assertEquals(d.name, mg.getName());
+		}
+
+		Assert.assertNotNull(ComponentRegistry.find(reg.getPasses(), "SIMPLIFY"));
+		Assert.assertNull(ComponentRegistry.find(reg.getPasses(), "no_such_pass"));
+	}
+
 	/*
 	 * @Test public void testExtractDynamicsMatrixA() { String test = "-100 * x - 4 * v - 9.81";
 	 * 
@@ -0,0 +1,124 @@
+package com.verivital.hyst.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.verivital.hyst.generators.ModelGenerator;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * The printers, passes and generators which are part of Hyst. Classes are referred to by name, so
+ * that they aren't loaded until they're used.
+ */
+public class BuiltinComponentProvider implements ComponentProvider
+{
+	private static final String PRINTERS = "com.verivital.hyst.printers.";
+	private static final String BASIC = "com.verivital.hyst.passes.basic.";
+	private static final String COMPLEX = "com.verivital.hyst.passes.complex.";
+	private static final String GENERATORS = "com.verivital.hyst.generators.";
+
+	// list of supported tool printers (add new ones here)
+	@Override
+	public List<ComponentDescriptor<ToolPrinter>> getPrinters()
+	{
+		List<ComponentDescriptor<ToolPrinter>> rv;
+		rv = new ArrayList<ComponentDescriptor<ToolPrinter>>();
+
+		rv.add(printer("flowstar", "Flow*", PRINTERS + "FlowstarPrinter"));
+		rv.add(printer("dreach", "dReach", PRINTERS + "DReachPrinter"));
+		rv.add(printer("hycreate", "HyCreate2", PRINTERS + "hycreate2.HyCreate2Printer"));
+		rv.add(printer("hycomp", "HyComp", PRINTERS + "HyCompPrinter"));
+		rv.add(printer("qbmc", "Python QBMC", PRINTERS + "PythonQBMCPrinter"));
+		rv.add(printer("spaceex", "SpaceEx", PRINTERS + "SpaceExPrinter"));
+		rv.add(printer("stateflow", "Stateflow_converter", PRINTERS + "SimulinkStateflowPrinter"));
+		rv.add(printer("pysim", "PySim", PRINTERS + "PySimPrinter"));
+		rv.add(printer("hylaa", "Hylaa2", PRINTERS + "Hylaa2Printer"));
+
+		return rv;
+	}
+
+	// list of supported model transformation passes (add new ones here)
+	@Override
+	public List<ComponentDescriptor<TransformationPass>> getPasses()
+	{
+		List<ComponentDescriptor<TransformationPass>> rv;
+		rv = new ArrayList<ComponentDescriptor<TransformationPass>>();
+
+		rv.add(pass("pass_identity", "Add Identity Resets Pass", BASIC + "AddIdentityResetPass"));
+		rv.add(pass("pi", "Pseudo-Invariant at Point Pass", COMPLEX + "pi.PseudoInvariantPass"));
+		rv.add(pass("pi_sim", "Pseudo-Invariant Simulation Pass",
+				COMPLEX + "pi.PseudoInvariantSimulatePass"));
+		rv.add(pass("pi_init", "Pseudo-Invariant Near Initial States Pass",
+				COMPLEX + "pi.PseudoInvariantInitPass"));
+		rv.add(pass("scale_time", "Scale Time Pass", BASIC + "TimeScalePass"));
+		rv.add(pass("sub_constants", "Substitute Named Constants for Values Pass",
+				BASIC + "SubstituteConstantsPass"));
+		rv.add(pass("simplify", "Simplify Expressions Pass", BASIC + "SimplifyExpressionsPass"));
+		rv.add(pass("split_disjunctions", "Split Guards with Disjunctions",
+				BASIC + "SplitDisjunctionGuardsPass"));
+		rv.add(pass("remove_unsat", "Remove Unsatisfiable Modes Pass",
+				BASIC + "RemoveSimpleUnsatInvariantsPass"));
+		rv.add(pass("shorten", "Shorten Mode Names Pass", BASIC + "ShortenModeNamesPass"));
+		rv.add(pass("continuization", "Continuization Pass", COMPLEX + "ContinuizationPass"));
+		rv.add(pass("hybridizemt", "Mixed-Triggered Hybridization Pass",
+				COMPLEX + "hybridize.HybridizeMixedTriggeredPass"));
+		rv.add(pass("hybridizemtraw", "Raw Hybridization Mixed-triggered pass",
+				COMPLEX + "hybridize.HybridizeMTRawPass"));
+		rv.add(pass("flatten", "Flatten Hybrid Automaton Pass", COMPLEX + "FlattenAutomatonPass"));
+		rv.add(pass("order_reduction", "Order Reduction (decrease dimensionality) Pass",
+				COMPLEX + "OrderReductionPass"));
+		rv.add(pass("convertluts", "Convert Look-Up-Tables Pass", COMPLEX + "ConvertLutFlowsPass"));
+		rv.add(pass("copy", "Copy Base Component Instance Pass", BASIC + "CopyInstancePass"));
+		rv.add(pass("convert_havoc_flows", "Convert Havoc Flows Pass",
+				BASIC + "ConvertHavocFlows"));
+		rv.add(pass("coi", "Cone of Influence Reduction Pass", BASIC + "ConeOfInfluencePass"));
+		rv.add(pass("merge_modes", "Merge Equivalent Modes Pass",
+				BASIC + "MergeEquivalentModesPass"));
+		rv.add(pass("eliminate_urgent", "Eliminate Urgent Modes Pass",
+				BASIC + "EliminateUrgentModesPass"));
+
+		return rv;
+	}
+
+	// list of supported model generators (add new ones here)
+	@Override
+	public List<ComponentDescriptor<ModelGenerator>> getGenerators()
+	{
+		List<ComponentDescriptor<ModelGenerator>> rv;
+		rv = new ArrayList<ComponentDescriptor<ModelGenerator>>();
+
+		rv.add(generator("integrator_chain", "Chain of Integrators [Livingston16]",
+				GENERATORS + "IntegralChainGenerator"));
+		rv.add(generator("nav", "Navigation [Fehnker06]", GENERATORS + "NavigationGenerator"));
+		rv.add(generator("named_nav", "Standard-Instance Navigation [Fehnker06]",
+				GENERATORS + "NamedNavigationGenerator"));
+		rv.add(generator("oscillator", "Switched Oscillator",
+				GENERATORS + "SwitchedOscillatorGenerator"));
+		rv.add(generator("build", "Build Flat Automaton Generator", GENERATORS + "BuildGenerator"));
+		rv.add(generator("drivetrain", "Drivetrain with Rotating Masses [Althoff12]",
+				GENERATORS + "DrivetrainGenerator"));
+
+		return rv;
+	}
+
+	private static ComponentDescriptor<ToolPrinter> printer(String flag, String name,
+			String className)
+	{
+		return new ComponentDescriptor<ToolPrinter>(ToolPrinter.class, flag, name, className);
+	}
+
+	private static ComponentDescriptor<TransformationPass> pass(String flag, String name,
+			String className)
+	{
+		return new ComponentDescriptor<TransformationPass>(TransformationPass.class, flag, name,
+				className);
+	}
+
+	private static ComponentDescriptor<ModelGenerator> generator(String flag, String name,
+			String className)
+	{
+		return new ComponentDescriptor<ModelGenerator>(ModelGenerator.class, flag, name,
+				className);
+	}
+}
@@ -0,0 +1,99 @@
+package com.verivital.hyst.main;
+
+import java.lang.reflect.InvocationTargetException;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * A lightweight description of a tool printer, transformation pass or model generator. The
+ * component's class is only loaded, and an instance only created, when create() is called, so
+ * listing the available components (for example, to find the one selected on the command line)
+ * doesn't pay for initializing all of them.
+ *
+ * The flag and name must match what the component's getCommandLineFlag() and getName() (or
+ * getToolName() for printers) return.
+ *
+ * @param <T>
+ *            the component type (ToolPrinter, TransformationPass or ModelGenerator)
+ */
+public class ComponentDescriptor<T>
+{
+	public final Class<T> type;
+	public final String flag;
+	public final String name;
+	public final String className;
+
+	/**
+	 * Describe a component
+	 * 
+	 * @param type
+	 *            the base class, like TransformationPass.class
+	 * @param flag
+	 *            the command-line flag, like "simplify"
+	 * @param name
+	 *            the human-readable name
+	 * @param className
+	 *            the fully-qualified name of the class, which must have a public no-argument
+	 *            constructor
+	 */
+	public ComponentDescriptor(Class<T> type, String flag, String name, String className)
+	{
+		if (flag.startsWith("-"))
+			throw new AutomatonExportException(
+					"component's command-line flag shouldn't start with a hyphen: " + flag);
+
+		this.type = type;
+		this.flag = flag;
+		this.name = name;
+		this.className = className;
+	}
+
+	/**
+	 * Create a new instance of the component. Each call returns a fresh instance, since the same
+	 * component may be used several times with different parameters.
+	 */
+	public T create()
+	{
+		Exception cause = null;
+
+		try
+		{
+			Class<? extends T> cl = Class.forName(className).asSubclass(type);
+
+			return cl.getConstructor().newInstance();
+		}
+		catch (ClassNotFoundException e)
+		{
+			cause = e;
+		}
+		catch (ClassCastException e)
+		{
+			cause = e;
+		}
+		catch (NoSuchMethodException e)
+		{
+			cause = e;
+		}
+		catch (InstantiationException e)
+		{
+			cause = e;
+		}
+		catch (IllegalAccessException e)
+		{
+			cause = e;
+		}
+		catch (InvocationTargetException e)
+		{
+			cause = e;
+		}
+
+		throw new AutomatonExportException("Error instantiating " + type.getSimpleName() + " '"
+				+ flag + "' (" + className + ")", cause);
+	}
+
+	@Override
+	public String toString()
+	{
+		return flag + " (" + className + ")";
+	}
+}
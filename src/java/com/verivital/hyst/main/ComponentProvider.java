@@ -0,0 +1,22 @@
+package com.verivital.hyst.main;
+
+import java.util.List;
+
+import com.verivital.hyst.generators.ModelGenerator;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * A source of Hyst components. Implementations are discovered with java.util.ServiceLoader, so a
+ * jar on the classpath can add printers, passes or generators by listing its provider class in
+ * META-INF/services/com.verivital.hyst.main.ComponentProvider. Providers should only create
+ * descriptors, not the components themselves.
+ */
+public interface ComponentProvider
+{
+	public List<ComponentDescriptor<ToolPrinter>> getPrinters();
+
+	public List<ComponentDescriptor<TransformationPass>> getPasses();
+
+	public List<ComponentDescriptor<ModelGenerator>> getGenerators();
+}
@@ -0,0 +1,150 @@
+package com.verivital.hyst.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import com.verivital.hyst.generators.ModelGenerator;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * The registry of available tool printers, transformation passes and model generators. The
+ * descriptors are collected from every ComponentProvider found by java.util.ServiceLoader the first
+ * time the registry is used. Components themselves are only created when they're selected (see
+ * ComponentDescriptor.create()).
+ */
+public class ComponentRegistry
+{
+	private static ComponentRegistry instance = null;
+
+	private final List<ComponentDescriptor<ToolPrinter>> printers;
+	private final List<ComponentDescriptor<TransformationPass>> passes;
+	private final List<ComponentDescriptor<ModelGenerator>> generators;
+
+	private ComponentRegistry()
+	{
+		List<ComponentDescriptor<ToolPrinter>> pr;
+		List<ComponentDescriptor<TransformationPass>> pa;
+		List<ComponentDescriptor<ModelGenerator>> ge;
+		pr = new ArrayList<ComponentDescriptor<ToolPrinter>>();
+		pa = new ArrayList<ComponentDescriptor<TransformationPass>>();
+		ge = new ArrayList<ComponentDescriptor<ModelGenerator>>();
+
+		ServiceLoader<ComponentProvider> loader = ServiceLoader.load(ComponentProvider.class,
+				ComponentRegistry.class.getClassLoader());
+		boolean foundBuiltin = false;
+
+		for (ComponentProvider cp : loader)
+		{
+			if (cp instanceof BuiltinComponentProvider)
+				foundBuiltin = true;
+
+			addAll(pr, cp.getPrinters());
+			addAll(pa, cp.getPasses());
+			addAll(ge, cp.getGenerators());
+		}
+
+		// running from .class files without the META-INF directory on the classpath
+		if (!foundBuiltin)
+		{
+			ComponentProvider cp = new BuiltinComponentProvider();
+
+			addAll(pr, cp.getPrinters());
+			addAll(pa, cp.getPasses());
+			addAll(ge, cp.getGenerators());
+		}
+
+		printers = Collections.unmodifiableList(pr);
+		passes = Collections.unmodifiableList(pa);
+		generators = Collections.unmodifiableList(ge);
+	}
+
+	public static synchronized ComponentRegistry getInstance()
+	{
+		if (instance == null)
+			instance = new ComponentRegistry();
+
+		return instance;
+	}
+
+	/**
+	 * Add descriptors to a list, checking that the flags are unique
+	 */
+	private static <T> void addAll(List<ComponentDescriptor<T>> list,
+			List<ComponentDescriptor<T>> toAdd)
+	{
+		for (ComponentDescriptor<T> d : toAdd)
+		{
+			if (find(list, d.flag) != null)
+				throw new AutomatonExportException("Duplicate " + d.type.getSimpleName()
+						+ " command-line flag: '" + d.flag + "'");
+
+			list.add(d);
+		}
+	}
+
+	public List<ComponentDescriptor<ToolPrinter>> getPrinters()
+	{
+		return printers;
+	}
+
+	public List<ComponentDescriptor<TransformationPass>> getPasses()
+	{
+		return passes;
+	}
+
+	public List<ComponentDescriptor<ModelGenerator>> getGenerators()
+	{
+		return generators;
+	}
+
+	/**
+	 * Find a descriptor by its command-line flag (case insensitive)
+	 * 
+	 * @return the descriptor, or null if not found
+	 */
+	public static <T> ComponentDescriptor<T> find(List<ComponentDescriptor<T>> list, String flag)
+	{
+		ComponentDescriptor<T> rv = null;
+
+		for (ComponentDescriptor<T> d : list)
+		{
+			if (d.flag.equalsIgnoreCase(flag))
+			{
+				rv = d;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Create an instance of every tool printer, for example for the GUI
+	 */
+	public ToolPrinter[] createPrinters()
+	{
+		ToolPrinter[] rv = new ToolPrinter[printers.size()];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = printers.get(i).create();
+
+		return rv;
+	}
+
+	/**
+	 * Create an instance of every transformation pass, for example for the GUI
+	 */
+	public TransformationPass[] createPasses()
+	{
+		TransformationPass[] rv = new TransformationPass[passes.size()];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = passes.get(i).create();
+
+		return rv;
+	}
+}
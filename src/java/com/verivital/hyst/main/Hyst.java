@@ -3,8 +3,6 @@ package com.verivital.hyst.main;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -18,14 +16,9 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Localizable;
 import org.kohsuke.args4j.Option;
 
-import com.verivital.hyst.generators.BuildGenerator;
-import com.verivital.hyst.generators.DrivetrainGenerator;
-import com.verivital.hyst.generators.IntegralChainGenerator;
 import com.verivital.hyst.generators.ModelGenerator;
-import com.verivital.hyst.generators.NamedNavigationGenerator;
-import com.verivital.hyst.generators.NavigationGenerator;
-import com.verivital.hyst.generators.SwitchedOscillatorGenerator;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
@@ -33,36 +26,13 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.passes.TransformationPass;
-import com.verivital.hyst.passes.basic.AddIdentityResetPass;
-import com.verivital.hyst.passes.basic.ConvertHavocFlows;
-import com.verivital.hyst.passes.basic.CopyInstancePass;
-import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
-import com.verivital.hyst.passes.basic.ShortenModeNamesPass;
-import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
-import com.verivital.hyst.passes.basic.SplitDisjunctionGuardsPass;
-import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
-import com.verivital.hyst.passes.basic.TimeScalePass;
-import com.verivital.hyst.passes.complex.ContinuizationPass;
-import com.verivital.hyst.passes.complex.ConvertLutFlowsPass;
-import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
-import com.verivital.hyst.passes.complex.OrderReductionPass;
-import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass;
-import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
-import com.verivital.hyst.passes.complex.pi.PseudoInvariantInitPass;
-import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
-import com.verivital.hyst.passes.complex.pi.PseudoInvariantSimulatePass;
-import com.verivital.hyst.printers.DReachPrinter;
-import com.verivital.hyst.printers.FlowstarPrinter;
-import com.verivital.hyst.printers.HyCompPrinter;
-import com.verivital.hyst.printers.Hylaa2Printer;
-import com.verivital.hyst.printers.PySimPrinter;
-import com.verivital.hyst.printers.PythonQBMCPrinter;
-import com.verivital.hyst.printers.SimulinkStateflowPrinter;
-import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
-import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.util.CmdLineRuntimeException;
+import com.verivital.hyst.util.ConversionCache;
+import com.verivital.hyst.util.ConversionCancelledException;
+import com.verivital.hyst.util.ConversionMonitor;
+import com.verivital.hyst.util.IrSnapshot;
 import com.verivital.hyst.util.PairStringOptionHandler;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.StringOperations;
@@ -77,26 +47,8 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
  */
 public class Hyst
 {
-	// list of supported tool printers (add new ones here)
-	private final ToolPrinter[] printers = { new FlowstarPrinter(), new DReachPrinter(),
-			new HyCreate2Printer(), new HyCompPrinter(), new PythonQBMCPrinter(),
-			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(),
-			new Hylaa2Printer() };
-
-	// list of supported model transformation passes (add new ones here)
-	private final TransformationPass[] passes = { new AddIdentityResetPass(),
-			new PseudoInvariantPass(), new PseudoInvariantSimulatePass(),
-			new PseudoInvariantInitPass(), new TimeScalePass(), new SubstituteConstantsPass(),
-			new SimplifyExpressionsPass(), new SplitDisjunctionGuardsPass(),
-			new RemoveSimpleUnsatInvariantsPass(), new ShortenModeNamesPass(),
-			new ContinuizationPass(), new HybridizeMixedTriggeredPass(), new HybridizeMTRawPass(),
-			new FlattenAutomatonPass(), new OrderReductionPass(), new ConvertLutFlowsPass(),
-			new CopyInstancePass(), new ConvertHavocFlows() };
-
-	// list of supported model generators (add new ones here)
-	private final ModelGenerator[] generators = { new IntegralChainGenerator(),
-			new NavigationGenerator(), new NamedNavigationGenerator(),
-			new SwitchedOscillatorGenerator(), new BuildGenerator(), new DrivetrainGenerator() };
+	// the available printers, passes and generators (add new ones in BuiltinComponentProvider)
+	private final ComponentRegistry registry = ComponentRegistry.getInstance();
 
 	public static String TOOL_NAME = "Hyst v1.6";
 
@@ -182,21 +134,12 @@ public class Hyst
 
 		toolParamsString = params[1];
 
-		// look through all the model generators for the right one
-		for (ToolPrinter tp : printers)
-		{
-			String flag = tp.getCommandLineFlag();
+		// look through all the tool printers for the right one
+		ComponentDescriptor<ToolPrinter> d = ComponentRegistry.find(registry.getPrinters(),
+				params[0]);
 
-			if (flag.startsWith("-"))
-				throw new RuntimeException(
-						"tool's command-line flag shouldn't start with a hyphen: " + flag);
-
-			if (flag.equalsIgnoreCase(params[0]))
-			{
-				toolPrinter = tp;
-				break;
-			}
-		}
+		if (d != null)
+			toolPrinter = d.create();
 
 		if (toolPrinter == null)
 			throw new CmdLineException(parser, hystLocalizable,
@@ -217,21 +160,11 @@ public class Hyst
 		modelGenParam = params[1];
 
 		// look through all the model generators for the right one
-		for (ModelGenerator mg : generators)
-		{
-			String flag = mg.getCommandLineFlag();
+		ComponentDescriptor<ModelGenerator> d = ComponentRegistry.find(registry.getGenerators(),
+				params[0]);
 
-			if (flag.startsWith("-"))
-				throw new RuntimeException(
-						"model generator's command-line flag shouldn't start with a hyphen: "
-								+ flag);
-
-			if (flag.equalsIgnoreCase(params[0]))
-			{
-				modelGenerator = mg;
-				break;
-			}
-		}
+		if (d != null)
+			modelGenerator = d.create();
 
 		if (modelGenerator == null)
 			throw new CmdLineException(parser, hystLocalizable,
@@ -257,6 +190,35 @@ public class Hyst
 	@Option(name = FLAG_DEBUG, aliases = { "-d" }, usage = "print debug (and verbose) output")
 	public boolean debugFlag = false;
 
+	@Option(name = "-async_output", usage = "write the output file on a background thread")
+	public boolean asyncOutputFlag = false;
+
+	public static final String FLAG_SAVE_IR = "-save_ir";
+
+	@Option(name = FLAG_SAVE_IR, usage = "save the model after running passes to a binary snapshot "
+			+ "(the tool printer is optional with this flag)", metaVar = "FILENAME")
+	String saveIrFilename = null;
+
+	public static final String FLAG_LOAD_IR = "-load_ir";
+
+	@Option(name = FLAG_LOAD_IR, usage = "load the model from a snapshot created with "
+			+ FLAG_SAVE_IR + ", rather than from input files", metaVar = "FILENAME")
+	String loadIrFilename = null;
+
+	public static final String FLAG_CACHE = "-cache";
+
+	@Option(name = FLAG_CACHE, usage = "cache the model after each pass and the printed output in "
+			+ "a directory, and reuse them in later conversions", metaVar = "DIR")
+	String cacheDir = null;
+
+	@Option(name = "-cache_size", usage = "maximum size of the " + FLAG_CACHE
+			+ " directory; least recently used entries are deleted", metaVar = "MB")
+	int cacheSizeMb = 512;
+
+	@Option(name = "-balance_sums", usage = "parse chains of additions and multiplications, like "
+			+ "a1 + a2 + ... + an, into balanced trees rather than left-nested ones")
+	boolean balanceSumsFlag = false;
+
 	///////// hidden options ///////////////
 
 	@Option(name = "-novalidate", hidden = true, usage = "disable model validation")
@@ -275,7 +237,8 @@ public class Hyst
 		ARG_PARSE_ERROR, // 3
 		GUI_QUIT, // 4
 		EXPORT_AUTOMATON_EXCEPTION, // 5
-		NOPYTHON // 6, exit code if -checkpython fails
+		NOPYTHON, // 6, exit code if -checkpython fails
+		CANCELLED // 7, the conversion was cancelled (see ConversionMonitor)
 	};
 
 	public static void main(String[] args)
@@ -300,7 +263,8 @@ public class Hyst
 				public void run()
 				{
 					Hyst h = new Hyst();
-					guiFrame = new HystFrame(h.printers, h.passes);
+					guiFrame = new HystFrame(h.registry.createPrinters(),
+							h.registry.createPasses());
 
 					if (loadFilename != null)
 						guiFrame.guiLoad(loadFilename);
@@ -360,27 +324,17 @@ public class Hyst
 		{
 			String passName = passArgumentList.get(i);
 			String passParam = passArgumentList.get(i + 1);
-			boolean found = false;
-
-			for (TransformationPass tp : passes)
-			{
-				String flag = tp.getCommandLineFlag();
-
-				if (flag.equalsIgnoreCase(passName))
-				{
-					// create new instances here since we may use the same pass
-					// multiple times with different parmeters
-					TransformationPass instance = newTransformationPassInstance(tp);
-					requestedPasses.add(new RequestedTransformationPass(instance, passParam));
-					found = true;
-					break;
-				}
-			}
+			ComponentDescriptor<TransformationPass> d = ComponentRegistry
+					.find(registry.getPasses(), passName);
 
-			if (!found)
+			if (d == null)
 				throw new CmdLineException(parser, hystLocalizable,
 						"Couldn't find transformation pass with name '" + passName
 								+ "'. See -help_passes.");
+
+			// create new instances here since we may use the same pass
+			// multiple times with different parmeters
+			requestedPasses.add(new RequestedTransformationPass(d.create(), passParam));
 		}
 	}
 
@@ -393,7 +347,17 @@ public class Hyst
 
 		parsePasses();
 
-		if (modelGenerator == null)
+		if (loadIrFilename != null)
+		{
+			if (modelGenerator != null || cfgFilename != null || xmlFilenames.size() > 0)
+				throw new CmdLineException(parser, hystLocalizable, "Cannot use " + FLAG_LOAD_IR
+						+ " together with model generation or input cfg/xml files.");
+
+			if (!new File(loadIrFilename).exists())
+				throw new CmdLineException(parser, hystLocalizable,
+						"IR snapshot file not found: '" + loadIrFilename + "'.");
+		}
+		else if (modelGenerator == null)
 		{
 			if (cfgFilename == null)
 				throw new CmdLineException(parser, hystLocalizable,
@@ -411,7 +375,7 @@ public class Hyst
 						"Cannot both use model generation and provide input cfg/xml files.");
 		}
 
-		if (toolPrinter == null)
+		if (toolPrinter == null && saveIrFilename == null)
 			throw new CmdLineException(parser, hystLocalizable,
 					"Tool printer must be set using '" + FLAG_TOOL + "' flag.");
 
@@ -498,6 +462,8 @@ public class Hyst
 		}
 		else
 			Configuration.DO_VALIDATION = true;
+
+		FormulaParser.balanceSums = balanceSumsFlag;
 	}
 
 	private ExitCode doTestPython()
@@ -533,15 +499,15 @@ public class Hyst
 
 		System.out.print("Supported tool printer names are:");
 
-		for (ToolPrinter printer : printers)
-			System.out.print(" '" + printer.getCommandLineFlag() + "'");
+		for (ComponentDescriptor<ToolPrinter> d : registry.getPrinters())
+			System.out.print(" '" + d.flag + "'");
 
 		System.out.println("\n");
 
-		for (ToolPrinter printer : printers)
+		for (ComponentDescriptor<ToolPrinter> d : registry.getPrinters())
 		{
-			System.out.println("Usage for Tool Printer '" + printer.getCommandLineFlag() + "':");
-			System.out.println(printer.getParamHelp());
+			System.out.println("Usage for Tool Printer '" + d.flag + "':");
+			System.out.println(d.create().getParamHelp());
 		}
 	}
 
@@ -551,16 +517,15 @@ public class Hyst
 
 		System.out.print("Supported transformation pass names are:");
 
-		for (TransformationPass pass : passes)
-			System.out.print(" '" + pass.getCommandLineFlag() + "'");
+		for (ComponentDescriptor<TransformationPass> d : registry.getPasses())
+			System.out.print(" '" + d.flag + "'");
 
 		System.out.println("\n");
 
-		for (TransformationPass pass : passes)
+		for (ComponentDescriptor<TransformationPass> d : registry.getPasses())
 		{
-			System.out
-					.println("Usage for Transformation Pass '" + pass.getCommandLineFlag() + "':");
-			System.out.println(pass.getParamHelp());
+			System.out.println("Usage for Transformation Pass '" + d.flag + "':");
+			System.out.println(d.create().getParamHelp());
 		}
 	}
 
@@ -570,15 +535,15 @@ public class Hyst
 
 		System.out.print("Supported model generator names are:");
 
-		for (ModelGenerator gen : generators)
-			System.out.print(" '" + gen.getCommandLineFlag() + "'");
+		for (ComponentDescriptor<ModelGenerator> d : registry.getGenerators())
+			System.out.print(" '" + d.flag + "'");
 
 		System.out.println("\n");
 
-		for (ModelGenerator gen : generators)
+		for (ComponentDescriptor<ModelGenerator> d : registry.getGenerators())
 		{
-			System.out.println("Usage for Model Generator '" + gen.getCommandLineFlag() + "':");
-			System.out.println(gen.getParamHelp());
+			System.out.println("Usage for Model Generator '" + d.flag + "':");
+			System.out.println(d.create().getParamHelp());
 		}
 	}
 
@@ -595,9 +560,60 @@ public class Hyst
 		try
 		{
 			long startMs = System.currentTimeMillis();
+			ConversionMonitor.get().stageStarted(
+					modelGenerator != null ? "Generating model" : "Loading model", 0,
+					getNumStages());
 			Configuration config = null;
+			ConversionCache cache = null;
+			String[] stageKeys = null;
+			String outputKey = null;
+			int firstPass = 0;
+			boolean loadedFromCache = false;
+
+			if (cacheDir != null)
+			{
+				cache = new ConversionCache(new File(cacheDir), cacheSizeMb * 1024L * 1024L);
+				stageKeys = makeStageKeys();
+
+				// only outputs written to a file are cached
+				if (toolPrinter != null && outputFilename != null)
+					outputKey = ConversionCache.stageKey(stageKeys[stageKeys.length - 1], "print",
+							toolPrinter.getCommandLineFlag(), toolParamsString,
+							getOriginalFilename(), programArguments);
+
+				if (outputKey != null && saveIrFilename == null
+						&& cache.restoreOutput(outputKey, new File(outputFilename)))
+				{
+					Hyst.log("Restored cached output to " + outputFilename + " in "
+							+ (System.currentTimeMillis() - startMs) + " ms");
+					return rv;
+				}
+
+				// resume from the deepest cached stage
+				for (int i = stageKeys.length - 1; i >= 0 && config == null; --i)
+				{
+					config = cache.loadSnapshot(stageKeys[i]);
+
+					if (config != null)
+					{
+						loadedFromCache = true;
+						Hyst.log("Loaded cached model after " + i + " of "
+								+ requestedPasses.size() + " passes");
+						firstPass = i;
+					}
+				}
+			}
 
-			if (modelGenerator != null)
+			if (loadedFromCache)
+			{
+				// resume with the remaining passes
+			}
+			else if (loadIrFilename != null)
+			{
+				Hyst.log("Loading IR snapshot from " + loadIrFilename);
+				config = IrSnapshot.load(loadIrFilename);
+			}
+			else if (modelGenerator != null)
 			{
 				Expression.expressionPrinter = null; // should be assigned in
 														// geneartor
@@ -613,22 +629,46 @@ public class Hyst
 				Map<String, Component> componentTemplates = TemplateImporter
 						.createComponentTemplates(spaceExDoc);
 
-				// 3. run any component template passes here (future)
+				// 3. run the leading template-safe passes on the component templates, so they
+				// run once per template rather than once per instance
+				firstPass = runTemplatePasses(componentTemplates);
 
 				// 4. instantiate the component templates into a networked
 				// configuration
 				config = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
+
+				for (int i = 0; i < firstPass; ++i)
+				{
+					Expression.expressionPrinter = null; // should be assigned in pass
+					requestedPasses.get(i).tp.runAfterTemplatePass(config);
+				}
 			}
 
+			if (cache != null && !loadedFromCache)
+				cache.storeSnapshot(stageKeys[firstPass], config);
+
 			// 5. run passes
-			runPasses(config);
+			runPasses(config, firstPass, cache, stageKeys);
+
+			if (saveIrFilename != null)
+			{
+				Hyst.log("Saving IR snapshot to " + saveIrFilename);
+				IrSnapshot.save(config, saveIrFilename);
+			}
 
 			// 6. run printer
-			runPrinter(toolPrinter, config);
+			if (toolPrinter != null)
+				runPrinter(toolPrinter, config);
 
 			long difMs = System.currentTimeMillis() - startMs;
 
-			toolPrinter.flush();
+			if (toolPrinter != null)
+				toolPrinter.flush();
+
+			if (outputKey != null)
+				cache.storeOutput(outputKey, new File(outputFilename),
+						toolPrinter.getSideOutputFiles());
+
 			Hyst.log("\nFinished converting in " + difMs + " ms");
 		}
 		catch (AutomatonExportException e)
@@ -649,6 +689,11 @@ public class Hyst
 			ex = e;
 			rv = ExitCode.ARG_PARSE_ERROR;
 		}
+		catch (ConversionCancelledException e)
+		{
+			logError("\nConversion cancelled.");
+			rv = ExitCode.CANCELLED;
+		}
 		catch (Exception e)
 		{
 			logError("Exception in Hyst while exporting.");
@@ -678,31 +723,174 @@ public class Hyst
 		return rv;
 	}
 
+	/**
+	 * The number of stages reported to the ConversionMonitor: loading the model, each pass, and
+	 * printing
+	 */
+	private int getNumStages()
+	{
+		return requestedPasses.size() + (toolPrinter != null ? 2 : 1);
+	}
+
+	/**
+	 * A cancellation checkpoint at the start of a stage, which also reports progress
+	 */
+	private void startStage(String description, int stage)
+	{
+		ConversionMonitor.checkpoint();
+		ConversionMonitor.get().stageStarted(description, stage, getNumStages());
+	}
+
 	private void runPrinter(ToolPrinter printer, Configuration config)
 	{
+		startStage("Printing " + printer.getToolName() + " model", getNumStages() - 1);
 		Expression.expressionPrinter = null; // should be assigned in printer
 
-		String originalFilename = StringOperations.join(" ", xmlFilenames.toArray(new String[] {}));
+		String originalFilename = getOriginalFilename();
 
 		if (outputFilename != null)
-			printer.setOutputFile(outputFilename);
+			printer.setOutputFile(outputFilename, asyncOutputFlag);
 		else if (guiFrame != null)
 			printer.setOutputGui(guiFrame);
 
 		printer.print(config, toolParamsString, originalFilename);
 	}
 
-	private void runPasses(Configuration config)
+	private String getOriginalFilename()
+	{
+		return loadIrFilename != null ? loadIrFilename
+				: StringOperations.join(" ", xmlFilenames.toArray(new String[] {}));
+	}
+
+	/**
+	 * Get the cache keys for the model before any passes (index 0), and after each requested pass
+	 */
+	private String[] makeStageKeys()
+	{
+		String[] rv = new String[requestedPasses.size() + 1];
+
+		if (modelGenerator != null)
+			rv[0] = ConversionCache.stageKey(ConversionCache.inputKey(new ArrayList<File>()),
+					"generate", modelGenerator.getCommandLineFlag(), modelGenParam);
+		else
+		{
+			ArrayList<File> inputs = new ArrayList<File>();
+
+			if (loadIrFilename != null)
+				inputs.add(new File(loadIrFilename));
+			else
+			{
+				inputs.add(new File(cfgFilename));
+
+				for (String xml : xmlFilenames)
+					inputs.add(new File(xml));
+			}
+
+			rv[0] = ConversionCache.inputKey(inputs);
+		}
+
+		// the parsed expressions are different with balanced sums
+		if (balanceSumsFlag)
+			rv[0] = ConversionCache.stageKey(rv[0], "balance_sums");
+
+		for (int i = 0; i < requestedPasses.size(); ++i)
+		{
+			RequestedTransformationPass rp = requestedPasses.get(i);
+
+			rv[i + 1] = ConversionCache.stageKey(rv[i], "pass", rp.tp.getCommandLineFlag(),
+					rp.params);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run the template-safe passes at the start of the requested pass list on the component
+	 * templates. Each of these passes must be finished with runAfterTemplatePass() once the
+	 * templates are instantiated.
+	 * 
+	 * @return the number of passes which were run
+	 */
+	private int runTemplatePasses(Map<String, Component> templates)
 	{
+		int rv = 0;
+
 		for (RequestedTransformationPass rp : requestedPasses)
 		{
-			Hyst.log("Running pass " + rp.tp.getName() + " with params " + rp.params);
+			if (!rp.tp.isTemplateSafe())
+				break;
+
+			startStage(rp.tp.getName(), 1 + rv);
+			Hyst.log("Running pass " + rp.tp.getName() + " on component templates with params "
+					+ rp.params);
 
 			Expression.expressionPrinter = null; // should be assigned in pass
-			rp.tp.runTransformationPass(config, rp.params);
+			rp.tp.runTemplatePass(templates.values(), rp.params);
+			++rv;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run the requested passes, starting from the given index. Consecutive expression rewrite
+	 * passes are fused into a single traversal of the model, as long as the later passes in a
+	 * group don't check preconditions (see TransformationPass.canFuseAfterRewrites()). If cache is
+	 * not null, the model after each pass (or group of fused passes) is stored using the
+	 * corresponding stage key.
+	 */
+	private void runPasses(Configuration config, int firstPass, ConversionCache cache,
+			String[] stageKeys)
+	{
+		int i = firstPass;
+
+		while (i < requestedPasses.size())
+		{
+			int end = i + 1;
+
+			if (requestedPasses.get(i).tp.isExpressionRewrite(config))
+			{
+				while (end < requestedPasses.size()
+						&& requestedPasses.get(end).tp.canFuseAfterRewrites(config))
+					++end;
+			}
+
+			String names;
+			startStage(requestedPasses.get(i).tp.getName(), 1 + i);
+			Expression.expressionPrinter = null; // should be assigned in pass
+
+			if (end - i == 1)
+			{
+				RequestedTransformationPass rp = requestedPasses.get(i);
+				names = rp.tp.getName();
+				Hyst.log("Running pass " + names + " with params " + rp.params);
+
+				rp.tp.runTransformationPass(config, rp.params);
+			}
+			else
+			{
+				ArrayList<TransformationPass> passes = new ArrayList<TransformationPass>();
+				ArrayList<String> params = new ArrayList<String>();
 
-			Hyst.logDebug("\n----------After running pass " + rp.tp.getName()
-					+ ", configuration is:\n" + config);
+				for (RequestedTransformationPass rp : requestedPasses.subList(i, end))
+				{
+					Hyst.log("Running pass " + rp.tp.getName() + " with params " + rp.params
+							+ " (fused with adjacent rewrite passes)");
+					passes.add(rp.tp);
+					params.add(rp.params);
+				}
+
+				names = passes.get(0).getName() + " through " + passes.get(end - i - 1).getName();
+				TransformationPass.runFusedRewritePasses(config, passes, params);
+			}
+
+			// stage of the last pass that ran
+			ConversionMonitor.get().stageFinished(names, end, config);
+
+			if (cache != null)
+				cache.storeSnapshot(stageKeys[end], config);
+
+			i = end;
 		}
 	}
 
@@ -738,43 +926,6 @@ public class Hyst
 		return rv;
 	}
 
-	private static TransformationPass newTransformationPassInstance(TransformationPass tp)
-	{
-		// create a new instance of the transformation pass to give it fresh
-		// state
-		Class<? extends TransformationPass> cl = tp.getClass();
-		Constructor<? extends TransformationPass> ctor;
-		TransformationPass instance = null;
-
-		try
-		{
-			ctor = cl.getConstructor();
-			instance = ctor.newInstance();
-		}
-		catch (NoSuchMethodException e)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e);
-		}
-		catch (InstantiationException e2)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e2);
-		}
-		catch (IllegalArgumentException e3)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e3);
-		}
-		catch (IllegalAccessException e4)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e4);
-		}
-		catch (InvocationTargetException e5)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e5);
-		}
-
-		return instance;
-	}
-
 	/**
 	 * Print an info message to stderr, if the -v flag has been set (verbose mode is enabled)
 	 * 
@@ -792,6 +943,19 @@ public class Hyst
 		}
 	}
 
+	/**
+	 * Print an info message to stderr, if the -v flag has been set. The message is only built if
+	 * it's printed.
+	 * 
+	 * @param message
+	 *            the lazy message to print
+	 */
+	public static void log(LogMessage message)
+	{
+		if (verboseMode || debugMode)
+			log(message.get());
+	}
+
 	/**
 	 * Print an info message to stderr, regardless of verbose / debug flags
 	 * 
@@ -824,6 +988,19 @@ public class Hyst
 		}
 	}
 
+	/**
+	 * Print an info message to stderr, if the -d flag has been set. The message is only built if
+	 * it's printed, so use this when the message includes a configuration or other large objects.
+	 * 
+	 * @param message
+	 *            the lazy message to print
+	 */
+	public static void logDebug(LogMessage message)
+	{
+		if (debugMode)
+			logDebug(message.get());
+	}
+
 	/**
 	 * Print an error message to stderr
 	 * 
@@ -20,6 +20,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.Box;
 import javax.swing.ButtonGroup;
@@ -29,6 +32,7 @@ import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JRootPane;
 import javax.swing.JScrollPane;
@@ -36,12 +40,14 @@ import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.DefaultCaret;
 
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.util.ConversionMonitor;
 
 @SuppressWarnings("serial")
 public class HystFrame extends JFrame implements ActionListener, WindowListener, DocumentListener
@@ -78,7 +84,17 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 	JButton runButton = new JButton("Convert");
 
 	JTextArea outputArea = new JTextArea();
-	StringBuffer outputBuffer = new StringBuffer();
+	JProgressBar progressBar = new JProgressBar();
+
+	// output from the conversion thread is collected here and appended to outputArea in batches
+	private final StringBuilder pendingOutput = new StringBuilder();
+	private boolean flushScheduled = false; // guarded by pendingOutput
+	private static final int OUTPUT_FLUSH_MS = 100;
+	private final Timer flushTimer;
+
+	// conversions run one at a time in the background
+	private final ExecutorService executor;
+	private ConversionMonitor runningConversion = null; // accessed on the EDT only
 
 	private Vector<String> passNames;
 	private ToolPrinter[] printers;
@@ -86,13 +102,34 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 
 	final static private JFileChooser fileChooser = new JFileChooser();
 	final private static String GUISTATE_FILENAME = ".hyst.xml";
-	private static boolean shouldUpdate = false;
 
 	public HystFrame(ToolPrinter[] printers, TransformationPass[] passes)
 	{
 		this.printers = printers;
 		availablePasses.addAll(Arrays.asList(passes));
 
+		flushTimer = new Timer(OUTPUT_FLUSH_MS, new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				flushOutput();
+			}
+		});
+		flushTimer.setRepeats(false);
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Hyst Conversion");
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+
 		setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 		setTitle("Hyst: Hybrid Model Transformation and Translation Tool");
 		addWindowListener(this);
@@ -216,26 +253,122 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 
 		rv.add(sp, BorderLayout.CENTER);
 
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
+		rv.add(progressBar, BorderLayout.SOUTH);
+
 		return rv;
 	}
 
+	/**
+	 * Add a line to the output tab. This may be called from any thread. Lines are appended to the
+	 * text area in batches, at most every OUTPUT_FLUSH_MS milliseconds, so verbose conversions
+	 * don't flood the event dispatch thread.
+	 */
 	public void addOutput(final String s)
 	{
-		outputBuffer.append(s + "\n");
+		synchronized (pendingOutput)
+		{
+			pendingOutput.append(s).append('\n');
+
+			if (flushScheduled)
+				return;
+
+			flushScheduled = true;
+		}
 
-		if (shouldUpdate == false)
+		flushTimer.start();
+	}
+
+	/**
+	 * Append the pending output to the text area. Called on the EDT.
+	 */
+	private void flushOutput()
+	{
+		String text;
+
+		synchronized (pendingOutput)
+		{
+			text = pendingOutput.toString();
+			pendingOutput.setLength(0);
+			flushScheduled = false;
+		}
+
+		outputArea.append(text);
+	}
+
+	/**
+	 * Run a conversion in the background. Progress is shown in the progress bar, and the convert
+	 * button cancels the conversion while it's running.
+	 */
+	private void startConversion(final String[] args)
+	{
+		final ConversionMonitor monitor = new ConversionMonitor()
 		{
-			shouldUpdate = true;
+			@Override
+			public void stageStarted(final String description, final int stage,
+					final int numStages)
+			{
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						progressBar.setMaximum(numStages);
+						progressBar.setValue(stage);
+						progressBar.setString(
+								description + " (" + (stage + 1) + " of " + numStages + ")");
+					}
+				});
+			}
+		};
 
-			SwingUtilities.invokeLater(new Runnable()
+		runningConversion = monitor;
+		runButton.setText("Cancel");
+		progressBar.setValue(0);
+		progressBar.setString("Starting");
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				public void run()
+				int code = Hyst.ExitCode.EXPORT_EXCEPTION.ordinal();
+				ConversionMonitor.set(monitor);
+
+				try
 				{
-					shouldUpdate = false;
-					outputArea.setText(outputBuffer.toString());
+					code = Hyst.runWithArguments(args);
 				}
-			});
-		}
+				finally
+				{
+					ConversionMonitor.set(null);
+					final Hyst.ExitCode exitCode = Hyst.ExitCode.values()[code];
+
+					addOutput("\nConversion completed with exit code " + code + ": " + exitCode);
+
+					SwingUtilities.invokeLater(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							conversionFinished(exitCode);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void conversionFinished(Hyst.ExitCode exitCode)
+	{
+		runningConversion = null;
+		runButton.setText("Convert");
+		runButton.setEnabled(true);
+
+		progressBar.setValue(exitCode == Hyst.ExitCode.SUCCESS ? progressBar.getMaximum() : 0);
+		progressBar.setString(exitCode == Hyst.ExitCode.SUCCESS ? "Finished"
+				: exitCode == Hyst.ExitCode.CANCELLED ? "Cancelled" : "Failed");
 	}
 
 	private JPanel makeOptionsPanel()
@@ -690,6 +823,11 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 	public void windowClosed(WindowEvent e)
 	{
 		saveGuiState();
+
+		if (runningConversion != null)
+			runningConversion.cancel();
+
+		executor.shutdown();
 	}
 
 	@Override
@@ -720,7 +858,14 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 	@Override
 	public void actionPerformed(ActionEvent e)
 	{
-		if (e.getSource() == runButton)
+		if (e.getSource() == runButton && runningConversion != null)
+		{
+			// the conversion stops at its next checkpoint
+			runningConversion.cancel();
+			runButton.setText("Cancelling...");
+			runButton.setEnabled(false);
+		}
+		else if (e.getSource() == runButton)
 		{
 			String model = xmlTf.getText();
 
@@ -730,25 +875,15 @@ public class HystFrame extends JFrame implements ActionListener, WindowListener,
 			else
 			{
 				// clear the output
-				outputBuffer.setLength(0);
-				outputArea.setText(outputBuffer.toString());
+				flushOutput();
+				outputArea.setText("");
 
 				tabs.setSelectedIndex(1);
 
-				final String[] args = makeConversionArgs();
+				String[] args = makeConversionArgs();
 				addOutput("Converting using command line: " + Hyst.makeSingleArgument(args) + "\n");
 
-				new Thread()
-				{
-					public void run()
-					{
-						int code = Hyst.runWithArguments(args);
-						String s = "\nConversion completed with exit code " + code + ": "
-								+ Hyst.ExitCode.values()[code];
-
-						addOutput(s);
-					}
-				}.start();
+				startConversion(args);
 
 				// finally, save the gui file
 				saveGuiState();
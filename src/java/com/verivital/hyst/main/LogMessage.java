@@ -0,0 +1,48 @@
+package com.verivital.hyst.main;
+
+/**
+ * A log message which is only built if it's going to be printed. Pass one of these to Hyst.log()
+ * or Hyst.logDebug() instead of a String when the message includes something expensive to
+ * convert, like a configuration or a large expression, so the conversion is skipped when the log
+ * level is off.
+ * 
+ * Usually a message is created with LogMessage.of("text ", obj, ...), which concatenates the
+ * parts with String.valueOf() when get() is called. Subclass it for anything more involved.
+ */
+public abstract class LogMessage
+{
+	/**
+	 * Build the message text. This is only called if the message will be printed.
+	 */
+	public abstract String get();
+
+	/**
+	 * Create a message which is the concatenation of the given parts
+	 * 
+	 * @param parts
+	 *            the parts of the message, converted with String.valueOf()
+	 * @return the lazy message
+	 */
+	public static LogMessage of(final Object... parts)
+	{
+		return new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				StringBuilder rv = new StringBuilder();
+
+				for (Object o : parts)
+					rv.append(String.valueOf(o));
+
+				return rv.toString();
+			}
+		};
+	}
+
+	@Override
+	public String toString()
+	{
+		return get();
+	}
+}
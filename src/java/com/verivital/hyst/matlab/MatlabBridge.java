@@ -10,6 +10,7 @@ import java.net.URLDecoder;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.util.FileOperations;
 
 import matlabcontrol.MatlabConnectionException;
@@ -226,6 +227,11 @@ public class MatlabBridge
 		Hyst.logDebug(description);
 	}
 
+	private static void logDebug(LogMessage description)
+	{
+		Hyst.logDebug(description);
+	}
+
 	/**
 	 * Close the process (if needed), and raise an error
 	 * 
@@ -633,14 +639,14 @@ public class MatlabBridge
 				error("stderr contained stale text before the send command: '" + stdErrBefore
 						+ "'");
 
-			logDebug("Sending to python: " + s);
+			logDebug(LogMessage.of("Sending to python: ", s));
 			stdin.write(s);
 			stdin.write("\n");
 			stdin.flush();
 
 			logDebug("Reading from python with timeout " + timeoutMs + " ms");
 			result = readUntilPrompt();
-			logDebug("Read result from python: " + result);
+			logDebug(LogMessage.of("Read result from python: ", result));
 		}
 		catch (IOException e)
 		{
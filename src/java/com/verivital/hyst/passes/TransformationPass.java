@@ -1,15 +1,22 @@
 package com.verivital.hyst.passes;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
+import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionModifier;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
+import com.verivital.hyst.util.FlowAnalysis;
 import com.verivital.hyst.util.Preconditions;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 
@@ -100,6 +107,14 @@ public abstract class TransformationPass
 		config = c;
 		runPass(params);
 
+		// the pass may have modified flow expressions in place
+		FlowAnalysis.invalidateAll();
+
+		validateAfterPass(c);
+	}
+
+	private void validateAfterPass(Configuration c)
+	{
 		// validate modified configuration
 		try
 		{
@@ -132,7 +147,237 @@ public abstract class TransformationPass
 		return out.toString();
 	}
 
-	private void runPass(String params)
+	/**
+	 * Can this pass be run on component templates, before they are instantiated into a network?
+	 * Template-safe passes run once per template rather than once per instance, which saves time
+	 * when a template is instantiated many times. A pass should only return true if the changes it
+	 * makes to a base component don't depend on the instance (like constant values from the
+	 * network bindings), and if it has no preconditions. Template-safe passes must override
+	 * runPassOnTemplate(), and can override runPassAfterTemplates().
+	 * 
+	 * @return true if the pass can run on templates
+	 */
+	public boolean isTemplateSafe()
+	{
+		return false;
+	}
+
+	/**
+	 * Run the pass on each of the base component templates, modifying them in place. This should be
+	 * followed by runAfterTemplatePass() once the templates are instantiated.
+	 * 
+	 * @param templates
+	 *            the component templates, from TemplateImporter.createComponentTemplates()
+	 * @param params
+	 *            the pass parameters
+	 */
+	public void runTemplatePass(Collection<Component> templates, String params)
+	{
+		if (!isTemplateSafe())
+			throw new AutomatonExportException(
+					"Pass " + getName() + " cannot be run on component templates.");
+
+		parseParams(params);
+
+		for (Component c : templates)
+		{
+			if (c instanceof BaseComponent)
+				runPassOnTemplate((BaseComponent) c);
+		}
+
+		// the pass may have modified flow expressions in place
+		FlowAnalysis.invalidateAll();
+	}
+
+	/**
+	 * Finish a pass which was run on the component templates with runTemplatePass(). This is
+	 * called once the templates are instantiated, with the same params, and validates the
+	 * configuration afterwards.
+	 * 
+	 * @param c
+	 *            the instantiated configuration
+	 */
+	public void runAfterTemplatePass(Configuration c)
+	{
+		config = c;
+		runPassAfterTemplates();
+
+		FlowAnalysis.invalidateAll();
+
+		validateAfterPass(c);
+	}
+
+	/**
+	 * Run the pass on a single base component template. Only called if isTemplateSafe() is true.
+	 * The command-line args are parsed before this is called.
+	 * 
+	 * @param template
+	 *            the template to modify
+	 */
+	protected void runPassOnTemplate(BaseComponent template)
+	{
+		throw new AutomatonExportException(
+				"Pass " + getName() + " is template-safe, but doesn't override runPassOnTemplate()");
+	}
+
+	/**
+	 * Do the part of a template pass which needs the instantiated configuration, such as modifying
+	 * the initial and forbidden states (stored in the global config object). The default does
+	 * nothing.
+	 */
+	protected void runPassAfterTemplates()
+	{
+	}
+
+	/**
+	 * Is this pass a pure expression rewrite on the given configuration? Such a pass does nothing
+	 * except rewrite every flow, invariant, guard and reset with getExpressionRewrite(), and every
+	 * initial and forbidden state with getInitForbiddenRewrite(), followed by finishRewrite().
+	 * Consecutive rewrite passes are run together with runFusedRewritePasses(), which walks the
+	 * model once. The rewrites can't depend on anything the earlier passes in the group change, and
+	 * the result of this method may only depend on the structure of the components (which rewrites
+	 * don't change), not on their expressions or constants.
+	 * 
+	 * @param c
+	 *            the configuration the pass would run on
+	 * @return true if the pass can be fused with other rewrite passes
+	 */
+	public boolean isExpressionRewrite(Configuration c)
+	{
+		return false;
+	}
+
+	/**
+	 * Can this pass be fused after other rewrite passes? In a fused group, the preconditions of the
+	 * later passes would have to be checked before the earlier rewrites are applied, while in a
+	 * sequential run they see the rewritten model (and may convert it). So only rewrite passes
+	 * without any precondition checks can follow other passes in a group.
+	 * 
+	 * @param c
+	 *            the configuration the pass would run on
+	 * @return true if the pass can be fused after other rewrite passes
+	 */
+	public boolean canFuseAfterRewrites(Configuration c)
+	{
+		return isExpressionRewrite(c) && preconditions.skipsAll();
+	}
+
+	/**
+	 * Get the rewrite applied to the expressions in the components. Only called if
+	 * isExpressionRewrite() is true. The command-line args are parsed and config is assigned before
+	 * this is called.
+	 * 
+	 * @return the modifier
+	 */
+	protected ExpressionModifier getExpressionRewrite()
+	{
+		throw new AutomatonExportException(
+				"Pass " + getName() + " is a rewrite, but doesn't override getExpressionRewrite()");
+	}
+
+	/**
+	 * Get the rewrite applied to the initial and forbidden states. The default is
+	 * getExpressionRewrite().
+	 * 
+	 * @return the modifier
+	 */
+	protected ExpressionModifier getInitForbiddenRewrite()
+	{
+		return getExpressionRewrite();
+	}
+
+	/**
+	 * Do any work after the rewrite which doesn't involve expressions. The default does nothing.
+	 */
+	protected void finishRewrite()
+	{
+	}
+
+	/**
+	 * Run several rewrite passes (see isExpressionRewrite()) with a single traversal of the model.
+	 * This gives the same result as running the passes one after the other. The preconditions of
+	 * the first pass are checked first, as in a sequential run. It's then fused with the following
+	 * passes for which canFuseAfterRewrites() is true. The passes after that (if any) are run in
+	 * the same way, starting from the first one which can't be fused. The configuration is
+	 * validated after each group.
+	 * 
+	 * @param c
+	 *            the configuration to modify
+	 * @param passes
+	 *            the passes, in order
+	 * @param params
+	 *            the params for each pass
+	 */
+	public static void runFusedRewritePasses(Configuration c, List<TransformationPass> passes,
+			List<String> params)
+	{
+		int start = 0;
+
+		while (start < passes.size())
+		{
+			TransformationPass first = passes.get(start);
+			String name = first.getClass().getName();
+
+			try
+			{
+				first.checkPreconditons(c, name);
+			}
+			catch (PreconditionsFailedException e)
+			{
+				throw new AutomatonExportException("The preconditions for pass " + name
+						+ " were not met by the Hybrid Automaton model.\n" + e, e);
+			}
+
+			// the preconditions may have converted the model, so check again
+			if (!first.isExpressionRewrite(c))
+			{
+				first.runVanillaPass(c, params.get(start));
+				++start;
+				continue;
+			}
+
+			int end = start + 1;
+
+			while (end < passes.size() && passes.get(end).canFuseAfterRewrites(c))
+				++end;
+
+			runFusedGroup(c, passes.subList(start, end), params.subList(start, end));
+			start = end;
+		}
+	}
+
+	/**
+	 * Run a group of rewrite passes with one traversal. Preconditions were already checked.
+	 */
+	private static void runFusedGroup(Configuration c, List<TransformationPass> passes,
+			List<String> params)
+	{
+		ArrayList<ExpressionModifier> rewrites = new ArrayList<ExpressionModifier>();
+		ArrayList<ExpressionModifier> initRewrites = new ArrayList<ExpressionModifier>();
+
+		for (int i = 0; i < passes.size(); ++i)
+		{
+			TransformationPass tp = passes.get(i);
+
+			tp.config = c;
+			tp.parseParams(params.get(i));
+			rewrites.add(tp.getExpressionRewrite());
+			initRewrites.add(tp.getInitForbiddenRewrite());
+		}
+
+		ExpressionModifier.modifyComponent(c.root, ExpressionModifier.compose(rewrites));
+		ExpressionModifier.modifyInitForbidden(c, ExpressionModifier.compose(initRewrites));
+
+		for (TransformationPass tp : passes)
+			tp.finishRewrite();
+
+		// rewrites may have modified flow expressions in place
+		FlowAnalysis.invalidateAll();
+
+		passes.get(passes.size() - 1).validateAfterPass(c);
+	}
+
+	private void parseParams(String params)
 	{
 		if (params == null)
 			params = "";
@@ -150,7 +395,11 @@ public abstract class TransformationPass
 
 			throw new CmdLineRuntimeException(message, e);
 		}
+	}
 
+	private void runPass(String params)
+	{
+		parseParams(params);
 		runPass();
 	}
 
@@ -74,9 +74,11 @@ public class AffineTransformationPass extends TransformationPass
 
 			m.flowDynamics.put(varName, new ExpressionInterval("0"));
 
-			// rename all dynamics with an affine term to refer to the new variable
+			// rename all dynamics with an affine term to refer to the new variable. The new flows
+			// are added after extracting all the rows, so the mode's flow analysis is reused.
 			ArrayList<ArrayList<Double>> bMat = DynamicsUtil.extractDynamicsMatrixB(m);
 			ArrayList<Double> cVec = DynamicsUtil.extractDynamicsVectorC(m);
+			LinkedHashMap<String, ExpressionInterval> newFlows = new LinkedHashMap<String, ExpressionInterval>();
 
 			for (int index = 0; index < nonInputVars.size(); ++index)
 			{
@@ -124,9 +126,11 @@ public class AffineTransformationPass extends TransformationPass
 
 					Expression exp = FormulaParser.parseValue(expStr.toString());
 					String var = nonInputVars.get(index);
-					m.flowDynamics.put(var, new ExpressionInterval(exp));
+					newFlows.put(var, new ExpressionInterval(exp));
 				}
 			}
+
+			m.flowDynamics.putAll(newFlows);
 		}
 	}
 
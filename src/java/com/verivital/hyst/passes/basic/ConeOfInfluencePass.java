@@ -0,0 +1,257 @@
+package com.verivital.hyst.passes.basic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.kohsuke.args4j.Option;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.Preconditions;
+import com.verivital.hyst.util.PreconditionsFlag;
+
+/**
+ * Cone-of-influence reduction. This pass removes the variables which can't affect whether a
+ * forbidden state is reachable, like variables which are only there for monitoring or plotting.
+ *
+ * The cone of influence starts with the variables in the forbidden states, guards and invariants.
+ * A variable is added if some variable in the cone depends on it, which happens if it is used in a
+ * flow or reset of that variable, or if they appear together in a conjunct of the initial states.
+ * All other variables are removed, along with their flows, resets and the conjuncts of the initial
+ * states which only use them.
+ *
+ * If there are no forbidden states, every variable is of interest and the pass does nothing.
+ */
+public class ConeOfInfluencePass extends TransformationPass
+{
+	@Option(name = "-keep_plot", usage = "keep the plot variables (and the variables they depend on)")
+	private boolean keepPlotVars = false;
+
+	public ConeOfInfluencePass()
+	{
+		preconditions = new Preconditions(true);
+		preconditions.unskip(PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON);
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Cone of Influence Reduction Pass";
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "coi";
+	}
+
+	@Override
+	protected void runPass()
+	{
+		BaseComponent ha = (BaseComponent) config.root;
+
+		if (config.forbidden.isEmpty())
+		{
+			Hyst.log("No forbidden states; skipping cone of influence reduction.");
+			return;
+		}
+
+		Set<String> cone = getConeOfInfluence(ha);
+		ArrayList<String> removed = new ArrayList<String>();
+
+		for (String v : ha.variables)
+		{
+			if (!cone.contains(v))
+				removed.add(v);
+		}
+
+		if (removed.isEmpty())
+			return;
+
+		Hyst.log("Removing variables outside of the cone of influence: " + removed);
+		removeVariables(ha, removed);
+	}
+
+	/**
+	 * Get the variables which may affect reachability of the forbidden states
+	 */
+	private Set<String> getConeOfInfluence(BaseComponent ha)
+	{
+		Set<String> vars = new HashSet<String>(ha.variables);
+
+		// dependencies.get(x) are the variables whose values can influence x
+		HashMap<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+		for (String v : ha.variables)
+			dependencies.put(v, new HashSet<String>());
+
+		ArrayList<String> roots = new ArrayList<String>();
+
+		for (Expression e : config.forbidden.values())
+			roots.addAll(getVariables(e, vars));
+
+		if (keepPlotVars)
+		{
+			for (String v : config.settings.plotVariableNames)
+			{
+				if (vars.contains(v))
+					roots.add(v);
+			}
+		}
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			roots.addAll(getVariables(am.invariant, vars));
+
+			if (am.flowDynamics != null)
+				addDependencies(dependencies, am.flowDynamics, vars);
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			roots.addAll(getVariables(at.guard, vars));
+			addDependencies(dependencies, at.reset, vars);
+		}
+
+		// variables constrained together in the initial states depend on each other
+		for (Expression e : config.init.values())
+		{
+			for (Expression conjunct : splitConjunction(e))
+			{
+				Set<String> group = getVariables(conjunct, vars);
+
+				for (String v : group)
+					dependencies.get(v).addAll(group);
+			}
+		}
+
+		// breadth-first search backwards along the dependencies
+		Set<String> rv = new HashSet<String>(roots);
+		ArrayList<String> queue = new ArrayList<String>(rv);
+
+		for (int i = 0; i < queue.size(); ++i)
+		{
+			for (String dep : dependencies.get(queue.get(i)))
+			{
+				if (rv.add(dep))
+					queue.add(dep);
+			}
+		}
+
+		return rv;
+	}
+
+	private static void addDependencies(HashMap<String, Set<String>> dependencies,
+			LinkedHashMap<String, ExpressionInterval> assignments, Set<String> vars)
+	{
+		for (Entry<String, ExpressionInterval> e : assignments.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+
+			if (ei != null)
+				dependencies.get(e.getKey()).addAll(getVariables(ei.getExpression(), vars));
+		}
+	}
+
+	private void removeVariables(BaseComponent ha, List<String> removed)
+	{
+		ha.variables.removeAll(removed);
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			if (am.flowDynamics != null)
+				am.flowDynamics.keySet().removeAll(removed);
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+			at.reset.keySet().removeAll(removed);
+
+		Set<String> removedSet = new HashSet<String>(removed);
+
+		for (Entry<String, Expression> e : config.init.entrySet())
+		{
+			// conjuncts use either only removed variables or only kept ones
+			Expression newInit = Constant.TRUE;
+
+			for (Expression conjunct : splitConjunction(e.getValue()))
+			{
+				Set<String> used = getVariables(conjunct, removedSet);
+
+				if (used.isEmpty())
+					newInit = Expression.and(newInit, conjunct);
+			}
+
+			e.setValue(newInit);
+		}
+
+		config.settings.spaceExConfig.outputVars.removeAll(removed);
+
+		String[] plotVars = config.settings.plotVariableNames;
+
+		if (removedSet.contains(plotVars[0]) || removedSet.contains(plotVars[1]))
+		{
+			if (ha.variables.isEmpty())
+				plotVars[0] = plotVars[1] = null;
+			else
+			{
+				plotVars[0] = ha.variables.get(0);
+				plotVars[1] = ha.variables.size() > 1 ? ha.variables.get(1) : ha.variables.get(0);
+			}
+		}
+	}
+
+	/**
+	 * Split a conjunction into its conjuncts, in order. Other operators, like disjunctions, are
+	 * kept together. This uses an explicit stack, since long conjunctions are deep.
+	 */
+	private static ArrayList<Expression> splitConjunction(Expression e)
+	{
+		ArrayList<Expression> rv = new ArrayList<Expression>();
+		ArrayList<Expression> stack = new ArrayList<Expression>();
+		stack.add(e);
+
+		while (!stack.isEmpty())
+		{
+			Expression top = stack.remove(stack.size() - 1);
+
+			if (top instanceof Operation && ((Operation) top).op == Operator.AND)
+			{
+				List<Expression> children = ((Operation) top).children;
+
+				for (int i = children.size() - 1; i >= 0; --i)
+					stack.add(children.get(i));
+			}
+			else
+				rv.add(top);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the variables from a given collection which are used in an expression, including the
+	 * inputs and table entries of look-up tables
+	 */
+	private static Set<String> getVariables(Expression e, Collection<String> vars)
+	{
+		Set<String> rv = AutomatonUtil.getVariablesInExpression(e);
+		rv.retainAll(vars);
+
+		return rv;
+	}
+}
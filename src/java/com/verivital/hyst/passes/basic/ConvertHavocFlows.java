@@ -18,6 +18,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
@@ -87,9 +88,9 @@ public class ConvertHavocFlows extends TransformationPass
 					}
 					catch (ConstantMismatchException x)
 					{
-						Hyst.logDebug("Removing Mode '" + am.name
-								+ "', because unsatisfiable constants in invariant: "
-								+ am.invariant);
+						Hyst.logDebug(LogMessage.of("Removing Mode '", am.name,
+								"', because unsatisfiable constants in invariant: ",
+								am.invariant));
 						modesToRemove.add(am);
 						break;
 					}
@@ -112,8 +113,8 @@ public class ConvertHavocFlows extends TransformationPass
 							continue; // havoc variable is not referenced anyway
 					}
 
-					Hyst.logDebug("Converting havoc flow from variable " + name + " to range "
-							+ range + " in mode " + am.name);
+					Hyst.logDebug(LogMessage.of("Converting havoc flow from variable ", name,
+							" to range ", range, " in mode ", am.name));
 
 					// add a reset on this variable for all incoming transitions
 					// to be the range interval
@@ -140,12 +141,12 @@ public class ConvertHavocFlows extends TransformationPass
 				config.init.remove(am.name);
 
 			removeModesAndTransitions(ha, modesToRemove);
-			Hyst.logDebug(ha.toString());
+			Hyst.logDebug(LogMessage.of(ha));
 
 			Hyst.log("\nRunning discrete reachability to remove newly disconnected modes");
 			new RemoveDiscreteUnreachablePass().runTransformationPass(config, null);
 
-			Hyst.logDebug(ha.toString());
+			Hyst.logDebug(LogMessage.of(ha));
 		}
 
 		// set derivative of all variables in havocVariables to zero in other
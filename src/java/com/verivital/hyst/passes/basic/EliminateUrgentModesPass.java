@@ -0,0 +1,379 @@
+package com.verivital.hyst.passes.basic;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.MatrixExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.Preconditions;
+import com.verivital.hyst.util.PreconditionsFlag;
+
+/**
+ * This pass removes urgent modes exactly, by composing each transition into an urgent mode with
+ * each transition out of it. Since no time elapses in an urgent mode, taking t1 into the urgent
+ * mode u and then t2 out of it is the same as a single transition whose guard is
+ *
+ * guard1 & invariant(u)[reset1] & guard2[reset1]
+ *
+ * and whose reset is reset2[reset1], where [reset1] means substituting the first reset's
+ * assignments for the variables. Chains of urgent modes are removed one mode at a time.
+ *
+ * Some urgent modes are kept: modes with initial or forbidden states, modes with a self-loop
+ * (which is what is left of a cycle of urgent modes after the other modes in the cycle are
+ * removed), modes where composing would require substituting a nondeterministic reset, and modes
+ * where both transitions of a pair have (different) labels. The printers encode the remaining
+ * urgent modes with a clock, as before (see AutomatonUtil.convertUrgentTransitions).
+ */
+public class EliminateUrgentModesPass extends TransformationPass
+{
+	// transitions into and out of each remaining mode
+	private final IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>> incoming = new IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+	private final IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>> outgoing = new IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+
+	// transitions which were removed, mapped to the composed transitions which replace them
+	private final IdentityHashMap<AutomatonTransition, List<AutomatonTransition>> replacements = new IdentityHashMap<AutomatonTransition, List<AutomatonTransition>>();
+
+	public EliminateUrgentModesPass()
+	{
+		// skip all checks
+		preconditions = new Preconditions(true);
+
+		// except require that it's flat
+		preconditions.skip[PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON.ordinal()] = false;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Eliminate Urgent Modes Pass";
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "eliminate_urgent";
+	}
+
+	@Override
+	protected void runPass()
+	{
+		BaseComponent ha = (BaseComponent) config.root;
+		int eliminated = 0;
+		boolean changed = true;
+
+		// composed transitions are also appended to ha.transitions, but are placed using the index
+		ArrayList<AutomatonTransition> original = new ArrayList<AutomatonTransition>(
+				ha.transitions);
+		buildIndexes(ha);
+
+		// removing a mode can create a self-loop on another urgent mode, so repeat until stable
+		while (changed)
+		{
+			changed = false;
+
+			for (AutomatonMode am : new ArrayList<AutomatonMode>(ha.modes.values()))
+			{
+				if (canEliminate(am))
+				{
+					eliminate(ha, am);
+					++eliminated;
+					changed = true;
+				}
+			}
+		}
+
+		ha.transitions = getFinalTransitions(original);
+
+		if (eliminated > 0)
+			Hyst.log("Eliminated " + eliminated + " urgent modes by composing transitions.");
+
+		if (AutomatonUtil.hasUrgentMode(ha))
+			Hyst.log("Some urgent modes could not be eliminated (for example, urgent cycles); "
+					+ "they will be encoded with a clock by the printer.");
+	}
+
+	/**
+	 * Index the transitions into and out of each mode, so eliminating a mode doesn't need to scan
+	 * every transition. The outgoing lists are kept in the order of ha.transitions.
+	 */
+	private void buildIndexes(BaseComponent ha)
+	{
+		incoming.clear();
+		outgoing.clear();
+		replacements.clear();
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			incoming.put(am, new ArrayList<AutomatonTransition>());
+			outgoing.put(am, new ArrayList<AutomatonTransition>());
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			outgoing.get(at.from).add(at);
+			incoming.get(at.to).add(at);
+		}
+	}
+
+	/**
+	 * Get the transitions after eliminating modes. Each composed transition takes the place of the
+	 * incoming transition it was made from, and transitions out of eliminated modes are removed.
+	 * 
+	 * @param original
+	 *            the transitions before the pass ran
+	 */
+	private ArrayList<AutomatonTransition> getFinalTransitions(
+			ArrayList<AutomatonTransition> original)
+	{
+		ArrayList<AutomatonTransition> rv = new ArrayList<AutomatonTransition>();
+		ArrayList<AutomatonTransition> stack = new ArrayList<AutomatonTransition>();
+
+		// composed transitions can be replaced again, so use a stack to expand them in order
+		for (AutomatonTransition at : original)
+		{
+			stack.add(at);
+
+			while (!stack.isEmpty())
+			{
+				AutomatonTransition t = stack.remove(stack.size() - 1);
+				List<AutomatonTransition> r = replacements.get(t);
+
+				if (r == null)
+					rv.add(t);
+				else
+				{
+					for (int i = r.size() - 1; i >= 0; --i)
+						stack.add(r.get(i));
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	private boolean canEliminate(AutomatonMode am)
+	{
+		if (!am.urgent || config.init.containsKey(am.name)
+				|| config.forbidden.containsKey(am.name))
+			return false;
+
+		List<AutomatonTransition> in = incoming.get(am);
+		List<AutomatonTransition> out = outgoing.get(am);
+
+		for (AutomatonTransition at : out)
+		{
+			if (at.to == am)
+				return false;
+		}
+
+		for (AutomatonTransition inTrans : in)
+		{
+			for (AutomatonTransition outTrans : out)
+			{
+				if (inTrans.label != null && outTrans.label != null
+						&& !inTrans.label.equals(outTrans.label))
+					return false;
+
+				if (!canSubstitute(inTrans.reset, am.invariant, outTrans))
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Can the first reset be substituted into the invariant and the second transition? This is
+	 * false if a variable with a nondeterministic reset is used afterwards.
+	 */
+	private static boolean canSubstitute(LinkedHashMap<String, ExpressionInterval> reset,
+			Expression invariant, AutomatonTransition out)
+	{
+		ArrayList<String> nondeterministic = new ArrayList<String>();
+
+		for (Entry<String, ExpressionInterval> e : reset.entrySet())
+		{
+			if (e.getValue().getInterval() != null)
+				nondeterministic.add(e.getKey());
+		}
+
+		if (nondeterministic.isEmpty())
+			return true;
+
+		ArrayList<Expression> used = new ArrayList<Expression>();
+		used.add(invariant);
+		used.add(out.guard);
+
+		for (ExpressionInterval ei : out.reset.values())
+			used.add(ei.getExpression());
+
+		for (Expression e : used)
+		{
+			for (String var : nondeterministic)
+			{
+				if (AutomatonUtil.getVariablesInExpression(e).contains(var))
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove an urgent mode, replacing each pair of transitions through it with a single transition
+	 */
+	private void eliminate(BaseComponent ha, AutomatonMode am)
+	{
+		ArrayList<AutomatonTransition> in = incoming.remove(am);
+		ArrayList<AutomatonTransition> out = outgoing.remove(am);
+
+		// transitions out of the mode are removed
+		for (AutomatonTransition outTrans : out)
+		{
+			incoming.get(outTrans.to).remove(outTrans);
+			replacements.put(outTrans, new ArrayList<AutomatonTransition>());
+		}
+
+		// composed transitions take the place of the incoming transition
+		for (AutomatonTransition inTrans : in)
+		{
+			ArrayList<AutomatonTransition> composed = new ArrayList<AutomatonTransition>();
+
+			for (AutomatonTransition outTrans : out)
+			{
+				AutomatonTransition at = compose(ha, inTrans, am, outTrans);
+
+				composed.add(at);
+				incoming.get(at.to).add(at);
+			}
+
+			ArrayList<AutomatonTransition> fromList = outgoing.get(inTrans.from);
+			int index = fromList.indexOf(inTrans);
+			fromList.remove(index);
+			fromList.addAll(index, composed);
+
+			replacements.put(inTrans, composed);
+		}
+
+		ha.modes.remove(am.name);
+	}
+
+	/**
+	 * Create the transition equivalent to taking 'in' into the urgent mode and then 'out'
+	 */
+	private static AutomatonTransition compose(BaseComponent ha, AutomatonTransition in,
+			AutomatonMode am, AutomatonTransition out)
+	{
+		LinkedHashMap<String, Expression> sub = new LinkedHashMap<String, Expression>();
+
+		for (Entry<String, ExpressionInterval> e : in.reset.entrySet())
+			sub.put(e.getKey(), e.getValue().getExpression());
+
+		AutomatonTransition rv = ha.createTransition(in.from, out.to);
+		rv.label = in.label != null ? in.label : out.label;
+
+		rv.guard = Expression.and(in.guard.copy(), substitute(am.invariant, sub));
+		rv.guard = Expression.and(rv.guard, substitute(out.guard, sub));
+
+		for (Entry<String, ExpressionInterval> e : in.reset.entrySet())
+			rv.reset.put(e.getKey(), e.getValue().copy());
+
+		for (Entry<String, ExpressionInterval> e : out.reset.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+			Expression exp = substitute(ei.getExpression(), sub);
+			Interval i = ei.getInterval() == null ? null : new Interval(ei.getInterval());
+
+			rv.reset.put(e.getKey(), new ExpressionInterval(exp, i));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simultaneously substitute expressions for variables. This returns a new expression, built
+	 * bottom-up with an explicit stack, so the original is not copied and deep expressions are
+	 * supported.
+	 */
+	private static Expression substitute(Expression e, Map<String, Expression> sub)
+	{
+		return new Substituter(sub).evaluate(e);
+	}
+
+	/**
+	 * Builds the substituted expression from the substituted children. The children are the
+	 * operands of operations, the cells of non-numeric matrices, and the inputs and table of look
+	 * up tables.
+	 */
+	private static class Substituter extends PostOrder<Expression>
+	{
+		private final Map<String, Expression> sub;
+
+		public Substituter(Map<String, Expression> sub)
+		{
+			this.sub = sub;
+		}
+
+		@Override
+		protected List<Expression> getChildren(Expression e)
+		{
+			return ExpressionTraversal.getSubexpressions(e);
+		}
+
+		@Override
+		protected Expression combine(Expression e, List<Expression> children)
+		{
+			Expression rv;
+
+			if (e instanceof Variable && sub.containsKey(((Variable) e).name))
+				rv = sub.get(((Variable) e).name).copy();
+			else if (e instanceof Operation)
+				rv = new Operation(((Operation) e).op, new ArrayList<Expression>(children));
+			else if (e instanceof MatrixExpression && !((MatrixExpression) e).isNumeric())
+			{
+				MatrixExpression m = (MatrixExpression) e;
+				int[] sizes = new int[m.getNumDims()];
+
+				for (int d = 0; d < sizes.length; ++d)
+					sizes[d] = m.getDimWidth(d);
+
+				rv = new MatrixExpression(children.toArray(new Expression[children.size()]), sizes);
+			}
+			else if (e instanceof LutExpression)
+			{
+				LutExpression lut = (LutExpression) e;
+				int numInputs = lut.inputs.length;
+				Expression[] inputs = children.subList(0, numInputs)
+						.toArray(new Expression[numInputs]);
+				MatrixExpression[] breakpoints = new MatrixExpression[numInputs];
+
+				for (int d = 0; d < numInputs; ++d)
+					breakpoints[d] = new MatrixExpression(lut.breakpoints[d]);
+
+				rv = new LutExpression(inputs, (MatrixExpression) children.get(numInputs),
+						breakpoints);
+			}
+			else
+				rv = e.copy();
+
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package com.verivital.hyst.passes.basic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.Preconditions;
+import com.verivital.hyst.util.PreconditionsFlag;
+
+/**
+ * This pass merges modes which are bisimilar, which is common in flattened automata. Two modes are
+ * equivalent if they have the same flows, invariant, urgency and forbidden states, and the same
+ * outgoing transitions (label, guard and reset) into equivalent modes.
+ *
+ * The equivalence classes are computed by partition refinement. Modes start out partitioned by
+ * their local signature (flows, invariant, urgency and forbidden states). A block is then split by
+ * the set of outgoing transitions of each member, where each transition's target is replaced by
+ * its block. Whenever a mode moves to a new block, only the blocks of its predecessors need to be
+ * checked again, so a worklist of blocks is used until the partition is stable.
+ *
+ * Each block is replaced by its first mode. Transitions into the block are redirected to it, the
+ * outgoing transitions of the other modes are removed (the first mode has equivalent ones), and
+ * duplicate transitions are removed. Initial states of merged modes are combined with a
+ * disjunction.
+ */
+public class MergeEquivalentModesPass extends TransformationPass
+{
+	public MergeEquivalentModesPass()
+	{
+		// skip all checks
+		preconditions = new Preconditions(true);
+
+		// except require that it's flat
+		preconditions.skip[PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON.ordinal()] = false;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Merge Equivalent Modes Pass";
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "merge_modes";
+	}
+
+	@Override
+	protected void runPass()
+	{
+		BaseComponent ha = (BaseComponent) config.root;
+		int numModes = ha.modes.size();
+		AutomatonMode[] modes = ha.modes.values().toArray(new AutomatonMode[numModes]);
+		IdentityHashMap<AutomatonMode, Integer> indices;
+		indices = new IdentityHashMap<AutomatonMode, Integer>();
+
+		for (int i = 0; i < numModes; ++i)
+			indices.put(modes[i], i);
+
+		int[] blocks = computePartition(ha, modes, indices);
+		int numBlocks = 0;
+
+		for (int b : blocks)
+			numBlocks = Math.max(numBlocks, b + 1);
+
+		if (numBlocks == numModes)
+			return;
+
+		// the first mode in each block represents it
+		AutomatonMode[] reps = new AutomatonMode[numBlocks];
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			if (reps[blocks[i]] == null)
+				reps[blocks[i]] = modes[i];
+		}
+
+		mergeModes(ha, modes, indices, blocks, reps);
+
+		Hyst.log("Merged equivalent modes: " + numModes + " modes reduced to " + numBlocks);
+	}
+
+	/**
+	 * Compute the coarsest stable partition of the modes
+	 *
+	 * @return the block index of each mode
+	 */
+	private int[] computePartition(BaseComponent ha, AutomatonMode[] modes,
+			IdentityHashMap<AutomatonMode, Integer> indices)
+	{
+		int numModes = modes.length;
+		int[] blocks = new int[numModes];
+		ArrayList<ArrayList<Integer>> members = new ArrayList<ArrayList<Integer>>();
+
+		// initial partition by local signature
+		LinkedHashMap<String, Integer> localBlocks = new LinkedHashMap<String, Integer>();
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			String sig = localSignature(modes[i]);
+			Integer b = localBlocks.get(sig);
+
+			if (b == null)
+			{
+				b = members.size();
+				localBlocks.put(sig, b);
+				members.add(new ArrayList<Integer>());
+			}
+
+			blocks[i] = b;
+			members.get(b).add(i);
+		}
+
+		// outgoing transitions and predecessors of each mode
+		ArrayList<ArrayList<AutomatonTransition>> outgoing;
+		ArrayList<ArrayList<Integer>> predecessors = new ArrayList<ArrayList<Integer>>();
+		IdentityHashMap<AutomatonTransition, String> transitionSigs;
+		outgoing = new ArrayList<ArrayList<AutomatonTransition>>();
+		transitionSigs = new IdentityHashMap<AutomatonTransition, String>();
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			outgoing.add(new ArrayList<AutomatonTransition>());
+			predecessors.add(new ArrayList<Integer>());
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			int from = indices.get(at.from);
+
+			outgoing.get(from).add(at);
+			predecessors.get(indices.get(at.to)).add(from);
+			transitionSigs.put(at, transitionSignature(at));
+		}
+
+		// refine until stable
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		HashSet<Integer> inWorklist = new HashSet<Integer>();
+
+		for (int b = 0; b < members.size(); ++b)
+		{
+			worklist.add(b);
+			inWorklist.add(b);
+		}
+
+		while (!worklist.isEmpty())
+		{
+			int b = worklist.poll();
+			inWorklist.remove(b);
+			ArrayList<Integer> blockMembers = members.get(b);
+
+			if (blockMembers.size() <= 1)
+				continue;
+
+			LinkedHashMap<String, ArrayList<Integer>> split;
+			split = new LinkedHashMap<String, ArrayList<Integer>>();
+
+			for (int m : blockMembers)
+			{
+				TreeSet<String> sig = new TreeSet<String>();
+
+				for (AutomatonTransition at : outgoing.get(m))
+					sig.add(transitionSigs.get(at) + " -> " + blocks[indices.get(at.to)]);
+
+				String key = sig.toString();
+				ArrayList<Integer> group = split.get(key);
+
+				if (group == null)
+				{
+					group = new ArrayList<Integer>();
+					split.put(key, group);
+				}
+
+				group.add(m);
+			}
+
+			if (split.size() == 1)
+				continue;
+
+			// the first group keeps the block number, the others get new blocks
+			Iterator<ArrayList<Integer>> it = split.values().iterator();
+			members.set(b, it.next());
+
+			while (it.hasNext())
+			{
+				ArrayList<Integer> group = it.next();
+				int newBlock = members.size();
+				members.add(group);
+
+				for (int m : group)
+				{
+					blocks[m] = newBlock;
+
+					// predecessors of moved modes may now be distinguishable
+					for (int p : predecessors.get(m))
+					{
+						if (inWorklist.add(blocks[p]))
+							worklist.add(blocks[p]);
+					}
+				}
+			}
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Replace each block by its representative mode
+	 */
+	private void mergeModes(BaseComponent ha, AutomatonMode[] modes,
+			IdentityHashMap<AutomatonMode, Integer> indices, int[] blocks, AutomatonMode[] reps)
+	{
+		LinkedHashMap<String, AutomatonMode> oldModes = ha.modes;
+		LinkedHashMap<String, AutomatonMode> newModes = new LinkedHashMap<String, AutomatonMode>();
+
+		for (AutomatonMode am : modes)
+		{
+			if (reps[blocks[indices.get(am)]] == am)
+				newModes.put(am.name, am);
+		}
+
+		ha.modes = newModes;
+
+		// keep transitions from representatives, and redirect them to representatives
+		ArrayList<AutomatonTransition> newTransitions = new ArrayList<AutomatonTransition>();
+		HashSet<String> seen = new HashSet<String>();
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			if (reps[blocks[indices.get(at.from)]] != at.from)
+				continue;
+
+			at.to = reps[blocks[indices.get(at.to)]];
+
+			if (seen.add(at.from.name + " -> " + at.to.name + " " + transitionSignature(at)))
+				newTransitions.add(at);
+		}
+
+		ha.transitions = newTransitions;
+
+		LinkedHashMap<String, Expression> newInit = new LinkedHashMap<String, Expression>();
+
+		for (Entry<String, Expression> e : config.init.entrySet())
+		{
+			String rep = reps[blocks[indices.get(oldModes.get(e.getKey()))]].name;
+			Expression prev = newInit.get(rep);
+
+			newInit.put(rep, prev == null ? e.getValue() : Expression.or(prev, e.getValue()));
+		}
+
+		config.init = newInit;
+
+		// merged modes have identical forbidden states
+		LinkedHashMap<String, Expression> newForbidden = new LinkedHashMap<String, Expression>();
+
+		for (Entry<String, Expression> e : config.forbidden.entrySet())
+		{
+			String rep = reps[blocks[indices.get(oldModes.get(e.getKey()))]].name;
+
+			if (!newForbidden.containsKey(rep))
+				newForbidden.put(rep, e.getValue());
+		}
+
+		config.forbidden = newForbidden;
+	}
+
+	/**
+	 * The part of a mode's signature which doesn't depend on other modes
+	 */
+	private String localSignature(AutomatonMode am)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		rv.append(am.urgent ? "urgent" : "normal");
+		rv.append("; invariant: ").append(am.invariant.toDefaultString());
+		rv.append("; flows: ").append(mapSignature(am.flowDynamics));
+
+		Expression forbidden = config.forbidden.get(am.name);
+		rv.append("; forbidden: ").append(forbidden == null ? "none" : forbidden.toDefaultString());
+
+		return rv.toString();
+	}
+
+	private static String transitionSignature(AutomatonTransition at)
+	{
+		return "label: " + at.label + "; guard: " + at.guard.toDefaultString() + "; reset: "
+				+ mapSignature(at.reset);
+	}
+
+	private static String mapSignature(LinkedHashMap<String, ExpressionInterval> map)
+	{
+		if (map == null)
+			return "null";
+
+		// sort by variable, so the order of insertion doesn't matter
+		TreeMap<String, String> sorted = new TreeMap<String, String>();
+
+		for (Entry<String, ExpressionInterval> e : map.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+			sorted.put(e.getKey(), ei == null ? "null" : ei.toDefaultString());
+		}
+
+		return sorted.toString();
+	}
+}
@@ -10,6 +10,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.IntervalContractor;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
@@ -17,7 +18,11 @@ import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
 
 /**
  * This pass removes modes and associated transitions from the automata which have invariants that
- * are unsatisfiable.
+ * are unsatisfiable. It also removes transitions which can never be taken, since their guard
+ * contradicts the source mode's invariant.
+ * 
+ * Unsatisfiability is checked using simple range checks, and then interval constraint
+ * propagation (IntervalContractor), which also handles nonlinear and multivariate constraints.
  * 
  * @author Stanley Bak (Feb 2015)
  *
@@ -37,11 +42,19 @@ public class RemoveSimpleUnsatInvariantsPass extends TransformationPass
 		}
 
 		removeModes(ha, toRemove);
+
+		for (Iterator<AutomatonTransition> i = ha.transitions.iterator(); i.hasNext();)
+		{
+			AutomatonTransition at = i.next();
+
+			if (IntervalContractor.isUnsat(at.guard, at.from.invariant))
+				i.remove();
+		}
 	}
 
 	/**
 	 * Check if the given expression is unsatisfiable using simple range checks on all the
-	 * variables.
+	 * variables, and then by interval constraint propagation.
 	 * 
 	 * @param e
 	 *            the expression to check
@@ -75,7 +88,7 @@ public class RemoveSimpleUnsatInvariantsPass extends TransformationPass
 			}
 		}
 
-		return rv;
+		return rv || IntervalContractor.isUnsat(e);
 	}
 
 	private void removeModes(BaseComponent ha, ArrayList<AutomatonMode> toRemove)
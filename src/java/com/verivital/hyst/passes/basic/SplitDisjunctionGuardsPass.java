@@ -1,20 +1,19 @@
 package com.verivital.hyst.passes.basic;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 import com.verivital.hyst.grammar.formula.Expression;
-import com.verivital.hyst.grammar.formula.Operation;
-import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.GuardNormalizer;
 
 /**
  * This pass splits guards with disjunctions into multiple transitions.
@@ -22,6 +21,12 @@ import com.verivital.hyst.passes.TransformationPass;
  * For example, A -- (x == 1 || x == 2) --> B would be split into two transitions from A to B, one
  * with (x==1) and one with (x == 2)
  * 
+ * Guards are converted to a disjoint disjunctive normal form with a GuardNormalizer, so nested
+ * disjunctions like (a | b) & (c | d) are also split, and the new transitions don't overlap. For
+ * example, (t >= 5 | x >= 7) becomes (t >= 5) and (t < 5 & x >= 7), so reachability tools don't
+ * compute the successors of the overlapping part twice. Transitions with unsatisfiable guards are
+ * removed. The atomic constraints are shared across all the guards in the automaton.
+ * 
  * @author Stanley Bak (October 2014)
  *
  */
@@ -47,26 +52,41 @@ public class SplitDisjunctionGuardsPass extends TransformationPass
 
 	public static void split(Component root)
 	{
-		splitRecursive(root);
+		splitRecursive(root, new GuardNormalizer());
 	}
 
-	private static void splitRecursive(Component c)
+	private static void splitRecursive(Component c, GuardNormalizer normalizer)
 	{
 		if (c instanceof BaseComponent)
 		{
 			// base case
-			BaseComponent ha = (BaseComponent) c;
+			final BaseComponent ha = (BaseComponent) c;
 			List<AutomatonTransition> originalTransitions = new ArrayList<AutomatonTransition>(
 					ha.transitions);
 
-			for (AutomatonTransition t : originalTransitions)
+			for (final AutomatonTransition t : originalTransitions)
 			{
-				Collection<Expression> conditions = splitExpression(t.guard);
+				// guards without disjunctions are kept as they are
+				if ((AutomatonUtil.classifyExpressionOps(t.guard)
+						& AutomatonUtil.OPS_DISJUNCTION) == 0)
+					continue;
+
+				final List<Expression> conditions = normalizer.normalize(t.guard);
 
-				if (conditions.size() > 1)
+				if (conditions.size() == 1)
+					t.guard = conditions.get(0);
+				else
 				{
-					Hyst.log("Splitting disjunctive guard '" + t.guard.toDefaultString()
-							+ "' in automaton " + ha.instanceName);
+					Hyst.log(new LogMessage()
+					{
+						@Override
+						public String get()
+						{
+							return "Splitting disjunctive guard '" + t.guard.toDefaultString()
+									+ "' in automaton " + ha.instanceName + " into "
+									+ conditions.size() + " transitions";
+						}
+					});
 
 					// remove the old one
 					ha.transitions.remove(t);
@@ -86,31 +106,7 @@ public class SplitDisjunctionGuardsPass extends TransformationPass
 			NetworkComponent nc = (NetworkComponent) c;
 
 			for (ComponentInstance ci : nc.children.values())
-				splitRecursive(ci.child);
+				splitRecursive(ci.child, normalizer);
 		}
 	}
-
-	/**
-	 * split a disjunctive expression into several sub expressions
-	 * 
-	 * @param reset
-	 * @return
-	 */
-	private static Collection<Expression> splitExpression(Expression e)
-	{
-		Collection<Expression> rv = new LinkedList<Expression>();
-
-		// currently just split top-level disjunctions
-		if (e instanceof Operation && ((Operation) e).op == Operator.OR)
-		{
-			Operation o = (Operation) e;
-
-			rv.addAll(splitExpression(o.getLeft()));
-			rv.addAll(splitExpression(o.getRight()));
-		}
-		else // not a disjunction
-			rv.add(e);
-
-		return rv;
-	}
 }
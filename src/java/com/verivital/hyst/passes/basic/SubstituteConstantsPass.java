@@ -10,6 +10,7 @@ import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionModifier;
 import com.verivital.hyst.ir.network.ComponentInstance;
@@ -37,24 +38,88 @@ public class SubstituteConstantsPass extends TransformationPass
 	@Override
 	protected void runPass()
 	{
-		final Map<String, Interval> rootMapping = getConstMapping(config.root);
 		// modify init and forbidden
+		ExpressionModifier.modifyInitForbidden(config,
+				makeModifier(getConstMapping(config.root)));
 
-		ExpressionModifier.modifyInitForbidden(config, new ExpressionModifier()
+		removeRedundantConstaints(config.init);
+
+		if (config.forbidden != null)
+			removeRedundantConstaints(config.forbidden);
+
+		runRec(config.root);
+	}
+
+	/**
+	 * With a single base component, every expression uses the root's constants, so the pass is a
+	 * rewrite
+	 */
+	@Override
+	public boolean isExpressionRewrite(Configuration c)
+	{
+		return c.root instanceof BaseComponent;
+	}
+
+	@Override
+	protected ExpressionModifier getExpressionRewrite()
+	{
+		return makeModifier(getConstMapping(config.root));
+	}
+
+	@Override
+	protected ExpressionModifier getInitForbiddenRewrite()
+	{
+		// also remove constraints like 5 == 5, like removeRedundantConstaints()
+		return ExpressionModifier.compose(getExpressionRewrite(), new ExpressionModifier()
 		{
 			@Override
-			public Expression modifyExpression(Expression e)
+			protected Expression modifyExpression(Expression e)
+			{
+				return SimplifyExpressionsPass.simplifyExpression(e);
+			}
+
+			@Override
+			public boolean isStateless()
 			{
-				return substituteConstantsIntoExpression(rootMapping, e);
+				return true;
 			}
 		});
+	}
 
-		removeRedundantConstaints(config.init);
+	@Override
+	protected void finishRewrite()
+	{
+		config.root.constants.clear();
+	}
 
-		if (config.forbidden != null)
-			removeRedundantConstaints(config.forbidden);
+	/**
+	 * Make a modifier which substitutes the given constants
+	 */
+	private static ExpressionModifier makeModifier(Map<String, Interval> constants)
+	{
+		final ValueSubstituter vs = new ValueSubstituter(makeSubstitutionMap(constants));
 
-		runRec(config.root);
+		return new ExpressionModifier()
+		{
+			@Override
+			protected Expression modifyExpression(Expression e)
+			{
+				return vs.substitute(e);
+			}
+
+			@Override
+			public boolean isStateless()
+			{
+				return true;
+			}
+
+			@Override
+			public boolean modifiesInPlace()
+			{
+				// ValueSubstituter works on a copy
+				return false;
+			}
+		};
 	}
 
 	private void removeRedundantConstaints(LinkedHashMap<String, Expression> init)
@@ -71,17 +136,9 @@ public class SubstituteConstantsPass extends TransformationPass
 	{
 		if (c instanceof BaseComponent)
 		{
-			final BaseComponent ha = (BaseComponent) c;
-			final Map<String, Interval> mapping = getConstMapping(ha);
+			BaseComponent ha = (BaseComponent) c;
 
-			ExpressionModifier.modifyBaseComponent(ha, new ExpressionModifier()
-			{
-				@Override
-				public Expression modifyExpression(Expression e)
-				{
-					return substituteConstantsIntoExpression(mapping, e);
-				}
-			});
+			ExpressionModifier.modifyBaseComponent(ha, makeModifier(getConstMapping(ha)));
 
 			ha.constants.clear();
 		}
@@ -127,6 +184,13 @@ public class SubstituteConstantsPass extends TransformationPass
 	 */
 	public static Expression substituteConstantsIntoExpression(Map<String, Interval> constants,
 			Expression exp)
+	{
+		ValueSubstituter vs = new ValueSubstituter(makeSubstitutionMap(constants));
+
+		return vs.substitute(exp);
+	}
+
+	private static Map<String, Expression> makeSubstitutionMap(Map<String, Interval> constants)
 	{
 		HashMap<String, Expression> subMap = new HashMap<String, Expression>();
 
@@ -143,9 +207,7 @@ public class SubstituteConstantsPass extends TransformationPass
 			}
 		}
 
-		ValueSubstituter vs = new ValueSubstituter(subMap);
-
-		return vs.substitute(exp);
+		return subMap;
 	}
 
 	@Override
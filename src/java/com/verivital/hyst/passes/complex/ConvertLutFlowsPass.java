@@ -26,6 +26,7 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.python.PythonBridge;
@@ -579,8 +580,9 @@ public class ConvertLutFlowsPass extends TransformationPass
 		hr.enumerateCorners(interpolateEnumerator);
 		Expression e = interpolateEnumerator.accumulator;
 
-		Hyst.logDebug("nLinearInterpolation result expression for " + Arrays.toString(indexList)
-				+ ": " + e.toDefaultString());
+		Hyst.logDebug(defaultStringMessage(
+				"nLinearInterpolation result expression for " + Arrays.toString(indexList) + ": ",
+				e));
 
 		double CHOP_TOL = 1e-8;
 
@@ -589,11 +591,27 @@ public class ConvertLutFlowsPass extends TransformationPass
 		else if (simplifyMode == SIMPLIFY_INTERNAL)
 			e = SimplifyExpressionsPass.simplifyExpression(e);
 
-		Hyst.logDebug("after pythonSimplifyExpressionChop: " + e.toDefaultString());
+		Hyst.logDebug(defaultStringMessage("after pythonSimplifyExpressionChop: ", e));
 
 		return e;
 	}
 
+	/**
+	 * A log message with an expression printed using the default printer, which is only
+	 * converted to a string if it's logged
+	 */
+	private static LogMessage defaultStringMessage(final String prefix, final Expression e)
+	{
+		return new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				return prefix + e.toDefaultString();
+			}
+		};
+	}
+
 	// used to accumulate the expression when performing the interpolation
 	private static class InterpolateCornerEnumerator extends HyperRectangleCornerEnumerator
 	{
@@ -603,6 +621,7 @@ public class ConvertLutFlowsPass extends TransformationPass
 		private Expression[] oneMinusVars;
 		private MatrixExpression table;
 		private int[] indexList;
+		private int[] index; // reused for each corner
 
 		public InterpolateCornerEnumerator(Expression[] vars, Expression[] oneMinusVars,
 				MatrixExpression table, int[] indexList)
@@ -611,13 +630,12 @@ public class ConvertLutFlowsPass extends TransformationPass
 			this.oneMinusVars = oneMinusVars;
 			this.table = table;
 			this.indexList = indexList;
+			this.index = new int[indexList.length];
 		}
 
 		@Override
 		public void enumerateWithCoord(HyperPoint p, boolean[] isMin)
 		{
-			int[] index = new int[isMin.length];
-
 			for (int i = 0; i < indexList.length; ++i)
 				index[i] = isMin[i] ? indexList[i] : indexList[i] + 1;
 
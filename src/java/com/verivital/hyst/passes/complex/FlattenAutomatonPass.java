@@ -3,8 +3,12 @@ package com.verivital.hyst.passes.complex;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import org.kohsuke.args4j.Option;
+
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
@@ -17,10 +21,12 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.util.FlattenRenameUtils;
+import com.verivital.hyst.util.FlattenSymmetryUtils;
 import com.verivital.hyst.util.Preconditions;
 
 /**
@@ -32,11 +38,21 @@ import com.verivital.hyst.util.Preconditions;
  * Modes get renamed based on the modes in each base component, separated by SEPARATOR('_'). This
  * can lead to ambiguous names if modes already have underscores in them; this isn't handled
  * currently.
+ * 
+ * With -symmetry, groups of interchangeable instances are merged into one mode per multiset of
+ * their modes, rather than the full cross product (see FlattenSymmetryUtils).
  */
 public class FlattenAutomatonPass extends TransformationPass
 {
 	public static final String SEPARATOR = "_";
 
+	@Option(name = "-symmetry", usage = "merge interchangeable instances (same template and "
+			+ "bindings, no local variables) into one mode per multiset of their modes")
+	public boolean symmetry = false;
+
+	// groups of interchangeable instances in each network component, if symmetry is set
+	private Map<NetworkComponent, List<List<String>>> symmetryGroups = null;
+
 	public FlattenAutomatonPass()
 	{
 		preconditions = new Preconditions(true); // skip all checks
@@ -59,14 +75,14 @@ public class FlattenAutomatonPass extends TransformationPass
 		BaseComponent ha = (BaseComponent) c.root;
 		Hyst.log("\nFlattened Automaton (" + ha.modes.size() + " locations and "
 				+ ha.transitions.size() + " transitions)");
-		Hyst.logDebug(c.toString());
+		Hyst.logDebug(LogMessage.of(c));
 
 		// 2. remove unreachable (gets rid of lots of modes)
 		new RemoveDiscreteUnreachablePass().runVanillaPass(c, "");
 		int numModes = ha.modes.size();
 		Hyst.log("\nRemoved Discrete Unreachable Modes (" + numModes + " locations and "
 				+ ha.transitions.size() + " transitions)");
-		Hyst.logDebug(c.toString());
+		Hyst.logDebug(LogMessage.of(c));
 
 		// 3 get rid of unsat modes
 		new RemoveSimpleUnsatInvariantsPass().runVanillaPass(c, "");
@@ -80,7 +96,7 @@ public class FlattenAutomatonPass extends TransformationPass
 			Hyst.log("\nRemoved Discrete Unreachable Modes again, since some were removed ("
 					+ ha.modes.size() + " locations and " + ha.transitions.size()
 					+ " transitions)");
-			Hyst.logDebug(c.toString());
+			Hyst.logDebug(LogMessage.of(c));
 		}
 	}
 
@@ -101,7 +117,14 @@ public class FlattenAutomatonPass extends TransformationPass
 	{
 		FlattenRenameUtils.convertToFullyQualifiedParams(config.root);
 
+		if (symmetry)
+		{
+			symmetryGroups = FlattenSymmetryUtils.findGroups(config.root);
+			FlattenSymmetryUtils.renameInitForbidden(config, symmetryGroups);
+		}
+
 		config.root = flatten(config.root);
+		symmetryGroups = null;
 
 		if (!(config.root instanceof BaseComponent))
 			throw new AutomatonExportException("Flatten failed (root is not BaseComponent)");
@@ -134,15 +157,34 @@ public class FlattenAutomatonPass extends TransformationPass
 			Hyst.log("Flatten called on NetworkComponent '" + c.getFullyQualifiedInstanceName()
 					+ "'");
 
-			Hyst.logDebug(nc.toString() + "\n-------------");
+			Hyst.logDebug(LogMessage.of(nc, "\n-------------"));
+
+			List<List<String>> groups = symmetryGroups == null ? null : symmetryGroups.get(nc);
 
 			for (Entry<String, ComponentInstance> e : nc.children.entrySet())
 			{
 				ComponentInstance ci = e.getValue();
-				// instantiate merge each component into rv
+				List<String> group = FlattenSymmetryUtils.getGroup(groups, e.getKey());
+				BaseComponent bc;
 
-				BaseComponent bc = flatten(ci.child);
-				Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
+				if (group == null)
+					bc = flatten(ci.child); // instantiate merge each component into rv
+				else if (group.get(0).equals(e.getKey()))
+				{
+					// the whole group is merged where its first instance is
+					ArrayList<BaseComponent> members = new ArrayList<BaseComponent>();
+
+					for (String name : group)
+						members.add((BaseComponent) nc.children.get(name).child);
+
+					bc = FlattenSymmetryUtils.makeCounterComponent(members);
+					Hyst.log("Merged " + group.size() + " interchangeable instances into "
+							+ bc.modes.size() + " modes");
+				}
+				else
+					continue;
+
+				Hyst.logDebug(LogMessage.of("flattened child: ", bc, "\n-------------"));
 
 				if (rv == null)
 					rv = bc;
@@ -151,7 +193,7 @@ public class FlattenAutomatonPass extends TransformationPass
 					Hyst.log("Merging " + rv.instanceName + " and " + bc.instanceName);
 					rv = mergeComponents(rv, bc);
 
-					Hyst.logDebug(rv.toString() + "\n-------------");
+					Hyst.logDebug(LogMessage.of(rv, "\n-------------"));
 					Hyst.logDebug("Merged");
 				}
 			}
@@ -259,7 +301,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	/**
 	 * And's two expressions, which maybe null
 	 */
-	private static Expression andExpressions(Expression a, Expression b)
+	public static Expression andExpressions(Expression a, Expression b)
 	{
 		Expression rv = null;
 
@@ -312,7 +354,11 @@ public class FlattenAutomatonPass extends TransformationPass
 		}
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
+	/**
+	 * Merge two maps of variable to expression (flows or resets). Throws an AutomatonExportException
+	 * if both maps have different expressions for the same variable.
+	 */
+	public static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
 			LinkedHashMap<String, ExpressionInterval> a,
 			LinkedHashMap<String, ExpressionInterval> b)
 	{
@@ -395,8 +441,8 @@ public class FlattenAutomatonPass extends TransformationPass
 
 						if (locName2.equals(targetName))
 						{
-							Hyst.logDebug(
-									"Adding transition '" + locName + "' -> '" + locName2 + "'");
+							Hyst.logDebug(LogMessage.of("Adding transition '", locName, "' -> '",
+									locName2, "'"));
 
 							// add transition between locRv and locRv2
 							AutomatonTransition at = rv.createTransition(locRv, locRv2);
@@ -411,7 +457,7 @@ public class FlattenAutomatonPass extends TransformationPass
 		}
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> copyMap(
+	public static LinkedHashMap<String, ExpressionInterval> copyMap(
 			LinkedHashMap<String, ExpressionInterval> from)
 	{
 		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
@@ -516,7 +562,7 @@ public class FlattenAutomatonPass extends TransformationPass
 
 		// merge the automata by first constructing the cross product of the
 		// mode names
-		Hyst.logDebug("Merging Locations, shared labels: " + sharedLabels);
+		Hyst.logDebug(LogMessage.of("Merging Locations, shared labels: ", sharedLabels));
 		mergeLocations(left, right, rv);
 
 		// add every transition in left base component without a label
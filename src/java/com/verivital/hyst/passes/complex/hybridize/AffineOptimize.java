@@ -16,6 +16,7 @@ import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
@@ -82,14 +83,22 @@ public class AffineOptimize
 
 		PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
 
-		ArrayList<Expression> expList = new ArrayList<Expression>();
-		ArrayList<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
+		final ArrayList<Expression> expList = new ArrayList<Expression>();
+		final ArrayList<HashMap<String, Interval>> boundsList;
+		boundsList = new ArrayList<HashMap<String, Interval>>();
 
 		createOptimizationParams(params, expList, boundsList);
 
-		Hyst.logDebug("Created optimization params; expList="
-				+ StringOperations.makeDefaultExpressionListString(expList) + "; boundsList = "
-				+ boundsList);
+		Hyst.logDebug(new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				return "Created optimization params; expList="
+						+ StringOperations.makeDefaultExpressionListString(expList)
+						+ "; boundsList = " + boundsList;
+			}
+		});
 
 		List<Interval> optimizationResult;
 
@@ -25,6 +25,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
@@ -389,7 +390,7 @@ public class HybridizeMTRawPass extends TransformationPass
 		if (modeChain.size() == 0)
 			throw new AutomatonExportException("runOptimization was called an empty modeChain");
 
-		Hyst.logDebug("runOptimization called with oldModes = " + oldModes);
+		Hyst.logDebug(LogMessage.of("runOptimization called with oldModes = ", oldModes));
 
 		List<String> vars = getNonTTVaraibles(modeChain.get(0).automaton);
 
@@ -406,15 +407,24 @@ public class HybridizeMTRawPass extends TransformationPass
 			List<AutomatonMode> boxIntersects = getIntersectingModes(oldModes, box);
 			boxIntersectsCount.add(boxIntersects.size());
 
-			LinkedHashMap<String, ExpressionInterval> avgFlow = getAverageFlow(boxIntersects);
+			final LinkedHashMap<String, ExpressionInterval> avgFlow = getAverageFlow(
+					boxIntersects);
 			OptimizationParams op = new OptimizationParams();
 
 			HashMap<String, Interval> bounds = toVariableBounds(box, vars);
 			op.newDynamics = AffineOptimize.affineApprox(avgFlow, bounds);
 			params.add(op);
 
-			Hyst.logDebug("Processing " + modeChain.get(i).name + ", avgDynamics = "
-					+ StringOperations.makeDefaultEiMapString(avgFlow));
+			final String name = modeChain.get(i).name;
+			Hyst.logDebug(new LogMessage()
+			{
+				@Override
+				public String get()
+				{
+					return "Processing " + name + ", avgDynamics = "
+							+ StringOperations.makeDefaultEiMapString(avgFlow);
+				}
+			});
 
 			// update the invariant if they're all equal
 			Expression invariant = boxIntersects.get(0).invariant;
@@ -449,13 +459,20 @@ public class HybridizeMTRawPass extends TransformationPass
 
 		for (int i = 0; i < chainLen; ++i)
 		{
-			AutomatonMode chainMode = modeChain.get(i);
+			final AutomatonMode chainMode = modeChain.get(i);
 			OptimizationParams op = params.get(i);
 
 			chainMode.flowDynamics.putAll(op.result);
 
-			Hyst.logDebug("Final Flow for " + chainMode.name + " was "
-					+ StringOperations.makeDefaultEiMapString(chainMode.flowDynamics));
+			Hyst.logDebug(new LogMessage()
+			{
+				@Override
+				public String get()
+				{
+					return "Final Flow for " + chainMode.name + " was "
+							+ StringOperations.makeDefaultEiMapString(chainMode.flowDynamics);
+				}
+			});
 		}
 	}
 
@@ -519,7 +536,7 @@ public class HybridizeMTRawPass extends TransformationPass
 		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
 		List<String> vars = getNonTTVaraibles(modeList.get(0).automaton);
 
-		Hyst.logDebug("getting avg dynamics of modes: " + modeList);
+		Hyst.logDebug(LogMessage.of("getting avg dynamics of modes: ", modeList));
 
 		for (AutomatonMode am : modeList)
 		{
@@ -551,7 +568,15 @@ public class HybridizeMTRawPass extends TransformationPass
 					new Operation(Operator.DIVIDE, cur, new Constant(numExpressions))));
 		}
 
-		Hyst.logDebug("computed avg dynamics: " + StringOperations.makeDefaultEiMapString(rv));
+		final LinkedHashMap<String, ExpressionInterval> avg = rv;
+		Hyst.logDebug(new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				return "computed avg dynamics: " + StringOperations.makeDefaultEiMapString(avg);
+			}
+		});
 
 		return rv;
 	}
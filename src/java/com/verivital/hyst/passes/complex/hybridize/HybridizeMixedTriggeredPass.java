@@ -20,6 +20,7 @@ import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SpaceSplittingElement;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SplittingElement;
@@ -368,7 +369,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		ArrayList<SymbolicStatePoint> simPoints = getSimulationStart();
 		checkValidStartPoints(simPoints);
 
-		Hyst.log("Initial simulation points (" + simPoints.size() + "): " + simPoints);
+		Hyst.log(LogMessage.of("Initial simulation points (", simPoints.size(), "): ", simPoints));
 
 		PythonBridge.getInstance().setTimeout(-1);
 
@@ -401,8 +402,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			++step;
 
 			HyperRectangle simBox = boundingBox(points(simPoints));
-			Hyst.logDebug("simulation bounding box at step " + step + " was " + simBox
-					+ "; points were: " + simPoints);
+			Hyst.logDebug(LogMessage.of("simulation bounding box at step ", step, " was ",
+					simBox, "; points were: ", simPoints));
 
 			if (piNextTime >= 0 && elapsed + TOL > piNextTime)
 			{
@@ -444,8 +445,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 				epsilon);
 		HyperRectangle invariantBox = HyperRectangle.union(startBox, endBox);
 
-		Hyst.logDebug("making space-triggered mode, startBox was " + startBox + "; " + "endbox was "
-				+ endBox);
+		Hyst.logDebug(LogMessage.of("making space-triggered mode, startBox was ", startBox,
+				"; endbox was ", endBox));
 
 		domains.add(invariantBox);
 
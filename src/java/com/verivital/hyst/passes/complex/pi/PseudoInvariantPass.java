@@ -19,6 +19,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.util.HyperPointArrayOptionHandler;
 import com.verivital.hyst.util.StringOperations;
@@ -215,14 +216,14 @@ public class PseudoInvariantPass extends TransformationPass
 
 	private void createPseudoInvariant(AutomatonMode afterMode, HyperPoint point, HyperPoint dir)
 	{
-		String beforeName = makeModeName(afterMode);
+		final String beforeName = makeModeName(afterMode);
 		this.lastModeName = beforeName;
 		Hyst.log("Creating PI mode " + beforeName + " from point " + point + " and direction "
 				+ dir);
 
 		AutomatonMode beforeMode = afterMode.copyWithTransitions(beforeName);
 
-		Expression piInv = createInvariantExpression(ha.variables, point, dir);
+		final Expression piInv = createInvariantExpression(ha.variables, point, dir);
 		Expression piGuard = createGuardExpression(ha.variables, point, dir);
 
 		// incoming transitions to afterMode should have an extra condition (the
@@ -240,7 +241,15 @@ public class PseudoInvariantPass extends TransformationPass
 		AutomatonTransition at = ha.createTransition(beforeMode, afterMode);
 		at.guard = piGuard;
 
-		Hyst.log("Created PI mode " + beforeName + " with invariant: " + piInv.toDefaultString());
+		Hyst.log(new LogMessage()
+		{
+			@Override
+			public String get()
+			{
+				return "Created PI mode " + beforeName + " with invariant: "
+						+ piInv.toDefaultString();
+			}
+		});
 	}
 
 	/**
@@ -352,10 +352,18 @@ public class DReachPrinter extends ToolPrinter
 			constFormatter.setMinimumFractionDigits(1);
 		}
 
-		public String printOperation(Operation o)
+		@Override
+		protected boolean usesDefaultPrinting(Operation o)
 		{
-			String rv = null;
+			Operator op = o.op;
+
+			return op == Operator.MULTIPLY || op == Operator.DIVIDE || op == Operator.ADD
+					|| op == Operator.SUBTRACT || op == Operator.POW;
+		}
 
+		@Override
+		protected void appendOperation(Operation o, StringBuilder out)
+		{
 			Operator op = o.op;
 
 			// dreach expects a mix of infix and prefix
@@ -367,7 +375,7 @@ public class DReachPrinter extends ToolPrinter
 			case SUBTRACT:
 			case POW:
 				// default
-				rv = super.printOperation(o);
+				super.appendOperation(o, out);
 				break;
 			case EQUAL:
 			case LESS:
@@ -376,24 +384,29 @@ public class DReachPrinter extends ToolPrinter
 			case GREATEREQUAL:
 			case NOTEQUAL:
 				// infix
-				rv = "(" + print(o.getLeft()) + " " + opNames.get(op) + " " + print(o.getRight())
-						+ ")";
+				out.append('(');
+				print(o.getLeft(), out);
+				out.append(' ').append(opNames.get(op)).append(' ');
+				print(o.getRight(), out);
+				out.append(')');
 				break;
 			case NEGATIVE:
-				rv = "-" + print(o.children.get(0));
+				out.append('-');
+				print(o.children.get(0), out);
 				break;
 			default:
 				// prefix
-				rv = "(" + opNames.get(op);
+				out.append('(').append(opNames.get(op));
 
 				for (Expression e : o.children)
-					rv += " " + print(e);
+				{
+					out.append(' ');
+					print(e, out);
+				}
 
-				rv += ")";
+				out.append(')');
 				break;
 			}
-
-			return rv;
 		}
 	}
 
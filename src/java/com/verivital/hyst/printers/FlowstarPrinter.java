@@ -11,6 +11,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.Option;
@@ -32,7 +36,8 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.util.AutomatonUtil;
-import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.FlowAnalysis;
+import com.verivital.hyst.util.IntervalContractor;
 import com.verivital.hyst.util.PairStringOptionHandler;
 import com.verivital.hyst.util.PreconditionsFlag;
 import com.verivital.hyst.util.RangeExtractor;
@@ -75,6 +80,12 @@ public class FlowstarPrinter extends ToolPrinter
 	@Option(name = "-precision", usage = "numerical precision", metaVar = "VAL")
 	String precision = "53";
 
+	@Option(name = "-threads", usage = "threads used to print modes and jumps (0 = number of processors)", metaVar = "NUM")
+	int threads = 0;
+
+	// models with fewer modes or jumps than this are printed on a single thread
+	private static final int MIN_PARALLEL_BLOCKS = 64;
+
 	private int DEFAULT_MAX_JUMPS = 999999999;
 
 	@Option(name = "-jumps", usage = "maximum jumps", metaVar = "VAL")
@@ -469,122 +480,240 @@ public class FlowstarPrinter extends ToolPrinter
 			printLine("{");
 		}
 
-		// modename
-		boolean first = true;
+		final ArrayList<Entry<String, AutomatonMode>> modeList = new ArrayList<Entry<String, AutomatonMode>>(
+				ha.modes.entrySet());
 
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		printBlocks(renderBlocks(modeList.size(), new BlockRenderer()
 		{
-			AutomatonMode mode = e.getValue();
+			@Override
+			public DeferredOutput render(int index, RenderContext context)
+			{
+				return renderMode(modeList.get(index), context);
+			}
+		}));
 
-			// removed this
-			if (flowstarExpressionPrinter.inputVariables.size() > 0)
-				flowstarExpressionPrinter.extractInputVariableRanges(mode.invariant);
+		// later parts of the output use the input ranges of the last mode
+		if (flowstarExpressionPrinter.inputVariables.size() > 0 && modeList.size() > 0)
+			flowstarExpressionPrinter
+					.extractInputVariableRanges(modeList.get(modeList.size() - 1).getValue().invariant);
 
-			if (first)
-				first = false;
-			else
-				printNewline();
+		if (!this.isContinuous)
+			printLine("}"); // end all modes
+	}
 
-			if (!this.isContinuous)
-			{
-				String locName = e.getKey();
-				printLine(locName);
-				printLine("{");
-			}
+	/**
+	 * Render a single mode. This may be called from a worker thread, so it should only print using
+	 * the passed-in context.
+	 */
+	private DeferredOutput renderMode(Entry<String, AutomatonMode> e, RenderContext context)
+	{
+		DeferredOutput out = new DeferredOutput(context.indentation);
+		AutomatonMode mode = e.getValue();
 
-			// From Xin Chen e-mail:
-			// lti ode - linear time-invariant, can also have uncertain input
-			// note: this used to be called "linear ode" in version 2.0.0 and earlier
+		if (context.printer.inputVariables.size() > 0)
+			context.printer.extractInputVariableRanges(mode.invariant);
 
-			// "poly ode 1" works more efficient than the others on low degree
-			// and low dimension (<=3) ODEs.
-			// "poly ode 2" works more efficient than the others on low degree
-			// and medium dimension (4~6) ODEs.
-			// "poly ode 3" works more efficient than the others on medium or
-			// high degree and high dimension ODEs.
-			// "nonpoly ode" works with nonlinear terms
+		if (!this.isContinuous)
+		{
+			String locName = e.getKey();
+			out.printLine(locName);
+			out.printLine("{");
+		}
 
-			// first simplify
-			for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
-			{
-				ExpressionInterval ei = entry.getValue();
-				ei.setExpression(simplifyExpression(ei.getExpression()));
-			}
+		// From Xin Chen e-mail:
+		// lti ode - linear time-invariant, can also have uncertain input
+		// note: this used to be called "linear ode" in version 2.0.0 and earlier
 
-			// then classify
-			if (ode.equals("auto"))
-			{
-				if (isNonLinearDynamics(mode.flowDynamics))
-					printLine("nonpoly ode");
-				else if (Classification.isLinearDynamics(mode.flowDynamics))
-					printLine("lti ode");
-				else if (ha.variables.size() <= 3)
-					printLine("poly ode 1");
-				else if (ha.variables.size() <= 6)
-					printLine("poly ode 2");
-				else
-					printLine("poly ode 3");
-			}
+		// "poly ode 1" works more efficient than the others on low degree
+		// and low dimension (<=3) ODEs.
+		// "poly ode 2" works more efficient than the others on low degree
+		// and medium dimension (4~6) ODEs.
+		// "poly ode 3" works more efficient than the others on medium or
+		// high degree and high dimension ODEs.
+		// "nonpoly ode" works with nonlinear terms
+
+		// first simplify
+		for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		{
+			ExpressionInterval ei = entry.getValue();
+			ei.setExpression(simplifyExpression(ei.getExpression()));
+		}
+
+		// simplification may have modified the flow expressions in place
+		FlowAnalysis.invalidate(mode);
+
+		// then classify
+		if (ode.equals("auto"))
+		{
+			FlowAnalysis analysis = FlowAnalysis.of(mode);
+
+			if (analysis.hasNonlinearOps())
+				out.printLine("nonpoly ode");
+			else if (analysis.isAffine())
+				out.printLine("lti ode");
+			else if (ha.variables.size() <= 3)
+				out.printLine("poly ode 1");
+			else if (ha.variables.size() <= 6)
+				out.printLine("poly ode 2");
 			else
-			{
-				// force ode line
-				printLine(ode);
-			}
+				out.printLine("poly ode 3");
+		}
+		else
+		{
+			// force ode line
+			out.printLine(ode);
+		}
 
-			// then print
-			printLine("{");
-			for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		// then print
+		out.printLine("{");
+		for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		{
+			ExpressionInterval ei = entry.getValue();
+
+			// be explicit (even though x' == 0 is implied by Flow*)
+			out.printLine(entry.getKey() + "' = " + ei.toString(context.printer));
+		}
+		out.printLine("}");
+
+		// invariant
+		if (!this.isContinuous)
+		{
+			out.printLine("inv");
+			out.printLine("{");
+
+			String originalInvariant = context.defaultPrinter.print(mode.invariant);
+			Expression inv = simplifyExpression(mode.invariant);
+
+			if (!inv.equals(Constant.TRUE))
 			{
-				ExpressionInterval ei = entry.getValue();
+				out.printCommentBlock("Original invariant: " + originalInvariant);
 
-				// be explicit (even though x' == 0 is implied by Flow*)
-				printLine(entry.getKey() + "' = " + ei);
+				out.printLine(context.printer.print(inv));
 			}
-			printLine("}");
 
-			// invariant
-			if (!this.isContinuous)
-			{
-				printLine("inv");
-				printLine("{");
+			out.printLine("}"); // end invariant
+			out.printLine("}"); // end individual mode
+		}
 
-				String originalInvariant = mode.invariant.toDefaultString();
-				Expression inv = simplifyExpression(mode.invariant);
+		return out;
+	}
 
-				if (!inv.equals(Constant.TRUE))
+	/**
+	 * Printer state used by one rendering task. Each task gets its own expression printers, since
+	 * the Flow* printer's input variable ranges depend on the mode being printed, and the default
+	 * printer's number formatter is not thread-safe.
+	 */
+	private class RenderContext
+	{
+		final FlowstarExpressionPrinter printer = new FlowstarExpressionPrinter(
+				flowstarExpressionPrinter);
+		final DefaultExpressionPrinter defaultPrinter = new DefaultExpressionPrinter();
+		final String indentation = FlowstarPrinter.this.indentation;
+	}
+
+	/**
+	 * Renders one block of output (a mode or a jump), or returns null if nothing should be printed
+	 */
+	private interface BlockRenderer
+	{
+		DeferredOutput render(int index, RenderContext context);
+	}
+
+	/**
+	 * Render a number of independent blocks, possibly in parallel. The result is in the same order
+	 * as the indices, so printing it gives the same output regardless of the number of threads.
+	 * 
+	 * @param count
+	 *            the number of blocks
+	 * @param renderer
+	 *            the method which renders each block
+	 * @return the rendered blocks (some may be null)
+	 */
+	private DeferredOutput[] renderBlocks(final int count, final BlockRenderer renderer)
+	{
+		final DeferredOutput[] rv = new DeferredOutput[count];
+		int numThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+		if (numThreads <= 1 || count < MIN_PARALLEL_BLOCKS)
+		{
+			RenderContext context = new RenderContext();
+
+			for (int i = 0; i < count; ++i)
+				rv[i] = renderer.render(i, context);
+		}
+		else
+		{
+			// contiguous chunks, several per thread to balance uneven block sizes
+			int numChunks = Math.min(count, numThreads * 4);
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+
+			try
+			{
+				for (int c = 0; c < numChunks; ++c)
 				{
-					printCommentBlock("Original invariant: " + originalInvariant);
+					final int from = (int) ((long) count * c / numChunks);
+					final int to = (int) ((long) count * (c + 1) / numChunks);
+					final RenderContext context = new RenderContext();
 
-					printLine(inv.toString());
+					futures.add(pool.submit(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							for (int i = from; i < to; ++i)
+								rv[i] = renderer.render(i, context);
+						}
+					}));
 				}
 
-				printLine("}"); // end invariant
-				printLine("}"); // end individual mode
+				for (Future<?> f : futures)
+					f.get();
+			}
+			catch (InterruptedException e)
+			{
+				throw new AutomatonExportException("Interrupted while rendering Flow* model", e);
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				else if (cause instanceof Error)
+					throw (Error) cause;
+
+				throw new AutomatonExportException("Error while rendering Flow* model",
+						(Exception) cause);
+			}
+			finally
+			{
+				pool.shutdownNow();
 			}
 		}
 
-		if (!this.isContinuous)
-			printLine("}"); // end all modes
+		return rv;
 	}
 
-	private boolean isNonLinearDynamics(LinkedHashMap<String, ExpressionInterval> flowDynamics)
+	/**
+	 * Print rendered blocks in order, with an empty line between them
+	 */
+	private void printBlocks(DeferredOutput[] blocks)
 	{
-		boolean rv = false;
+		boolean first = true;
 
-		for (ExpressionInterval entry : flowDynamics.values())
+		for (DeferredOutput d : blocks)
 		{
-			Expression e = entry.getExpression();
+			if (d == null)
+				continue;
 
-			byte classification = AutomatonUtil.classifyExpressionOps(e);
+			if (first)
+				first = false;
+			else
+				printNewline();
 
-			if ((classification & AutomatonUtil.OPS_NONLINEAR) != 0)
-			{
-				rv = true;
-				break;
-			}
+			printDeferred(d);
 		}
-
-		return rv;
 	}
 
 	private void printFlowRangeConditions(Expression ex, boolean isAssignment)
@@ -649,58 +778,66 @@ public class FlowstarPrinter extends ToolPrinter
 			printLine("jumps");
 			printLine("{");
 
-			boolean first = true;
-
-			for (AutomatonTransition t : ha.transitions)
+			printBlocks(renderBlocks(ha.transitions.size(), new BlockRenderer()
 			{
-				Expression guard = simplifyExpression(t.guard);
+				@Override
+				public DeferredOutput render(int index, RenderContext context)
+				{
+					return renderJump(ha.transitions.get(index), context);
+				}
+			}));
 
-				if (guard == Constant.FALSE)
-					continue;
+			printLine("}");
+		}
+	}
 
-				if (first)
-					first = false;
-				else
-					printNewline();
+	/**
+	 * Render a single jump, or return null if its guard is false. This may be called from a worker
+	 * thread, so it should only print using the passed-in context.
+	 */
+	private DeferredOutput renderJump(AutomatonTransition t, RenderContext context)
+	{
+		Expression guard = simplifyExpression(t.guard);
 
-				String fromName = t.from.name;
-				String toName = t.to.name;
+		if (guard == Constant.FALSE)
+			return null;
 
-				printLine(fromName + " -> " + toName);
-				printLine("guard");
-				printLine("{");
+		DeferredOutput out = new DeferredOutput(context.indentation);
+		String fromName = t.from.name;
+		String toName = t.to.name;
 
-				if (!guard.equals(Constant.TRUE))
-				{
-					printCommentBlock("Original guard: " + t.guard.toDefaultString());
-					printLine(guard.toString());
-				}
+		out.printLine(fromName + " -> " + toName);
+		out.printLine("guard");
+		out.printLine("{");
 
-				printLine("}");
+		if (!guard.equals(Constant.TRUE))
+		{
+			out.printCommentBlock("Original guard: " + context.defaultPrinter.print(t.guard));
+			out.printLine(context.printer.print(guard));
+		}
 
-				printLine("reset");
-				printLine("{");
+		out.printLine("}");
 
-				for (Entry<String, ExpressionInterval> e : t.reset.entrySet())
-				{
-					ExpressionInterval ei = e.getValue();
-					ei.setExpression(simplifyExpression(ei.getExpression()));
-					printLine(e.getKey() + "' := " + ei);
-				}
+		out.printLine("reset");
+		out.printLine("{");
+
+		for (Entry<String, ExpressionInterval> e : t.reset.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+			ei.setExpression(simplifyExpression(ei.getExpression()));
+			out.printLine(e.getKey() + "' := " + ei.toString(context.printer));
+		}
 
-				printLine("}");
+		out.printLine("}");
 
-				if (aggregation.equals("parallelotope"))
-					printLine("parallelotope aggregation {}");
-				else if (aggregation.equals("interval"))
-					printLine("interval aggregation");
-				else
-					throw new AutomatonExportException(
-							"Unknown aggregation method: " + aggregation);
-			}
+		if (aggregation.equals("parallelotope"))
+			out.printLine("parallelotope aggregation {}");
+		else if (aggregation.equals("interval"))
+			out.printLine("interval aggregation");
+		else
+			throw new AutomatonExportException("Unknown aggregation method: " + aggregation);
 
-			printLine("}");
-		}
+		return out;
 	}
 
 	public static class FlowstarExpressionPrinter extends DefaultExpressionPrinter
@@ -716,6 +853,23 @@ public class FlowstarPrinter extends ToolPrinter
 			opNames.put(Operator.AND, " ");
 		}
 
+		/**
+		 * Create a printer with the same input variables and ranges as another one. This is used
+		 * to print parts of the model on separate threads.
+		 * 
+		 * @param other
+		 *            the printer to copy
+		 */
+		public FlowstarExpressionPrinter(FlowstarExpressionPrinter other)
+		{
+			this();
+
+			inputVariables.addAll(other.inputVariables);
+
+			if (other.inputVariableRanges != null)
+				inputVariableRanges = new TreeMap<String, Interval>(other.inputVariableRanges);
+		}
+
 		/**
 		 * Extract the input variable ranges from a mode's invariant. Afterwards, instead of
 		 * printing the variable you will print the interval range.
@@ -790,13 +944,10 @@ public class FlowstarPrinter extends ToolPrinter
 		}
 
 		@Override
-		protected String printOperation(Operation o)
+		protected void appendOperation(Operation o, StringBuilder out)
 		{
-			String rv = null;
-
 			if (Operator.isComparison(o.op))
 			{
-				rv = "";
 				Operator op = o.op;
 
 				// print nothing if the expression contains an input variable
@@ -817,59 +968,70 @@ public class FlowstarPrinter extends ToolPrinter
 				{
 					// make sure it's of the form p ~ c
 					if (o.children.size() == 2 && o.getRight() instanceof Constant)
-						rv = super.printOperation(o);
+						super.appendOperation(o, out);
 					else
 					{
 						// change 'p1 ~ p2' to 'p1 - (p2) ~ 0'
-						rv += o.getLeft() + " - (" + o.getRight() + ") " + printOperator(op) + " 0";
+						print(o.getLeft(), out);
+						out.append(" - (");
+						print(o.getRight(), out);
+						out.append(") ").append(printOperator(op)).append(" 0");
 					}
 				}
 			}
-			else if (o.op == Operator.MULTIPLY && o.children.size() == 2)
-			{
-				// special handling for the case of constant * input interval
-				Expression num = o.children.get(0);
-				Expression inputVar = o.children.get(1);
+			else if (!appendInputProduct(o, out))
+				super.appendOperation(o, out);
+		}
 
-				// swap order if necessary
-				if (inputVar instanceof Constant && num instanceof Variable)
-				{
-					Expression temp = inputVar;
-					inputVar = num;
-					num = temp;
-				}
+		@Override
+		protected boolean usesDefaultPrinting(Operation o)
+		{
+			// comparisons and input products are printed differently
+			return !Operator.isComparison(o.op) && o.op != Operator.MULTIPLY;
+		}
 
-				// check if it's the special case
-				if (inputVar instanceof Variable && num instanceof Constant)
-				{
-					Variable v = (Variable) inputVar;
-					double d = ((Constant) num).getVal();
+		/**
+		 * Special handling for the case of constant * input interval
+		 * 
+		 * @return true if the operation was printed
+		 */
+		private boolean appendInputProduct(Operation o, StringBuilder out)
+		{
+			if (o.op != Operator.MULTIPLY || o.children.size() != 2)
+				return false;
 
-					if (this.inputVariables.contains(v.name))
-					{
-						Interval range = inputVariableRanges.get(v.name);
+			Expression num = o.children.get(0);
+			Expression inputVar = o.children.get(1);
 
-						if (range.isConstant())
-							rv = this.printConstantValue(range.min * d);
-						else
-						{
-							// negative constant flips interval range
-
-							if (d >= 0)
-								rv = "[" + this.printConstantValue(range.min * d) + ", "
-										+ this.printConstantValue(range.max * d) + "]";
-							else
-								rv = "[" + this.printConstantValue(range.max * d) + ", "
-										+ this.printConstantValue(range.min * d) + "]";
-						}
-					}
-				}
+			// swap order if necessary
+			if (inputVar instanceof Constant && num instanceof Variable)
+			{
+				Expression temp = inputVar;
+				inputVar = num;
+				num = temp;
 			}
 
-			if (rv == null)
-				rv = super.printOperation(o);
+			// check if it's the special case
+			if (!(inputVar instanceof Variable && num instanceof Constant)
+					|| !this.inputVariables.contains(((Variable) inputVar).name))
+				return false;
 
-			return rv;
+			double d = ((Constant) num).getVal();
+			Interval range = inputVariableRanges.get(((Variable) inputVar).name);
+
+			if (range.isConstant())
+				out.append(this.printConstantValue(range.min * d));
+			else
+			{
+				// negative constant flips interval range
+				double lo = d >= 0 ? range.min * d : range.max * d;
+				double hi = d >= 0 ? range.max * d : range.min * d;
+
+				out.append('[').append(this.printConstantValue(lo)).append(", ")
+						.append(this.printConstantValue(hi)).append(']');
+			}
+
+			return true;
 		}
 	}
 
@@ -928,6 +1090,7 @@ public class FlowstarPrinter extends ToolPrinter
 		{
 			Expression e = entry.getValue();
 			Map<String, Interval> bounds = getExpressionWeakVariableRanges(e);
+			addPropagatedBounds(e, bounds, config.root.variables);
 
 			// add variables that weren't found
 			for (String var : config.root.variables)
@@ -987,6 +1150,46 @@ public class FlowstarPrinter extends ToolPrinter
 		config.init.put(initMode.name, init);
 	}
 
+	/**
+	 * Fill in missing or open variable bounds using interval constraint propagation. This bounds
+	 * variables which are only constrained through other variables, like x in
+	 * 0 <= x & x <= y & y <= 1.
+	 * 
+	 * @param ex
+	 *            the expression
+	 * @param bounds
+	 *            the bounds found so far, updated in place
+	 * @param vars
+	 *            the variables to bound
+	 */
+	private static void addPropagatedBounds(Expression ex, Map<String, Interval> bounds,
+			Collection<String> vars)
+	{
+		TreeMap<String, Interval> propagated = IntervalContractor.getVariableBounds(ex);
+
+		if (propagated == null)
+			return;
+
+		for (String var : vars)
+		{
+			Interval p = propagated.get(var);
+			Interval cur = bounds.get(var);
+
+			if (p == null)
+				continue;
+			else if (cur == null)
+				bounds.put(var, p);
+			else if (cur.isOpenInterval())
+			{
+				double min = cur.min == -Double.MAX_VALUE ? p.min : cur.min;
+				double max = cur.max == Double.MAX_VALUE ? p.max : cur.max;
+
+				if (min <= max)
+					bounds.put(var, new Interval(min, max));
+			}
+		}
+	}
+
 	/**
 	 * Gets the weak ranges for the given expression. Only interval ranges are extracted... other
 	 * ranges are ignored.
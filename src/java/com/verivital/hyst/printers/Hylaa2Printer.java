@@ -3,7 +3,9 @@
  */
 package com.verivital.hyst.printers;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -25,7 +27,11 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.printers.PySimPrinter.PythonPrinterCustomization;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.DoubleFormatter;
 import com.verivital.hyst.util.DynamicsUtil;
+import com.verivital.hyst.util.FlowAnalysis;
+import com.verivital.hyst.util.NumpyWriter;
+import com.verivital.hyst.util.NumpyWriter.CsrMatrix;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.PreconditionsFlag;
 import com.verivital.hyst.util.StringOperations;
@@ -52,7 +58,13 @@ public class Hylaa2Printer extends ToolPrinter
 			+ "settings.aggstrat=aggstrat.Unaggregated()'", handler = StringArrayOptionHandler.class)
 	public List<String> settings = new ArrayList<String>();
 
+	@Option(name = "-npz", usage = "write the dynamics, input, invariant and guard matrices to "
+			+ ".npz/.npy side files in a directory next to the output file (loaded with "
+			+ "scipy.sparse.load_npz), rather than as python lists. Requires an output file.")
+	public boolean npz = false;
+
 	private static final String COMMENT_CHAR = "#";
+	public static final String MATRIX_DIR_SUFFIX = "_matrices";
 
 	public Hylaa2Printer()
 	{
@@ -81,11 +93,31 @@ public class Hylaa2Printer extends ToolPrinter
 
 	public static class HylaaExtraPrintFuncs extends PythonPrinterCustomization
 	{
+		// if nonnull, matrices are written as binary side files in this directory
+		private File matrixDir = null;
+		private int sideFileIndex = 0; // makes side file names unique
+
+		// side files which were written to matrixDir
+		public final ArrayList<File> matrixFiles = new ArrayList<File>();
+
 		public HylaaExtraPrintFuncs()
 		{
 			this.automatonObjectName = "HybridAutomaton";
 		}
 
+		/**
+		 * Create a printer customization which writes matrices to binary side files, rather than
+		 * as python lists
+		 * 
+		 * @param matrixDir
+		 *            the (existing) directory where the side files will be written
+		 */
+		public HylaaExtraPrintFuncs(File matrixDir)
+		{
+			this();
+			this.matrixDir = matrixDir;
+		}
+
 		@Override
 		public ArrayList<String> getImportLines(BaseComponent ha)
 		{
@@ -100,6 +132,24 @@ public class Hylaa2Printer extends ToolPrinter
 			rv.add("from hylaa.stateset import StateSet");
 			rv.add("from hylaa import lputil, aggstrat");
 
+			if (matrixDir != null)
+			{
+				rv.add("");
+				rv.add("import os");
+				rv.add("from scipy.sparse import load_npz");
+				rv.add("");
+				rv.add("MATRIX_DIR = os.path.join(os.path.dirname(os.path.realpath(__file__)), '"
+						+ matrixDir.getName() + "')");
+				rv.add("");
+				rv.add("def load_matrix(name):");
+				rv.add("    '''load a sparse csr matrix side file'''");
+				rv.add("    return load_npz(os.path.join(MATRIX_DIR, name + '.npz'))");
+				rv.add("");
+				rv.add("def load_vector(name):");
+				rv.add("    '''load an array side file'''");
+				rv.add("    return np.load(os.path.join(MATRIX_DIR, name + '.npy'))");
+			}
+
 			return rv;
 		}
 
@@ -124,7 +174,7 @@ public class Hylaa2Printer extends ToolPrinter
 			}
 			else
 			{
-				String[] extracted = extractMatrixConstraintStrings(at.guard, at.parent);
+				String[] extracted = getConstraintArgs(at.guard, at.parent, "guard");
 				String matrix = extracted[0];
 				String rhs = extracted[1];
 
@@ -324,7 +374,9 @@ public class Hylaa2Printer extends ToolPrinter
 			{
 				try
 				{
-					if (nonInputVars.size() > 100)
+					if (matrixDir != null)
+						rv.addAll(getBinaryDynamicsLines(am, nonInputVars));
+					else if (nonInputVars.size() > 100)
 						rv.addAll(getSparseDynamicsLines(am, nonInputVars));
 					else
 						rv.addAll(getDenseDynamicsLines(am, nonInputVars));
@@ -357,6 +409,109 @@ public class Hylaa2Printer extends ToolPrinter
 			return rv;
 		}
 
+		private ArrayList<String> getBinaryDynamicsLines(AutomatonMode am,
+				ArrayList<String> nonInputVars)
+		{
+			ArrayList<String> rv = new ArrayList<String>();
+
+			rv.add("a_matrix = " + writeMatrix("a", makeDynamicsMatrix(am, nonInputVars,
+					nonInputVars)));
+
+			return rv;
+		}
+
+		/**
+		 * Build a sparse dynamics matrix (A or B in x' = Ax + Bu + c) directly from the linear
+		 * forms of the flows, without creating dense rows
+		 * 
+		 * @param am
+		 *            the mode
+		 * @param rowVars
+		 *            the variables whose flows are the rows
+		 * @param colVars
+		 *            the variables which are the columns
+		 * @return the matrix
+		 */
+		private static CsrMatrix makeDynamicsMatrix(AutomatonMode am, List<String> rowVars,
+				List<String> colVars)
+		{
+			CsrMatrix rv = new CsrMatrix(colVars.size());
+			HashMap<String, Integer> columns = new HashMap<String, Integer>();
+			FlowAnalysis analysis = FlowAnalysis.of(am);
+
+			for (int i = 0; i < colVars.size(); ++i)
+				columns.put(colVars.get(i), i);
+
+			for (String row : rowVars)
+			{
+				// asExpression() raises an exception if the flow has a (non-point) interval
+				am.flowDynamics.get(row).asExpression();
+
+				try
+				{
+					rv.addRow(analysis.getLinearForm(row), columns);
+				}
+				catch (AutomatonExportException ex)
+				{
+					throw new AutomatonExportException("Error extracting linear coefficients for "
+							+ colVars + " in flow of " + row + " in mode " + am.name, ex);
+				}
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Get a unique side file name. Names are not derived from mode names, since two different
+		 * modes could then give the same file name.
+		 * 
+		 * @param kind
+		 *            what's in the file, like "a" or "guard_rhs"
+		 * @return the name (without extension)
+		 */
+		private String makeSideFileName(String kind)
+		{
+			return kind + "_" + (sideFileIndex++);
+		}
+
+		/**
+		 * Write a matrix side file
+		 * 
+		 * @param kind
+		 *            what the matrix is, used as the prefix of the file name
+		 * @param m
+		 *            the matrix
+		 * @return the python expression which loads the matrix
+		 */
+		private String writeMatrix(String kind, CsrMatrix m)
+		{
+			String name = makeSideFileName(kind);
+			File f = new File(matrixDir, name + ".npz");
+			NumpyWriter.writeNpz(f, m);
+			matrixFiles.add(f);
+
+			return "load_matrix('" + name + "')";
+		}
+
+		/**
+		 * Write a vector side file
+		 * 
+		 * @param kind
+		 *            what the vector is, used as the prefix of the file name
+		 * @param vals
+		 *            the values
+		 * @return the python expression which loads the vector
+		 */
+		private String writeVector(String kind, ArrayList<Double> vals)
+		{
+			String name = makeSideFileName(kind);
+			File f = new File(matrixDir, name + ".npy");
+			NumpyWriter.writeNpy(f, vals);
+			matrixFiles.add(f);
+
+			return "load_vector('" + name + "')";
+		}
+
 		private ArrayList<String> getSparseDynamicsLines(AutomatonMode am,
 				ArrayList<String> nonInputVars)
 		{
@@ -476,8 +631,8 @@ public class Hylaa2Printer extends ToolPrinter
 			if (nonInputInvariant != null)
 			{
 				// m1.set_invariant([[1, 0, 0]], [9.9])
-				String[] extracted = extractMatrixConstraintStrings(nonInputInvariant,
-						am.automaton);
+				String[] extracted = getConstraintArgs(nonInputInvariant, am.automaton,
+						"inv");
 				String matrix = extracted[0];
 				String rhs = extracted[1];
 
@@ -537,11 +692,33 @@ public class Hylaa2Printer extends ToolPrinter
 			for (String condition : inputConditions)
 				rv.add("# " + condition);
 
-			rv.add("u_constraints_a = np.array(" + toPythonListList(conditions) + ", dtype=float)");
-			rv.add("u_constraints_b = np.array(" + toPythonList(vals) + ", dtype=float)");
+			if (matrixDir != null)
+			{
+				CsrMatrix uMat = new CsrMatrix(inputVars.size());
+
+				for (ArrayList<Double> row : conditions)
+					uMat.addRow(row);
+
+				rv.add("u_constraints_a = " + writeMatrix("u_a", uMat) + ".toarray()");
+				rv.add("u_constraints_b = " + writeVector("u_b", vals));
+			}
+			else
+			{
+				rv.add("u_constraints_a = np.array(" + toPythonListList(conditions)
+						+ ", dtype=float)");
+				rv.add("u_constraints_b = np.array(" + toPythonList(vals) + ", dtype=float)");
+			}
 
 			// b matrix is extracted from the dynamics
-			if (nonInputVars.size() > 100)
+			if (matrixDir != null)
+			{
+				ArrayList<String> rowVars = DynamicsUtil.getNonInputVariables(am,
+						am.automaton.variables);
+
+				rv.add("b_matrix = " + writeMatrix("b", makeDynamicsMatrix(am, rowVars,
+						inputVars)));
+			}
+			else if (nonInputVars.size() > 100)
 				rv.addAll(getSparseInputLines(am, nonInputVars));
 			else
 			{
@@ -651,6 +828,50 @@ public class Hylaa2Printer extends ToolPrinter
 						"Not a linear condition: " + o.toDefaultString());
 		}
 
+		/**
+		 * Get the matrix and rhs arguments for a conjunction of linear constraints. These are
+		 * either python lists, or expressions which load the binary side files.
+		 * 
+		 * @param exp
+		 *            the Expression to extract from
+		 * @param ha
+		 *            the automaton
+		 * @param kind
+		 *            the side file name prefix, like "guard" (used if writing binary files)
+		 * @return a 2-tuple, matrix string and rhs string
+		 */
+		private String[] getConstraintArgs(Expression exp, BaseComponent ha, String kind)
+		{
+			String[] rv;
+
+			if (matrixDir == null)
+				rv = extractMatrixConstraintStrings(exp, ha);
+			else
+			{
+				AutomatonMode anyMode = ha.modes.values().iterator().next();
+				ArrayList<String> nonInputVars = DynamicsUtil.getNonInputVariables(anyMode,
+						ha.variables);
+
+				CsrMatrix mat = new CsrMatrix(nonInputVars.size());
+				ArrayList<Double> rhs = new ArrayList<Double>();
+
+				for (Operation part : DynamicsUtil.splitConjunction(exp))
+				{
+					ArrayList<ArrayList<Double>> conditions = new ArrayList<ArrayList<Double>>();
+
+					extractLinearConstraints(conditions, rhs, part, nonInputVars);
+
+					for (ArrayList<Double> row : conditions)
+						mat.addRow(row);
+				}
+
+				rv = new String[] { writeMatrix(kind + "_mat", mat),
+						writeVector(kind + "_rhs", rhs) };
+			}
+
+			return rv;
+		}
+
 		/**
 		 * Convert a top-level Operation, which is a conjunction of constraints, to matrix and rhs
 		 * form
@@ -724,7 +945,8 @@ public class Hylaa2Printer extends ToolPrinter
 
 				mat.append(", ");
 
-				rhs.append(ToolPrinter.doubleToString(rightVal) + ", ");
+				DoubleFormatter.append(rhs, rightVal);
+				rhs.append(", ");
 			}
 
 			return new String[] { mat.toString(), rhs.toString() };
@@ -757,7 +979,10 @@ public class Hylaa2Printer extends ToolPrinter
 					double d = list.get(i);
 
 					if (Math.abs(d) > tol)
-						sb.append(ToolPrinter.doubleToString(d) + " if i == " + i + " else ");
+					{
+						DoubleFormatter.append(sb, d);
+						sb.append(" if i == ").append(i).append(" else ");
+					}
 				}
 
 				sb.append("0.0 for i in range(" + size + ")]");
@@ -870,7 +1095,17 @@ public class Hylaa2Printer extends ToolPrinter
 
 		printNewline();
 
-		printLine(PySimPrinter.automatonToString(config, new HylaaExtraPrintFuncs()));
+		HylaaExtraPrintFuncs custom;
+
+		if (npz)
+			custom = new HylaaExtraPrintFuncs(makeMatrixDir());
+		else
+			custom = new HylaaExtraPrintFuncs();
+
+		printLine(PySimPrinter.automatonToString(config, custom));
+
+		for (File f : custom.matrixFiles)
+			addSideOutputFile(f);
 
 		printLine("def define_settings(image_path):");
 		increaseIndentation();
@@ -905,6 +1140,49 @@ public class Hylaa2Printer extends ToolPrinter
 		printNewline();
 	}
 
+	/**
+	 * Create (if necessary) the directory for the matrix side files, which is next to the output
+	 * file, and delete any .npz and .npy files left there by earlier runs
+	 * 
+	 * @return the directory
+	 */
+	private File makeMatrixDir()
+	{
+		if (outputType != OutputType.FILE)
+			throw new AutomatonExportException(
+					"Hylaa printer flag -npz requires printing to an output file");
+
+		String base = new File(outputFilename).getName();
+		int i = base.lastIndexOf(".");
+
+		if (i != -1)
+			base = base.substring(0, i);
+
+		File dir = new File(new File(outputFilename).getAbsoluteFile().getParentFile(),
+				base + MATRIX_DIR_SUFFIX);
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new AutomatonExportException(
+					"Could not create matrix directory: " + dir.getPath());
+
+		// remove side files from earlier runs, which the new script doesn't use
+		File[] oldFiles = dir.listFiles();
+
+		if (oldFiles == null)
+			throw new AutomatonExportException("Could not list matrix directory: " + dir.getPath());
+
+		for (File f : oldFiles)
+		{
+			String name = f.getName();
+
+			if ((name.endsWith(".npz") || name.endsWith(".npy")) && !f.delete())
+				throw new AutomatonExportException(
+						"Could not delete old matrix file: " + f.getPath());
+		}
+
+		return dir;
+	}
+
 	private int getVariableIndex(String name)
 	{
 		// get the variable's index (omits inputs)
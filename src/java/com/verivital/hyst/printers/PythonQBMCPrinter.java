@@ -279,7 +279,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 			increaseIndentation();
 			Expression.expressionPrinter = InvariantExpressionPrinter;
 			printLine("And(next_mode == cur_mode,");
-			if (e.getValue().invariant.toString() != "true")
+			if (!e.getValue().invariant.toString().equals("true"))
 			{
 				printLine(commentChar + "invariant");
 				String invariant = e.getValue().invariant.toString();
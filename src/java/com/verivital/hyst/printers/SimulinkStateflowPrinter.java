@@ -349,14 +349,8 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 					|| m.flowDynamics.get(v).asExpression().equals(new Constant(0)))
 			{
 
-				Expression subEquality = getSubEquality(v, eInv, null); // todo:
-																		// did
-																		// not
-																		// test
-																		// much,
-																		// probably
-																		// pretty
-																		// buggy
+				// todo: did not test much, probably pretty buggy
+				Expression subEquality = getSubEquality(v, eInv, null, null);
 				for (String s : ha.variables)
 				{
 					if (varID.get(s) < getAMatrixSize(m))
@@ -379,13 +373,17 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 		return rv;
 	}
 
-	private Expression getSubEquality(String v, Expression e, Expression s)
+	/**
+	 * Find the operation containing the variable v. The parent is passed explicitly, since Variable
+	 * objects are shared between expressions and have no parent pointer.
+	 */
+	private Expression getSubEquality(String v, Expression e, Operation parent, Expression s)
 	{
 		if (e instanceof Variable)
 		{
 			if (e.toString().equals(v))
 			{
-				return e.getParent();
+				return parent;
 			}
 			else
 			{
@@ -398,12 +396,12 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 		}
 		else if (e instanceof Operation)
 		{
-			s = getSubEquality(v, e.asOperation().getLeft(), s);
+			s = getSubEquality(v, e.asOperation().getLeft(), e.asOperation(), s);
 			if (s != null)
 			{
 				return s;
 			}
-			s = getSubEquality(v, e.asOperation().getRight(), s);
+			s = getSubEquality(v, e.asOperation().getRight(), e.asOperation(), s);
 			if (s != null)
 			{
 				return s;
@@ -907,9 +905,8 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 		}
 
 		@Override
-		public String printOperation(Operation operation)
+		protected void appendOperation(Operation operation, StringBuilder out)
 		{
-			Operator epsilonOperator = null;
 			final Operator op = operation.getOperator();
 			switch (op)
 			{
@@ -932,30 +929,19 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 					final Operation leq = new Operation(minus, Operator.LESSEQUAL, childRight);
 					final Operation geq = new Operation(plus, Operator.GREATEREQUAL, childRight);
 					operation = new Operation(leq, Operator.AND, geq);
-					return print(operation);
+					print(operation, out);
+					return;
 				}
 				break;
 			case LESS:
 			case LESSEQUAL:
 				// add epsilon
-				epsilonOperator = Operator.ADD;
-				// NOTE: fall-through
+				operation = addEpsilon(operation, Operator.ADD);
+				break;
 			case GREATER:
 			case GREATEREQUAL:
-				if (epsilonOperator == null)
-				{
-					// subtract epsilon
-					epsilonOperator = Operator.SUBTRACT;
-				}
-
-				if (m_isAddEpsilon)
-				{
-					// either add or subtract epsilon
-					final List<Expression> children = operation.children;
-					final Operation addition = new Operation(children.get(1), epsilonOperator,
-							m_epsilon);
-					operation = new Operation(children.get(0), op, addition);
-				}
+				// subtract epsilon
+				operation = addEpsilon(operation, Operator.SUBTRACT);
 				break;
 			case AND:
 			case OR:
@@ -992,43 +978,95 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 								? (priority > Operator
 										.getPriority(((Operation) rightChild).getOperator()))
 								: false;
-
 						// split string
-						final StringBuilder builder = new StringBuilder();
-
 						if (addParenthesesLeft)
 						{
-							builder.append("(");
+							out.append("(");
 						}
-						builder.append(lhs);
+						out.append(lhs);
 						if (addParenthesesLeft)
 						{
-							builder.append(") ");
+							out.append(") ");
 						}
 						else
 						{
-							builder.append(" ");
+							out.append(" ");
 						}
-						builder.append(opNames.get(op));
-						builder.append(" ...");
-						builder.append(lineSeparator);
+						out.append(opNames.get(op));
+						out.append(" ...");
+						out.append(lineSeparator);
 						if (addParenthesesRight)
 						{
-							builder.append("(");
+							out.append("(");
 						}
-						builder.append(rhs);
+						out.append(rhs);
 						if (addParenthesesRight)
 						{
-							builder.append(")");
+							out.append(")");
 						}
-						return builder.toString();
 					}
+					else
+					{
+						// reuse the printed children rather than printing them again
+						appendInline(operation, lhs, rhs, out);
+					}
+					return;
 				}
 				break;
 			default:
 				break;
 			}
-			return super.printOperation(operation);
+			super.appendOperation(operation, out);
+		}
+
+		@Override
+		protected boolean usesDefaultPrinting(Operation operation)
+		{
+			Operator op = operation.getOperator();
+
+			return !Operator.isComparison(op) && op != Operator.AND && op != Operator.OR;
+		}
+
+		/**
+		 * Add or subtract epsilon on the right-hand side of an inequality, if enabled
+		 * 
+		 * @param operation
+		 *            the inequality
+		 * @param epsilonOperator
+		 *            either ADD or SUBTRACT
+		 * @return the inequality to print
+		 */
+		private Operation addEpsilon(Operation operation, Operator epsilonOperator)
+		{
+			Operation rv = operation;
+
+			if (m_isAddEpsilon)
+			{
+				final List<Expression> children = operation.children;
+				final Operation addition = new Operation(children.get(1), epsilonOperator,
+						m_epsilon);
+				rv = new Operation(children.get(0), operation.getOperator(), addition);
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Print a binary operation inline, given the already-printed children
+		 */
+		private void appendInline(Operation operation, String lhs, String rhs, StringBuilder out)
+		{
+			if (needsParenLeft(operation))
+				out.append('(').append(lhs).append(')');
+			else
+				out.append(lhs);
+
+			out.append(' ').append(printOperator(operation.getOperator())).append(' ');
+
+			if (needsParenRight(operation))
+				out.append('(').append(rhs).append(')');
+			else
+				out.append(rhs);
 		}
 	}
 
@@ -176,9 +176,12 @@ public class SpaceExPrinter extends ToolPrinter
 		{
 			try
 			{
-				Writer w = new BufferedWriter(new FileWriter(new File(cfgFilename)));
+				File f = new File(cfgFilename);
+				Writer w = new BufferedWriter(new FileWriter(f));
 				w.write(spaceex_printer.getCFGString(skipTol));
 				w.close();
+
+				addSideOutputFile(f);
 			}
 			catch (IOException e)
 			{
@@ -3,15 +3,16 @@
  */
 package com.verivital.hyst.printers;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Locale;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -20,8 +21,11 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.main.HystFrame;
+import com.verivital.hyst.util.AsyncWriter;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
+import com.verivital.hyst.util.ConversionMonitor;
+import com.verivital.hyst.util.DoubleFormatter;
 import com.verivital.hyst.util.Preconditions;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.PreconditionsFlag;
@@ -44,6 +48,8 @@ public abstract class ToolPrinter
 	// don't need to be modified
 	protected String indentation = "";
 	protected String indentationAmount = "    ";
+	private ArrayList<String> indentationCache = new ArrayList<String>(); // index = level
+	private String cachedIndentationAmount = null;
 	protected String commentChar = getCommentPrefix();
 	protected String decreaseIndentationString = "}";
 
@@ -78,17 +84,59 @@ public abstract class ToolPrinter
 	}
 
 	protected OutputType outputType = OutputType.STDOUT;
-	private PrintStream outputStream; // used if printType = STDOUT or FILE
+	private Writer outputWriter; // used if printType = STDOUT or FILE
 	private HystFrame outputFrame; // used if printType = GUI
 	public StringBuffer outputString; // used if printType = STRING
+	private boolean asyncOutput = false; // write FILE output on a background thread
 
-	// static
-	private static DecimalFormat df;
+	// files written in addition to the output file, like a SpaceEx .cfg file
+	private ArrayList<File> sideOutputFiles = new ArrayList<File>();
+
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+	// printed lines between cancellation checkpoints (must be a power of two)
+	private static final int LINES_PER_CHECKPOINT = 256;
+	private int linesPrinted = 0;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
 	public void setOutputFile(String filename)
+	{
+		setOutputFile(filename, false);
+	}
+
+	/**
+	 * Print to a file
+	 * 
+	 * @param filename
+	 *            the output filename
+	 * @param async
+	 *            if true, the file is written on a background thread while printing continues
+	 */
+	public void setOutputFile(String filename, boolean async)
 	{
 		outputType = OutputType.FILE;
 		outputFilename = filename;
+		asyncOutput = async;
+	}
+
+	/**
+	 * Record a file which was written in addition to the output file. Printers which create side
+	 * files should call this, so that tools like the conversion cache can find them.
+	 * 
+	 * @param f
+	 *            the file which was written
+	 */
+	protected void addSideOutputFile(File f)
+	{
+		sideOutputFiles.add(f);
+	}
+
+	/**
+	 * Get the files written by the last call to print(), other than the output file
+	 */
+	public List<File> getSideOutputFiles()
+	{
+		return sideOutputFiles;
 	}
 
 	public void setOutputGui(HystFrame frame)
@@ -117,8 +165,9 @@ public abstract class ToolPrinter
 	public void print(Configuration c, String argument, String originalFilename)
 	{
 		this.originalFilename = originalFilename;
+		sideOutputFiles.clear();
 
-		boolean shouldCloseStream = false;
+		boolean shouldCloseWriter = false;
 
 		setBaseName(originalFilename);
 
@@ -140,17 +189,22 @@ public abstract class ToolPrinter
 		try
 		{
 			outputString = null;
-			outputStream = null;
+			outputWriter = null;
 
 			if (outputType == OutputType.STDOUT)
 			{
-				outputStream = System.out;
+				// write through System.out, so the model text stays in order with other messages
+				outputWriter = new StdoutWriter();
 			}
 			else if (outputType == OutputType.FILE)
 			{
-				shouldCloseStream = true;
-				outputStream = new PrintStream(
-						new BufferedOutputStream(new FileOutputStream(outputFilename)));
+				shouldCloseWriter = true;
+				Writer w = new OutputStreamWriter(new FileOutputStream(outputFilename));
+
+				if (asyncOutput)
+					outputWriter = new AsyncWriter(w);
+				else
+					outputWriter = new BufferedWriter(w, OUTPUT_BUFFER_SIZE);
 			}
 			else if (outputType == OutputType.STRING)
 				outputString = new StringBuffer();
@@ -158,6 +212,7 @@ public abstract class ToolPrinter
 			this.config = c;
 
 			preconditions.check(c, getToolName());
+			ConversionMonitor.checkpoint();
 			printAutomaton();
 		}
 		catch (PreconditionsFailedException e)
@@ -175,8 +230,44 @@ public abstract class ToolPrinter
 		}
 		finally
 		{
-			if (shouldCloseStream && outputStream != null)
-				outputStream.close();
+			if (outputWriter != null)
+				closeOutput(shouldCloseWriter);
+		}
+	}
+
+	/**
+	 * Flush (and possibly close) the output writer after printing
+	 */
+	private void closeOutput(boolean close)
+	{
+		try
+		{
+			if (close)
+			{
+				outputWriter.close();
+				outputWriter = null;
+			}
+			else
+				outputWriter.flush();
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing output: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Write text to the output writer. Used if printType = STDOUT or FILE.
+	 */
+	private void write(String s)
+	{
+		try
+		{
+			outputWriter.write(String.valueOf(s));
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing output: " + e.getMessage(), e);
 		}
 	}
 
@@ -200,7 +291,7 @@ public abstract class ToolPrinter
 	protected void printNewline()
 	{
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println();
+			write(LINE_SEPARATOR);
 		else if (outputType == OutputType.GUI)
 			outputFrame.addOutput("\n");
 		else if (outputType == OutputType.STRING)
@@ -212,7 +303,7 @@ public abstract class ToolPrinter
 	 */
 	protected void increaseIndentation()
 	{
-		indentation += indentationAmount;
+		indentation = getIndentation(getIndentationLevel() + 1);
 	}
 
 	/**
@@ -221,7 +312,34 @@ public abstract class ToolPrinter
 	protected void decreaseIndentation()
 	{
 		if (indentation.length() > 0)
-			indentation = indentation.substring(indentationAmount.length());
+			indentation = getIndentation(getIndentationLevel() - 1);
+	}
+
+	private int getIndentationLevel()
+	{
+		return indentationAmount.length() == 0 ? 0
+				: indentation.length() / indentationAmount.length();
+	}
+
+	/**
+	 * Get the indentation string for a given level. These are cached, so changing the indentation
+	 * level does not allocate a new string every time.
+	 */
+	private String getIndentation(int level)
+	{
+		if (!indentationAmount.equals(cachedIndentationAmount))
+		{
+			// indentationAmount was changed, reset the cache
+			cachedIndentationAmount = indentationAmount;
+			indentationCache.clear();
+			indentationCache.add("");
+		}
+
+		while (indentationCache.size() <= level)
+			indentationCache.add(indentationCache.get(indentationCache.size() - 1)
+					+ indentationAmount);
+
+		return indentationCache.get(level);
 	}
 
 	/**
@@ -233,8 +351,22 @@ public abstract class ToolPrinter
 	 */
 	protected String createCommentText(String text)
 	{
-		return this.indentation + commentChar + " "
-				+ text.replace("\n", "\n" + this.indentation + commentChar + " ") + "\n";
+		return createCommentText(text, this.indentation);
+	}
+
+	/**
+	 * Create a comment block sting from comment text, at a given indentation
+	 * 
+	 * @param text
+	 *            the text of the commend
+	 * @param indentation
+	 *            the indentation to use for each line
+	 * @return the comment string
+	 */
+	protected String createCommentText(String text, String indentation)
+	{
+		return indentation + commentChar + " "
+				+ text.replace("\n", "\n" + indentation + commentChar + " ") + "\n";
 	}
 
 	/**
@@ -244,10 +376,19 @@ public abstract class ToolPrinter
 	 */
 	protected void printCommentBlock(String comment)
 	{
-		String s = createCommentText(comment);
+		printCommentText(createCommentText(comment));
+	}
 
+	/**
+	 * Print an already-created comment block string
+	 */
+	private void printCommentText(String s)
+	{
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
+		{
+			write(s);
+			write(LINE_SEPARATOR);
+		}
 		else if (outputType == OutputType.GUI)
 			outputFrame.addOutput(s);
 		else if (outputType == OutputType.STRING)
@@ -286,21 +427,24 @@ public abstract class ToolPrinter
 
 	protected void printLine(String line, boolean indent)
 	{
+		if ((++linesPrinted & (LINES_PER_CHECKPOINT - 1)) == 0)
+			ConversionMonitor.checkpoint();
+
 		if (indent && line.equals(decreaseIndentationString))
 			decreaseIndentation();
 
-		String s = "";
-		if (indent)
-			s += this.indentation;
-
-		s += line;
+		String prefix = indent ? this.indentation : "";
 
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
+		{
+			write(prefix);
+			write(line);
+			write(LINE_SEPARATOR);
+		}
 		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(s);
+			outputFrame.addOutput(prefix + line);
 		else if (outputType == OutputType.STRING)
-			outputString.append(s + "\n");
+			outputString.append(prefix).append(line).append('\n');
 
 		if (indent && line.equals("{"))
 			increaseIndentation();
@@ -313,18 +457,125 @@ public abstract class ToolPrinter
 
 	protected void print(String s, boolean indent)
 	{
-		String newS;
-		if (indent)
-			newS = this.indentation + s;
-		else
-			newS = s;
+		String prefix = indent ? this.indentation : "";
 
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.print(newS);
+		{
+			write(prefix);
+			write(s);
+		}
 		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(newS);
+			outputFrame.addOutput(prefix + s);
 		else if (outputType == OutputType.STRING)
-			outputString.append(newS);
+			outputString.append(prefix).append(s);
+	}
+
+	/**
+	 * A Writer which passes text straight to System.out, so printed models and messages on stdout
+	 * come out in the order they were written
+	 */
+	private static class StdoutWriter extends Writer
+	{
+		@Override
+		public void write(char[] buf, int off, int len)
+		{
+			System.out.print(new String(buf, off, len));
+		}
+
+		@Override
+		public void write(String s, int off, int len)
+		{
+			System.out.print(s.substring(off, off + len));
+		}
+
+		@Override
+		public void flush()
+		{
+			System.out.flush();
+		}
+
+		@Override
+		public void close()
+		{
+			// System.out stays open
+			flush();
+		}
+	}
+
+	/**
+	 * Output which is recorded rather than printed immediately. This allows independent parts of a
+	 * model (like modes) to be rendered on worker threads, and then printed in order with
+	 * printDeferred(), giving the same output as printing them directly. Lines follow the same
+	 * indentation rules as printLine(), and comments use createCommentText().
+	 */
+	protected class DeferredOutput
+	{
+		private static final char LINE = 'l';
+		private static final char NEWLINE = 'n';
+		private static final char COMMENT = 'c';
+
+		private final ArrayList<String> texts = new ArrayList<String>();
+		private final StringBuilder kinds = new StringBuilder();
+		private String indentation;
+
+		/**
+		 * Create a deferred output
+		 * 
+		 * @param indentation
+		 *            the starting indentation, usually the printer's current indentation
+		 */
+		public DeferredOutput(String indentation)
+		{
+			this.indentation = indentation;
+		}
+
+		public void printLine(String line)
+		{
+			if (line.equals(decreaseIndentationString) && indentation.length() > 0)
+				indentation = indentation.substring(indentationAmount.length());
+
+			add(LINE, indentation + line);
+
+			if (line.equals("{"))
+				indentation += indentationAmount;
+		}
+
+		public void printNewline()
+		{
+			add(NEWLINE, null);
+		}
+
+		public void printCommentBlock(String comment)
+		{
+			add(COMMENT, createCommentText(comment, indentation));
+		}
+
+		private void add(char kind, String text)
+		{
+			kinds.append(kind);
+			texts.add(text);
+		}
+	}
+
+	/**
+	 * Print recorded output, in the order it was recorded
+	 * 
+	 * @param d
+	 *            the output to print
+	 */
+	protected void printDeferred(DeferredOutput d)
+	{
+		for (int i = 0; i < d.texts.size(); ++i)
+		{
+			char kind = d.kinds.charAt(i);
+
+			if (kind == DeferredOutput.LINE)
+				printLine(d.texts.get(i), false);
+			else if (kind == DeferredOutput.NEWLINE)
+				printNewline();
+			else
+				printCommentText(d.texts.get(i));
+		}
 	}
 
 	/**
@@ -358,26 +609,33 @@ public abstract class ToolPrinter
 		return false;
 	}
 
-	public static void initDecimalPrinter()
-	{
-		df = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
-		df.setMaximumFractionDigits(50);
-	}
-
-	static
-	{
-		initDecimalPrinter();
-	}
-
+	/**
+	 * Convert a double to a string, without scientific notation or trailing zeros. This is
+	 * thread-safe.
+	 * 
+	 * @param n
+	 *            the number
+	 * @return the string representation, like "0.3" or "10"
+	 */
 	public static String doubleToString(double n)
 	{
-		return df.format(n);
+		return DoubleFormatter.format(n);
 	}
 
 	public void flush()
 	{
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.flush();
+		if ((outputType == OutputType.STDOUT || outputType == OutputType.FILE)
+				&& outputWriter != null)
+		{
+			try
+			{
+				outputWriter.flush();
+			}
+			catch (IOException e)
+			{
+				throw new AutomatonExportException("Error writing output: " + e.getMessage(), e);
+			}
+		}
 	}
 
 	public String getParamHelp()
@@ -724,17 +724,25 @@ public class HyCreate2Printer extends ToolPrinter
 		}
 
 		@Override
-		public String printOperation(Operation o)
+		protected boolean usesDefaultPrinting(Operation o)
 		{
-			// custom printing for pow operators
-			String rv = null;
+			return o.op != Operator.POW;
+		}
 
+		@Override
+		protected void appendOperation(Operation o, StringBuilder out)
+		{
+			// custom printing for pow operators
 			if (o.op == Operator.POW)
-				rv = "Math.pow(" + print(o.getLeft()) + ", " + print(o.getRight()) + ")";
+			{
+				out.append("Math.pow(");
+				print(o.getLeft(), out);
+				out.append(", ");
+				print(o.getRight(), out);
+				out.append(")");
+			}
 			else
-				rv = super.printOperation(o);
-
-			return rv;
+				super.appendOperation(o, out);
 		}
 	};
 }
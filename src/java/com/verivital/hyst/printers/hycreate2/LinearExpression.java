@@ -1,13 +1,12 @@
 package com.verivital.hyst.printers.hycreate2;
 
 import java.util.List;
+import java.util.Map.Entry;
 
-import com.verivital.hyst.grammar.formula.Constant;
-import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
-import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.util.LinearForm;
 
 /**
  * Class for parsing a linear expression as a condition Top level is expected to be an '=='
@@ -41,97 +40,32 @@ public class LinearExpression
 			throw new AutomatonExportException(
 					"Could not extract linear condition from expression (bad operator): " + o);
 
-		// ok, now we should only have pluses and minuses on each of the terms
-		// let's keep all the terms on the left, and all the constants on the
-		// right
+		// keep all the terms on the left, and all the constants on the right
 		coefficients = new double[variables.size()];
 
-		Expression left = o.children.get(0).copy();
-		Expression right = o.children.get(1).copy();
-
-		// TODO: simplify expressions here
+		LinearForm left = LinearForm.fromExpression(o.children.get(0));
+		LinearForm right = LinearForm.fromExpression(o.children.get(1));
 
 		populateCoefficients(left, true, variables);
 		populateCoefficients(right, false, variables);
 	}
 
-	private void populateCoefficients(Expression e, boolean isLeftHandSide, List<String> vars)
+	private void populateCoefficients(LinearForm lf, boolean isLeftHandSide, List<String> vars)
 	{
-		if (e instanceof Constant)
-		{
-			Constant c = (Constant) e;
+		double sign = isLeftHandSide ? 1 : -1;
 
-			double val = c.getVal();
+		rhs -= sign * lf.constant;
 
-			if (isLeftHandSide)
-				rhs += -val;
-			else
-				rhs += val;
-		}
-		else if (e instanceof Variable)
+		for (Entry<String, Double> e : lf.coefficients.entrySet())
 		{
-			Variable v = (Variable) e;
-			int index = getVariableIndex(v, vars);
-
-			if (isLeftHandSide)
-				coefficients[index] += 1;
-			else
-				coefficients[index] -= 1;
-		}
-		else if (e instanceof Operation)
-		{
-			Operation o = (Operation) e;
-
-			if (o.op == Operator.ADD)
-			{
-				populateCoefficients(o.getLeft(), isLeftHandSide, vars);
-				populateCoefficients(o.getRight(), isLeftHandSide, vars);
-			}
-			else if (o.op == Operator.MULTIPLY)
-			{
-				Expression l = o.getLeft();
-				Expression r = o.getRight();
-				Variable v;
-				Constant c;
-
-				if (l instanceof Variable && r instanceof Constant)
-				{
-					v = (Variable) l;
-					c = (Constant) r;
-				}
-				else if (l instanceof Constant && r instanceof Variable)
-				{
-					v = (Variable) r;
-					c = (Constant) l;
-				}
-				else
-				{
-					throw new AutomatonExportException(
-							"Couldn't parse simple linear expression: " + e.toDefaultString());
-				}
-
-				int index = getVariableIndex(v, vars);
-
-				if (isLeftHandSide)
-					coefficients[index] += c.getVal();
-				else
-					coefficients[index] -= c.getVal();
-			}
-			else
-				throw new AutomatonExportException(
-						"Could not parse operation '" + o.op.toDefaultString()
-								+ "' in linear expression: " + e.toDefaultString());
+			int index = getVariableIndex(e.getKey(), vars);
 
+			coefficients[index] += sign * e.getValue();
 		}
-		else
-			throw new AutomatonExportException(
-					"Could not parse linear expression: " + e.toDefaultString());
 	}
 
-	private int getVariableIndex(Variable v, List<String> vars)
+	private int getVariableIndex(String s, List<String> vars)
 	{
-		String s = v.name;
-
 		int index = vars.indexOf(s);
 
 		if (index == -1)
@@ -0,0 +1,265 @@
+package com.verivital.hyst.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Writer which hands off its output in large chunks to a background thread, which writes them to
+ * the wrapped Writer. This lets a printer keep generating text while earlier output is being
+ * encoded and written to disk.
+ *
+ * Writes from the caller are not synchronized, so a single thread should use each AsyncWriter. Any
+ * IOException on the background thread is rethrown on the next call to write(), flush() or
+ * close(). If the background thread stops (for example, if it's interrupted), these calls fail
+ * rather than waiting for it.
+ */
+public class AsyncWriter extends Writer
+{
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int MAX_QUEUED_CHUNKS = 16;
+	private static final char[] END = new char[0]; // sentinel to stop the writer thread
+	private static final long POLL_MILLIS = 100; // how often blocked callers check the thread
+
+	private final Writer out;
+	private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<char[]>(MAX_QUEUED_CHUNKS);
+	private final Thread thread;
+
+	private char[] chunk = new char[CHUNK_SIZE];
+	private int pos = 0;
+	private boolean closed = false;
+
+	// counts of chunks, used to wait for the background thread in flush()
+	private long numSubmitted = 0;
+	private long numWritten = 0; // guarded by 'this'
+	private volatile IOException error = null;
+	private volatile boolean stopped = false; // set when the writer thread exits
+
+	public AsyncWriter(Writer out)
+	{
+		this.out = out;
+
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "Hyst AsyncWriter");
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void writeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				char[] c = queue.take();
+
+				if (c == END)
+					break;
+
+				if (error == null)
+				{
+					try
+					{
+						out.write(c);
+					}
+					catch (IOException e)
+					{
+						error = e;
+					}
+				}
+
+				synchronized (this)
+				{
+					++numWritten;
+					notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			error = new InterruptedIOException("AsyncWriter thread was interrupted");
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				stopped = true;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void write(char[] buf, int off, int len) throws IOException
+	{
+		ensureOpen();
+
+		while (len > 0)
+		{
+			int count = Math.min(len, CHUNK_SIZE - pos);
+
+			System.arraycopy(buf, off, chunk, pos, count);
+			pos += count;
+			off += count;
+			len -= count;
+
+			if (pos == CHUNK_SIZE)
+				submitChunk();
+		}
+	}
+
+	@Override
+	public void write(String s, int off, int len) throws IOException
+	{
+		ensureOpen();
+
+		while (len > 0)
+		{
+			int count = Math.min(len, CHUNK_SIZE - pos);
+
+			s.getChars(off, off + count, chunk, pos);
+			pos += count;
+			off += count;
+			len -= count;
+
+			if (pos == CHUNK_SIZE)
+				submitChunk();
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException
+	{
+		ensureOpen();
+
+		chunk[pos++] = (char) c;
+
+		if (pos == CHUNK_SIZE)
+			submitChunk();
+	}
+
+	/**
+	 * Hand off any buffered text and wait for the background thread to write it
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		ensureOpen();
+
+		if (pos > 0)
+			submitChunk();
+
+		waitForWrites();
+		out.flush();
+		checkError();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		try
+		{
+			if (pos > 0 && error == null)
+				submitChunk();
+
+			if (!stopped)
+				put(END);
+
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while closing AsyncWriter");
+		}
+		finally
+		{
+			closed = true;
+			out.close();
+		}
+
+		checkError();
+	}
+
+	private void submitChunk() throws IOException
+	{
+		checkError();
+
+		char[] c = (pos == CHUNK_SIZE) ? chunk : Arrays.copyOf(chunk, pos);
+
+		put(c);
+		++numSubmitted;
+
+		if (c == chunk)
+			chunk = new char[CHUNK_SIZE];
+
+		pos = 0;
+	}
+
+	private void put(char[] c) throws IOException
+	{
+		try
+		{
+			while (!queue.offer(c, POLL_MILLIS, TimeUnit.MILLISECONDS))
+				checkRunning();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while queueing output");
+		}
+	}
+
+	private synchronized void waitForWrites() throws IOException
+	{
+		try
+		{
+			while (numWritten < numSubmitted)
+			{
+				checkRunning();
+				wait(POLL_MILLIS);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while flushing AsyncWriter");
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("AsyncWriter was closed");
+
+		checkError();
+	}
+
+	private void checkError() throws IOException
+	{
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Fail if the writer thread has stopped, since queued output would never be written
+	 */
+	private void checkRunning() throws IOException
+	{
+		checkError();
+
+		if (stopped)
+			throw new IOException("AsyncWriter thread stopped before writing all output");
+	}
+}
@@ -3,6 +3,7 @@ package com.verivital.hyst.util;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -20,6 +21,9 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
 import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.grammar.formula.LutExpression;
 import com.verivital.hyst.grammar.formula.MatrixExpression;
@@ -36,6 +40,7 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
@@ -371,8 +376,9 @@ public abstract class AutomatonUtil
 				rv.put(v.name, new ExpressionInterval(new Constant(0),
 						Interval.NONDETERMINISTIC_ASSIGNMENT_INTERVAL));
 
-				Hyst.logDebug("nondeterministic assignment extracted from reset for variable: "
-						+ v.name + ", expression = " + e);
+				Hyst.logDebug(LogMessage.of(
+						"nondeterministic assignment extracted from reset for variable: ", v.name,
+						", expression = ", e));
 			}
 			else
 			{
@@ -490,16 +496,26 @@ public abstract class AutomatonUtil
 		}
 	}
 
+	/**
+	 * Get the names of the variables used in an expression, including the inputs and table entries
+	 * of look-up tables and the cells of matrices
+	 */
 	public static Set<String> getVariablesInExpression(Expression e)
 	{
 		HashSet<String> rv = new HashSet<String>();
+		PreOrder it = new PreOrder(e)
+		{
+			@Override
+			protected List<Expression> getChildren(Expression parent)
+			{
+				return ExpressionTraversal.getSubexpressions(parent);
+			}
+		};
 
-		if (e instanceof Variable)
-			rv.add(((Variable) e).name);
-		else if (e instanceof Operation)
+		for (Expression sub : it)
 		{
-			for (Expression c : e.asOperation().children)
-				rv.addAll(getVariablesInExpression(c));
+			if (sub instanceof Variable)
+				rv.add(((Variable) sub).name);
 		}
 
 		return rv;
@@ -889,49 +905,50 @@ public abstract class AutomatonUtil
 	{
 		byte rv = 0;
 
-		final Collection<Operator> LINEAR_OPS = Arrays.asList(new Operator[] { Operator.ADD,
-				Operator.SUBTRACT, Operator.MULTIPLY, Operator.NEGATIVE });
-
-		final Collection<Operator> BOOLEAN_OPS = Arrays.asList(new Operator[] { Operator.AND,
-				Operator.OR, Operator.EQUAL, Operator.LESS, Operator.GREATER, Operator.LESSEQUAL,
-				Operator.GREATEREQUAL, Operator.NOTEQUAL, Operator.LOGICAL_NOT });
-
-		final Collection<Operator> NONLINEAR_OPS = Arrays
-				.asList(new Operator[] { Operator.POW, Operator.DIVIDE, Operator.COS, Operator.SIN,
-						Operator.SQRT, Operator.TAN, Operator.EXP, Operator.LN });
-
-		Operation o = e.asOperation();
-
-		if (o != null)
+		// iterative, since long expressions are deep
+		for (Expression sub : new PreOrder(e))
 		{
-			if (LINEAR_OPS.contains(o.op))
-				rv |= OPS_LINEAR;
+			Operation o = sub.asOperation();
 
-			if (NONLINEAR_OPS.contains(o.op))
-				rv |= OPS_NONLINEAR;
+			if (o != null)
+			{
+				if (LINEAR_OPS.contains(o.op))
+					rv |= OPS_LINEAR;
 
-			if (BOOLEAN_OPS.contains(o.op))
-				rv |= OPS_BOOLEAN;
+				if (NONLINEAR_OPS.contains(o.op))
+					rv |= OPS_NONLINEAR;
 
-			if (o.op == Operator.LOC)
-				rv |= OPS_LOC;
+				if (BOOLEAN_OPS.contains(o.op))
+					rv |= OPS_BOOLEAN;
 
-			if (o.op == Operator.OR)
-				rv |= OPS_DISJUNCTION;
+				if (o.op == Operator.LOC)
+					rv |= OPS_LOC;
 
-			for (Expression child : o.children)
-				rv |= classifyExpressionOps(child);
+				if (o.op == Operator.OR)
+					rv |= OPS_DISJUNCTION;
+			}
+			else if (sub == Constant.TRUE || sub == Constant.FALSE)
+				rv |= OPS_BOOLEAN;
+			else if (sub instanceof MatrixExpression)
+				rv |= OPS_MATRIX;
+			else if (sub instanceof LutExpression)
+				rv |= OPS_LUT;
 		}
-		else if (e == Constant.TRUE || e == Constant.FALSE)
-			rv |= OPS_BOOLEAN;
-		else if (e instanceof MatrixExpression)
-			rv |= OPS_MATRIX;
-		else if (e instanceof LutExpression)
-			rv |= OPS_LUT;
 
 		return rv;
 	}
 
+	private static final Collection<Operator> LINEAR_OPS = Arrays.asList(new Operator[] {
+			Operator.ADD, Operator.SUBTRACT, Operator.MULTIPLY, Operator.NEGATIVE });
+
+	private static final Collection<Operator> BOOLEAN_OPS = Arrays.asList(new Operator[] {
+			Operator.AND, Operator.OR, Operator.EQUAL, Operator.LESS, Operator.GREATER,
+			Operator.LESSEQUAL, Operator.GREATEREQUAL, Operator.NOTEQUAL, Operator.LOGICAL_NOT });
+
+	private static final Collection<Operator> NONLINEAR_OPS = Arrays.asList(new Operator[] {
+			Operator.POW, Operator.DIVIDE, Operator.COS, Operator.SIN, Operator.SQRT, Operator.TAN,
+			Operator.EXP, Operator.LN });
+
 	/**
 	 * Check if an Expression contains only operations from a set of allowed classes (linear,
 	 * nonlinear, ect.)
@@ -1223,75 +1240,123 @@ public abstract class AutomatonUtil
 	 *            expressions will be assumed to be constants
 	 * @return the derivative of e
 	 */
-	public static Expression derivativeOf(Expression e, Map<String, Expression> timeDerivatives)
+	public static Expression derivativeOf(Expression e,
+			final Map<String, Expression> timeDerivatives)
 	{
-		Expression rv = null;
-
-		if (e instanceof Variable)
+		// computed bottom-up with an explicit stack, so long expressions don't overflow the stack
+		PostOrder<Expression> derivative = new PostOrder<Expression>()
 		{
-			String v = ((Variable) e).name;
-
-			if (timeDerivatives.keySet().contains(v))
-				rv = timeDerivatives.get(v).copy();
-			else
-				rv = new Constant(0); // derivative of a constant is zero
-		}
-		else if (e instanceof Constant)
-			rv = new Constant(0);
-		else if (e instanceof Operation)
-		{
-			Operation o = e.asOperation();
+			@Override
+			protected List<Expression> getChildren(Expression e)
+			{
+				List<Expression> rv = Collections.emptyList();
+				Operation o = e instanceof Operation ? (Operation) e : null;
 
-			if (o.op == Operator.SUBTRACT)
-				o = new Operation(Operator.ADD, o.getLeft(),
-						new Operation(Operator.NEGATIVE, o.getRight()));
+				if (o != null && o.op == Operator.ADD)
+					rv = o.children;
+				else if (o != null && (o.op == Operator.SUBTRACT || o.op == Operator.MULTIPLY))
+					rv = Arrays.asList(o.getLeft(), o.getRight());
+				else if (o != null && o.op == Operator.NEGATIVE)
+					rv = o.children.subList(0, 1);
 
-			if (o.op == Operator.NEGATIVE)
-				o = new Operation(Operator.MULTIPLY, new Constant(-1), o.children.get(0));
+				return rv;
+			}
 
-			if (o.op == Operator.ADD)
+			@Override
+			protected Expression combine(Expression e, List<Expression> childDers)
 			{
-				ArrayList<Expression> childDers = new ArrayList<Expression>();
+				Expression rv = null;
 
-				for (Expression child : o.children)
+				if (e instanceof Variable)
 				{
-					Expression childDer = derivativeOf(child, timeDerivatives);
+					String v = ((Variable) e).name;
 
-					if (!(childDer instanceof Constant) || ((Constant) childDer).getVal() != 0)
-						childDers.add(childDer);
+					if (timeDerivatives.keySet().contains(v))
+						rv = timeDerivatives.get(v).copy();
+					else
+						rv = new Constant(0); // derivative of a constant is zero
 				}
-
-				if (childDers.size() == 0)
+				else if (e instanceof Constant)
 					rv = new Constant(0);
-				else if (childDers.size() == 1)
-					rv = childDers.get(0);
+				else if (e instanceof Operation)
+				{
+					Operation o = e.asOperation();
+
+					if (o.op == Operator.ADD)
+						rv = sumDerivative(childDers);
+					else if (o.op == Operator.SUBTRACT)
+					{
+						// x - y = x + -1 * y
+						List<Expression> ders = new ArrayList<Expression>();
+						ders.add(childDers.get(0));
+						ders.add(productDerivative(new Constant(-1), o.getRight(), new Constant(0),
+								childDers.get(1)));
+
+						rv = sumDerivative(ders);
+					}
+					else if (o.op == Operator.NEGATIVE)
+						rv = productDerivative(new Constant(-1), o.children.get(0), new Constant(0),
+								childDers.get(0));
+					else if (o.op == Operator.MULTIPLY)
+						rv = productDerivative(o.getLeft(), o.getRight(), childDers.get(0),
+								childDers.get(1));
+					else
+						throw new AutomatonExportException("Unsupported Operation in derivativeOf '"
+								+ o.op.toDefaultString() + "': " + e.toDefaultString());
+				}
 				else
-					rv = new Operation(Operator.ADD, childDers);
+					throw new AutomatonExportException(
+							"Unsupported Expression type in derivativeOf: " + e.toDefaultString());
+
+				return rv;
 			}
-			else if (o.op == Operator.MULTIPLY)
-			{
-				Expression leftDer = derivativeOf(o.getLeft(), timeDerivatives);
-				Expression rightDer = derivativeOf(o.getRight(), timeDerivatives);
+		};
 
-				// chain rule: (xy)' = x'y + xy'
+		return derivative.evaluate(e);
+	}
 
-				Operation leftSide = new Operation(Operator.MULTIPLY, leftDer, o.getRight());
-				Operation rightSide = new Operation(Operator.MULTIPLY, o.getLeft(), rightDer);
+	/**
+	 * Get the derivative of a sum from the derivatives of the terms
+	 */
+	private static Expression sumDerivative(List<Expression> termDers)
+	{
+		Expression rv;
+		ArrayList<Expression> childDers = new ArrayList<Expression>();
 
-				if (leftDer instanceof Constant && ((Constant) leftDer).getVal() == 0)
-					rv = rightSide;
-				else if (rightDer instanceof Constant && ((Constant) rightDer).getVal() == 0)
-					rv = leftSide;
-				else
-					rv = new Operation(Operator.ADD, leftSide, rightSide);
-			}
-			else
-				throw new AutomatonExportException("Unsupported Operation in derivativeOf '"
-						+ o.op.toDefaultString() + "': " + e.toDefaultString());
+		for (Expression childDer : termDers)
+		{
+			if (!(childDer instanceof Constant) || ((Constant) childDer).getVal() != 0)
+				childDers.add(childDer);
 		}
+
+		if (childDers.size() == 0)
+			rv = new Constant(0);
+		else if (childDers.size() == 1)
+			rv = childDers.get(0);
 		else
-			throw new AutomatonExportException(
-					"Unsupported Expression type in derivativeOf: " + e.toDefaultString());
+			rv = new Operation(Operator.ADD, childDers);
+
+		return rv;
+	}
+
+	/**
+	 * Get the derivative of a product from the factors and their derivatives
+	 */
+	private static Expression productDerivative(Expression left, Expression right,
+			Expression leftDer, Expression rightDer)
+	{
+		Expression rv;
+
+		// chain rule: (xy)' = x'y + xy'
+		Operation leftSide = new Operation(Operator.MULTIPLY, leftDer, right);
+		Operation rightSide = new Operation(Operator.MULTIPLY, left, rightDer);
+
+		if (leftDer instanceof Constant && ((Constant) leftDer).getVal() == 0)
+			rv = rightSide;
+		else if (rightDer instanceof Constant && ((Constant) rightDer).getVal() == 0)
+			rv = leftSide;
+		else
+			rv = new Operation(Operator.ADD, leftSide, rightSide);
 
 		return rv;
 	}
@@ -3,16 +3,11 @@
  */
 package com.verivital.hyst.util;
 
-import static com.verivital.hyst.util.AutomatonUtil.simplifyExpression;
-
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
-import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.Operation;
-import com.verivital.hyst.grammar.formula.Operator;
-import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
@@ -115,23 +110,12 @@ public class Classification
 		{
 			boolean allNull = true;
 
-			for (Entry<String, AutomatonMode> m : c.modes.entrySet())
+			for (AutomatonMode m : c.modes.values())
 			{
-				for (String v : c.variables)
+				if (!FlowAnalysis.of(m).isZero())
 				{
-					if (m.getValue().flowDynamics.containsKey(v))
-					{
-						if (m.getValue().flowDynamics.get(v) != null)
-						{
-							ExpressionInterval ei = m.getValue().flowDynamics.get(v);
-							if (!ei.getExpression().equals(new Constant(0))
-									|| ei.getInterval() != null)
-							{
-								allNull = false;
-								break;
-							}
-						}
-					}
+					allNull = false;
+					break;
 				}
 			}
 
@@ -188,104 +172,12 @@ public class Classification
 		return rv;
 	}
 
-	public static boolean isLinearExpression(Expression e)
-	{
-		boolean rv = true;
-
-		Operation o = e.asOperation();
-
-		if (o != null)
-		{
-			if (o.op == Operator.MULTIPLY)
-			{
-				int numVars = 0;
-
-				for (Expression c : o.children)
-				{
-					int count = countVariablesMultNeg(c);
-
-					if (count != Integer.MAX_VALUE)
-					{
-						numVars += count;
-					}
-					else
-					{
-						rv = false;
-						break;
-					}
-				}
-
-				if (numVars > 1)
-				{
-					rv = false;
-				}
-			}
-			else if (o.op == Operator.ADD || o.op == Operator.SUBTRACT)
-			{
-				for (Expression c : o.children)
-				{
-					if (!isLinearExpression(c))
-					{
-						rv = false;
-						break;
-					}
-				}
-			}
-			else if (o.op == Operator.NEGATIVE)
-			{
-				rv = isLinearExpression(o.children.get(0));
-			}
-			else
-			{
-				rv = false;
-			}
-		}
-
-		return rv;
-	}
-
 	/**
-	 * Recursively count the number of variables. only recurse if we have multiplication, or
-	 * negation, otherwise return Integer.MAX_VALUE
-	 *
-	 * @param e
-	 *            the expression
-	 * @return the number of variables
+	 * Check if an expression is affine, like 2 * x - y / 4 + 3
 	 */
-	private static int countVariablesMultNeg(Expression e)
+	public static boolean isLinearExpression(Expression e)
 	{
-		int rv = 0;
-		Operation o = e.asOperation();
-
-		if (o != null)
-		{
-			if (o.op == Operator.MULTIPLY || o.op == Operator.NEGATIVE)
-			{
-				for (Expression c : o.children)
-				{
-					int count = countVariablesMultNeg(c);
-
-					if (count == Integer.MAX_VALUE)
-					{
-						rv = Integer.MAX_VALUE;
-					}
-					else
-					{
-						rv += count;
-					}
-				}
-			}
-			else
-			{
-				rv = Integer.MAX_VALUE;
-			}
-		}
-		else if (e instanceof Variable)
-		{
-			rv = 1;
-		}
-
-		return rv;
+		return LinearForm.isLinear(e);
 	}
 
 	/**
@@ -310,7 +202,9 @@ public class Classification
 	 */
 	public void setLinearMatrix(AutomatonMode m)
 	{
-		if (!isLinearDynamics(m.flowDynamics))
+		FlowAnalysis analysis = FlowAnalysis.of(m);
+
+		if (!analysis.isAffine())
 		{
 			throw new AutomatonValidationException("this is not a linear automaton");
 		}
@@ -319,92 +213,29 @@ public class Classification
 			int size = varID.size();
 			int i = 0;
 			linearMatrix = new double[ha.variables.size()][size];
-			for (ExpressionInterval ei : m.flowDynamics.values())
+			for (String var : m.flowDynamics.keySet())
 			{
-				Expression e = simplifyExpression(ei.getExpression());
-				findCoefficient(i, e);
+				setCoefficients(i, analysis.getLinearForm(var));
 				i++;
 			}
 		}
 	}
 
 	/**
-	 * find coefficients for all variables and constants of the linear expressions
+	 * set the coefficients for all variables and constants of a linear expression in a row of the
+	 * matrix
 	 */
-	private void findCoefficient(int i, Expression e)
+	private void setCoefficients(int i, LinearForm lf)
 	{
-
-		if (e instanceof Variable)
-		{
-			if (e.getParent() != null)
-			{
-				if (e.getParent().op == Operator.SUBTRACT)
-				{
-					linearMatrix[i][varID.get(e.toDefaultString())] = -1;
-				}
-			}
-			else
-			{
-				linearMatrix[i][varID.get(e.toDefaultString())] = 1;
-			}
-		}
-		else if (e instanceof Operation)
+		for (Entry<String, Double> e : lf.coefficients.entrySet())
 		{
-			Operation o = (Operation) e;
+			Integer id = varID.get(e.getKey());
 
-			if (o.op == Operator.NEGATIVE)
-			{
-				Expression child = o.children.get(0);
-				linearMatrix[i][varID.get(child.toDefaultString())] = -1;
-			}
-			if (o.op == Operator.MULTIPLY)
-			{
-				Expression l = o.getLeft();
-				Expression r = o.getRight();
-				if (r instanceof Variable && l instanceof Constant)
-				{
-					linearMatrix[i][varID.get(r.toDefaultString())] = ((Constant) l).getVal();
-					if (o.getParent() != null)
-					{
-						if (o.getParent().op == Operator.SUBTRACT
-								&& o.getParent().getRight().equals(o))
-						{
-							linearMatrix[i][varID.get(r.toDefaultString())] = -linearMatrix[i][varID
-									.get(r.toDefaultString())];
-						}
-					}
-				}
-				else if (l instanceof Variable && r instanceof Constant)
-				{
-					linearMatrix[i][varID.get(l.toDefaultString())] = ((Constant) r).getVal();
-					if (o.getParent() != null)
-					{
-						if (o.getParent().op == Operator.SUBTRACT
-								&& o.getParent().getRight().equals(o))
-						{
-							linearMatrix[i][varID.get(l.toDefaultString())] = -linearMatrix[i][varID
-									.get(l.toDefaultString())];
-						}
-					}
-				}
-			}
-			else if (o.op == Operator.ADD || o.op == Operator.SUBTRACT)
-			{
-				if (o.getRight() instanceof Variable)
-				{
-					linearMatrix[i][varID.get(o.getRight().toDefaultString())] = 1;
-				}
-				if (o.getLeft() instanceof Variable)
-				{
-					linearMatrix[i][varID.get(o.getLeft().toDefaultString())] = 1;
-				}
-				if (o.getRight() instanceof Operation || o.getLeft() instanceof Operation)
-				{
-					findCoefficient(i, o.getRight());
-					findCoefficient(i, o.getLeft());
-				}
-			}
+			if (id == null)
+				throw new AutomatonValidationException(
+						"unknown variable in linear dynamics: " + e.getKey());
+
+			linearMatrix[i][id] = e.getValue();
 		}
 	}
-
 }
@@ -0,0 +1,469 @@
+package com.verivital.hyst.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * An on-disk, content-addressed cache for conversions (-cache). A conversion is a chain of stages:
+ * the input model, then one stage per transformation pass, and finally the printed output. Each
+ * stage has a key which is a SHA-256 hash of the previous stage's key and the stage's own
+ * description (pass name and parameters, or printer name and parameters). The first key hashes the
+ * contents of the input files, so editing a model changes every key after it.
+ *
+ * The model after each pass is stored as an IR snapshot (KEY.ir), and the printed output, together
+ * with any side files the printer wrote, is stored as a bundle (KEY.out). A later conversion which
+ * shares a prefix of passes resumes from the deepest cached snapshot, and a repeated conversion
+ * only copies the stored output.
+ *
+ * Entries are written to a temporary file and renamed, so a killed run never leaves a partial
+ * entry. Reading an entry updates its modification time, and the least recently used entries are
+ * deleted whenever the cache grows beyond its size limit. Entries which can't be read are deleted
+ * and treated as misses.
+ */
+public class ConversionCache
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SNAPSHOT_EXT = ".ir";
+	private static final String OUTPUT_EXT = ".out";
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File dir;
+	private final long maxBytes;
+
+	/**
+	 * Create a cache in the given directory, which is created if needed
+	 *
+	 * @param dir
+	 *            the cache directory
+	 * @param maxBytes
+	 *            the total size of entries to keep
+	 */
+	public ConversionCache(File dir, long maxBytes)
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new AutomatonExportException("Could not create cache directory: " + dir);
+
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the key for a conversion which starts from the given input files. The key depends on the
+	 * file contents (not their names), the Hyst version and the snapshot format version.
+	 *
+	 * @param files
+	 *            the input files, in order
+	 * @return the stage key
+	 */
+	public static String inputKey(List<File> files)
+	{
+		MessageDigest md = newDigest();
+		update(md, Hyst.TOOL_NAME);
+		update(md, "ir" + IrSnapshot.FORMAT_VERSION);
+
+		byte[] buf = new byte[BUFFER_SIZE];
+
+		for (File f : files)
+		{
+			try
+			{
+				InputStream in = new FileInputStream(f);
+
+				try
+				{
+					update(md, "file " + f.length());
+
+					for (int len = in.read(buf); len != -1; len = in.read(buf))
+						md.update(buf, 0, len);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new AutomatonExportException("Error reading input file: " + f, e);
+			}
+		}
+
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Get the key for a stage which follows another stage
+	 *
+	 * @param prevKey
+	 *            the key of the previous stage
+	 * @param parts
+	 *            the description of this stage, for example a pass name and its parameters
+	 * @return the stage key
+	 */
+	public static String stageKey(String prevKey, String... parts)
+	{
+		MessageDigest md = newDigest();
+		update(md, prevKey);
+
+		for (String s : parts)
+			update(md, s == null ? "\0null" : s);
+
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Load the model stored for a stage
+	 *
+	 * @param key
+	 *            the stage key
+	 * @return the loaded model, or null if it's not cached
+	 */
+	public Configuration loadSnapshot(String key)
+	{
+		File f = new File(dir, key + SNAPSHOT_EXT);
+		Configuration rv = null;
+
+		if (f.exists())
+		{
+			try
+			{
+				rv = IrSnapshot.load(f.getPath());
+				touch(f);
+			}
+			catch (AutomatonExportException e)
+			{
+				Hyst.log("Deleting unreadable cache entry " + f + ": " + e.getMessage());
+				f.delete();
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Store the model for a stage
+	 *
+	 * @param key
+	 *            the stage key
+	 * @param c
+	 *            the model, which is not modified
+	 */
+	public void storeSnapshot(String key, Configuration c)
+	{
+		File tmp = tempFile(key);
+
+		try
+		{
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+
+			try
+			{
+				IrSnapshot.save(c, out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			tmp.delete();
+			throw new AutomatonExportException("Error writing cache entry: " + tmp, e);
+		}
+
+		commit(tmp, new File(dir, key + SNAPSHOT_EXT));
+	}
+
+	/**
+	 * Restore the printed output for a stage, including any side files
+	 *
+	 * @param key
+	 *            the output stage key
+	 * @param outputFile
+	 *            the main output file; side files are restored relative to its directory
+	 * @return true if the output was cached and has been restored
+	 */
+	public boolean restoreOutput(String key, File outputFile)
+	{
+		File f = new File(dir, key + OUTPUT_EXT);
+
+		if (!f.exists())
+			return false;
+
+		File baseDir = parentDir(outputFile);
+
+		try
+		{
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+
+			try
+			{
+				int count = in.readInt();
+				byte[] buf = new byte[BUFFER_SIZE];
+
+				for (int i = 0; i < count; ++i)
+				{
+					String path = in.readUTF();
+					long len = in.readLong();
+					File dest = i == 0 ? outputFile : new File(baseDir, path);
+
+					if (dest.getParentFile() != null)
+						dest.getParentFile().mkdirs();
+
+					OutputStream out = new FileOutputStream(dest);
+
+					try
+					{
+						while (len > 0)
+						{
+							int n = (int) Math.min(len, buf.length);
+							in.readFully(buf, 0, n);
+							out.write(buf, 0, n);
+							len -= n;
+						}
+					}
+					finally
+					{
+						out.close();
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			Hyst.log("Deleting unreadable cache entry " + f + ": " + e.getMessage());
+			f.delete();
+			return false;
+		}
+
+		touch(f);
+
+		return true;
+	}
+
+	/**
+	 * Store the printed output for a stage. Side files must be inside the output file's directory,
+	 * otherwise nothing is stored.
+	 *
+	 * @param key
+	 *            the output stage key
+	 * @param outputFile
+	 *            the main output file
+	 * @param sideFiles
+	 *            other files written by the printer
+	 */
+	public void storeOutput(String key, File outputFile, List<File> sideFiles)
+	{
+		String base = parentDir(outputFile).getAbsolutePath() + File.separator;
+		ArrayList<File> files = new ArrayList<File>();
+		ArrayList<String> paths = new ArrayList<String>();
+
+		files.add(outputFile);
+		paths.add(outputFile.getName());
+
+		for (File f : sideFiles)
+		{
+			String path = f.getAbsolutePath();
+
+			if (!path.startsWith(base))
+			{
+				Hyst.log("Not caching output, since " + f + " is outside of the output directory");
+				return;
+			}
+
+			files.add(f);
+			paths.add(path.substring(base.length()));
+		}
+
+		File tmp = tempFile(key);
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+
+			try
+			{
+				out.writeInt(files.size());
+				byte[] buf = new byte[BUFFER_SIZE];
+
+				for (int i = 0; i < files.size(); ++i)
+				{
+					File f = files.get(i);
+					out.writeUTF(paths.get(i));
+					out.writeLong(f.length());
+
+					InputStream in = new FileInputStream(f);
+
+					try
+					{
+						for (int len = in.read(buf); len != -1; len = in.read(buf))
+							out.write(buf, 0, len);
+					}
+					finally
+					{
+						in.close();
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			tmp.delete();
+			throw new AutomatonExportException("Error writing cache entry: " + tmp, e);
+		}
+
+		commit(tmp, new File(dir, key + OUTPUT_EXT));
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is within its size limit
+	 */
+	public void evict()
+	{
+		File[] entries = dir.listFiles();
+
+		if (entries == null)
+			return;
+
+		long total = 0;
+
+		for (File f : entries)
+			total += f.length();
+
+		if (total <= maxBytes)
+			return;
+
+		// snapshot the times, since they may change while sorting
+		final long[] times = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+
+		for (int i = 0; i < entries.length; ++i)
+		{
+			times[i] = entries[i].lastModified();
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(times[a], times[b]);
+			}
+		});
+
+		for (int i = 0; i < order.length && total > maxBytes; ++i)
+		{
+			File f = entries[order[i]];
+			long len = f.length();
+
+			if (f.delete())
+			{
+				Hyst.logDebug("Evicted cache entry " + f.getName());
+				total -= len;
+			}
+		}
+	}
+
+	private File tempFile(String key)
+	{
+		return new File(dir, key + "." + Thread.currentThread().getId() + "."
+				+ System.nanoTime() + ".tmp");
+	}
+
+	private void commit(File tmp, File dest)
+	{
+		// renameTo doesn't replace an existing file on all platforms
+		if (!tmp.renameTo(dest))
+		{
+			dest.delete();
+
+			if (!tmp.renameTo(dest))
+			{
+				tmp.delete();
+				throw new AutomatonExportException("Could not create cache entry: " + dest);
+			}
+		}
+
+		evict();
+	}
+
+	private static void touch(File f)
+	{
+		f.setLastModified(System.currentTimeMillis());
+	}
+
+	private static File parentDir(File f)
+	{
+		File rv = f.getAbsoluteFile().getParentFile();
+
+		return rv == null ? new File(".") : rv;
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Add a length-prefixed string to a digest, so that different part lists never collide
+	 */
+	private static void update(MessageDigest md, String s)
+	{
+		byte[] bytes = s.getBytes(UTF8);
+		int len = bytes.length;
+
+		md.update(new byte[] { (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8),
+				(byte) len });
+		md.update(bytes);
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		final char[] HEX = "0123456789abcdef".toCharArray();
+		char[] rv = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; ++i)
+		{
+			rv[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			rv[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+
+		return new String(rv);
+	}
+}
@@ -0,0 +1,14 @@
+package com.verivital.hyst.util;
+
+/**
+ * Thrown at a cancellation checkpoint when the running conversion was cancelled (see
+ * ConversionMonitor)
+ */
+@SuppressWarnings("serial")
+public class ConversionCancelledException extends RuntimeException
+{
+	public ConversionCancelledException()
+	{
+		super("Conversion was cancelled.");
+	}
+}
@@ -0,0 +1,111 @@
+package com.verivital.hyst.util;
+
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.LogMessage;
+
+/**
+ * Progress reporting and cooperative cancellation for a running conversion. The conversion calls
+ * stageStarted() as it goes through its stages (loading the model, each pass, and printing), and
+ * calls checkpoint() at points where it can safely stop, such as between passes and while
+ * printing. If cancel() was called, the checkpoint throws a ConversionCancelledException, which
+ * Hyst reports with the CANCELLED exit code.
+ *
+ * The monitor is per-thread, so a conversion running in the background (for example, from the GUI)
+ * doesn't affect others. A thread without a monitor gets a default one which is never cancelled.
+ * Subclasses override stageStarted() to show progress, and stageFinished() to inspect the
+ * configuration after each pass.
+ */
+public class ConversionMonitor
+{
+	private static final ThreadLocal<ConversionMonitor> current;
+
+	static
+	{
+		current = new ThreadLocal<ConversionMonitor>()
+		{
+			@Override
+			protected ConversionMonitor initialValue()
+			{
+				return new ConversionMonitor();
+			}
+		};
+	}
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Request cancellation. The conversion stops at its next checkpoint. This may be called from
+	 * any thread.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Called when a conversion stage starts. The default does nothing.
+	 * 
+	 * @param description
+	 *            a description of the stage, like the pass name
+	 * @param stage
+	 *            the index of the stage, starting at 0
+	 * @param numStages
+	 *            the total number of stages
+	 */
+	public void stageStarted(String description, int stage, int numStages)
+	{
+	}
+
+	/**
+	 * Called after a pass (or a group of fused passes) has run, with the resulting configuration.
+	 * The default prints the configuration in debug mode; it's only converted to a string if it
+	 * will be printed.
+	 * 
+	 * @param description
+	 *            a description of the stage, like the pass name
+	 * @param stage
+	 *            the index of the stage
+	 * @param config
+	 *            the configuration after the stage
+	 */
+	public void stageFinished(String description, int stage, Configuration config)
+	{
+		Hyst.logDebug(LogMessage.of("\n----------After running pass ", description,
+				", configuration is:\n", config));
+	}
+
+	/**
+	 * Get the monitor for the current thread
+	 */
+	public static ConversionMonitor get()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Set the monitor for the current thread, or restore the default one if null
+	 */
+	public static void set(ConversionMonitor monitor)
+	{
+		if (monitor == null)
+			current.remove();
+		else
+			current.set(monitor);
+	}
+
+	/**
+	 * A cancellation checkpoint. Throws a ConversionCancelledException if the current thread's
+	 * conversion was cancelled.
+	 */
+	public static void checkpoint()
+	{
+		if (current.get().cancelled)
+			throw new ConversionCancelledException();
+	}
+}
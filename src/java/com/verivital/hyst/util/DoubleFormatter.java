@@ -0,0 +1,155 @@
+package com.verivital.hyst.util;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Fast, thread-safe conversion of doubles to plain (non-scientific) decimal strings. The output is
+ * identical to a DecimalFormat with pattern "0.#", at most 50 fraction digits and English symbols,
+ * which is what printers have always used for numbers: the shortest digits that round-trip, no
+ * grouping, no trailing zeros, and no exponent.
+ *
+ * Most constants in models have a short decimal form, like 0.25 or 1e-3. For these, the digits are
+ * generated directly: the smallest power of ten k is found such that some integer m < 10^15
+ * satisfies m / 10^k == d. Since 10^k (k <= 22) and m are exact doubles, the division is correctly
+ * rounded, so m * 10^-k is the unique decimal with at most 15 significant digits which rounds to d,
+ * and its digits are written straight into the output. Other numbers (16 or 17 significant digits,
+ * very large or very small magnitudes, infinities and NaN) are passed to a per-thread
+ * DecimalFormat, so their digits are the ones DecimalFormat has always produced, whatever the JVM
+ * version.
+ */
+public class DoubleFormatter
+{
+	public static final int MAX_FRACTION_DIGITS = 50;
+
+	// largest power of ten which is an exact double
+	private static final int MAX_POW10 = 22;
+	private static final double[] POW10 = new double[MAX_POW10 + 1];
+
+	// the fast path uses at most 15 significant digits, which are unique for each double
+	private static final long MAX_DIGITS_VALUE = 1000000000000000L;
+
+	static
+	{
+		POW10[0] = 1;
+
+		for (int i = 1; i <= MAX_POW10; ++i)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private static final ThreadLocal<DecimalFormat> formats = new ThreadLocal<DecimalFormat>()
+	{
+		@Override
+		protected DecimalFormat initialValue()
+		{
+			return makeDecimalFormat();
+		}
+	};
+
+	/**
+	 * Convert a double to a string
+	 *
+	 * @param d
+	 *            the number
+	 * @return the formatted string, like "0.3" or "-12"
+	 */
+	public static String format(double d)
+	{
+		StringBuilder sb = new StringBuilder(24);
+
+		append(sb, d);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Append a double to a StringBuilder, formatted as in format()
+	 *
+	 * @param sb
+	 *            where to append the number
+	 * @param d
+	 *            the number
+	 */
+	public static void append(StringBuilder sb, double d)
+	{
+		if (d == 0)
+		{
+			// DecimalFormat prints the sign of -0.0
+			sb.append(1 / d < 0 ? "-0" : "0");
+			return;
+		}
+
+		double abs = Math.abs(d);
+
+		if (abs < MAX_DIGITS_VALUE) // false for NaN and infinity
+		{
+			for (int k = 0; k <= MAX_POW10; ++k)
+			{
+				double m = Math.rint(abs * POW10[k]);
+
+				if (m >= MAX_DIGITS_VALUE)
+					break;
+
+				if (m / POW10[k] == abs)
+				{
+					if (d < 0)
+						sb.append('-');
+
+					appendDigits(sb, (long) m, k);
+					return;
+				}
+			}
+		}
+
+		sb.append(formats.get().format(d));
+	}
+
+	/**
+	 * Append the decimal number m * 10^-k, where m > 0
+	 */
+	private static void appendDigits(StringBuilder sb, long m, int k)
+	{
+		char[] digits = new char[20];
+		int start = digits.length;
+
+		for (long rest = m; rest > 0; rest /= 10)
+			digits[--start] = (char) ('0' + rest % 10);
+
+		int numDigits = digits.length - start;
+
+		if (k == 0)
+			sb.append(digits, start, numDigits);
+		else if (numDigits > k)
+		{
+			// ddd.ddd
+			sb.append(digits, start, numDigits - k);
+			sb.append('.');
+			sb.append(digits, digits.length - k, k);
+		}
+		else
+		{
+			// 0.000ddd
+			sb.append("0.");
+
+			for (int i = numDigits; i < k; ++i)
+				sb.append('0');
+
+			sb.append(digits, start, numDigits);
+		}
+	}
+
+	/**
+	 * Create the DecimalFormat which defines the formatting rules. This is used for numbers without
+	 * a short decimal form, and as a reference in tests.
+	 *
+	 * @return a new DecimalFormat instance
+	 */
+	public static DecimalFormat makeDecimalFormat()
+	{
+		DecimalFormat df = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
+		df.setMaximumFractionDigits(MAX_FRACTION_DIGITS);
+
+		return df;
+	}
+}
@@ -6,7 +6,6 @@ import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
-import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.AutomatonMode;
 
@@ -22,9 +21,7 @@ public class DynamicsUtil
 
 		String row = nonInputVars.get(index);
 
-		Expression der = am.flowDynamics.get(row).asExpression();
-
-		return extractLinearVector(der, nonInputVars);
+		return extractLinearVector(am, row, nonInputVars);
 	}
 
 	/**
@@ -46,9 +43,7 @@ public class DynamicsUtil
 
 		for (String row : nonInputVars)
 		{
-			Expression der = am.flowDynamics.get(row).asExpression();
-
-			ArrayList<Double> line = extractLinearVector(der, inputVars);
+			ArrayList<Double> line = extractLinearVector(am, row, inputVars);
 
 			rv.add(line);
 		}
@@ -56,6 +51,33 @@ public class DynamicsUtil
 		return rv;
 	}
 
+	/**
+	 * Extract a linear vector from the flow of a variable, using the mode's cached analysis
+	 */
+	private static ArrayList<Double> extractLinearVector(AutomatonMode am, String row,
+			ArrayList<String> vars)
+	{
+		ArrayList<Double> rv = new ArrayList<Double>();
+
+		// asExpression() raises an exception if the flow has a (non-point) interval
+		am.flowDynamics.get(row).asExpression();
+
+		if (!vars.isEmpty())
+		{
+			try
+			{
+				rv = FlowAnalysis.of(am).getLinearForm(row).getVector(vars);
+			}
+			catch (AutomatonExportException ex)
+			{
+				throw new AutomatonExportException("Error extracting linear coefficients for "
+						+ vars + " in flow of " + row + " in mode " + am.name, ex);
+			}
+		}
+
+		return rv;
+	}
+
 	public static ArrayList<String> getNonInputVariables(AutomatonMode am,
 			ArrayList<String> variables)
 	{
@@ -92,9 +114,18 @@ public class DynamicsUtil
 			if (am.flowDynamics == null || am.flowDynamics.get(row) == null)
 				continue;
 
-			Expression der = am.flowDynamics.get(row).asExpression();
+			// asExpression() raises an exception if the flow has a (non-point) interval
+			am.flowDynamics.get(row).asExpression();
 
-			rv.add(extractLinearValue(der));
+			try
+			{
+				rv.add(FlowAnalysis.of(am).getLinearForm(row).constant);
+			}
+			catch (AutomatonExportException ex)
+			{
+				throw new AutomatonExportException("Error extracting constant from flow of " + row
+						+ " in mode " + am.name, ex);
+			}
 		}
 
 		return rv;
@@ -170,113 +201,6 @@ public class DynamicsUtil
 		return rv;
 	}
 
-	private static Expression findMultiplier(String varName, Expression summation)
-	{
-		Expression rv = null;
-
-		if (summation instanceof Operation)
-		{
-			Operation o = summation.asOperation();
-			Operator op = o.op;
-
-			if (op == Operator.NEGATIVE)
-			{
-				rv = findMultiplier(varName, o.children.get(0));
-
-				if (rv != null)
-					rv = new Operation(Operator.NEGATIVE, rv);
-			}
-			else if (op == Operator.MULTIPLY)
-			{
-				Expression left = o.getLeft();
-				Expression right = o.getRight();
-
-				if (left instanceof Variable && right instanceof Variable)
-					throw new AutomatonExportException(
-							"Unsupported variable-variable term in linear derivative: '"
-									+ o.toDefaultString() + "'");
-				else if (left instanceof Variable)
-				{
-					if (((Variable) left).name.equals(varName))
-						rv = right;
-				}
-				else if (right instanceof Variable)
-				{
-					if (((Variable) right).name.equals(varName))
-						rv = left;
-				}
-				else
-					throw new AutomatonExportException(
-							"Unsupported term in linear derivative: '" + o.toDefaultString() + "'");
-			}
-			else if (op == Operator.DIVIDE)
-			{
-				// only support variable / constant
-
-				Expression left = o.getLeft();
-				Expression right = o.getRight();
-
-				if (left instanceof Variable && right instanceof Constant
-						&& ((Constant) right).getVal() != 0)
-				{
-					if (((Variable) left).name.equals(varName))
-						rv = new Constant(1.0 / ((Constant) right).getVal());
-				}
-				else
-					throw new AutomatonExportException(
-							"Unsupported term in linear derivative: '" + o.toDefaultString() + "'");
-			}
-			else if (op == Operator.ADD || op == Operator.SUBTRACT)
-			{
-				Expression left = o.getLeft();
-				Expression right = o.getRight();
-
-				Expression leftRv = findMultiplier(varName, left);
-				Expression rightRv = findMultiplier(varName, right);
-
-				if (leftRv != null && rightRv != null)
-					throw new AutomatonExportException("Unsupported term in linear derivative ("
-							+ varName + " in multiple places): " + summation.toDefaultString());
-				else if (leftRv != null)
-					rv = leftRv;
-				else if (rightRv != null)
-				{
-					if (op == Operator.SUBTRACT)
-						rv = new Operation(Operator.NEGATIVE, rightRv);
-					else
-						rv = rightRv;
-				}
-			}
-			else
-				throw new AutomatonExportException(
-						"Unsupported operation in linear derivative (expecting '+', '-', '*', or'/'): '"
-								+ o.toDefaultString());
-		}
-		else if (summation instanceof Constant)
-		{
-			// constant by itself
-
-			if (varName == null)
-				rv = summation;
-		}
-		else if (summation instanceof Variable)
-		{
-			// variable by itself
-
-			Variable v = (Variable) summation;
-
-			if (v.name.equals(varName))
-				rv = new Constant(1);
-		}
-		else
-			throw new AutomatonExportException(
-					"Unsupported expression type (" + summation.getClass()
-							+ ") in linear derivative (expecting sum of multiples): '"
-							+ summation.toDefaultString() + "'");
-
-		return rv;
-	}
-
 	/**
 	 * Extract a linear vector from an expression
 	 * 
@@ -290,29 +214,16 @@ public class DynamicsUtil
 	{
 		ArrayList<Double> rv = new ArrayList<Double>();
 
-		for (String v : vars)
+		if (!vars.isEmpty())
 		{
-			Expression multiplierExpression = null;
-
 			try
 			{
-				// find variable 'col' in expression 'exp'
-				multiplierExpression = findMultiplier(v, exp);
-
-				if (multiplierExpression != null)
-				{
-					double val = AutomatonUtil.evaluateConstant(multiplierExpression);
-					rv.add(val);
-				}
-				else
-					rv.add(0.0);
+				rv = LinearForm.fromExpression(exp).getVector(vars);
 			}
 			catch (AutomatonExportException ex)
 			{
-				throw new AutomatonExportException(
-						"Error extracting linear coefficient for variable '" + v
-								+ "' in expression: '" + exp.toDefaultString() + "'",
-						ex);
+				throw new AutomatonExportException("Error extracting linear coefficients for "
+						+ vars + " in expression: '" + exp.toDefaultString() + "'", ex);
 			}
 		}
 
@@ -323,12 +234,9 @@ public class DynamicsUtil
 	{
 		double val = 0.0;
 
-		Expression e = null;
-
 		try
 		{
-			// find variable 'col' in expression 'der'
-			e = findMultiplier(null, exp);
+			val = LinearForm.fromExpression(exp).constant;
 		}
 		catch (AutomatonExportException ex)
 		{
@@ -336,11 +244,6 @@ public class DynamicsUtil
 					+ exp.toDefaultString() + "'", ex);
 		}
 
-		if (e != null)
-		{
-			val = AutomatonUtil.evaluateConstant(e);
-		}
-
 		return val;
 	}
 }
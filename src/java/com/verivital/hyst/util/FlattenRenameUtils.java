@@ -169,6 +169,12 @@ public class FlattenRenameUtils
 			return rv;
 		}
 
+		@Override
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public static String modifyString(String from)
 		{
 			return from.replace(DOT, SEPARATOR);
@@ -0,0 +1,536 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+/**
+ * Symmetry reduction for automaton flattening (the -symmetry flag of FlattenAutomatonPass).
+ *
+ * Children of a network component are interchangeable if they are base components which are
+ * identical after their params are converted to fully-qualified names. This means they were
+ * instantiated from the same template with the same bindings, and have no local variables,
+ * constants or labels (those get an instance-specific prefix). For such a group of k instances, a
+ * mode of the product is determined by how many instances are in each template mode, so rather than
+ * the |modes|^k cross product we create one mode per multiset of template modes (a counter
+ * abstraction), which grows polynomially in k. Instances with local continuous state are never
+ * interchangeable, since swapping them would also need the variables to be swapped.
+ *
+ * A multiset mode is named by its template modes in template order, separated by SEPARATOR, which
+ * is the name of one of the product modes it represents. Initial and forbidden modes are renamed to
+ * these names.
+ */
+public class FlattenSymmetryUtils
+{
+	public static final String SEPARATOR = FlattenAutomatonPass.SEPARATOR;
+
+	/**
+	 * Find the groups of interchangeable children in every network component. This should be
+	 * called after FlattenRenameUtils.convertToFullyQualifiedParams().
+	 *
+	 * @param root
+	 *            the root component of the automaton
+	 * @return a map of network component -> groups of child instance names (each with at least two
+	 *         instances, in child order). Networks without groups are not in the map.
+	 */
+	public static Map<NetworkComponent, List<List<String>>> findGroups(Component root)
+	{
+		IdentityHashMap<NetworkComponent, List<List<String>>> rv = new IdentityHashMap<NetworkComponent, List<List<String>>>();
+
+		findGroupsRec(root, rv);
+
+		return rv;
+	}
+
+	private static void findGroupsRec(Component c, Map<NetworkComponent, List<List<String>>> rv)
+	{
+		if (!(c instanceof NetworkComponent))
+			return;
+
+		NetworkComponent nc = (NetworkComponent) c;
+		LinkedHashMap<String, List<String>> bySignature = new LinkedHashMap<String, List<String>>();
+
+		for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+		{
+			Component child = e.getValue().child;
+
+			if (child instanceof BaseComponent)
+			{
+				String sig = getSignature((BaseComponent) child);
+				List<String> group = bySignature.get(sig);
+
+				if (group == null)
+				{
+					group = new ArrayList<String>();
+					bySignature.put(sig, group);
+				}
+
+				group.add(e.getKey());
+			}
+			else
+				findGroupsRec(child, rv);
+		}
+
+		List<List<String>> groups = new ArrayList<List<String>>();
+
+		for (List<String> group : bySignature.values())
+		{
+			if (group.size() > 1)
+			{
+				Hyst.log("Instances " + group + " are interchangeable and will be flattened using "
+						+ "symmetry reduction");
+				groups.add(group);
+			}
+		}
+
+		if (groups.size() > 0)
+			rv.put(nc, groups);
+	}
+
+	/**
+	 * Get a string which describes everything about a base component except its instance name
+	 */
+	private static String getSignature(BaseComponent ha)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		rv.append(ha.variables).append(ha.labels).append(ha.constants);
+
+		for (AutomatonMode am : ha.modes.values())
+			rv.append('\n').append(am);
+
+		for (AutomatonTransition at : ha.transitions)
+			rv.append('\n').append(at);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Get the group which contains the given child, or null
+	 */
+	public static List<String> getGroup(List<List<String>> groups, String childName)
+	{
+		List<String> rv = null;
+
+		if (groups != null)
+		{
+			for (List<String> group : groups)
+			{
+				if (group.contains(childName))
+				{
+					rv = group;
+					break;
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Rename the (dotted) initial and forbidden modes to the names of the multiset modes. Modes
+	 * which become the same are combined with a disjunction.
+	 *
+	 * @param c
+	 *            the configuration, which has not been flattened yet
+	 * @param groups
+	 *            the result of findGroups()
+	 */
+	public static void renameInitForbidden(Configuration c,
+			Map<NetworkComponent, List<List<String>>> groups)
+	{
+		c.init = renameModes(c.root, c.init, groups);
+
+		if (c.forbidden != null)
+			c.forbidden = renameModes(c.root, c.forbidden, groups);
+	}
+
+	private static LinkedHashMap<String, Expression> renameModes(Component root,
+			LinkedHashMap<String, Expression> map,
+			Map<NetworkComponent, List<List<String>>> groups)
+	{
+		LinkedHashMap<String, Expression> rv = new LinkedHashMap<String, Expression>();
+
+		for (Entry<String, Expression> e : map.entrySet())
+		{
+			String[] parts = e.getKey().split("\\.");
+			int[] pos = { 0 };
+			String name = getCanonicalName(root, parts, pos, groups);
+
+			if (pos[0] != parts.length)
+				throw new AutomatonExportException("Mode name '" + e.getKey()
+						+ "' doesn't have one part per base component.");
+
+			Expression prev = rv.get(name);
+			Expression exp = e.getValue();
+
+			if (prev != null && !prev.toDefaultString().equals(exp.toDefaultString()))
+				exp = Expression.or(prev, exp);
+
+			rv.put(name, exp);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the dotted name of a mode in the symmetry-reduced flattened component. This follows the
+	 * order used by FlattenAutomatonPass: each group is placed where its first instance is.
+	 *
+	 * @param c
+	 *            the component
+	 * @param parts
+	 *            the mode name of each base component, in depth-first order
+	 * @param pos
+	 *            the index of the first part for this component, incremented as parts are used
+	 * @param groups
+	 *            the result of findGroups()
+	 * @return the dotted name
+	 */
+	private static String getCanonicalName(Component c, String[] parts, int[] pos,
+			Map<NetworkComponent, List<List<String>>> groups)
+	{
+		if (c instanceof BaseComponent)
+		{
+			if (pos[0] >= parts.length)
+				throw new AutomatonExportException("Mode name has fewer parts than base components.");
+
+			return parts[pos[0]++];
+		}
+
+		NetworkComponent nc = (NetworkComponent) c;
+		List<List<String>> ncGroups = groups.get(nc);
+		HashMap<String, String> childNames = new HashMap<String, String>();
+
+		for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+			childNames.put(e.getKey(), getCanonicalName(e.getValue().child, parts, pos, groups));
+
+		StringBuilder rv = new StringBuilder();
+
+		for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+		{
+			String childName = e.getKey();
+			List<String> group = getGroup(ncGroups, childName);
+			String name;
+
+			if (group == null)
+				name = childNames.get(childName);
+			else if (!group.get(0).equals(childName))
+				continue; // part of the first instance's name
+			else
+			{
+				final List<String> modeOrder = new ArrayList<String>(
+						((BaseComponent) e.getValue().child).modes.keySet());
+				List<String> modes = new ArrayList<String>();
+
+				for (String member : group)
+					modes.add(childNames.get(member));
+
+				Collections.sort(modes, new Comparator<String>()
+				{
+					@Override
+					public int compare(String a, String b)
+					{
+						return Integer.compare(modeOrder.indexOf(a), modeOrder.indexOf(b));
+					}
+				});
+
+				name = StringOperations.join(".", modes.toArray(new String[modes.size()]));
+			}
+
+			if (rv.length() > 0)
+				rv.append('.');
+
+			rv.append(name);
+		}
+
+		return rv.toString();
+	}
+
+	/**
+	 * Create the counter abstraction of a group of interchangeable base components. Unlabeled
+	 * transitions are taken by one instance at a time. Labeled transitions are taken by all the
+	 * instances together, since they all share the label.
+	 *
+	 * @param members
+	 *            the interchangeable components, in child order
+	 * @return a new component with one mode per multiset of the members' modes
+	 */
+	public static BaseComponent makeCounterComponent(List<BaseComponent> members)
+	{
+		BaseComponent template = members.get(0);
+		int k = members.size();
+		ArrayList<AutomatonMode> templateModes = new ArrayList<AutomatonMode>(
+				template.modes.values());
+		int n = templateModes.size();
+
+		BaseComponent rv = new BaseComponent();
+		rv.variables.addAll(template.variables);
+		rv.labels.addAll(template.labels);
+		rv.constants.putAll(template.constants);
+
+		String[] names = new String[k];
+
+		for (int i = 0; i < k; ++i)
+			names[i] = members.get(i).instanceName;
+
+		rv.instanceName = StringOperations.join(SEPARATOR, names);
+
+		// modes, one for every sorted list of k template mode indices
+		ArrayList<int[]> multisets = new ArrayList<int[]>();
+		enumerateMultisets(new int[n], 0, k, multisets);
+
+		for (int[] counts : multisets)
+			makeMode(rv, templateModes, counts);
+
+		// transitions
+		HashMap<AutomatonMode, Integer> modeIndex = new HashMap<AutomatonMode, Integer>();
+
+		for (int i = 0; i < n; ++i)
+			modeIndex.put(templateModes.get(i), i);
+
+		for (int[] counts : multisets)
+		{
+			AutomatonMode from = rv.modes.get(getName(templateModes, counts));
+
+			// interleaved transitions
+			for (AutomatonTransition t : template.transitions)
+			{
+				if (t.label != null && template.labels.contains(t.label))
+					continue;
+
+				int fromIndex = modeIndex.get(t.from);
+
+				if (counts[fromIndex] == 0)
+					continue;
+
+				int[] target = counts.clone();
+				--target[fromIndex];
+				++target[modeIndex.get(t.to)];
+
+				AutomatonTransition at = rv.createTransition(from,
+						rv.modes.get(getName(templateModes, target)));
+				at.guard = t.guard.copy();
+				at.reset = FlattenAutomatonPass.copyMap(t.reset);
+				at.label = t.label;
+			}
+
+			// synchronized transitions
+			for (String label : template.labels)
+				addSyncTransitions(rv, template, templateModes, modeIndex, counts, from, label);
+		}
+
+		return rv;
+	}
+
+	private static void makeMode(BaseComponent rv, ArrayList<AutomatonMode> templateModes,
+			int[] counts)
+	{
+		AutomatonMode mode = rv.createMode(getName(templateModes, counts));
+		mode.invariant = null;
+		boolean urgent = false;
+
+		for (int i = 0; i < counts.length; ++i)
+			if (counts[i] > 0 && templateModes.get(i).urgent)
+				urgent = true;
+
+		if (urgent)
+		{
+			mode.urgent = true;
+			mode.flowDynamics = null;
+		}
+
+		// instances in the same mode contribute the same invariant and flows, so use each mode once
+		for (int i = 0; i < counts.length; ++i)
+		{
+			if (counts[i] == 0)
+				continue;
+
+			AutomatonMode am = templateModes.get(i);
+			mode.invariant = FlattenAutomatonPass.andExpressions(mode.invariant,
+					am.invariant.copy());
+
+			if (!urgent)
+			{
+				try
+				{
+					mode.flowDynamics = FlattenAutomatonPass.mergeExpressionMap(mode.flowDynamics,
+							FlattenAutomatonPass.copyMap(am.flowDynamics));
+				}
+				catch (AutomatonExportException e)
+				{
+					throw new AutomatonExportException(
+							"Conflicting dynamics (multiple drivers) detected while "
+									+ "flattening automaton",
+							e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the transitions where every instance takes a transition with the given label
+	 */
+	private static void addSyncTransitions(BaseComponent rv, BaseComponent template,
+			ArrayList<AutomatonMode> templateModes, HashMap<AutomatonMode, Integer> modeIndex,
+			int[] counts, AutomatonMode from, String label)
+	{
+		int n = counts.length;
+
+		// the outgoing transitions with the label from each occupied mode
+		ArrayList<ArrayList<AutomatonTransition>> outgoing = new ArrayList<ArrayList<AutomatonTransition>>();
+
+		for (int i = 0; i < n; ++i)
+			outgoing.add(new ArrayList<AutomatonTransition>());
+
+		for (AutomatonTransition t : template.transitions)
+		{
+			if (label.equals(t.label))
+				outgoing.get(modeIndex.get(t.from)).add(t);
+		}
+
+		for (int i = 0; i < n; ++i)
+		{
+			if (counts[i] > 0 && outgoing.get(i).size() == 0)
+				return; // some instance can't take the label
+		}
+
+		// for each occupied mode, the ways to pick a transition for each of its instances
+		ArrayList<ArrayList<int[]>> choices = new ArrayList<ArrayList<int[]>>();
+
+		for (int i = 0; i < n; ++i)
+		{
+			ArrayList<int[]> modeChoices = new ArrayList<int[]>();
+			int numTransitions = outgoing.get(i).size();
+			enumerateMultisets(new int[numTransitions], 0, counts[i], modeChoices);
+			choices.add(modeChoices);
+		}
+
+		int[] choiceIndex = new int[n];
+
+		while (true)
+		{
+			// create the transition for the current combination of choices
+			Expression guard = null;
+			LinkedHashMap<String, ExpressionInterval> reset = new LinkedHashMap<String, ExpressionInterval>();
+			int[] target = new int[n];
+
+			for (int i = 0; i < n; ++i)
+			{
+				int[] taken = choices.get(i).get(choiceIndex[i]);
+
+				for (int t = 0; t < taken.length; ++t)
+				{
+					if (taken[t] == 0)
+						continue;
+
+					AutomatonTransition at = outgoing.get(i).get(t);
+					target[modeIndex.get(at.to)] += taken[t];
+					guard = FlattenAutomatonPass.andExpressions(guard, at.guard.copy());
+
+					try
+					{
+						reset = FlattenAutomatonPass.mergeExpressionMap(reset,
+								FlattenAutomatonPass.copyMap(at.reset));
+					}
+					catch (AutomatonExportException e)
+					{
+						throw new AutomatonExportException(
+								"Conflicting reset (multiple drivers) detected while "
+										+ "flattening automaton",
+								e);
+					}
+				}
+			}
+
+			AutomatonTransition at = rv.createTransition(from,
+					rv.modes.get(getName(templateModes, target)));
+			at.guard = guard;
+			at.reset = reset;
+			at.label = label;
+
+			// advance to the next combination
+			int i = 0;
+
+			for (; i < n; ++i)
+			{
+				if (++choiceIndex[i] < choices.get(i).size())
+					break;
+
+				choiceIndex[i] = 0;
+			}
+
+			if (i == n)
+				break;
+		}
+	}
+
+	/**
+	 * Get the name of a multiset mode: the template mode names in template order
+	 */
+	private static String getName(ArrayList<AutomatonMode> templateModes, int[] counts)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (int i = 0; i < counts.length; ++i)
+		{
+			for (int c = 0; c < counts[i]; ++c)
+			{
+				if (rv.length() > 0)
+					rv.append(SEPARATOR);
+
+				rv.append(templateModes.get(i).name);
+			}
+		}
+
+		return rv.toString();
+	}
+
+	/**
+	 * Enumerate all the ways to put 'remaining' items into the bins starting at 'bin', in
+	 * lexicographic order of the sorted item lists
+	 *
+	 * @param counts
+	 *            the current count in each bin (modified during the enumeration)
+	 * @param bin
+	 *            the current bin
+	 * @param remaining
+	 *            the number of items not yet in a bin
+	 * @param rv
+	 *            where to store copies of the complete counts
+	 */
+	private static void enumerateMultisets(int[] counts, int bin, int remaining, List<int[]> rv)
+	{
+		if (remaining == 0)
+			rv.add(counts.clone());
+		else if (bin < counts.length)
+		{
+			for (int c = remaining; c >= 0; --c)
+			{
+				counts[bin] = c;
+				enumerateMultisets(counts, bin + 1, remaining - c, rv);
+			}
+
+			counts[bin] = 0;
+		}
+	}
+}
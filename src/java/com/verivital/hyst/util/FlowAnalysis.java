@@ -0,0 +1,291 @@
+package com.verivital.hyst.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+
+/**
+ * A cached analysis of the flows in a mode: the operator classes used (from
+ * AutomatonUtil.classifyExpressionOps), the linear form of each affine flow, and the variables
+ * each flow depends on. Printers and passes which need these should share the cached analysis
+ * from FlowAnalysis.of(mode), rather than walking the flow expressions themselves.
+ *
+ * The analysis is recomputed if the flows were replaced (a different map, ExpressionInterval,
+ * Expression or Interval). Changes inside an expression, like setting the children of an
+ * Operation, are not detected, so code which modifies flow expressions in place should call
+ * invalidate(). TransformationPass invalidates the whole cache after every pass, including passes
+ * run on component templates and fused rewrite passes.
+ */
+public class FlowAnalysis
+{
+	private static final Map<AutomatonMode, FlowAnalysis> cache = Collections
+			.synchronizedMap(new WeakHashMap<AutomatonMode, FlowAnalysis>());
+
+	// the flows which were analyzed, for detecting changes
+	private final LinkedHashMap<String, ExpressionInterval> flows;
+	private final ExpressionInterval[] flowSnapshot;
+	private final Expression[] expressionSnapshot;
+	private final Interval[] intervalSnapshot;
+	private final double[] boundsSnapshot;
+
+	private byte ops = 0;
+	private final LinkedHashMap<String, Byte> flowOps = new LinkedHashMap<String, Byte>();
+
+	// the linear form of each flow, or null for flows which are not affine
+	private final LinkedHashMap<String, LinearForm> linearForms = new LinkedHashMap<String, LinearForm>();
+	private final LinkedHashMap<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+
+	private boolean affine = true; // every flow is x' = Ax + b, possibly plus an interval
+	private boolean linear = true; // every flow is x' = Ax
+	private boolean zero = true; // every flow is x' = 0
+
+	/**
+	 * Get the analysis of a mode's flows, from the cache if the flows haven't changed
+	 *
+	 * @param am
+	 *            the mode
+	 * @return the analysis
+	 */
+	public static FlowAnalysis of(AutomatonMode am)
+	{
+		FlowAnalysis rv = cache.get(am);
+
+		if (rv == null || !rv.matches(am.flowDynamics))
+		{
+			rv = new FlowAnalysis(am.flowDynamics);
+			cache.put(am, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Discard the cached analysis of a mode, for example after modifying its flow expressions in
+	 * place
+	 */
+	public static void invalidate(AutomatonMode am)
+	{
+		cache.remove(am);
+	}
+
+	/**
+	 * Discard all cached analyses
+	 */
+	public static void invalidateAll()
+	{
+		cache.clear();
+	}
+
+	private FlowAnalysis(LinkedHashMap<String, ExpressionInterval> flows)
+	{
+		this.flows = flows;
+		int size = flows == null ? 0 : flows.size();
+
+		flowSnapshot = new ExpressionInterval[size];
+		expressionSnapshot = new Expression[size];
+		intervalSnapshot = new Interval[size];
+		boundsSnapshot = new double[2 * size];
+
+		if (flows == null)
+			return;
+
+		int index = 0;
+
+		for (Entry<String, ExpressionInterval> entry : flows.entrySet())
+		{
+			ExpressionInterval ei = entry.getValue();
+			snapshot(index++, ei);
+
+			// flows are only null before validation, or for havoc dynamics
+			if (ei != null)
+				analyze(entry.getKey(), ei);
+		}
+	}
+
+	private void snapshot(int index, ExpressionInterval ei)
+	{
+		flowSnapshot[index] = ei;
+
+		if (ei != null)
+		{
+			Interval i = ei.getInterval();
+			expressionSnapshot[index] = ei.getExpression();
+			intervalSnapshot[index] = i;
+
+			if (i != null)
+			{
+				boundsSnapshot[2 * index] = i.min;
+				boundsSnapshot[2 * index + 1] = i.max;
+			}
+		}
+	}
+
+	private void analyze(String var, ExpressionInterval ei)
+	{
+		Expression e = ei.getExpression();
+		byte cl = AutomatonUtil.classifyExpressionOps(e);
+
+		ops |= cl;
+		flowOps.put(var, cl);
+		dependencies.put(var, AutomatonUtil.getVariablesInExpression(e));
+
+		LinearForm lf = LinearForm.tryFromExpression(e);
+		linearForms.put(var, lf);
+
+		if (lf == null)
+			affine = linear = false;
+		else if (lf.constant != 0 || ei.getInterval() != null)
+			linear = false;
+
+		if (!e.equals(new Constant(0)) || ei.getInterval() != null)
+			zero = false;
+	}
+
+	/**
+	 * Check if the analyzed flows are still the ones in the mode
+	 */
+	private boolean matches(LinkedHashMap<String, ExpressionInterval> modeFlows)
+	{
+		if (modeFlows != flows)
+			return false;
+
+		if (flows == null)
+			return true;
+
+		if (flows.size() != flowSnapshot.length)
+			return false;
+
+		int index = 0;
+
+		for (ExpressionInterval ei : flows.values())
+		{
+			if (ei != flowSnapshot[index])
+				return false;
+
+			if (ei != null)
+			{
+				Interval i = ei.getInterval();
+
+				if (ei.getExpression() != expressionSnapshot[index] || i != intervalSnapshot[index])
+					return false;
+
+				if (i != null && (i.min != boundsSnapshot[2 * index]
+						|| i.max != boundsSnapshot[2 * index + 1]))
+					return false;
+			}
+
+			++index;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the operator classes used in all the flows, as a bitmask of AutomatonUtil.OPS_* values
+	 */
+	public byte getOps()
+	{
+		return ops;
+	}
+
+	/**
+	 * Get the operator classes used in the flow of a variable, as a bitmask of
+	 * AutomatonUtil.OPS_* values
+	 *
+	 * @param var
+	 *            the variable
+	 * @return the bitmask, which is 0 if the variable has no flow
+	 */
+	public byte getOps(String var)
+	{
+		Byte rv = flowOps.get(var);
+
+		return rv == null ? 0 : rv;
+	}
+
+	/**
+	 * Do any of the flows use nonlinear operators (like division or sine)?
+	 */
+	public boolean hasNonlinearOps()
+	{
+		return (ops & AutomatonUtil.OPS_NONLINEAR) != 0;
+	}
+
+	/**
+	 * Are all the flows affine, x' = Ax + b (intervals are allowed)?
+	 */
+	public boolean isAffine()
+	{
+		return affine;
+	}
+
+	/**
+	 * Are all the flows linear, x' = Ax?
+	 */
+	public boolean isLinear()
+	{
+		return linear;
+	}
+
+	/**
+	 * Are all the flows zero, x' = 0?
+	 */
+	public boolean isZero()
+	{
+		return zero;
+	}
+
+	/**
+	 * Get the linear form of a variable's flow
+	 *
+	 * @param var
+	 *            the variable
+	 * @return the linear form, which is shared and must not be modified
+	 * @throws AutomatonExportException
+	 *             if the variable has no flow, or it's not affine
+	 */
+	public LinearForm getLinearForm(String var)
+	{
+		LinearForm rv = linearForms.get(var);
+
+		if (rv == null)
+		{
+			ExpressionInterval ei = flows == null ? null : flows.get(var);
+
+			if (ei == null)
+				throw new AutomatonExportException("No flow defined for variable " + var);
+
+			// not affine, this raises an exception with the unsupported term
+			rv = LinearForm.fromExpression(ei.getExpression());
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the variables (and constants) used in the flow of a variable
+	 *
+	 * @param var
+	 *            the variable
+	 * @return the variable names, which are empty if the variable has no flow
+	 */
+	public Set<String> getDependencies(String var)
+	{
+		Set<String> rv = dependencies.get(var);
+
+		if (rv == null)
+			rv = Collections.emptySet();
+
+		return Collections.unmodifiableSet(rv);
+	}
+}
@@ -0,0 +1,421 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+
+/**
+ * Converts boolean conditions, like guards with disjunctions, into a disjoint disjunctive normal
+ * form. Each atomic constraint (a comparison like "x + y <= 5") is abstracted as a boolean variable
+ * of a reduced ordered binary decision diagram (BDD). Every path of the BDD to TRUE is a
+ * conjunction of constraints, and no two paths overlap, since they disagree on some constraint.
+ *
+ * Complementary comparisons share a BDD variable: "x < 5" is the negation of "x >= 5", and
+ * "x > 5" is the negation of "x <= 5". Negated constraints are printed as the complementary
+ * comparison. Some printers don't support strict comparisons, so a strict comparison which isn't
+ * in the input is printed as a non-strict one (the negation of "x <= 5" is printed as "x >= 5").
+ * Negated equalities ("x != 5") are also usually not supported, so they're removed from a
+ * conjunction whenever the rest of the conjunction is still contained in the condition. In both
+ * cases, the conjunctions may then overlap, but only on a boundary.
+ *
+ * Atoms and BDD operations are memoized in the object, so use one normalizer for all the
+ * conditions in an automaton. The variable order is the order in which atoms are first seen. The
+ * abstraction ignores relationships between atoms (for example, "x < 1" implies "x < 2"), so a
+ * path can be unsatisfiable, like "x <= 1 & x >= 2" for "x >= 1 | x >= 2". Conjunctions which
+ * IntervalContractor proves unsatisfiable are dropped, but others may remain. No part of the
+ * condition is ever missed.
+ *
+ * The conjunctions are returned in BDD path order, where at each node the branch matching the
+ * atom as it was first written in the input is taken first. For example, "x == 1 || x == 2"
+ * becomes (x == 1) and then (x == 2), and "t >= 5 || x >= 7" becomes (t >= 5) and then
+ * (t < 5 && x >= 7).
+ */
+public class GuardNormalizer
+{
+	private static final int FALSE = 0;
+	private static final int TRUE = 1;
+
+	// atoms, in variable order. Comparisons use LESS, LESSEQUAL or EQUAL.
+	private final ArrayList<Expression> atoms = new ArrayList<Expression>();
+	private final HashMap<String, Integer> atomIndices = new HashMap<String, Integer>();
+
+	// for each atom, was it negated when first seen (for example "x >= 5" is the atom "x < 5")
+	private final ArrayList<Boolean> atomNegated = new ArrayList<Boolean>();
+
+	// comparisons in the input, which may be printed even if they're strict
+	private final HashSet<String> inputComparisons = new HashSet<String>();
+
+	// bdd nodes, the first two are the terminals
+	private final ArrayList<int[]> nodes = new ArrayList<int[]>(); // {var, low, high}
+	private final HashMap<List<Integer>, Integer> uniqueTable = new HashMap<List<Integer>, Integer>();
+	private final HashMap<List<Integer>, Integer> applyCache = new HashMap<List<Integer>, Integer>();
+	private final HashMap<Integer, Integer> notCache = new HashMap<Integer, Integer>();
+
+	public GuardNormalizer()
+	{
+		nodes.add(new int[] { Integer.MAX_VALUE, FALSE, FALSE });
+		nodes.add(new int[] { Integer.MAX_VALUE, TRUE, TRUE });
+	}
+
+	/**
+	 * Convert a condition to a list of pairwise-disjoint conjunctions, whose disjunction is the
+	 * condition
+	 *
+	 * @param e
+	 *            the condition, made of AND, OR, LOGICAL_NOT, comparisons and the TRUE / FALSE
+	 *            constants
+	 * @return the conjunctions, or an empty list if the condition is unsatisfiable
+	 */
+	public List<Expression> normalize(Expression e)
+	{
+		int root = build(e);
+		int notRoot = not(root);
+		List<Expression> rv = new ArrayList<Expression>();
+		ArrayList<ArrayList<Integer>> cubes = new ArrayList<ArrayList<Integer>>();
+
+		enumeratePaths(root, cubes);
+
+		for (ArrayList<Integer> cube : cubes)
+		{
+			// remove negated literals which can't be printed as a comparison, if possible
+			for (int i = cube.size() - 1; i >= 0; --i)
+			{
+				int lit = cube.get(i);
+
+				if (!isPositive(lit) && complement(atoms.get(atomOf(lit))) == null)
+				{
+					ArrayList<Integer> weaker = new ArrayList<Integer>(cube);
+					weaker.remove(i);
+
+					if (apply(true, cubeBdd(weaker), notRoot) == FALSE)
+						cube = weaker;
+				}
+			}
+
+			Expression conjunction = Constant.TRUE;
+
+			for (int lit : cube)
+				conjunction = Expression.and(conjunction, literalExpression(lit));
+
+			// atoms on the same variables may contradict each other
+			if (!IntervalContractor.isUnsat(conjunction))
+				rv.add(conjunction);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Build the bdd for a condition, bottom-up with an explicit stack since conditions can be deep
+	 */
+	private int build(Expression condition)
+	{
+		PostOrder<Integer> builder = new PostOrder<Integer>()
+		{
+			@Override
+			protected List<Expression> getChildren(Expression parent)
+			{
+				List<Expression> rv = Collections.emptyList();
+				Operation o = parent.asOperation();
+
+				// atoms are leaves
+				if (o != null && (o.op == Operator.AND || o.op == Operator.OR
+						|| o.op == Operator.LOGICAL_NOT))
+					rv = o.children;
+
+				return rv;
+			}
+
+			@Override
+			protected Integer combine(Expression e, List<Integer> childBdds)
+			{
+				int rv;
+				Operation o = e.asOperation();
+
+				if (e == Constant.TRUE)
+					rv = TRUE;
+				else if (e == Constant.FALSE)
+					rv = FALSE;
+				else if (o != null && (o.op == Operator.AND || o.op == Operator.OR))
+				{
+					boolean isAnd = o.op == Operator.AND;
+					rv = isAnd ? TRUE : FALSE;
+
+					for (int child : childBdds)
+						rv = apply(isAnd, rv, child);
+				}
+				else if (o != null && o.op == Operator.LOGICAL_NOT)
+					rv = not(childBdds.get(0));
+				else
+					rv = atomBdd(e);
+
+				return rv;
+			}
+		};
+
+		return builder.evaluate(condition);
+	}
+
+	/**
+	 * Get the bdd for an atomic constraint, adding the atom if it's new
+	 */
+	private int atomBdd(Expression e)
+	{
+		Operation o = e.asOperation();
+		Expression atom = e;
+		boolean negated = false;
+
+		if (o != null && Operator.isComparison(o.op))
+		{
+			Operator op = o.op;
+			inputComparisons.add(e.toDefaultString());
+
+			if (op == Operator.GREATER || op == Operator.GREATEREQUAL || op == Operator.NOTEQUAL)
+			{
+				op = complementOperator(op);
+				negated = true;
+			}
+
+			atom = new Operation(op, o.getLeft(), o.getRight());
+		}
+
+		String key = atom.toDefaultString();
+		Integer index = atomIndices.get(key);
+
+		if (index == null)
+		{
+			index = atoms.size();
+			atoms.add(atom.copy());
+			atomNegated.add(negated);
+			atomIndices.put(key, index);
+		}
+
+		return negated ? mk(index, TRUE, FALSE) : mk(index, FALSE, TRUE);
+	}
+
+	/**
+	 * Get the complementary comparison of a comparison in normal form, or null if there isn't one
+	 * which printers support (!= or other expressions)
+	 */
+	private static Expression complement(Expression atom)
+	{
+		Operation o = atom.asOperation();
+		Expression rv = null;
+
+		if (o != null && Operator.isComparison(o.op) && o.op != Operator.EQUAL
+				&& o.op != Operator.NOTEQUAL)
+			rv = new Operation(complementOperator(o.op), o.getLeft().copy(), o.getRight().copy());
+
+		return rv;
+	}
+
+	private static Operator complementOperator(Operator op)
+	{
+		switch (op)
+		{
+		case LESS:
+			return Operator.GREATEREQUAL;
+		case GREATEREQUAL:
+			return Operator.LESS;
+		case LESSEQUAL:
+			return Operator.GREATER;
+		case GREATER:
+			return Operator.LESSEQUAL;
+		case EQUAL:
+			return Operator.NOTEQUAL;
+		case NOTEQUAL:
+			return Operator.EQUAL;
+		default:
+			throw new IllegalArgumentException("not a comparison: " + op);
+		}
+	}
+
+	private Expression literalExpression(int lit)
+	{
+		Expression atom = atoms.get(atomOf(lit));
+		Expression rv;
+
+		if (isPositive(lit))
+			rv = atom.copy();
+		else
+		{
+			Operation o = atom.asOperation();
+
+			if (o != null && o.op == Operator.EQUAL)
+				rv = new Operation(Operator.NOTEQUAL, o.getLeft().copy(), o.getRight().copy());
+			else if (complement(atom) != null)
+				rv = complement(atom);
+			else
+				rv = new Operation(Operator.LOGICAL_NOT, atom.copy());
+		}
+
+		Operation o = rv.asOperation();
+
+		if (o != null && (o.op == Operator.LESS || o.op == Operator.GREATER)
+				&& !inputComparisons.contains(rv.toDefaultString()))
+		{
+			Operator nonStrict = o.op == Operator.LESS ? Operator.LESSEQUAL : Operator.GREATEREQUAL;
+			rv = new Operation(nonStrict, o.getLeft(), o.getRight());
+		}
+
+		return rv;
+	}
+
+	// literals are encoded as 2 * atom + (positive ? 1 : 0)
+	private static int atomOf(int lit)
+	{
+		return lit / 2;
+	}
+
+	private static boolean isPositive(int lit)
+	{
+		return lit % 2 == 1;
+	}
+
+	/**
+	 * Add every path from a node to TRUE, as a list of literals, depth-first with an explicit
+	 * stack. At each node, the branch with the atom as it was first written in the input is taken
+	 * first.
+	 */
+	private void enumeratePaths(int root, ArrayList<ArrayList<Integer>> rv)
+	{
+		ArrayList<Integer> path = new ArrayList<Integer>();
+
+		// nodes on the current path, and how many of their branches were taken
+		ArrayList<Integer> stack = new ArrayList<Integer>();
+		ArrayList<Integer> branchesTaken = new ArrayList<Integer>();
+
+		stack.add(root);
+		branchesTaken.add(0);
+
+		while (!stack.isEmpty())
+		{
+			int top = stack.size() - 1;
+			int node = stack.get(top);
+			int taken = branchesTaken.get(top);
+
+			if (node == TRUE || node == FALSE || taken == 2)
+			{
+				if (node == TRUE)
+					rv.add(new ArrayList<Integer>(path));
+				else if (taken == 2)
+					path.remove(path.size() - 1);
+
+				stack.remove(top);
+				branchesTaken.remove(top);
+				continue;
+			}
+
+			int[] n = nodes.get(node);
+			boolean negatedFirst = atomNegated.get(n[0]);
+			boolean takeNegated = negatedFirst == (taken == 0);
+			int lit = takeNegated ? 2 * n[0] : 2 * n[0] + 1;
+
+			if (taken == 0)
+				path.add(lit);
+			else
+				path.set(path.size() - 1, lit);
+
+			branchesTaken.set(top, taken + 1);
+			stack.add(takeNegated ? n[1] : n[2]);
+			branchesTaken.add(0);
+		}
+	}
+
+	private int cubeBdd(List<Integer> cube)
+	{
+		int rv = TRUE;
+
+		for (int lit : cube)
+		{
+			int var = atomOf(lit);
+			rv = apply(true, rv, isPositive(lit) ? mk(var, FALSE, TRUE) : mk(var, TRUE, FALSE));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the (unique) node for the given variable and children
+	 */
+	private int mk(int var, int low, int high)
+	{
+		if (low == high)
+			return low;
+
+		List<Integer> key = Arrays.asList(var, low, high);
+		Integer rv = uniqueTable.get(key);
+
+		if (rv == null)
+		{
+			rv = nodes.size();
+			nodes.add(new int[] { var, low, high });
+			uniqueTable.put(key, rv);
+		}
+
+		return rv;
+	}
+
+	private int not(int a)
+	{
+		if (a == TRUE || a == FALSE)
+			return a == TRUE ? FALSE : TRUE;
+
+		Integer rv = notCache.get(a);
+
+		if (rv == null)
+		{
+			int[] n = nodes.get(a);
+			rv = mk(n[0], not(n[1]), not(n[2]));
+			notCache.put(a, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Compute the conjunction (if isAnd is true) or disjunction of two bdds
+	 */
+	private int apply(boolean isAnd, int a, int b)
+	{
+		int absorbing = isAnd ? FALSE : TRUE;
+		int identity = isAnd ? TRUE : FALSE;
+
+		if (a == absorbing || b == absorbing)
+			return absorbing;
+		else if (a == identity || a == b)
+			return b;
+		else if (b == identity)
+			return a;
+
+		// both operations are commutative
+		List<Integer> key = Arrays.asList(isAnd ? 1 : 0, Math.min(a, b), Math.max(a, b));
+		Integer rv = applyCache.get(key);
+
+		if (rv == null)
+		{
+			int[] na = nodes.get(a);
+			int[] nb = nodes.get(b);
+			int var = Math.min(na[0], nb[0]);
+
+			int aLow = na[0] == var ? na[1] : a;
+			int aHigh = na[0] == var ? na[2] : a;
+			int bLow = nb[0] == var ? nb[1] : b;
+			int bHigh = nb[0] == var ? nb[2] : b;
+
+			rv = mk(var, apply(isAnd, aLow, bLow), apply(isAnd, aHigh, bHigh));
+			applyCache.put(key, rv);
+		}
+
+		return rv;
+	}
+}
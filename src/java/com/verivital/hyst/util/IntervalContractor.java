@@ -0,0 +1,685 @@
+package com.verivital.hyst.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+
+/**
+ * An HC4-style interval constraint propagator. Given a logical expression (a conjunction or
+ * disjunction of comparisons between arbitrary arithmetic expressions) and a box of variable
+ * ranges, each comparison is revised in two sweeps: a forward sweep computes an interval for every
+ * subexpression using interval arithmetic, and a backward sweep intersects the root with the
+ * values allowed by the comparison and projects the result back down to the variables, by
+ * inverting each operator. Comparisons are revised repeatedly until the box stops shrinking.
+ *
+ * Unlike RangeExtractor, this works on nonlinear and multivariate constraints such as
+ * "x + y <= 1 & x >= 2 & y >= 0". The result is an outer approximation: if the box becomes empty,
+ * the constraints are unsatisfiable, but a nonempty box doesn't mean they're satisfiable. Strict
+ * comparisons are treated like non-strict ones, and != and ! are not used for contraction.
+ *
+ * Internally, unbounded ranges use infinities. Ranges returned by getVariableBounds() use
+ * -Double.MAX_VALUE and Double.MAX_VALUE instead, like RangeExtractor.
+ */
+public class IntervalContractor
+{
+	private static final int MAX_ROUNDS = 50;
+
+	// another round is done if some variable range shrinks by more than this fraction
+	private static final double MIN_PROGRESS = 1e-3;
+
+	// relative tolerance for floating-point error when intersecting intervals
+	private static final double TOL = 1e-9;
+
+	private static final Interval UNBOUNDED = new Interval(Double.NEGATIVE_INFINITY,
+			Double.POSITIVE_INFINITY);
+
+	// the current variable ranges; variables which aren't in the map are unbounded
+	private Map<String, Interval> box;
+
+	// the forward-sweep values of the subexpressions in the comparison being revised
+	private final IdentityHashMap<Expression, Interval> values;
+
+	private IntervalContractor(Map<String, Interval> box)
+	{
+		this.box = box;
+		values = new IdentityHashMap<Expression, Interval>();
+	}
+
+	/**
+	 * Contract a box of variable ranges using some constraints, which are all assumed to hold
+	 *
+	 * @param box
+	 *            the ranges of the variables, which are narrowed in place. Variables which aren't in
+	 *            the map are unbounded, and are added to the map if the constraints bound them.
+	 * @param constraints
+	 *            the logical expressions which must hold
+	 * @return false if the constraints were proven unsatisfiable within the box (the box contents
+	 *         are then undefined), true otherwise
+	 */
+	public static boolean contract(Map<String, Interval> box, Expression... constraints)
+	{
+		IntervalContractor ic = new IntervalContractor(box);
+		boolean rv = true;
+
+		for (int round = 0; rv && round < MAX_ROUNDS; ++round)
+		{
+			Map<String, Interval> before = copyBox(box);
+
+			for (Expression e : constraints)
+			{
+				if (!ic.contractFormula(e))
+				{
+					rv = false;
+					break;
+				}
+			}
+
+			if (rv && !madeProgress(before, box))
+				break;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if the conjunction of the given constraints is unsatisfiable, with all variables
+	 * initially unbounded
+	 *
+	 * @param constraints
+	 *            the logical expressions
+	 * @return true if the conjunction is provably unsatisfiable
+	 */
+	public static boolean isUnsat(Expression... constraints)
+	{
+		return !contract(new HashMap<String, Interval>(), constraints);
+	}
+
+	/**
+	 * Get bounds for the variables in a logical expression
+	 *
+	 * @param e
+	 *            the expression
+	 * @return the bound for each variable which has at least one finite bound (open sides are
+	 *         -Double.MAX_VALUE or Double.MAX_VALUE), or null if the expression is unsatisfiable
+	 */
+	public static TreeMap<String, Interval> getVariableBounds(Expression e)
+	{
+		HashMap<String, Interval> box = new HashMap<String, Interval>();
+		TreeMap<String, Interval> rv = null;
+
+		if (contract(box, e))
+		{
+			rv = new TreeMap<String, Interval>();
+
+			for (Entry<String, Interval> entry : box.entrySet())
+			{
+				Interval i = entry.getValue();
+
+				if (i.min == Double.NEGATIVE_INFINITY && i.max == Double.POSITIVE_INFINITY)
+					continue;
+
+				double min = i.min == Double.NEGATIVE_INFINITY ? -Double.MAX_VALUE : i.min;
+				double max = i.max == Double.POSITIVE_INFINITY ? Double.MAX_VALUE : i.max;
+
+				rv.put(entry.getKey(), new Interval(min, max));
+			}
+		}
+
+		return rv;
+	}
+
+	private static Map<String, Interval> copyBox(Map<String, Interval> box)
+	{
+		HashMap<String, Interval> rv = new HashMap<String, Interval>();
+
+		for (Entry<String, Interval> e : box.entrySet())
+			rv.put(e.getKey(), e.getValue().copy());
+
+		return rv;
+	}
+
+	/**
+	 * Did any variable range shrink by a significant amount?
+	 */
+	private static boolean madeProgress(Map<String, Interval> before, Map<String, Interval> after)
+	{
+		for (Entry<String, Interval> e : after.entrySet())
+		{
+			Interval old = before.get(e.getKey());
+			Interval cur = e.getValue();
+
+			if (old == null)
+				return true;
+
+			double oldWidth = old.max - old.min;
+			double curWidth = cur.max - cur.min;
+
+			if (Double.isInfinite(oldWidth))
+			{
+				if (!Double.isInfinite(curWidth))
+					return true;
+
+				// a bound became finite
+				if (old.min != cur.min && old.min == Double.NEGATIVE_INFINITY)
+					return true;
+
+				if (old.max != cur.max && old.max == Double.POSITIVE_INFINITY)
+					return true;
+			}
+			else if (oldWidth - curWidth > MIN_PROGRESS * oldWidth)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Contract the box using a logical expression
+	 *
+	 * @return false if the expression is unsatisfiable in the box
+	 */
+	private boolean contractFormula(Expression e)
+	{
+		boolean rv = true;
+
+		if (e instanceof Constant)
+			rv = ((Constant) e).getVal() != 0;
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+
+			if (o.op == Operator.AND)
+			{
+				for (Expression child : o.children)
+				{
+					if (!contractFormula(child))
+					{
+						rv = false;
+						break;
+					}
+				}
+			}
+			else if (o.op == Operator.OR)
+				rv = contractDisjunction(o);
+			else if (Operator.isComparison(o.op) && o.op != Operator.NOTEQUAL)
+				rv = reviseComparison(o);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Contract each disjunct separately, and take the hull of the feasible results
+	 */
+	private boolean contractDisjunction(Operation o)
+	{
+		Map<String, Interval> original = box;
+		Map<String, Interval> hull = null;
+
+		for (Expression child : o.children)
+		{
+			box = copyBox(original);
+
+			if (!contractFormula(child))
+				continue;
+
+			if (hull == null)
+				hull = box;
+			else
+			{
+				Map<String, Interval> merged = new HashMap<String, Interval>();
+
+				// variables missing from either side are unbounded
+				for (Entry<String, Interval> entry : hull.entrySet())
+				{
+					Interval other = box.get(entry.getKey());
+
+					if (other != null)
+						merged.put(entry.getKey(), Interval.union(entry.getValue(), other));
+				}
+
+				hull = merged;
+			}
+		}
+
+		box = original;
+
+		if (hull == null)
+			return false;
+
+		for (Entry<String, Interval> entry : hull.entrySet())
+			box.put(entry.getKey(), entry.getValue());
+
+		return true;
+	}
+
+	/**
+	 * Revise a single comparison: forward sweep on both sides, intersect with the comparison, and
+	 * backward sweep
+	 */
+	private boolean reviseComparison(Operation o)
+	{
+		Expression left = o.getLeft();
+		Expression right = o.getRight();
+
+		values.clear();
+		Interval l = forward(left);
+		Interval r = forward(right);
+		Interval newLeft;
+		Interval newRight;
+
+		switch (o.op)
+		{
+		case EQUAL:
+			newLeft = newRight = intersect(l, r);
+			break;
+		case LESS:
+		case LESSEQUAL:
+			newLeft = intersect(l, make(Double.NEGATIVE_INFINITY, r.max));
+			newRight = intersect(r, make(l.min, Double.POSITIVE_INFINITY));
+			break;
+		case GREATER:
+		case GREATEREQUAL:
+			newLeft = intersect(l, make(r.min, Double.POSITIVE_INFINITY));
+			newRight = intersect(r, make(Double.NEGATIVE_INFINITY, l.max));
+			break;
+		default:
+			return true;
+		}
+
+		return newLeft != null && newRight != null && backward(left, newLeft)
+				&& backward(right, newRight);
+	}
+
+	/**
+	 * Forward sweep: compute the interval value of an arithmetic expression, and remember the value
+	 * of every subexpression
+	 */
+	private Interval forward(Expression e)
+	{
+		Interval rv = UNBOUNDED;
+
+		if (e instanceof Variable)
+		{
+			Interval i = box.get(((Variable) e).name);
+
+			if (i != null)
+				rv = i;
+		}
+		else if (e instanceof Constant)
+			rv = new Interval(((Constant) e).getVal());
+		else if (e instanceof Operation)
+			rv = forwardOperation((Operation) e);
+
+		values.put(e, rv);
+
+		return rv;
+	}
+
+	private Interval forwardOperation(Operation o)
+	{
+		Interval[] c = new Interval[o.children.size()];
+
+		for (int i = 0; i < c.length; ++i)
+			c[i] = forward(o.children.get(i));
+
+		Interval rv = UNBOUNDED;
+
+		switch (o.op)
+		{
+		case ADD:
+			rv = c[0];
+
+			for (int i = 1; i < c.length; ++i)
+				rv = add(rv, c[i]);
+			break;
+		case SUBTRACT:
+			rv = sub(c[0], c[1]);
+			break;
+		case MULTIPLY:
+			if (isSquare(o))
+			{
+				rv = pow(c[0], new Interval(2));
+				break;
+			}
+
+			rv = c[0];
+
+			for (int i = 1; i < c.length; ++i)
+				rv = mul(rv, c[i]);
+			break;
+		case DIVIDE:
+			rv = div(c[0], c[1]);
+			break;
+		case NEGATIVE:
+			rv = neg(c[0]);
+			break;
+		case POW:
+			rv = pow(c[0], c[1]);
+			break;
+		case SQRT:
+			if (c[0].max >= 0)
+				rv = make(Math.sqrt(Math.max(0, c[0].min)), Math.sqrt(c[0].max));
+			break;
+		case EXP:
+			rv = make(Math.exp(c[0].min), Math.exp(c[0].max));
+			break;
+		case LN:
+			if (c[0].max > 0)
+				rv = make(c[0].min > 0 ? Math.log(c[0].min) : Double.NEGATIVE_INFINITY,
+						Math.log(c[0].max));
+			break;
+		case SIN:
+		case COS:
+			rv = new Interval(-1, 1);
+			break;
+		default:
+			// tan, boolean operators and loc() aren't bounded
+			break;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Backward sweep: narrow an expression to the given interval (which is already intersected
+	 * with its forward value), and project the narrowing onto its children
+	 *
+	 * @return false if the expression can't take any value in the interval
+	 */
+	private boolean backward(Expression e, Interval target)
+	{
+		if (e instanceof Variable)
+		{
+			String name = ((Variable) e).name;
+			Interval cur = box.get(name);
+			Interval i = cur == null ? target : intersect(cur, target);
+
+			if (i == null)
+				return false;
+
+			box.put(name, i);
+		}
+		else if (e instanceof Constant)
+			return intersect(new Interval(((Constant) e).getVal()), target) != null;
+		else if (e instanceof Operation)
+			return backwardOperation((Operation) e, target);
+
+		return true;
+	}
+
+	private boolean backwardOperation(Operation o, Interval t)
+	{
+		int size = o.children.size();
+		Interval[] c = new Interval[size];
+
+		for (int i = 0; i < size; ++i)
+			c[i] = values.get(o.children.get(i));
+
+		switch (o.op)
+		{
+		case ADD:
+			for (int i = 0; i < size; ++i)
+			{
+				// child i = t - (sum of the others)
+				Interval others = new Interval(0);
+
+				for (int j = 0; j < size; ++j)
+				{
+					if (j != i)
+						others = add(others, c[j]);
+				}
+
+				if (!narrow(o.children.get(i), c[i], sub(t, others)))
+					return false;
+			}
+			break;
+		case SUBTRACT:
+			return narrow(o.getLeft(), c[0], add(t, c[1]))
+					&& narrow(o.getRight(), c[1], sub(c[0], t));
+		case MULTIPLY:
+			if (isSquare(o))
+				return backwardPow(o, c[0], new Interval(2), t);
+			else if (size == 2)
+			{
+				if (!containsZero(c[1]) && !narrow(o.getLeft(), c[0], div(t, c[1])))
+					return false;
+
+				if (!containsZero(c[0]) && !narrow(o.getRight(), c[1], div(t, c[0])))
+					return false;
+			}
+			break;
+		case DIVIDE:
+			if (!narrow(o.getLeft(), c[0], mul(t, c[1])))
+				return false;
+
+			if (!containsZero(t) && !narrow(o.getRight(), c[1], div(c[0], t)))
+				return false;
+			break;
+		case NEGATIVE:
+			return narrow(o.children.get(0), c[0], neg(t));
+		case POW:
+			return backwardPow(o, c[0], c[1], t);
+		case SQRT:
+		{
+			if (t.max < 0)
+				return false;
+
+			double lo = Math.max(0, t.min);
+
+			return narrow(o.children.get(0), c[0], make(lo * lo, t.max * t.max));
+		}
+		case EXP:
+			if (t.max <= 0)
+				return false;
+
+			return narrow(o.children.get(0), c[0], make(
+					t.min > 0 ? Math.log(t.min) : Double.NEGATIVE_INFINITY, Math.log(t.max)));
+		case LN:
+			return narrow(o.children.get(0), c[0], make(Math.exp(t.min), Math.exp(t.max)));
+		default:
+			// no projection for the other operators
+			break;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Is this a product of a variable with itself, like x * x? These are evaluated like x^2, which
+	 * gives tighter intervals since both factors have the same value.
+	 */
+	private static boolean isSquare(Operation o)
+	{
+		return o.children.size() == 2 && o.getLeft() instanceof Variable
+				&& o.getRight() instanceof Variable
+				&& ((Variable) o.getLeft()).name.equals(((Variable) o.getRight()).name);
+	}
+
+	/**
+	 * x^n = t, with n a positive integer constant
+	 */
+	private boolean backwardPow(Operation o, Interval x, Interval exponent, Interval t)
+	{
+		double val = exponent.min;
+
+		if (exponent.min != exponent.max || val != Math.floor(val) || val < 1
+				|| Double.isInfinite(val))
+			return true;
+
+		long n = (long) val;
+		Interval projection;
+
+		if (n % 2 == 1)
+			projection = make(root(t.min, n), root(t.max, n));
+		else
+		{
+			if (t.max < 0)
+				return false;
+
+			double hi = root(t.max, n);
+			double lo = root(Math.max(0, t.min), n);
+
+			if (x.min >= 0)
+				projection = make(lo, hi);
+			else if (x.max <= 0)
+				projection = make(-hi, -lo);
+			else
+				projection = make(-hi, hi);
+		}
+
+		return narrow(o.getLeft(), x, projection);
+	}
+
+	/**
+	 * Intersect a child's forward value with its projection and continue the backward sweep
+	 */
+	private boolean narrow(Expression child, Interval value, Interval projection)
+	{
+		Interval i = intersect(value, projection);
+
+		return i != null && backward(child, i);
+	}
+
+	////////////// interval arithmetic with infinite bounds /////////////////
+
+	/**
+	 * Make an interval, widening any NaN bound to be unbounded
+	 */
+	private static Interval make(double min, double max)
+	{
+		if (Double.isNaN(min))
+			min = Double.NEGATIVE_INFINITY;
+
+		if (Double.isNaN(max))
+			max = Double.POSITIVE_INFINITY;
+
+		Interval rv = new Interval();
+		rv.min = min;
+		rv.max = max;
+
+		return rv;
+	}
+
+	/**
+	 * Intersect two intervals, allowing for floating-point error
+	 *
+	 * @return the intersection, or null if it's empty
+	 */
+	private static Interval intersect(Interval a, Interval b)
+	{
+		double min = Math.max(a.min, b.min);
+		double max = Math.min(a.max, b.max);
+
+		if (min > max)
+		{
+			double scale = Math.max(1, Math.max(Math.abs(min), Math.abs(max)));
+
+			if (min - max > TOL * scale)
+				return null;
+
+			min = max = (min + max) / 2;
+		}
+
+		return make(min, max);
+	}
+
+	private static boolean containsZero(Interval i)
+	{
+		return i.min <= 0 && i.max >= 0;
+	}
+
+	private static Interval add(Interval a, Interval b)
+	{
+		return make(a.min + b.min, a.max + b.max);
+	}
+
+	private static Interval sub(Interval a, Interval b)
+	{
+		return make(a.min - b.max, a.max - b.min);
+	}
+
+	private static Interval neg(Interval a)
+	{
+		return make(-a.max, -a.min);
+	}
+
+	private static Interval mul(Interval a, Interval b)
+	{
+		double p1 = times(a.min, b.min);
+		double p2 = times(a.min, b.max);
+		double p3 = times(a.max, b.min);
+		double p4 = times(a.max, b.max);
+
+		return make(Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+				Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+	}
+
+	/**
+	 * Multiply bounds, with 0 * infinity = 0
+	 */
+	private static double times(double x, double y)
+	{
+		return (x == 0 || y == 0) ? 0 : x * y;
+	}
+
+	private static Interval div(Interval a, Interval b)
+	{
+		if (containsZero(b))
+			return UNBOUNDED;
+
+		double q1 = a.min / b.min;
+		double q2 = a.min / b.max;
+		double q3 = a.max / b.min;
+		double q4 = a.max / b.max;
+
+		if (Double.isNaN(q1) || Double.isNaN(q2) || Double.isNaN(q3) || Double.isNaN(q4))
+			return UNBOUNDED;
+
+		return make(Math.min(Math.min(q1, q2), Math.min(q3, q4)),
+				Math.max(Math.max(q1, q2), Math.max(q3, q4)));
+	}
+
+	private static Interval pow(Interval x, Interval exponent)
+	{
+		double val = exponent.min;
+
+		if (exponent.min != exponent.max || val != Math.floor(val) || val < 0
+				|| Double.isInfinite(val))
+			return UNBOUNDED;
+
+		long n = (long) val;
+
+		if (n == 0)
+			return new Interval(1);
+
+		double a = Math.pow(x.min, n);
+		double b = Math.pow(x.max, n);
+
+		if (n % 2 == 1 || x.min >= 0)
+			return make(a, b);
+		else if (x.max <= 0)
+			return make(b, a);
+
+		return make(0, Math.max(a, b));
+	}
+
+	/**
+	 * The real n-th root of x (negative for negative x and odd n)
+	 */
+	private static double root(double x, long n)
+	{
+		double r = Math.pow(Math.abs(x), 1.0 / n);
+
+		return x < 0 ? -r : r;
+	}
+}
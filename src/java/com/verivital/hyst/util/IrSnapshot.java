@@ -0,0 +1,1140 @@
+package com.verivital.hyst.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.MatrixExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.AutomatonSettings;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
+
+/**
+ * A compact, versioned binary format for a Configuration. This is used to save the model after
+ * importing and running passes (-save_ir), so that later runs can load it directly (-load_ir)
+ * rather than parsing the SpaceEx files and running the same passes again.
+ *
+ * Everything reachable from the Configuration is stored: the component tree (including component
+ * templates), modes, transitions, expressions, initial and forbidden states, and the settings.
+ * Strings are written once and then referenced by index. Variables and constants are immutable, so
+ * equal ones are written once and shared after loading. Operations which are shared within the
+ * model are written once, and are shared again after loading.
+ */
+public class IrSnapshot
+{
+	// bump this whenever the format changes; older snapshots are rejected
+	public static final int FORMAT_VERSION = 3;
+	private static final byte[] MAGIC = { 'H', 'Y', 'S', 'T', 'I', 'R' };
+	private static final int END_MARKER = 0x5EED;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// string codes (otherwise the code is string index + 2)
+	private static final int STR_NULL = 0;
+	private static final int STR_NEW = 1;
+
+	// expression tags
+	private static final int EXP_NULL = 0;
+	private static final int EXP_TRUE = 1;
+	private static final int EXP_FALSE = 2;
+	private static final int EXP_CONSTANT = 3;
+	private static final int EXP_VARIABLE = 4;
+	private static final int EXP_LEAF_REF = 5;
+	private static final int EXP_OPERATION = 6;
+	private static final int EXP_OPERATION_REF = 7;
+	private static final int EXP_MATRIX = 8;
+	private static final int EXP_LUT = 9;
+	private static final int EXP_NUMERIC_MATRIX = 10;
+
+	// component tags (otherwise the code is component index + 3)
+	private static final int COMP_NULL = 0;
+	private static final int COMP_BASE = 1;
+	private static final int COMP_NETWORK = 2;
+
+	/**
+	 * Save a configuration to a file
+	 *
+	 * @param c
+	 *            the configuration to save
+	 * @param filename
+	 *            the file to create
+	 */
+	public static void save(Configuration c, String filename)
+	{
+		try
+		{
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+
+			try
+			{
+				save(c, out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing IR snapshot: " + filename, e);
+		}
+	}
+
+	/**
+	 * Load a configuration from a file created with save()
+	 *
+	 * @param filename
+	 *            the snapshot file
+	 * @return the loaded configuration, which has been validated
+	 */
+	public static Configuration load(String filename)
+	{
+		try
+		{
+			InputStream in = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+
+			try
+			{
+				return load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error reading IR snapshot: " + filename, e);
+		}
+	}
+
+	/**
+	 * Write a configuration to a stream. The stream is flushed but not closed.
+	 */
+	public static void save(Configuration c, OutputStream out) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(out);
+
+		dos.write(MAGIC);
+		dos.writeInt(FORMAT_VERSION);
+
+		new Writer(dos).writeConfiguration(c);
+
+		dos.writeInt(END_MARKER);
+		dos.flush();
+	}
+
+	/**
+	 * Read a configuration from a stream, and validate it
+	 */
+	public static Configuration load(InputStream in) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+
+		try
+		{
+			dis.readFully(magic);
+		}
+		catch (EOFException e)
+		{
+			throw new AutomatonExportException("File is not a Hyst IR snapshot (too short)", e);
+		}
+
+		if (!Arrays.equals(magic, MAGIC))
+			throw new AutomatonExportException("File is not a Hyst IR snapshot");
+
+		int version = dis.readInt();
+
+		if (version != FORMAT_VERSION)
+			throw new AutomatonExportException("Unsupported IR snapshot version " + version
+					+ " (this version of Hyst reads version " + FORMAT_VERSION + ")");
+
+		Configuration rv = new Reader(dis).readConfiguration();
+
+		if (dis.readInt() != END_MARKER)
+			throw new AutomatonExportException("Corrupt IR snapshot (bad end marker)");
+
+		rv.validate();
+
+		return rv;
+	}
+
+	/**
+	 * Get the subexpressions which are written after an expression: the children of an operation,
+	 * the cells of a (non-numeric) matrix, or the inputs and then the table of a lookup table
+	 */
+	private static List<Expression> getSnapshotChildren(Expression e)
+	{
+		List<Expression> rv = ExpressionTraversal.getOperationChildren(e);
+
+		if (e instanceof MatrixExpression)
+		{
+			MatrixExpression m = (MatrixExpression) e;
+
+			if (!m.isNumeric())
+			{
+				rv = new ArrayList<Expression>(m.getNumCells());
+
+				for (int i = 0; i < m.getNumCells(); ++i)
+					rv.add(m.getCell(i));
+			}
+		}
+		else if (e instanceof LutExpression)
+		{
+			LutExpression l = (LutExpression) e;
+
+			rv = new ArrayList<Expression>(Arrays.asList(l.inputs));
+			rv.add(l.table);
+		}
+
+		return rv;
+	}
+
+	private static class Writer
+	{
+		private final DataOutputStream out;
+		private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+		private final HashMap<String, Integer> variables = new HashMap<String, Integer>();
+		private final HashMap<Long, Integer> constants = new HashMap<Long, Integer>();
+		private final IdentityHashMap<Operation, Integer> operations = new IdentityHashMap<Operation, Integer>();
+		private final IdentityHashMap<Component, Integer> components = new IdentityHashMap<Component, Integer>();
+		private int numLeaves = 0;
+
+		Writer(DataOutputStream out)
+		{
+			this.out = out;
+		}
+
+		void writeConfiguration(Configuration c) throws IOException
+		{
+			writeComponent(c.root);
+			writeSettings(c.settings);
+			writeExpressionMap(c.init);
+			writeExpressionMap(c.forbidden);
+		}
+
+		private void writeSettings(AutomatonSettings s) throws IOException
+		{
+			writeStringArray(s.plotVariableNames);
+
+			SpaceExConfigValues v = s.spaceExConfig;
+			writeStringList(v.outputVars);
+			out.writeDouble(v.timeHorizon);
+			writeInt(v.maxIterations);
+			out.writeDouble(v.samplingTime);
+			writeString(v.systemID);
+			writeString(v.outputFormat);
+			writeString(v.scenario);
+			writeString(v.directions);
+			writeString(v.aggregation);
+			out.writeDouble(v.flowpipeTol);
+			writeString(v.forbidden);
+			out.writeBoolean(v.timeTriggered);
+		}
+
+		private void writeComponent(Component c) throws IOException
+		{
+			if (c == null)
+			{
+				writeUnsigned(COMP_NULL);
+				return;
+			}
+
+			Integer index = components.get(c);
+
+			if (index != null)
+			{
+				writeUnsigned(index + 3);
+				return;
+			}
+
+			components.put(c, components.size());
+			writeUnsigned(c instanceof BaseComponent ? COMP_BASE : COMP_NETWORK);
+
+			writeString(c.instanceName);
+			writeStringList(c.variables);
+
+			writeUnsigned(c.constants.size());
+
+			for (Entry<String, Interval> e : c.constants.entrySet())
+			{
+				writeString(e.getKey());
+				writeInterval(e.getValue());
+			}
+
+			writeStringList(c.labels);
+
+			if (c instanceof BaseComponent)
+				writeBaseComponent((BaseComponent) c);
+			else if (c instanceof NetworkComponent)
+				writeNetworkComponent((NetworkComponent) c);
+			else
+				throw new AutomatonExportException(
+						"IR snapshot unsupported component type: " + c.getClass().getName());
+
+			// template is written last, since it's often the component itself
+			writeComponent(c.template);
+		}
+
+		private void writeBaseComponent(BaseComponent ha) throws IOException
+		{
+			HashMap<AutomatonMode, Integer> modeIndex = new HashMap<AutomatonMode, Integer>();
+			writeUnsigned(ha.modes.size());
+
+			for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+			{
+				AutomatonMode am = e.getValue();
+				modeIndex.put(am, modeIndex.size());
+
+				writeString(e.getKey());
+				writeString(am.name);
+				out.writeBoolean(am.urgent);
+				writeExpression(am.invariant);
+				writeExpressionIntervalMap(am.flowDynamics);
+			}
+
+			writeUnsigned(ha.transitions.size());
+
+			for (AutomatonTransition at : ha.transitions)
+			{
+				Integer from = modeIndex.get(at.from);
+				Integer to = modeIndex.get(at.to);
+
+				if (from == null || to == null)
+					throw new AutomatonExportException("IR snapshot: transition " + at
+							+ " uses a mode outside of its automaton");
+
+				writeUnsigned(from);
+				writeUnsigned(to);
+				writeString(at.label);
+				writeExpression(at.guard);
+				writeExpressionIntervalMap(at.reset);
+			}
+		}
+
+		private void writeNetworkComponent(NetworkComponent nc) throws IOException
+		{
+			writeUnsigned(nc.children.size());
+
+			for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+			{
+				ComponentInstance ci = e.getValue();
+
+				writeString(e.getKey());
+				writeComponent(ci.child);
+				writeMappings(ci.varMapping);
+				writeMappings(ci.labelMapping);
+				writeMappings(ci.constMapping);
+			}
+		}
+
+		private void writeMappings(List<ComponentMapping> mappings) throws IOException
+		{
+			writeUnsigned(mappings.size());
+
+			for (ComponentMapping m : mappings)
+			{
+				writeString(m.childParam);
+				writeString(m.parentParam);
+			}
+		}
+
+		private void writeExpressionMap(Map<String, Expression> map) throws IOException
+		{
+			writeUnsigned(map.size());
+
+			for (Entry<String, Expression> e : map.entrySet())
+			{
+				writeString(e.getKey());
+				writeExpression(e.getValue());
+			}
+		}
+
+		private void writeExpressionIntervalMap(Map<String, ExpressionInterval> map)
+				throws IOException
+		{
+			if (map == null)
+			{
+				writeInt(-1);
+				return;
+			}
+
+			writeInt(map.size());
+
+			for (Entry<String, ExpressionInterval> e : map.entrySet())
+			{
+				ExpressionInterval ei = e.getValue();
+				writeString(e.getKey());
+
+				if (ei == null)
+					out.writeByte(0);
+				else
+				{
+					out.writeByte(1);
+					writeExpression(ei.getExpression());
+					writeInterval(ei.getInterval());
+				}
+			}
+		}
+
+		/**
+		 * Write an expression in pre-order: each subexpression's tag and data, followed by its
+		 * subexpressions. An explicit stack is used, since long expressions are deep.
+		 */
+		private void writeExpression(Expression root) throws IOException
+		{
+			if (root == null)
+			{
+				writeUnsigned(EXP_NULL);
+				return;
+			}
+
+			PreOrder it = new PreOrder(root)
+			{
+				@Override
+				protected List<Expression> getChildren(Expression e)
+				{
+					return getSnapshotChildren(e);
+				}
+			};
+
+			for (Expression e : it)
+			{
+				if (!writeExpressionNode(e))
+					it.skipChildren();
+			}
+		}
+
+		/**
+		 * Write the tag and data of a single subexpression, but not its subexpressions
+		 * 
+		 * @return true if the subexpressions should be written next, false if this was a reference
+		 *         to an earlier operation
+		 */
+		private boolean writeExpressionNode(Expression e) throws IOException
+		{
+			boolean rv = true;
+
+			if (e == null)
+				writeUnsigned(EXP_NULL);
+			else if (e == Constant.TRUE)
+				writeUnsigned(EXP_TRUE);
+			else if (e == Constant.FALSE)
+				writeUnsigned(EXP_FALSE);
+			else if (e instanceof Constant)
+			{
+				double val = ((Constant) e).getVal();
+				Long bits = Double.doubleToRawLongBits(val);
+				Integer index = constants.get(bits);
+
+				if (index != null)
+					writeLeafRef(index);
+				else
+				{
+					constants.put(bits, numLeaves++);
+					writeUnsigned(EXP_CONSTANT);
+					out.writeDouble(val);
+				}
+			}
+			else if (e instanceof Variable)
+			{
+				String name = ((Variable) e).name;
+				Integer index = variables.get(name);
+
+				if (index != null)
+					writeLeafRef(index);
+				else
+				{
+					variables.put(name, numLeaves++);
+					writeUnsigned(EXP_VARIABLE);
+					writeString(name);
+				}
+			}
+			else if (e instanceof Operation)
+			{
+				Operation o = (Operation) e;
+				Integer index = operations.get(o);
+
+				if (index != null)
+				{
+					writeUnsigned(EXP_OPERATION_REF);
+					writeUnsigned(index);
+					rv = false;
+				}
+				else
+				{
+					operations.put(o, operations.size());
+					writeUnsigned(EXP_OPERATION);
+					writeString(o.op.name());
+					writeUnsigned(o.children.size());
+				}
+			}
+			else if (e instanceof MatrixExpression)
+			{
+				MatrixExpression m = (MatrixExpression) e;
+				int dims = m.getNumDims();
+
+				writeUnsigned(m.isNumeric() ? EXP_NUMERIC_MATRIX : EXP_MATRIX);
+				writeUnsigned(dims);
+
+				for (int d = 0; d < dims; ++d)
+					writeUnsigned(m.getDimWidth(d));
+
+				// cells are in the internal data order; expression cells follow as children
+				if (m.isNumeric())
+				{
+					for (int i = 0; i < m.getNumCells(); ++i)
+						out.writeDouble(m.getCellValue(i));
+				}
+			}
+			else if (e instanceof LutExpression)
+			{
+				LutExpression l = (LutExpression) e;
+
+				writeUnsigned(EXP_LUT);
+				writeUnsigned(l.inputs.length);
+
+				// the inputs and table follow as children
+				for (double[] row : l.breakpoints)
+				{
+					writeUnsigned(row.length);
+
+					for (double d : row)
+						out.writeDouble(d);
+				}
+			}
+			else
+				throw new AutomatonExportException(
+						"IR snapshot unsupported expression type: " + e.getClass().getName());
+
+			return rv;
+		}
+
+		private void writeLeafRef(int index) throws IOException
+		{
+			writeUnsigned(EXP_LEAF_REF);
+			writeUnsigned(index);
+		}
+
+		private void writeInterval(Interval i) throws IOException
+		{
+			if (i == null)
+				out.writeByte(0);
+			else
+			{
+				out.writeByte(1);
+				out.writeDouble(i.min);
+				out.writeDouble(i.max);
+			}
+		}
+
+		private void writeStringList(List<String> list) throws IOException
+		{
+			writeUnsigned(list.size());
+
+			for (String s : list)
+				writeString(s);
+		}
+
+		private void writeStringArray(String[] array) throws IOException
+		{
+			if (array == null)
+			{
+				writeInt(-1);
+				return;
+			}
+
+			writeInt(array.length);
+
+			for (String s : array)
+				writeString(s);
+		}
+
+		private void writeString(String s) throws IOException
+		{
+			if (s == null)
+				writeUnsigned(STR_NULL);
+			else
+			{
+				Integer index = strings.get(s);
+
+				if (index != null)
+					writeUnsigned(index + 2);
+				else
+				{
+					byte[] bytes = s.getBytes(UTF8);
+
+					strings.put(s, strings.size());
+					writeUnsigned(STR_NEW);
+					writeUnsigned(bytes.length);
+					out.write(bytes);
+				}
+			}
+		}
+
+		/**
+		 * Write a signed int (zig-zag encoded, so small negative numbers are also short)
+		 */
+		private void writeInt(int i) throws IOException
+		{
+			writeUnsigned((i << 1) ^ (i >> 31));
+		}
+
+		/**
+		 * Write a non-negative int using 1-5 bytes
+		 */
+		private void writeUnsigned(int i) throws IOException
+		{
+			while ((i & ~0x7F) != 0)
+			{
+				out.writeByte((i & 0x7F) | 0x80);
+				i >>>= 7;
+			}
+
+			out.writeByte(i);
+		}
+	}
+
+	private static class Reader
+	{
+		private final DataInputStream in;
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private final ArrayList<Expression> leaves = new ArrayList<Expression>();
+		private final ArrayList<Operation> operations = new ArrayList<Operation>();
+		private final ArrayList<Component> components = new ArrayList<Component>();
+		private final Operator[] operators = Operator.values();
+
+		Reader(DataInputStream in)
+		{
+			this.in = in;
+		}
+
+		Configuration readConfiguration() throws IOException
+		{
+			Component root = readComponent();
+
+			if (root == null)
+				throw new AutomatonExportException("Corrupt IR snapshot (root component is null)");
+
+			Configuration rv = new Configuration(root);
+			readSettings(rv.settings);
+			readExpressionMap(rv.init);
+			readExpressionMap(rv.forbidden);
+
+			return rv;
+		}
+
+		private void readSettings(AutomatonSettings s) throws IOException
+		{
+			s.plotVariableNames = readStringArray();
+
+			SpaceExConfigValues v = s.spaceExConfig;
+			readStringList(v.outputVars);
+			v.timeHorizon = in.readDouble();
+			v.maxIterations = readInt();
+			v.samplingTime = in.readDouble();
+			v.systemID = readString();
+			v.outputFormat = readString();
+			v.scenario = readString();
+			v.directions = readString();
+			v.aggregation = readString();
+			v.flowpipeTol = in.readDouble();
+			v.forbidden = readString();
+			v.timeTriggered = in.readBoolean();
+		}
+
+		private Component readComponent() throws IOException
+		{
+			int code = readUnsigned();
+
+			if (code == COMP_NULL)
+				return null;
+			else if (code >= 3)
+			{
+				int index = code - 3;
+
+				if (index >= components.size())
+					throw new AutomatonExportException("Corrupt IR snapshot (component " + index
+							+ " referenced before it was defined)");
+
+				return components.get(index);
+			}
+
+			Component c;
+
+			if (code == COMP_BASE)
+				c = new BaseComponent();
+			else if (code == COMP_NETWORK)
+				c = new NetworkComponent();
+			else
+				throw new AutomatonExportException(
+						"Corrupt IR snapshot (unknown component type " + code + ")");
+
+			components.add(c);
+
+			c.instanceName = readString();
+			readStringList(c.variables);
+
+			int numConstants = readUnsigned();
+
+			for (int i = 0; i < numConstants; ++i)
+			{
+				String name = readString();
+				c.constants.put(name, readInterval());
+			}
+
+			readStringList(c.labels);
+
+			if (c instanceof BaseComponent)
+				readBaseComponent((BaseComponent) c);
+			else
+				readNetworkComponent((NetworkComponent) c);
+
+			c.template = readComponent();
+
+			return c;
+		}
+
+		private void readBaseComponent(BaseComponent ha) throws IOException
+		{
+			int numModes = readUnsigned();
+			AutomatonMode[] modes = new AutomatonMode[numModes];
+
+			for (int i = 0; i < numModes; ++i)
+			{
+				String key = readString();
+				AutomatonMode am = ha.createMode(key);
+				am.name = readString();
+				am.urgent = in.readBoolean();
+				am.invariant = readExpression();
+				am.flowDynamics = readExpressionIntervalMap();
+
+				modes[i] = am;
+			}
+
+			int numTransitions = readUnsigned();
+			ha.transitions.ensureCapacity(numTransitions);
+
+			for (int i = 0; i < numTransitions; ++i)
+			{
+				AutomatonMode from = modes[readUnsigned()];
+				AutomatonMode to = modes[readUnsigned()];
+				AutomatonTransition at = ha.createTransition(from, to);
+
+				at.label = readString();
+				at.guard = readExpression();
+				at.reset = readExpressionIntervalMap();
+			}
+		}
+
+		private void readNetworkComponent(NetworkComponent nc) throws IOException
+		{
+			int numChildren = readUnsigned();
+
+			for (int i = 0; i < numChildren; ++i)
+			{
+				String name = readString();
+				Component child = readComponent();
+				ComponentInstance ci = new ComponentInstance(nc, child);
+
+				if (child != null)
+					child.parent = nc;
+
+				readMappings(ci.varMapping);
+				readMappings(ci.labelMapping);
+				readMappings(ci.constMapping);
+
+				nc.children.put(name, ci);
+			}
+		}
+
+		private void readMappings(List<ComponentMapping> mappings) throws IOException
+		{
+			int size = readUnsigned();
+
+			for (int i = 0; i < size; ++i)
+			{
+				String child = readString();
+				mappings.add(new ComponentMapping(child, readString()));
+			}
+		}
+
+		private void readExpressionMap(Map<String, Expression> map) throws IOException
+		{
+			int size = readUnsigned();
+
+			for (int i = 0; i < size; ++i)
+			{
+				String key = readString();
+				map.put(key, readExpression());
+			}
+		}
+
+		private LinkedHashMap<String, ExpressionInterval> readExpressionIntervalMap()
+				throws IOException
+		{
+			int size = readInt();
+
+			if (size < 0)
+				return null;
+
+			LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+
+			for (int i = 0; i < size; ++i)
+			{
+				String key = readString();
+				ExpressionInterval ei = null;
+
+				if (in.readByte() != 0)
+				{
+					Expression e = readExpression();
+					ei = new ExpressionInterval(e, readInterval());
+				}
+
+				rv.put(key, ei);
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Read an expression written in pre-order by Writer.writeExpression(). Expressions with
+		 * subexpressions are kept on an explicit stack until all of their subexpressions are read,
+		 * since long expressions are deep.
+		 */
+		private Expression readExpression() throws IOException
+		{
+			ArrayList<PartialExpression> stack = new ArrayList<PartialExpression>();
+
+			while (true)
+			{
+				int tag = readUnsigned();
+				Expression rv = null;
+				boolean pushed = false; // was a partial expression pushed on the stack?
+
+				switch (tag)
+				{
+				case EXP_NULL:
+					rv = null;
+					break;
+				case EXP_TRUE:
+					rv = Constant.TRUE;
+					break;
+				case EXP_FALSE:
+					rv = Constant.FALSE;
+					break;
+				case EXP_CONSTANT:
+					rv = new Constant(in.readDouble());
+					leaves.add(rv);
+					break;
+				case EXP_VARIABLE:
+					rv = new Variable(readString());
+					leaves.add(rv);
+					break;
+				case EXP_LEAF_REF:
+					rv = leaves.get(readUnsigned());
+					break;
+				case EXP_OPERATION:
+				{
+					Operator op = readOperator();
+					int numChildren = readUnsigned();
+					Operation o = new Operation(op, new ArrayList<Expression>(numChildren));
+					operations.add(o);
+
+					PartialExpression p = new PartialExpression(tag, numChildren);
+					p.operation = o;
+					stack.add(p);
+					pushed = true;
+					break;
+				}
+				case EXP_OPERATION_REF:
+					rv = operations.get(readUnsigned());
+					break;
+				case EXP_MATRIX:
+				{
+					int[] sizes = readMatrixSizes();
+					PartialExpression p = new PartialExpression(tag, product(sizes));
+					p.sizes = sizes;
+					stack.add(p);
+					pushed = true;
+					break;
+				}
+				case EXP_NUMERIC_MATRIX:
+				{
+					int[] sizes = readMatrixSizes();
+					double[] values = new double[product(sizes)];
+
+					for (int i = 0; i < values.length; ++i)
+						values[i] = in.readDouble();
+
+					rv = new MatrixExpression(values, sizes);
+					break;
+				}
+				case EXP_LUT:
+				{
+					int len = readUnsigned();
+					PartialExpression p = new PartialExpression(tag, len + 1);
+					p.breakpoints = new MatrixExpression[len];
+
+					for (int i = 0; i < len; ++i)
+					{
+						double[] row = new double[readUnsigned()];
+
+						for (int j = 0; j < row.length; ++j)
+							row[j] = in.readDouble();
+
+						p.breakpoints[i] = new MatrixExpression(row);
+					}
+
+					stack.add(p);
+					pushed = true;
+					break;
+				}
+				default:
+					throw new AutomatonExportException(
+							"Corrupt IR snapshot (unknown expression tag " + tag + ")");
+				}
+
+				// read the subexpressions of a pushed expression next, unless it has none
+				if (pushed)
+				{
+					PartialExpression top = stack.get(stack.size() - 1);
+
+					if (!top.isComplete())
+						continue;
+
+					stack.remove(stack.size() - 1);
+					rv = top.build();
+				}
+
+				// add the completed expression to its parents, completing them in turn
+				while (true)
+				{
+					if (stack.isEmpty())
+						return rv;
+
+					PartialExpression top = stack.get(stack.size() - 1);
+					top.add(rv);
+
+					if (!top.isComplete())
+						break;
+
+					stack.remove(stack.size() - 1);
+					rv = top.build();
+				}
+			}
+		}
+
+		private Operator readOperator() throws IOException
+		{
+			String name = readString();
+
+			for (Operator op : operators)
+			{
+				if (op.name().equals(name))
+					return op;
+			}
+
+			throw new AutomatonExportException("IR snapshot uses unknown operator: " + name);
+		}
+
+		private int[] readMatrixSizes() throws IOException
+		{
+			int dims = readUnsigned();
+			int[] sizes = new int[dims];
+
+			for (int d = 0; d < dims; ++d)
+				sizes[d] = readUnsigned();
+
+			return sizes;
+		}
+
+		private static int product(int[] sizes)
+		{
+			int rv = 1;
+
+			for (int s : sizes)
+				rv *= s;
+
+			return rv;
+		}
+
+		private Interval readInterval() throws IOException
+		{
+			Interval rv = null;
+
+			if (in.readByte() != 0)
+			{
+				// assign fields directly, so the values are exactly as saved
+				rv = new Interval();
+				rv.min = in.readDouble();
+				rv.max = in.readDouble();
+			}
+
+			return rv;
+		}
+
+		private void readStringList(List<String> list) throws IOException
+		{
+			int size = readUnsigned();
+
+			for (int i = 0; i < size; ++i)
+				list.add(readString());
+		}
+
+		private String[] readStringArray() throws IOException
+		{
+			int size = readInt();
+
+			if (size < 0)
+				return null;
+
+			String[] rv = new String[size];
+
+			for (int i = 0; i < size; ++i)
+				rv[i] = readString();
+
+			return rv;
+		}
+
+		private String readString() throws IOException
+		{
+			int code = readUnsigned();
+			String rv;
+
+			if (code == STR_NULL)
+				rv = null;
+			else if (code == STR_NEW)
+			{
+				byte[] bytes = new byte[readUnsigned()];
+				in.readFully(bytes);
+
+				rv = new String(bytes, UTF8);
+				strings.add(rv);
+			}
+			else
+				rv = strings.get(code - 2);
+
+			return rv;
+		}
+
+		private int readInt() throws IOException
+		{
+			int i = readUnsigned();
+
+			return (i >>> 1) ^ -(i & 1);
+		}
+
+		private int readUnsigned() throws IOException
+		{
+			int rv = 0;
+
+			for (int shift = 0; shift < 35; shift += 7)
+			{
+				int b = in.readUnsignedByte();
+				rv |= (b & 0x7F) << shift;
+
+				if ((b & 0x80) == 0)
+					return rv;
+			}
+
+			throw new AutomatonExportException("Corrupt IR snapshot (bad integer encoding)");
+		}
+	}
+
+	/**
+	 * An expression being read, whose subexpressions are not all read yet
+	 */
+	private static class PartialExpression
+	{
+		final int tag;
+		final ArrayList<Expression> children;
+		final int numChildren;
+
+		Operation operation; // EXP_OPERATION, created before its children for shared references
+		int[] sizes; // EXP_MATRIX
+		MatrixExpression[] breakpoints; // EXP_LUT
+
+		PartialExpression(int tag, int numChildren)
+		{
+			this.tag = tag;
+			this.numChildren = numChildren;
+			children = new ArrayList<Expression>(numChildren);
+		}
+
+		void add(Expression child)
+		{
+			if (child == null && tag == EXP_OPERATION)
+				throw new AutomatonExportException("Corrupt IR snapshot (null subexpression)");
+
+			children.add(child);
+		}
+
+		boolean isComplete()
+		{
+			return children.size() == numChildren;
+		}
+
+		Expression build()
+		{
+			Expression rv;
+
+			if (tag == EXP_OPERATION)
+			{
+				operation.children.addAll(children);
+				rv = operation;
+			}
+			else if (tag == EXP_MATRIX)
+				rv = new MatrixExpression(children.toArray(new Expression[numChildren]), sizes);
+			else
+			{
+				int len = breakpoints.length;
+				Expression table = children.get(len);
+
+				if (!(table instanceof MatrixExpression))
+					throw new AutomatonExportException(
+							"Corrupt IR snapshot (LUT table not a matrix)");
+
+				Expression[] inputs = children.subList(0, len).toArray(new Expression[len]);
+				rv = new LutExpression(inputs, (MatrixExpression) table, breakpoints);
+			}
+
+			return rv;
+		}
+	}
+}
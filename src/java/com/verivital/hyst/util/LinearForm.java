@@ -0,0 +1,273 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PostOrder;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
+
+/**
+ * The canonical form of an affine expression, c1 * x1 + ... + cn * xn + c, stored as a sparse map
+ * from variable names to coefficients, plus the constant term. The form is computed with a single
+ * (iterative) pass over the expression, so linearity checks and coefficient lookups don't need to
+ * walk the expression tree once per variable.
+ *
+ * Sums, differences, negations, multiplications where at most one side has variables, and
+ * divisions by nonzero constants are supported. Subexpressions without variables, like sin(2) or
+ * 2^3, are evaluated.
+ */
+public class LinearForm
+{
+	// variable name -> coefficient, in the order the variables first appear
+	public final LinkedHashMap<String, Double> coefficients = new LinkedHashMap<String, Double>();
+	public double constant = 0;
+
+	private LinearForm()
+	{
+	}
+
+	/**
+	 * Get the linear form of an expression
+	 *
+	 * @param e
+	 *            the expression
+	 * @return the linear form
+	 * @throws AutomatonExportException
+	 *             if the expression is not affine
+	 */
+	public static LinearForm fromExpression(Expression e)
+	{
+		LinearFormEvaluator eval = new LinearFormEvaluator();
+		LinearForm rv = eval.evaluate(e);
+
+		if (rv == null)
+			throw new AutomatonExportException("Unsupported term '"
+					+ eval.unsupported.toDefaultString() + "' in linear expression: '"
+					+ e.toDefaultString() + "'");
+
+		return rv;
+	}
+
+	/**
+	 * Check if an expression is affine, without throwing an exception
+	 *
+	 * @param e
+	 *            the expression
+	 * @return true if fromExpression(e) would succeed
+	 */
+	public static boolean isLinear(Expression e)
+	{
+		return tryFromExpression(e) != null;
+	}
+
+	/**
+	 * Get the linear form of an expression, or null if it's not affine
+	 */
+	static LinearForm tryFromExpression(Expression e)
+	{
+		return new LinearFormEvaluator().evaluate(e);
+	}
+
+	/**
+	 * Get the coefficient of a variable
+	 *
+	 * @param var
+	 *            the variable name
+	 * @return the coefficient, or 0 if the variable is not used
+	 */
+	public double getCoefficient(String var)
+	{
+		Double rv = coefficients.get(var);
+
+		return rv == null ? 0 : rv;
+	}
+
+	/**
+	 * Get the coefficients of some variables
+	 *
+	 * @param vars
+	 *            the variable names, in order
+	 * @return the coefficient for each variable
+	 */
+	public ArrayList<Double> getVector(List<String> vars)
+	{
+		ArrayList<Double> rv = new ArrayList<Double>(vars.size());
+
+		for (String v : vars)
+			rv.add(getCoefficient(v));
+
+		return rv;
+	}
+
+	/**
+	 * Does this form have no variable terms?
+	 */
+	public boolean isConstant()
+	{
+		return coefficients.isEmpty();
+	}
+
+	private void add(LinearForm other, double scale)
+	{
+		constant += scale * other.constant;
+
+		for (Entry<String, Double> e : other.coefficients.entrySet())
+		{
+			String var = e.getKey();
+			double val = getCoefficient(var) + scale * e.getValue();
+
+			if (val == 0)
+				coefficients.remove(var);
+			else
+				coefficients.put(var, val);
+		}
+	}
+
+	private void scale(double s)
+	{
+		constant *= s;
+
+		if (s == 0)
+			coefficients.clear();
+		else
+		{
+			for (Entry<String, Double> e : coefficients.entrySet())
+				e.setValue(s * e.getValue());
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (Entry<String, Double> e : coefficients.entrySet())
+			rv.append(e.getValue() + " * " + e.getKey() + " + ");
+
+		rv.append(constant);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Computes the linear form bottom-up. The value of a non-affine subexpression is null, and the
+	 * first one found is stored in 'unsupported', for error messages.
+	 */
+	private static class LinearFormEvaluator extends PostOrder<LinearForm>
+	{
+		Expression unsupported = null;
+
+		@Override
+		protected LinearForm combine(Expression e, List<LinearForm> childValues)
+		{
+			LinearForm rv = null;
+
+			if (childValues.contains(null))
+				return null;
+
+			if (e instanceof Constant)
+			{
+				rv = new LinearForm();
+				rv.constant = ((Constant) e).getVal();
+			}
+			else if (e instanceof Variable)
+			{
+				rv = new LinearForm();
+				rv.coefficients.put(((Variable) e).name, 1.0);
+			}
+			else if (e instanceof Operation)
+				rv = combineOperation((Operation) e, childValues);
+
+			if (rv == null && unsupported == null)
+				unsupported = e;
+
+			return rv;
+		}
+
+		private static LinearForm combineOperation(Operation o, List<LinearForm> childValues)
+		{
+			Operator op = o.op;
+			LinearForm rv = null;
+			int numChildren = childValues.size();
+
+			// childValues is only valid during combine(), so results are built in the first child
+			if (op == Operator.NEGATIVE && numChildren == 1)
+			{
+				rv = childValues.get(0);
+				rv.scale(-1);
+			}
+			else if ((op == Operator.ADD || op == Operator.SUBTRACT) && numChildren == 2)
+			{
+				rv = childValues.get(0);
+				rv.add(childValues.get(1), op == Operator.ADD ? 1 : -1);
+			}
+			else if (op == Operator.MULTIPLY && numChildren == 2)
+			{
+				LinearForm left = childValues.get(0);
+				LinearForm right = childValues.get(1);
+
+				if (left.isConstant())
+				{
+					rv = right;
+					rv.scale(left.constant);
+				}
+				else if (right.isConstant())
+				{
+					rv = left;
+					rv.scale(right.constant);
+				}
+			}
+			else if (op == Operator.DIVIDE && numChildren == 2)
+			{
+				LinearForm right = childValues.get(1);
+
+				if (right.isConstant() && right.constant != 0)
+				{
+					rv = childValues.get(0);
+					rv.scale(1.0 / right.constant);
+				}
+			}
+			else if (numChildren > 0 && !Operator.isBooleanOperator(op))
+				rv = evaluateConstantOperation(op, childValues);
+
+			return rv;
+		}
+
+		/**
+		 * Evaluate a function (like sin or pow) of constants, or return null if some argument has
+		 * variables
+		 */
+		private static LinearForm evaluateConstantOperation(Operator op,
+				List<LinearForm> childValues)
+		{
+			Operation constOp = new Operation(op);
+
+			for (LinearForm child : childValues)
+			{
+				if (!child.isConstant())
+					return null;
+
+				constOp.children.add(new Constant(child.constant));
+			}
+
+			Expression val = SimplifyExpressionsPass.simplifyExpression(constOp);
+			LinearForm rv = null;
+
+			if (val instanceof Constant)
+			{
+				rv = new LinearForm();
+				rv.constant = ((Constant) val).getVal();
+			}
+
+			return rv;
+		}
+	}
+}
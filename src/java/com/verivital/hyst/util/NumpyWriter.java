@@ -0,0 +1,311 @@
+package com.verivital.hyst.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Writes numeric data in numpy's binary .npy format, and sparse matrices in the .npz format read by
+ * scipy.sparse.load_npz(). This is used by python printers to keep large matrices out of the
+ * generated source code, which python is slow to parse.
+ *
+ * Format reference: numpy/lib/format.py (version 1.0 headers, little-endian data)
+ */
+public class NumpyWriter
+{
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] MAGIC = { (byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 };
+	private static final int HEADER_ALIGN = 64;
+	private static final int CHUNK_BYTES = 1 << 16;
+
+	/**
+	 * A sparse matrix in compressed sparse row (CSR) format, built one row at a time. Only nonzero
+	 * entries are stored, in primitive arrays.
+	 */
+	public static class CsrMatrix
+	{
+		public final int numCols;
+		private int numRows = 0;
+		private int nnz = 0;
+		private double[] data = new double[16];
+		private int[] indices = new int[16];
+		private int[] indptr = new int[17];
+
+		public CsrMatrix(int numCols)
+		{
+			this.numCols = numCols;
+		}
+
+		public int getNumRows()
+		{
+			return numRows;
+		}
+
+		public int getNumNonzeros()
+		{
+			return nnz;
+		}
+
+		/**
+		 * Append a dense row to the matrix. Only the nonzero entries are stored.
+		 *
+		 * @param row
+		 *            the row, which must have numCols entries
+		 */
+		public void addRow(List<Double> row)
+		{
+			if (row.size() != numCols)
+				throw new AutomatonExportException("CSR row had " + row.size()
+						+ " entries, expected " + numCols);
+
+			for (int col = 0; col < numCols; ++col)
+			{
+				double val = row.get(col);
+
+				if (val != 0) // exact comparison here is okay since it never changes
+					addEntry(col, val);
+			}
+
+			finishRow();
+		}
+
+		/**
+		 * Append a row with the coefficients of a linear form, without building a dense row.
+		 * Variables which are not columns (like the constant term, or inputs) are skipped.
+		 *
+		 * @param lf
+		 *            the linear form
+		 * @param columns
+		 *            the column index of each variable
+		 */
+		public void addRow(LinearForm lf, Map<String, Integer> columns)
+		{
+			// sorted by column, as scipy expects
+			TreeMap<Integer, Double> entries = new TreeMap<Integer, Double>();
+
+			for (Entry<String, Double> e : lf.coefficients.entrySet())
+			{
+				Integer col = columns.get(e.getKey());
+
+				if (col != null && e.getValue() != 0)
+					entries.put(col, e.getValue());
+			}
+
+			for (Entry<Integer, Double> e : entries.entrySet())
+				addEntry(e.getKey(), e.getValue());
+
+			finishRow();
+		}
+
+		private void addEntry(int col, double val)
+		{
+			if (nnz == data.length)
+			{
+				data = Arrays.copyOf(data, 2 * nnz);
+				indices = Arrays.copyOf(indices, 2 * nnz);
+			}
+
+			data[nnz] = val;
+			indices[nnz] = col;
+			++nnz;
+		}
+
+		private void finishRow()
+		{
+			++numRows;
+
+			if (numRows == indptr.length)
+				indptr = Arrays.copyOf(indptr, 2 * numRows);
+
+			indptr[numRows] = nnz;
+		}
+	}
+
+	/**
+	 * Write a CSR matrix as a .npz file which can be loaded with scipy.sparse.load_npz()
+	 *
+	 * @param f
+	 *            the file to write
+	 * @param m
+	 *            the matrix
+	 */
+	public static void writeNpz(File f, CsrMatrix m)
+	{
+		ZipOutputStream zip = null;
+
+		try
+		{
+			zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+
+			zip.putNextEntry(new ZipEntry("format.npy"));
+			writeHeader(zip, "|S3", new int[] {});
+			zip.write("csr".getBytes(ASCII));
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("shape.npy"));
+			writeHeader(zip, "<i8", new int[] { 2 });
+			ByteBuffer shape = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			shape.putLong(m.numRows).putLong(m.numCols);
+			zip.write(shape.array());
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("data.npy"));
+			writeHeader(zip, "<f8", new int[] { m.nnz });
+			writeDoubles(zip, m.data, m.nnz);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("indices.npy"));
+			writeHeader(zip, "<i4", new int[] { m.nnz });
+			writeInts(zip, m.indices, m.nnz);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("indptr.npy"));
+			writeHeader(zip, "<i4", new int[] { m.numRows + 1 });
+			writeInts(zip, m.indptr, m.numRows + 1);
+			zip.closeEntry();
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing sparse matrix file: " + f, e);
+		}
+		finally
+		{
+			close(zip);
+		}
+	}
+
+	/**
+	 * Write a 1-d array of doubles as a .npy file which can be loaded with numpy.load()
+	 *
+	 * @param f
+	 *            the file to write
+	 * @param vals
+	 *            the values
+	 */
+	public static void writeNpy(File f, List<Double> vals)
+	{
+		double[] arr = new double[vals.size()];
+
+		for (int i = 0; i < arr.length; ++i)
+			arr[i] = vals.get(i);
+
+		OutputStream out = null;
+
+		try
+		{
+			out = new BufferedOutputStream(new FileOutputStream(f));
+
+			writeHeader(out, "<f8", new int[] { arr.length });
+			writeDoubles(out, arr, arr.length);
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing array file: " + f, e);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	/**
+	 * Write the .npy magic string and header dictionary. The header is padded so that the data
+	 * starts on an aligned offset, as numpy does.
+	 */
+	private static void writeHeader(OutputStream out, String descr, int[] shape)
+			throws IOException
+	{
+		StringBuilder shapeStr = new StringBuilder("(");
+
+		for (int s : shape)
+			shapeStr.append(s + ",");
+
+		shapeStr.append(")");
+
+		StringBuilder dict = new StringBuilder();
+		dict.append("{'descr': '" + descr + "', 'fortran_order': False, 'shape': " + shapeStr
+				+ ", }");
+
+		// magic (8 bytes) + header length (2 bytes) + dict + '\n' should be aligned
+		int total = MAGIC.length + 2 + dict.length() + 1;
+		int padding = (HEADER_ALIGN - total % HEADER_ALIGN) % HEADER_ALIGN;
+
+		for (int i = 0; i < padding; ++i)
+			dict.append(' ');
+
+		dict.append('\n');
+
+		byte[] header = dict.toString().getBytes(ASCII);
+
+		out.write(MAGIC);
+		out.write(header.length & 0xff);
+		out.write((header.length >> 8) & 0xff);
+		out.write(header);
+	}
+
+	private static void writeDoubles(OutputStream out, double[] vals, int count)
+			throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < count; ++i)
+		{
+			if (buf.remaining() < 8)
+				flushBuffer(out, buf);
+
+			buf.putDouble(vals[i]);
+		}
+
+		flushBuffer(out, buf);
+	}
+
+	private static void writeInts(OutputStream out, int[] vals, int count) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < count; ++i)
+		{
+			if (buf.remaining() < 4)
+				flushBuffer(out, buf);
+
+			buf.putInt(vals[i]);
+		}
+
+		flushBuffer(out, buf);
+	}
+
+	private static void flushBuffer(OutputStream out, ByteBuffer buf) throws IOException
+	{
+		out.write(buf.array(), 0, buf.position());
+		buf.clear();
+	}
+
+	private static void close(OutputStream out)
+	{
+		if (out != null)
+		{
+			try
+			{
+				out.close();
+			}
+			catch (IOException e)
+			{
+				throw new AutomatonExportException("Error closing numpy output file", e);
+			}
+		}
+	}
+}
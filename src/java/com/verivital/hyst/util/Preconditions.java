@@ -77,6 +77,20 @@ public class Preconditions
 		}
 	}
 
+	/**
+	 * Are all checks skipped, so check() never rejects or converts the model?
+	 */
+	public boolean skipsAll()
+	{
+		for (boolean s : skip)
+		{
+			if (!s)
+				return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Checks if indicated preconditions are met. Raises PrinterPreconditionException if not.
 	 * 
@@ -620,12 +634,14 @@ public class Preconditions
 
 				if (am.flowDynamics != null)
 				{
+					FlowAnalysis analysis = FlowAnalysis.of(am);
+
 					for (Entry<String, ExpressionInterval> entry : am.flowDynamics.entrySet())
 					{
 						String var = entry.getKey();
 						Expression e = entry.getValue().getExpression();
 
-						byte cl = AutomatonUtil.classifyExpressionOps(e);
+						byte cl = analysis.getOps(var);
 
 						cl &= ~BASIC; // turn off BASIC bits in the mask
 
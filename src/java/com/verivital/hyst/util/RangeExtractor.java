@@ -2,8 +2,10 @@ package com.verivital.hyst.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -11,6 +13,7 @@ import java.util.TreeMap;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionTraversal.PreOrder;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
@@ -380,6 +383,43 @@ public class RangeExtractor
 	private static void getVariableRangesRecursive(Expression expression,
 			Map<String, Interval> ranges, Collection<String> vars, boolean extractWeakRanges)
 					throws EmptyRangeException, UnsupportedConditionException
+	{
+		// iterate over the conjuncts (long conjunctions would overflow the stack with recursion)
+		PreOrder conjuncts = new PreOrder(expression)
+		{
+			@Override
+			protected List<Expression> getChildren(Expression e)
+			{
+				List<Expression> rv = Collections.emptyList();
+
+				if (isConjunction(e))
+					rv = ((Operation) e).children;
+
+				return rv;
+			}
+		};
+
+		for (Expression e : conjuncts)
+		{
+			if (!isConjunction(e))
+				getConstraintRanges(e, ranges, vars, extractWeakRanges);
+		}
+	}
+
+	private static boolean isConjunction(Expression e)
+	{
+		Operation o = e.asOperation();
+
+		return o != null && o.children.size() == 2 && o.op == Operator.AND;
+	}
+
+	/**
+	 * Get the variable ranges from a single constraint (not a conjunction), and store them into
+	 * ranges. The parameters are the same as for getVariableRangesRecursive().
+	 */
+	private static void getConstraintRanges(Expression expression, Map<String, Interval> ranges,
+			Collection<String> vars, boolean extractWeakRanges)
+					throws EmptyRangeException, UnsupportedConditionException
 	{
 		Operation o = expression.asOperation();
 
@@ -389,17 +429,7 @@ public class RangeExtractor
 			Expression rightExp = o.children.get(1);
 			Operator op = o.op;
 
-			if (op.equals(Operator.AND))
-			{
-				TreeMap<String, Interval> left = new TreeMap<String, Interval>();
-				TreeMap<String, Interval> right = new TreeMap<String, Interval>();
-
-				getVariableRangesRecursive(leftExp, ranges, vars, extractWeakRanges);
-				getVariableRangesRecursive(rightExp, ranges, vars, extractWeakRanges);
-
-				ranges = mergeTreeRanges(left, right);
-			}
-			else if (expressionContainsVariables(expression, vars))
+			if (expressionContainsVariables(expression, vars))
 			{
 				double val = 0;
 				String varName = null;
@@ -595,47 +625,6 @@ public class RangeExtractor
 		return rv;
 	}
 
-	/**
-	 * Merge the two ranges. For example [-5, 4] and [2, 10] will merge to be [2, 4].
-	 * 
-	 * @param left
-	 *            a range for each variable
-	 * @param right
-	 *            the other range for each variable, may include more or less variables as well
-	 * @return the merged set of constraints
-	 * @throws EmptyRangeException
-	 *             if the ranges don't overlap
-	 */
-	private static TreeMap<String, Interval> mergeTreeRanges(TreeMap<String, Interval> left,
-			TreeMap<String, Interval> right) throws EmptyRangeException
-	{
-		TreeMap<String, Interval> rv = new TreeMap<String, Interval>();
-
-		rv.putAll(left);
-
-		for (Entry<String, Interval> e : right.entrySet())
-		{
-			String key = e.getKey();
-			Interval val = e.getValue();
-
-			Interval i = rv.get(key);
-
-			if (i == null)
-				rv.put(key, val);
-			else
-			{
-				// take the tighter of the two extremes
-				i.min = Math.max(i.min, val.min);
-				i.max = Math.min(i.max, val.max);
-
-				if (i.max < i.min)
-					throw new EmptyRangeException("range for " + key + " is unsatisfiable");
-			}
-		}
-
-		return rv;
-	}
-
 	@SuppressWarnings("serial")
 	public static class EmptyRangeException extends Exception
 	{
@@ -668,20 +657,9 @@ public class RangeExtractor
 	{
 		int rv = 0;
 
-		if (expression instanceof Operation)
-		{
-			Operation o = expression.asOperation();
-
-			for (Expression c : o.children)
-			{
-				rv += countVariableOccurances(c, variable);
-			}
-		}
-		else if (expression instanceof Variable)
+		for (Expression e : new PreOrder(expression))
 		{
-			Variable v = (Variable) expression;
-
-			if (v.name.equals(variable))
+			if (e instanceof Variable && ((Variable) e).name.equals(variable))
 				++rv;
 		}
 
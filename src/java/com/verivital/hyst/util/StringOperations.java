@@ -6,7 +6,6 @@ import java.util.Map.Entry;
 
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.base.ExpressionInterval;
-import com.verivital.hyst.printers.ToolPrinter;
 
 /**
  * Utility class for string operations
@@ -44,32 +43,47 @@ public class StringOperations
 
 	public static String join(String sep, double[] list)
 	{
-		String[] strings = new String[list.length];
+		StringBuilder rv = new StringBuilder();
 
 		for (int i = 0; i < list.length; ++i)
-			strings[i] = ToolPrinter.doubleToString(list[i]);
+		{
+			if (i > 0)
+				rv.append(sep);
 
-		return join(sep, strings);
+			DoubleFormatter.append(rv, list[i]);
+		}
+
+		return rv.toString();
 	}
 
 	public static String join(String sep, Double[] list)
 	{
-		String[] strings = new String[list.length];
+		StringBuilder rv = new StringBuilder();
 
 		for (int i = 0; i < list.length; ++i)
-			strings[i] = ToolPrinter.doubleToString(list[i]);
+		{
+			if (i > 0)
+				rv.append(sep);
 
-		return join(sep, strings);
+			DoubleFormatter.append(rv, list[i]);
+		}
+
+		return rv.toString();
 	}
 
 	public static String join(String sep, Integer[] list)
 	{
-		String[] strings = new String[list.length];
+		StringBuilder rv = new StringBuilder();
 
 		for (int i = 0; i < list.length; ++i)
-			strings[i] = ToolPrinter.doubleToString(list[i]);
+		{
+			if (i > 0)
+				rv.append(sep);
 
-		return join(sep, strings);
+			DoubleFormatter.append(rv, list[i]);
+		}
+
+		return rv.toString();
 	}
 
 	public static String makeDefaultEiMapString(Map<String, ExpressionInterval> l)
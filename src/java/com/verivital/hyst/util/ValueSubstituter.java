@@ -1,7 +1,6 @@
 package com.verivital.hyst.util;
 
 import java.util.Map;
-import java.util.Map.Entry;
 
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -81,11 +80,11 @@ public class ValueSubstituter
 		{
 			MatrixExpression m = (MatrixExpression) e;
 
-			for (Entry<int[], Expression> entry : m)
+			// numeric matrices have nothing to substitute
+			if (!m.isNumeric())
 			{
-				Expression simpler = substitute(entry.getValue());
-
-				m.setExpressionAtIndex(entry.getKey(), simpler);
+				for (int i = 0; i < m.getNumCells(); ++i)
+					m.setCell(i, substitute(m.getCell(i)));
 			}
 		}
 
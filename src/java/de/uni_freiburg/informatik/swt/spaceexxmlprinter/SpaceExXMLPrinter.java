@@ -728,54 +728,57 @@ public class SpaceExXMLPrinter
 		FormulaType type = FormulaType.DEFAULT;
 
 		@Override
-		public String printOperation(Operation o)
+		protected void appendOperation(Operation o, StringBuilder out)
 		{
-			String rv = null;
-
 			if (o.op == Operator.EQUAL)
 			{
-				rv = print(o.getLeft());
+				print(o.getLeft(), out);
 
 				switch (type)
 				{
 				case ASSIGNMENT:
 					// op = " := ";
-					rv += "' == ";
+					out.append("' == ");
 					break;
 				case DIFFERENTIAL:
-					rv += "' == ";
+					out.append("' == ");
 					break;
 				case DEFAULT:
 				default:
-					rv += " == ";
+					out.append(" == ");
 					break;
 				}
 
-				rv += print(o.getRight());
+				print(o.getRight(), out);
 			}
 			else if (o.op == Operator.LESSEQUAL || o.op == Operator.GREATEREQUAL
 					|| o.op == Operator.LESS || o.op == Operator.GREATER)
 			{
-				rv = print(o.getLeft());
+				print(o.getLeft(), out);
 
 				switch (type)
 				{
 				case ASSIGNMENT:
 					// op = " := ";
-					rv += "' ";
+					out.append("' ");
 					break;
 				default:
-					rv += " ";
+					out.append(" ");
 					break;
 				}
 
-				rv += this.opNames.get(o.op);
-				rv += " " + print(o.getRight());
+				out.append(this.opNames.get(o.op));
+				out.append(" ");
+				print(o.getRight(), out);
 			}
 			else
-				rv = super.printOperation(o);
+				super.appendOperation(o, out);
+		}
 
-			return rv;
+		@Override
+		protected boolean usesDefaultPrinting(Operation o)
+		{
+			return !Operator.isComparison(o.op);
 		}
 	}
 